@@ -5,10 +5,12 @@
 package ch.sbb.matsim.analysis.skims;
 
 import ch.sbb.matsim.analysis.skims.NetworkSkimMatrices.NetworkIndicators;
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
 import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
 import ch.sbb.matsim.routing.pt.raptor.RaptorStaticConfig;
 import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorDataIO;
 import org.locationtech.jts.geom.*;
 import org.locationtech.jts.index.SpatialIndex;
 import org.locationtech.jts.index.quadtree.Quadtree;
@@ -352,12 +354,15 @@ public class CalculateSkimMatrices {
         log.info("prepare PT Matrix calculation");
         RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(config);
         raptorConfig.setOptimization(RaptorStaticConfig.RaptorOptimization.OneToAllRouting);
-        SwissRailRaptorData raptorData = SwissRailRaptorData.create(scenario.getTransitSchedule(), raptorConfig, scenario.getNetwork());
+        String snapshotDirectory = ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class).getDataSnapshotDirectory();
+        SwissRailRaptorData raptorData = (snapshotDirectory == null || snapshotDirectory.isEmpty())
+                ? SwissRailRaptorData.create(scenario.getTransitSchedule(), raptorConfig, scenario.getNetwork())
+                : SwissRailRaptorDataIO.loadOrCreate(scenario.getTransitSchedule(), raptorConfig, scenario.getNetwork(), snapshotDirectory);
         RaptorParameters raptorParameters = RaptorUtils.createParameters(config);
 
         log.info("calc PT matrices for " + Time.writeTime(startTime) + " - " + Time.writeTime(endTime));
         PTSkimMatrices.PtIndicators<String> matrices = PTSkimMatrices.calculateSkimMatrices(
-                raptorData, this.zonesById, this.coordsPerZone, startTime, endTime, 120, raptorParameters, this.numberOfThreads, trainDetector);
+                raptorData, this.zonesById, this.coordsPerZone, startTime, endTime, raptorParameters, this.numberOfThreads, trainDetector);
 
         log.info("write PT matrices to " + outputDirectory + (prefix.isEmpty() ? "" : (" with prefix " + prefix)));
         FloatMatrixIO.writeAsCSV(matrices.adaptionTimeMatrix, outputDirectory + "/" + prefix + PT_ADAPTIONTIMES_FILENAME);
@@ -4,6 +4,7 @@ import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
 import ch.sbb.matsim.routing.pt.raptor.RaptorRoute;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptor;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfo;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfoTree;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
@@ -49,7 +50,8 @@ import java.util.function.BiPredicate;
  *
  * A basic implementation for calculating the travel times between m zones would result in m^2 * n^2 pt route calculations,
  * which could take a very long time. The actual algorithm makes use of LeastCostPathTrees, reducing the computational effort down
- * to the calculation of m*n LeastCostPathTrees. In addition, it supports running the calculation in parallel to reduce the time
+ * to the calculation of m*n profile trees, each containing the LeastCostPathTrees of all departures in the time window.
+ * In addition, it supports running the calculation in parallel to reduce the time
  * required to compute one matrix.
  *
  * If no connection can be found between two zones (can happen when there is no transit stop in a zone),
@@ -62,7 +64,16 @@ public class PTSkimMatrices {
     private PTSkimMatrices() {
     }
 
+    /**
+     * @deprecated the connections are now calculated for all departures between <code>minDepartureTime</code> and
+     * <code>maxDepartureTime</code>, so <code>stepSize_seconds</code> is no longer used.
+     */
+    @Deprecated
     public static <T> PTSkimMatrices.PtIndicators<T> calculateSkimMatrices(SwissRailRaptorData raptorData, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, double stepSize_seconds, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector) {
+        return calculateSkimMatrices(raptorData, zones, coordsPerZone, minDepartureTime, maxDepartureTime, parameters, numberOfThreads, trainDetector);
+    }
+
+    public static <T> PTSkimMatrices.PtIndicators<T> calculateSkimMatrices(SwissRailRaptorData raptorData, Map<T, SimpleFeature> zones, Map<T, Coord[]> coordsPerZone, double minDepartureTime, double maxDepartureTime, RaptorParameters parameters, int numberOfThreads, BiPredicate<TransitLine, TransitRoute> trainDetector) {
         // prepare calculation
         PtIndicators<T> pti = new PtIndicators<>(zones.keySet());
 
@@ -70,10 +81,10 @@ public class PTSkimMatrices {
         ConcurrentLinkedQueue<T> originZones = new ConcurrentLinkedQueue<>(zones.keySet());
 
         Counter counter = new Counter("PT-FrequencyMatrix-" + Time.writeTime(minDepartureTime) + "-" + Time.writeTime(maxDepartureTime) + " zone ", " / " + zones.size());
+        SwissRailRaptor raptor = new SwissRailRaptor(raptorData, null, null, null); // thread-safe, shared by all workers
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            SwissRailRaptor raptor = new SwissRailRaptor(raptorData, null, null, null);
-            RowWorker<T> worker = new RowWorker<>(originZones, zones.keySet(), coordsPerZone, pti, raptor, parameters, minDepartureTime, maxDepartureTime, stepSize_seconds, counter, trainDetector);
+            RowWorker<T> worker = new RowWorker<>(originZones, zones.keySet(), coordsPerZone, pti, raptor, parameters, minDepartureTime, maxDepartureTime, counter, trainDetector);
             threads[i] = new Thread(worker, "PT-FrequencyMatrix-" + Time.writeTime(minDepartureTime) + "-" + Time.writeTime(maxDepartureTime) + "-" + i);
             threads[i].start();
         }
@@ -127,11 +138,11 @@ public class PTSkimMatrices {
         private final RaptorParameters parameters;
         private final double minDepartureTime;
         private final double maxDepartureTime;
-        private final double stepSize;
         private final Counter counter;
         private final BiPredicate<TransitLine, TransitRoute> trainDetector;
+        private final Map<Coord, Collection<TransitStopFacility>> stopCandidatesPerCoord = new HashMap<>(); // the destinations are the same for every row
 
-        RowWorker(ConcurrentLinkedQueue<T> originZones, Set<T> destinationZones, Map<T, Coord[]> coordsPerZone, PtIndicators<T> pti, SwissRailRaptor raptor, RaptorParameters parameters, double minDepartureTime, double maxDepartureTime, double stepSize, Counter counter, BiPredicate<TransitLine, TransitRoute> trainDetector) {
+        RowWorker(ConcurrentLinkedQueue<T> originZones, Set<T> destinationZones, Map<T, Coord[]> coordsPerZone, PtIndicators<T> pti, SwissRailRaptor raptor, RaptorParameters parameters, double minDepartureTime, double maxDepartureTime, Counter counter, BiPredicate<TransitLine, TransitRoute> trainDetector) {
             this.originZones = originZones;
             this.destinationZones = destinationZones;
             this.coordsPerZone = coordsPerZone;
@@ -140,7 +151,6 @@ public class PTSkimMatrices {
             this.parameters = parameters;
             this.minDepartureTime = minDepartureTime;
             this.maxDepartureTime = maxDepartureTime;
-            this.stepSize = stepSize;
             this.counter = counter;
             this.trainDetector = trainDetector;
         }
@@ -173,35 +183,31 @@ public class PTSkimMatrices {
                 accessTimes.put(stop.getId(), accessTime);
             }
 
-            List<Map<Id<TransitStopFacility>, TravelInfo>> trees = new ArrayList<>();
-
-            for (double time = this.minDepartureTime; time < this.maxDepartureTime; time += this.stepSize) {
-                Map<Id<TransitStopFacility>, TravelInfo> tree = this.raptor.calcTree(fromStops, time, this.parameters);
-                trees.add(tree);
-            }
+            // the adaption times at the end of the window depend on the next connections after the window
+            TravelInfoTree profiles = this.raptor.calcProfileTravelInfoTree(fromStops, this.minDepartureTime, this.maxDepartureTime, this.parameters, true);
 
             for (T toZoneId : this.destinationZones) {
                 Coord[] toCoords = this.coordsPerZone.get(toZoneId);
                 if (toCoords != null) {
                     for (Coord toCoord : toCoords) {
-                        calcForOD(fromZoneId, fromCoord, toZoneId, toCoord, accessTimes, trees);
+                        calcForOD(fromZoneId, fromCoord, toZoneId, toCoord, accessTimes, profiles);
                     }
                 }
             }
         }
 
-        private void calcForOD(T fromZoneId, Coord fromCoord, T toZoneId, Coord toCoord, Map<Id<TransitStopFacility>, Double> accessTimes, List<Map<Id<TransitStopFacility>, TravelInfo>> trees) {
+        private void calcForOD(T fromZoneId, Coord fromCoord, T toZoneId, Coord toCoord, Map<Id<TransitStopFacility>, Double> accessTimes, TravelInfoTree profiles) {
             double walkSpeed = this.parameters.getBeelineWalkSpeed();
 
-            Collection<TransitStopFacility> toStops = findStopCandidates(toCoord, this.raptor, this.parameters);
-            Map<Id<TransitStopFacility>, Double> egressTimes = new HashMap<>();
+            Collection<TransitStopFacility> toStops = this.stopCandidatesPerCoord.computeIfAbsent(toCoord, c -> findStopCandidates(c, this.raptor, this.parameters));
+            Map<TransitStopFacility, Double> egressTimes = new LinkedHashMap<>();
             for (TransitStopFacility stop : toStops) {
                 double distance = CoordUtils.calcEuclideanDistance(stop.getCoord(), toCoord);
                 double egressTime = distance / walkSpeed;
-                egressTimes.put(stop.getId(), egressTime);
+                egressTimes.put(stop, egressTime);
             }
 
-            List<ODConnection> connections = buildODConnections(trees, egressTimes);
+            List<ODConnection> connections = buildODConnections(profiles, egressTimes);
             if (connections.isEmpty()) {
                 return;
             }
@@ -228,7 +234,7 @@ public class PTSkimMatrices {
                 ODConnection connection = e.getKey();
                 double share = e.getValue();
 
-                accessTime += share * accessTimes.get(connection.travelInfo.departureStop).floatValue();
+                accessTime += share * accessTimes.get(connection.getDepartureStopId()).floatValue();
                 egressTime += share * (float) connection.egressTime;
                 transferCount += share * (float) connection.transferCount;
                 travelTime += share * (float) connection.totalTravelTime();
@@ -238,7 +244,7 @@ public class PTSkimMatrices {
                 double connTotalInVehTime = 0;
                 double connTrainInVehTime = 0;
 
-                RaptorRoute route = connection.travelInfo.getRaptorRoute();
+                RaptorRoute route = connection.getRaptorRoute();
                 for (RaptorRoute.RoutePart part : route.getParts()) {
                     if (part.line != null) {
                         // it's a non-transfer part, an actual pt stage
@@ -276,16 +282,20 @@ public class PTSkimMatrices {
             this.pti.dataCountMatrix.add(fromZoneId, toZoneId, 1);
         }
 
-        private List<ODConnection> buildODConnections(List<Map<Id<TransitStopFacility>, TravelInfo>> trees,  Map<Id<TransitStopFacility>, Double> egressTimes) {
+        private List<ODConnection> buildODConnections(TravelInfoTree profiles, Map<TransitStopFacility, Double> egressTimes) {
             List<ODConnection> connections = new ArrayList<>();
 
-            for (Map<Id<TransitStopFacility>, TravelInfo> tree : trees) {
-                for (Map.Entry<Id<TransitStopFacility>, Double> egressEntry : egressTimes.entrySet()) {
-                    Id<TransitStopFacility> egressStopId = egressEntry.getKey();
-                    Double egressTime = egressEntry.getValue();
-                    TravelInfo info = tree.get(egressStopId);
-                    if (info != null && !info.isWalkOnly()) {
-                        ODConnection connection = new ODConnection(info.ptDepartureTime, info.ptTravelTime, info.accessTime, egressTime, info.transferCount, info);
+            for (Map.Entry<TransitStopFacility, Double> egressEntry : egressTimes.entrySet()) {
+                int stopIndex = profiles.getStopIndex(egressEntry.getKey());
+                if (stopIndex < 0) {
+                    continue;
+                }
+                double egressTime = egressEntry.getValue();
+                int firstEntry = profiles.getFirstEntry(stopIndex);
+                int lastEntry = firstEntry + profiles.getEntryCount(stopIndex);
+                for (int entry = firstEntry; entry < lastEntry; entry++) {
+                    if (!profiles.isWalkOnly(entry)) {
+                        ODConnection connection = new ODConnection(profiles.getPtDepartureTime(entry), profiles.getPtTravelTime(entry), profiles.getAccessTime(entry), egressTime, profiles.getTransferCount(entry), profiles, entry);
                         connections.add(connection);
                     }
                 }
@@ -474,20 +484,40 @@ public class PTSkimMatrices {
         final double accessTime;
         final double egressTime;
         final double transferCount;
-        final TravelInfo travelInfo;
+        final TravelInfoTree tree; // null if created from a TravelInfo
+        final int entry;
+        final TravelInfo travelInfo; // null if created from a tree entry
 
         ODConnection(double departureTime, double travelTime, double accessTime, double egressTime, double transferCount, TravelInfo info) {
+            this(departureTime, travelTime, accessTime, egressTime, transferCount, null, -1, info);
+        }
+
+        ODConnection(double departureTime, double travelTime, double accessTime, double egressTime, double transferCount, TravelInfoTree tree, int entry) {
+            this(departureTime, travelTime, accessTime, egressTime, transferCount, tree, entry, null);
+        }
+
+        private ODConnection(double departureTime, double travelTime, double accessTime, double egressTime, double transferCount, TravelInfoTree tree, int entry, TravelInfo info) {
             this.departureTime = departureTime;
             this.travelTime = travelTime;
             this.accessTime = accessTime;
             this.egressTime = egressTime;
             this.transferCount = transferCount;
+            this.tree = tree;
+            this.entry = entry;
             this.travelInfo = info;
         }
 
         double totalTravelTime() {
             return this.accessTime + this.travelTime + this.egressTime;
         }
+
+        Id<TransitStopFacility> getDepartureStopId() {
+            return this.tree == null ? this.travelInfo.departureStop : this.tree.getDepartureStop(this.entry).getId();
+        }
+
+        RaptorRoute getRaptorRoute() {
+            return this.tree == null ? this.travelInfo.getRaptorRoute() : this.tree.getRaptorRoute(this.entry);
+        }
     }
 
     public static class PtIndicators<T> {
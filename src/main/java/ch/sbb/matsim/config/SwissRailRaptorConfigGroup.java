@@ -35,6 +35,18 @@ public class SwissRailRaptorConfigGroup extends ReflectiveConfigGroup {
     private static final String PARAM_TRANSFER_PENALTY_MIN = "transferPenaltyMinCost";
     private static final String PARAM_TRANSFER_PENALTY_MAX = "transferPenaltyMaxCost";
     private static final String PARAM_TRANSFER_PENALTY_PERHOUR = "transferPenaltyCostPerTravelTimeHour";
+    private static final String PARAM_DATA_SNAPSHOT_DIRECTORY = "dataSnapshotDirectory";
+    private static final String PARAM_DATA_SNAPSHOT_DIRECTORY_DESC = "Directory where the prepared routing data is stored and re-used from if the schedule, network and config did not change. Leave empty to always prepare the data from scratch.";
+    private static final String PARAM_USE_LOWER_BOUND_PRUNING = "useLowerBoundPruning";
+    private static final String PARAM_USE_LOWER_BOUND_PRUNING_DESC = "If true, least cost route searches calculate lower bounds of the remaining costs to the destination and discard connections that cannot improve the best arrival found so far. This mostly speeds up long-distance routes on large schedules.";
+    private static final String PARAM_USE_PARALLEL_INTERMODAL_ACCESS_EGRESS = "useParallelIntermodalAccessEgress";
+    private static final String PARAM_USE_PARALLEL_INTERMODAL_ACCESS_EGRESS_DESC = "If true, the intermodal access and egress legs to the stops found for a routing request are routed in parallel on the common fork-join pool. This reduces the response time of single routing requests. Each parallel task uses its own instance of the mode's routing module, created with the bound routing module provider, so the routing modules need not be thread-safe. Stop finders created without routing module providers always route the legs one after another.";
+    private static final String PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_SIZE = "intermodalAccessEgressCacheSize";
+    private static final String PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_SIZE_DESC = "Maximum number of intermodal access and egress legs to stops that are cached and re-used for other routing requests from the same location and time bin, until the next iteration starts. Legs are cached per intermodal access/egress parameter set, so the routes must not depend on the person except for the person filter attribute. Set to 0 to disable the cache.";
+    private static final String PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_TIME_BIN_SIZE = "intermodalAccessEgressCacheTimeBinSize";
+    private static final String PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_TIME_BIN_SIZE_DESC = "Duration of the time bins in seconds in which departures share the cached intermodal access and egress legs.";
+    private static final String PARAM_USE_NETWORK_TREE_FOR_INTERMODAL_ACCESS_EGRESS = "useNetworkTreeForIntermodalAccessEgress";
+    private static final String PARAM_USE_NETWORK_TREE_FOR_INTERMODAL_ACCESS_EGRESS_DESC = "If true, the intermodal access and egress legs of network modes with a bound travel time and travel disutility are calculated to all stops found for a routing request with a single least-cost path tree, instead of routing each leg with the mode's routing module. The legs then consist of a single network leg, without access and egress walks to and from the network.";
 
     private boolean useRangeQuery = false;
     private boolean useIntermodality = false;
@@ -45,11 +57,19 @@ public class SwissRailRaptorConfigGroup extends ReflectiveConfigGroup {
     private double transferPenaltyMinCost = Double.NEGATIVE_INFINITY;
     private double transferPenaltyMaxCost = Double.POSITIVE_INFINITY;
     private double transferPenaltyHourlyCost = 0;
+    private String dataSnapshotDirectory = null;
+    private boolean useLowerBoundPruning = false;
+    private boolean useParallelIntermodalAccessEgress = false;
+    private int intermodalAccessEgressCacheSize = 0;
+    private double intermodalAccessEgressCacheTimeBinSize = 900;
+    private boolean useNetworkTreeForIntermodalAccessEgress = false;
 
     private ScoringParameters scoringParameters = ScoringParameters.Default;
 
     private final Map<String, RangeQuerySettingsParameterSet> rangeQuerySettingsPerSubpop = new HashMap<>();
     private final Map<String, RouteSelectorParameterSet> routeSelectorPerSubpop = new HashMap<>();
+    private final Map<String, RoutingLimitsParameterSet> routingLimitsPerSubpop = new HashMap<>();
+    private final RoutingLimitsParameterSet defaultRoutingLimits = new RoutingLimitsParameterSet();
     private final List<IntermodalAccessEgressParameterSet> intermodalAccessEgressSettings = new ArrayList<>();
     private final Map<String, ModeMappingForPassengersParameterSet> modeMappingForPassengersByRouteMode = new HashMap<>();
     
@@ -155,12 +175,92 @@ public class SwissRailRaptorConfigGroup extends ReflectiveConfigGroup {
         this.transferPenaltyHourlyCost = hourlyCost;
     }
 
+    @StringGetter(PARAM_DATA_SNAPSHOT_DIRECTORY)
+    public String getDataSnapshotDirectory() {
+        return this.dataSnapshotDirectory;
+    }
+
+    @StringSetter(PARAM_DATA_SNAPSHOT_DIRECTORY)
+    public void setDataSnapshotDirectory(String dataSnapshotDirectory) {
+        this.dataSnapshotDirectory = dataSnapshotDirectory;
+    }
+
+    @StringGetter(PARAM_USE_LOWER_BOUND_PRUNING)
+    public boolean isUseLowerBoundPruning() {
+        return this.useLowerBoundPruning;
+    }
+
+    @StringSetter(PARAM_USE_LOWER_BOUND_PRUNING)
+    public void setUseLowerBoundPruning(boolean useLowerBoundPruning) {
+        this.useLowerBoundPruning = useLowerBoundPruning;
+    }
+
+    @StringGetter(PARAM_USE_PARALLEL_INTERMODAL_ACCESS_EGRESS)
+    public boolean isUseParallelIntermodalAccessEgress() {
+        return this.useParallelIntermodalAccessEgress;
+    }
+
+    @StringSetter(PARAM_USE_PARALLEL_INTERMODAL_ACCESS_EGRESS)
+    public void setUseParallelIntermodalAccessEgress(boolean useParallelIntermodalAccessEgress) {
+        this.useParallelIntermodalAccessEgress = useParallelIntermodalAccessEgress;
+    }
+
+    @StringGetter(PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_SIZE)
+    public int getIntermodalAccessEgressCacheSize() {
+        return this.intermodalAccessEgressCacheSize;
+    }
+
+    @StringSetter(PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_SIZE)
+    public void setIntermodalAccessEgressCacheSize(int cacheSize) {
+        if (cacheSize < 0) {
+            throw new IllegalArgumentException("The intermodal access/egress cache size must not be negative: " + cacheSize);
+        }
+        this.intermodalAccessEgressCacheSize = cacheSize;
+    }
+
+    @StringGetter(PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_TIME_BIN_SIZE)
+    public double getIntermodalAccessEgressCacheTimeBinSize() {
+        return this.intermodalAccessEgressCacheTimeBinSize;
+    }
+
+    @StringSetter(PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_TIME_BIN_SIZE)
+    public void setIntermodalAccessEgressCacheTimeBinSize(double timeBinSize) {
+        if (timeBinSize <= 0) {
+            throw new IllegalArgumentException("The intermodal access/egress cache time bin size must be positive: " + timeBinSize);
+        }
+        this.intermodalAccessEgressCacheTimeBinSize = timeBinSize;
+    }
+
+    @StringGetter(PARAM_USE_NETWORK_TREE_FOR_INTERMODAL_ACCESS_EGRESS)
+    public boolean isUseNetworkTreeForIntermodalAccessEgress() {
+        return this.useNetworkTreeForIntermodalAccessEgress;
+    }
+
+    @StringSetter(PARAM_USE_NETWORK_TREE_FOR_INTERMODAL_ACCESS_EGRESS)
+    public void setUseNetworkTreeForIntermodalAccessEgress(boolean useNetworkTreeForIntermodalAccessEgress) {
+        this.useNetworkTreeForIntermodalAccessEgress = useNetworkTreeForIntermodalAccessEgress;
+    }
+
+    @Override
+    public Map<String, String> getComments() {
+        Map<String, String> map = super.getComments();
+        map.put(PARAM_DATA_SNAPSHOT_DIRECTORY, PARAM_DATA_SNAPSHOT_DIRECTORY_DESC);
+        map.put(PARAM_USE_LOWER_BOUND_PRUNING, PARAM_USE_LOWER_BOUND_PRUNING_DESC);
+        map.put(PARAM_USE_PARALLEL_INTERMODAL_ACCESS_EGRESS, PARAM_USE_PARALLEL_INTERMODAL_ACCESS_EGRESS_DESC);
+        map.put(PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_SIZE, PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_SIZE_DESC);
+        map.put(PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_TIME_BIN_SIZE, PARAM_INTERMODAL_ACCESS_EGRESS_CACHE_TIME_BIN_SIZE_DESC);
+        map.put(PARAM_USE_NETWORK_TREE_FOR_INTERMODAL_ACCESS_EGRESS, PARAM_USE_NETWORK_TREE_FOR_INTERMODAL_ACCESS_EGRESS_DESC);
+        return map;
+    }
+
     @Override
     public ConfigGroup createParameterSet(String type) {
         if (RangeQuerySettingsParameterSet.TYPE.equals(type)) {
             return new RangeQuerySettingsParameterSet();
         } else if (RouteSelectorParameterSet.TYPE.equals(type)) {
             return new RouteSelectorParameterSet();
+        } else if (RoutingLimitsParameterSet.TYPE.equals(type)) {
+            return new RoutingLimitsParameterSet();
         } else if (IntermodalAccessEgressParameterSet.TYPE.equals(type)) {
             return new IntermodalAccessEgressParameterSet();
         } else if (ModeMappingForPassengersParameterSet.TYPE.equals(type)) {
@@ -176,6 +276,8 @@ public class SwissRailRaptorConfigGroup extends ReflectiveConfigGroup {
             addRangeQuerySettings((RangeQuerySettingsParameterSet) set);
         } else if (set instanceof RouteSelectorParameterSet) {
             addRouteSelector((RouteSelectorParameterSet) set);
+        } else if (set instanceof RoutingLimitsParameterSet) {
+            addRoutingLimits((RoutingLimitsParameterSet) set);
         } else if (set instanceof IntermodalAccessEgressParameterSet) {
             addIntermodalAccessEgress((IntermodalAccessEgressParameterSet) set);
         } else if (set instanceof ModeMappingForPassengersParameterSet) {
@@ -229,6 +331,36 @@ public class SwissRailRaptorConfigGroup extends ReflectiveConfigGroup {
         return paramSet;
     }
 
+    public void addRoutingLimits(RoutingLimitsParameterSet settings) {
+        Set<String> subpops = settings.getSubpopulations();
+        if (subpops.isEmpty()) {
+            this.routingLimitsPerSubpop.put(null, settings);
+        } else {
+            for (String subpop : subpops) {
+                this.routingLimitsPerSubpop.put(subpop, settings);
+            }
+        }
+        super.addParameterSet(settings);
+    }
+
+    /**
+     * @return the routing limits for the given subpopulation. If there are none, the routing limits without
+     * subpopulation are returned, or the default limits if there are none either. Never returns <code>null</code>.
+     */
+    public RoutingLimitsParameterSet getRoutingLimits(String subpopulation) {
+        RoutingLimitsParameterSet limits = this.routingLimitsPerSubpop.get(subpopulation);
+        if (limits == null && subpopulation != null) {
+            limits = this.routingLimitsPerSubpop.get(null);
+        }
+        return limits == null ? this.defaultRoutingLimits : limits;
+    }
+
+    public RoutingLimitsParameterSet removeRoutingLimits(String subpopulation) {
+        RoutingLimitsParameterSet paramSet = this.routingLimitsPerSubpop.remove(subpopulation);
+        super.removeParameterSet(paramSet);
+        return paramSet;
+    }
+
     public void addIntermodalAccessEgress(IntermodalAccessEgressParameterSet paramSet) {
         this.intermodalAccessEgressSettings.add(paramSet);
         super.addParameterSet(paramSet);
@@ -375,6 +507,86 @@ public class SwissRailRaptorConfigGroup extends ReflectiveConfigGroup {
         }
     }
 
+    /**
+     * Limits the work done per route search. The defaults correspond to the behavior without limits.
+     */
+    public static class RoutingLimitsParameterSet extends ReflectiveConfigGroup {
+
+        private static final String TYPE = "routingLimits";
+
+        private static final String PARAM_SUBPOPS = "subpopulations";
+        private static final String PARAM_MAX_TRANSFERS = "maxTransfers";
+        private static final String PARAM_MAX_TRANSFERS_AFTER_FIRST_ARRIVAL = "maxTransfersAfterFirstArrival";
+        private static final String PARAM_MAX_TRAVEL_TIME = "maxTravelTime_sec";
+
+        private final Set<String> subpopulations = new HashSet<>();
+        private int maxTransfers = 20;
+        private int maxTransfersAfterFirstArrival = 2;
+        private double maxTravelTime = Double.POSITIVE_INFINITY;
+
+        public RoutingLimitsParameterSet() {
+            super(TYPE);
+        }
+
+        @StringGetter(PARAM_SUBPOPS)
+        public String getSubpopulationsAsString() {
+            return CollectionUtils.setToString(this.subpopulations);
+        }
+
+        public Set<String> getSubpopulations() {
+            return this.subpopulations;
+        }
+
+        @StringSetter(PARAM_SUBPOPS)
+        public void setSubpopulations(String subpopulation) {
+            this.setSubpopulations(CollectionUtils.stringToSet(subpopulation));
+        }
+
+        public void setSubpopulations(Set<String> subpopulations) {
+            this.subpopulations.clear();
+            this.subpopulations.addAll(subpopulations);
+        }
+
+        @StringGetter(PARAM_MAX_TRANSFERS)
+        public int getMaxTransfers() {
+            return this.maxTransfers;
+        }
+
+        @StringSetter(PARAM_MAX_TRANSFERS)
+        public void setMaxTransfers(int maxTransfers) {
+            this.maxTransfers = maxTransfers;
+        }
+
+        @StringGetter(PARAM_MAX_TRANSFERS_AFTER_FIRST_ARRIVAL)
+        public int getMaxTransfersAfterFirstArrival() {
+            return this.maxTransfersAfterFirstArrival;
+        }
+
+        @StringSetter(PARAM_MAX_TRANSFERS_AFTER_FIRST_ARRIVAL)
+        public void setMaxTransfersAfterFirstArrival(int maxTransfersAfterFirstArrival) {
+            this.maxTransfersAfterFirstArrival = maxTransfersAfterFirstArrival;
+        }
+
+        @StringGetter(PARAM_MAX_TRAVEL_TIME)
+        public double getMaxTravelTime() {
+            return this.maxTravelTime;
+        }
+
+        @StringSetter(PARAM_MAX_TRAVEL_TIME)
+        public void setMaxTravelTime(double maxTravelTime) {
+            this.maxTravelTime = maxTravelTime;
+        }
+
+        @Override
+        public Map<String, String> getComments() {
+            Map<String, String> map = super.getComments();
+            map.put(PARAM_MAX_TRANSFERS, "The maximum number of transfers of a route.");
+            map.put(PARAM_MAX_TRANSFERS_AFTER_FIRST_ARRIVAL, "How many more transfers are searched for cheaper routes once the destination was reached.");
+            map.put(PARAM_MAX_TRAVEL_TIME, "Connections arriving later than this many seconds after the departure are not explored. Default is no limit.");
+            return map;
+        }
+    }
+
     public static class IntermodalAccessEgressParameterSet extends ReflectiveConfigGroup {
 
         private static final String TYPE = "intermodalAccessEgress";
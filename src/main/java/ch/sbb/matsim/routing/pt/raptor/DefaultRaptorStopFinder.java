@@ -7,6 +7,7 @@ import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.Identifiable;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.Leg;
 import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.PlanElement;
@@ -17,6 +18,9 @@ import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.routes.RouteUtils;
 import org.matsim.core.router.RoutingModule;
+import org.matsim.core.router.costcalculators.TravelDisutilityFactory;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.utils.collections.QuadTree;
 import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.misc.Time;
@@ -31,33 +35,71 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Objects;
 
 /**
  * @author mrieser / Simunto GmbH
  */
 public class DefaultRaptorStopFinder implements RaptorStopFinder {
 
+	/**
+	 * The least-cost path trees for the intermodal access and egress only grow up to this factor times the maximal
+	 * radius of the parameter set, as the legs to stops within this radius are rarely that much longer on the network.
+	 */
+	static final double NETWORK_DETOUR_FACTOR = 3.0;
+
 	private final RaptorIntermodalAccessEgress intermodalAE;
 	private final Map<String, RoutingModule> routingModules;
+	private final RoutingModulePool routingModulePool; // null if no routing module providers are known, the legs are then never routed in parallel
+	private final IntermodalAccessEgressCache cache; // null if the intermodal access and egress legs are not cached
+	private final Map<String, NetworkAccessEgressRouter> networkRouters; // the modes for which all stops are routed with one least-cost path tree
 
 	@Inject
-	public DefaultRaptorStopFinder(Population population, Config config, RaptorIntermodalAccessEgress intermodalAE, Map<String, Provider<RoutingModule>> routingModuleProviders) {
+	public DefaultRaptorStopFinder(Population population, Config config, RaptorIntermodalAccessEgress intermodalAE, Map<String, Provider<RoutingModule>> routingModuleProviders,
+								   IntermodalAccessEgressCache cache, Network network, Map<String, TravelTime> travelTimes,
+								   Map<String, TravelDisutilityFactory> travelDisutilityFactories) {
 		this.intermodalAE = intermodalAE;
+		this.cache = cache.isEnabled() ? cache : null;
+		this.routingModulePool = new RoutingModulePool(routingModuleProviders);
 
 		SwissRailRaptorConfigGroup srrConfig = ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class);
 		this.routingModules = new HashMap<>();
+		this.networkRouters = new HashMap<>();
 		if (srrConfig.isUseIntermodalAccessEgress()) {
 			for (IntermodalAccessEgressParameterSet params : srrConfig.getIntermodalAccessEgressParameterSets()) {
 				String mode = params.getMode();
 				this.routingModules.put(mode, routingModuleProviders.get(mode).get());
+				if (srrConfig.isUseNetworkTreeForIntermodalAccessEgress()) {
+					TravelTime travelTime = travelTimes.get(mode);
+					TravelDisutilityFactory travelDisutilityFactory = travelDisutilityFactories.get(mode);
+					if (travelTime != null && travelDisutilityFactory != null) {
+						TravelDisutility travelDisutility = travelDisutilityFactory.createTravelDisutility(travelTime);
+						this.networkRouters.put(mode, new NetworkAccessEgressRouter(network, mode, travelTime, travelDisutility));
+					}
+				}
 			}
 		}
 	}
 
 	public DefaultRaptorStopFinder(Population population, RaptorIntermodalAccessEgress intermodalAE, Map<String, RoutingModule> routingModules) {
+		this(population, intermodalAE, routingModules, null);
+	}
+
+	public DefaultRaptorStopFinder(Population population, RaptorIntermodalAccessEgress intermodalAE, Map<String, RoutingModule> routingModules, IntermodalAccessEgressCache cache) {
+		this(population, intermodalAE, routingModules, cache, Collections.emptyMap());
+	}
+
+	/**
+	 * @param networkRouters the routers of the modes for which the access and egress legs to all stops are calculated with
+	 *                       one least-cost path tree instead of the routing modules.
+	 */
+	public DefaultRaptorStopFinder(Population population, RaptorIntermodalAccessEgress intermodalAE, Map<String, RoutingModule> routingModules,
+								   IntermodalAccessEgressCache cache, Map<String, NetworkAccessEgressRouter> networkRouters) {
 		this.intermodalAE = intermodalAE;
 		this.routingModules = routingModules;
+		this.routingModulePool = null;
+		this.cache = (cache == null || !cache.isEnabled()) ? null : cache;
+		this.networkRouters = networkRouters;
 	}
 
 	@Override
@@ -77,13 +119,15 @@ public class DefaultRaptorStopFinder implements RaptorStopFinder {
 			return findIntermodalStops(facility, person, departureTime, Direction.ACCESS, parameters, data);
 		} else {
 			double distanceFactor = data.config.getBeelineWalkDistanceFactor();
-			List<TransitStopFacility> stops = findNearbyStops(facility, parameters, data);
-			List<InitialStop> initialStops = stops.stream().map(stop -> {
+			int[] stopIndices = findNearbyStops(facility, parameters, data);
+			List<InitialStop> initialStops = new ArrayList<>(stopIndices.length);
+			for (int stopIndex : stopIndices) {
+				TransitStopFacility stop = data.stopGrid.stops[stopIndex];
 				double beelineDistance = CoordUtils.calcEuclideanDistance(stop.getCoord(), facility.getCoord());
 				double travelTime = Math.ceil(beelineDistance / parameters.getBeelineWalkSpeed());
 				double disutility = travelTime * -parameters.getMarginalUtilityOfTravelTime_utl_s(TransportMode.non_network_walk);
-				return new InitialStop(stop, disutility, travelTime, beelineDistance * distanceFactor, TransportMode.non_network_walk);
-			}).collect(Collectors.toList());
+				initialStops.add(new InitialStop(stop, disutility, travelTime, beelineDistance * distanceFactor, TransportMode.non_network_walk));
+			}
 			return initialStops;
 		}
 	}
@@ -94,13 +138,15 @@ public class DefaultRaptorStopFinder implements RaptorStopFinder {
 			return findIntermodalStops(facility, person, departureTime, Direction.EGRESS, parameters, data);
 		} else {
 			double distanceFactor = data.config.getBeelineWalkDistanceFactor();
-			List<TransitStopFacility> stops = findNearbyStops(facility, parameters, data);
-			List<InitialStop> initialStops = stops.stream().map(stop -> {
+			int[] stopIndices = findNearbyStops(facility, parameters, data);
+			List<InitialStop> initialStops = new ArrayList<>(stopIndices.length);
+			for (int stopIndex : stopIndices) {
+				TransitStopFacility stop = data.stopGrid.stops[stopIndex];
 				double beelineDistance = CoordUtils.calcEuclideanDistance(stop.getCoord(), facility.getCoord());
 				double travelTime = Math.ceil(beelineDistance / parameters.getBeelineWalkSpeed());
 				double disutility = travelTime * -parameters.getMarginalUtilityOfTravelTime_utl_s(TransportMode.non_network_walk);
-				return new InitialStop(stop, disutility, travelTime, beelineDistance * distanceFactor, TransportMode.non_network_walk);
-			}).collect(Collectors.toList());
+				initialStops.add(new InitialStop(stop, disutility, travelTime, beelineDistance * distanceFactor, TransportMode.non_network_walk));
+			}
 			return initialStops;
 		}
 	}
@@ -111,8 +157,6 @@ public class DefaultRaptorStopFinder implements RaptorStopFinder {
 		double y = facility.getCoord().getY();
 		List<InitialStop> initialStops = new ArrayList<>();
 		for (IntermodalAccessEgressParameterSet paramset : srrCfg.getIntermodalAccessEgressParameterSets()) {
-			String mode = paramset.getMode();
-			String linkIdAttribute = paramset.getLinkIdAttribute();
 			String personFilterAttribute = paramset.getPersonFilterAttribute();
 			String personFilterValue = paramset.getPersonFilterValue();
 			String stopFilterAttribute = paramset.getStopFilterAttribute();
@@ -128,8 +172,7 @@ public class DefaultRaptorStopFinder implements RaptorStopFinder {
 			if (personMatches) {
 				QuadTree<TransitStopFacility> filteredStopsQT;
 				if (stopFilterAttribute != null) {
-					data.prepareStopFilterQuadTreeIfNotExistent(stopFilterAttribute, stopFilterValue);
-					filteredStopsQT = data.stopFilterAttribute2Value2StopsQT.get(stopFilterAttribute).get(stopFilterValue);
+					filteredStopsQT = data.getStopFilterQuadTree(stopFilterAttribute, stopFilterValue);
 				} else {
 					filteredStopsQT = data.stopsQT;
 				}
@@ -142,88 +185,203 @@ public class DefaultRaptorStopFinder implements RaptorStopFinder {
 					stopFacilities = filteredStopsQT.getDisk(x, y, searchRadius);
 				}
 				
-				for (TransitStopFacility stop : stopFacilities) {
-					Facility stopFacility = stop;
-					if (linkIdAttribute != null) {
-						Object attr = stop.getAttributes().getAttribute(linkIdAttribute);
-						if (attr != null) {
-							stopFacility = new ChangedLinkFacility(stop, Id.create(attr.toString(), Link.class));
+				NetworkAccessEgressRouter networkRouter = this.networkRouters.get(paramset.getMode());
+				if (networkRouter != null && networkRouter.canRoute(facility.getLinkId())) {
+					addNetworkIntermodalStops(facility, stopFacilities, paramset, person, departureTime, direction, parameters, networkRouter, initialStops);
+				} else if (srrCfg.isUseParallelIntermodalAccessEgress() && this.routingModulePool != null && stopFacilities.size() > 1) {
+					// each task borrows its own routing module, as the routing modules are usually not thread-safe
+					String mode = paramset.getMode();
+					stopFacilities.parallelStream()
+							.map(stop -> {
+								RoutingModule module = this.routingModulePool.borrow(mode);
+								try {
+									return calcIntermodalStop(facility, stop, paramset, person, departureTime, direction, parameters, module);
+								} finally {
+									this.routingModulePool.release(mode, module);
+								}
+							})
+							.filter(Objects::nonNull)
+							.forEachOrdered(initialStops::add);
+				} else {
+					RoutingModule module = this.routingModules.get(paramset.getMode());
+					for (TransitStopFacility stop : stopFacilities) {
+						InitialStop iStop = calcIntermodalStop(facility, stop, paramset, person, departureTime, direction, parameters, module);
+						if (iStop != null) {
+							initialStops.add(iStop);
 						}
 					}
+				}
+			}
+		}
+		return initialStops;
+	}
 
-					List<? extends PlanElement> routeParts;
-					if (direction == Direction.ACCESS) {
-						RoutingModule module = this.routingModules.get(mode);
-						routeParts = module.calcRoute(facility, stopFacility, departureTime, person);
-					} else { // it's Egress
-						// We don't know the departure time for the egress trip, so just use the original departureTime,
-						// although it is wrong and might result in a wrong traveltime and thus wrong route.
-						RoutingModule module = this.routingModules.get(mode);
-						routeParts = module.calcRoute(stopFacility, facility, departureTime, person);
-						if (routeParts == null) {
-							// the router for the access/egress mode could not find a route, skip that access/egress mode
-							continue;
-						}
-						// clear the (wrong) departureTime so users don't get confused
-						for (PlanElement pe : routeParts) {
-							if (pe instanceof Leg) {
-								((Leg) pe).setDepartureTime(Time.getUndefinedTime());
-							}
-						}
-					}
-					if (routeParts == null) {
-						// the router for the access/egress mode could not find a route, skip that access/egress mode
-						continue;
-					}
-					if (stopFacility != stop) {
-						if (direction == Direction.ACCESS) {
-							Leg transferLeg = PopulationUtils.createLeg(TransportMode.non_network_walk);
-							Route transferRoute = RouteUtils.createGenericRouteImpl(stopFacility.getLinkId(), stop.getLinkId());
-							transferRoute.setTravelTime(0);
-							transferRoute.setDistance(0);
-							transferLeg.setRoute(transferRoute);
-							transferLeg.setTravelTime(0);
-
-							List<PlanElement> tmp = new ArrayList<>(routeParts.size() + 1);
-							tmp.addAll(routeParts);
-							tmp.add(transferLeg);
-							routeParts = tmp;
-						} else {
-							Leg transferLeg = PopulationUtils.createLeg(TransportMode.non_network_walk);
-							Route transferRoute = RouteUtils.createGenericRouteImpl(stop.getLinkId(), stopFacility.getLinkId());
-							transferRoute.setTravelTime(0);
-							transferRoute.setDistance(0);
-							transferLeg.setRoute(transferRoute);
-							transferLeg.setTravelTime(0);
-
-							List<PlanElement> tmp = new ArrayList<>(routeParts.size() + 1);
-							tmp.add(transferLeg);
-							tmp.addAll(routeParts);
-							routeParts = tmp;
-						}
+	/**
+	 * Routes the access or egress leg between the facility and one stop.
+	 *
+	 * @param module the routing module of the mode, which must not be used by other threads at the same time.
+	 * @return the initial stop, or <code>null</code> if the routing module could not find a route.
+	 */
+	private InitialStop calcIntermodalStop(Facility facility, TransitStopFacility stop, IntermodalAccessEgressParameterSet paramset, Person person,
+										   double departureTime, Direction direction, RaptorParameters parameters, RoutingModule module) {
+		IntermodalAccessEgressCache.Key cacheKey = null;
+		if (this.cache != null) {
+			cacheKey = this.cache.createKey(facility, stop, paramset, direction, parameters, departureTime);
+			IntermodalAccessEgressCache.CachedAccessEgress cached = this.cache.get(cacheKey);
+			if (cached != null) {
+				return createInitialStop(stop, cached, departureTime);
+			}
+		}
+
+		Facility stopFacility = getStopFacility(stop, paramset);
+		List<? extends PlanElement> routeParts = calcRouteParts(facility, stopFacility, person, departureTime, direction, module);
+		return createInitialStop(stop, stopFacility, routeParts, person, departureTime, direction, parameters, cacheKey);
+	}
+
+	/**
+	 * Routes the access or egress leg between the facility and the stop facility with the routing module of the mode.
+	 */
+	private List<? extends PlanElement> calcRouteParts(Facility facility, Facility stopFacility, Person person, double departureTime, Direction direction,
+													   RoutingModule module) {
+		List<? extends PlanElement> routeParts;
+		if (direction == Direction.ACCESS) {
+			routeParts = module.calcRoute(facility, stopFacility, departureTime, person);
+		} else { // it's Egress
+			// We don't know the departure time for the egress trip, so just use the original departureTime,
+			// although it is wrong and might result in a wrong traveltime and thus wrong route.
+			routeParts = module.calcRoute(stopFacility, facility, departureTime, person);
+			if (routeParts != null) {
+				// clear the (wrong) departureTime so users don't get confused
+				for (PlanElement pe : routeParts) {
+					if (pe instanceof Leg) {
+						((Leg) pe).setDepartureTime(Time.getUndefinedTime());
 					}
-					RaptorIntermodalAccessEgress.RIntermodalAccessEgress accessEgress = this.intermodalAE.calcIntermodalAccessEgress(routeParts, parameters, person);
-					InitialStop iStop = new InitialStop(stop, accessEgress.disutility, accessEgress.travelTime, accessEgress.routeParts);
-					initialStops.add(iStop);
 				}
 			}
 		}
-		return initialStops;
+		return routeParts;
 	}
 
-	private List<TransitStopFacility> findNearbyStops(Facility facility, RaptorParameters parameters, SwissRailRaptorData data) {
-		double x = facility.getCoord().getX();
-		double y = facility.getCoord().getY();
-		Collection<TransitStopFacility> stopFacilities = data.stopsQT.getDisk(x, y, parameters.getSearchRadius());
-		if (stopFacilities.size() < 2) {
-			TransitStopFacility  nearestStop = data.stopsQT.getClosest(x, y);
-			double nearestDistance = CoordUtils.calcEuclideanDistance(facility.getCoord(), nearestStop.getCoord());
-			stopFacilities = data.stopsQT.getDisk(x, y, nearestDistance + parameters.getExtensionRadius());
+	/**
+	 * Calculates the access or egress legs of a network mode to all given stops with a single least-cost path tree.
+	 * The tree is bounded by the maximal radius of the parameter set times {@link #NETWORK_DETOUR_FACTOR}, stops that
+	 * are not reached within this distance are skipped. Stops whose link does not allow the mode are routed with the
+	 * routing module of the mode instead.
+	 */
+	private void addNetworkIntermodalStops(Facility facility, Collection<TransitStopFacility> stops, IntermodalAccessEgressParameterSet paramset, Person person,
+										   double departureTime, Direction direction, RaptorParameters parameters, NetworkAccessEgressRouter networkRouter,
+										   List<InitialStop> initialStops) {
+		int stopCount = stops.size();
+		TransitStopFacility[] stopArray = stops.toArray(new TransitStopFacility[stopCount]);
+		InitialStop[] stopResults = new InitialStop[stopCount];
+		Facility[] stopFacilities = new Facility[stopCount];
+		IntermodalAccessEgressCache.Key[] cacheKeys = new IntermodalAccessEgressCache.Key[stopCount];
+		List<Id<Link>> stopLinkIds = new ArrayList<>(stopCount);
+		for (int i = 0; i < stopCount; i++) {
+			TransitStopFacility stop = stopArray[i];
+			if (this.cache != null) {
+				cacheKeys[i] = this.cache.createKey(facility, stop, paramset, direction, parameters, departureTime);
+				IntermodalAccessEgressCache.CachedAccessEgress cached = this.cache.get(cacheKeys[i]);
+				if (cached != null) {
+					stopResults[i] = createInitialStop(stop, cached, departureTime);
+					continue;
+				}
+			}
+			stopFacilities[i] = getStopFacility(stop, paramset);
+			if (networkRouter.canRoute(stopFacilities[i].getLinkId())) {
+				stopLinkIds.add(stopFacilities[i].getLinkId());
+			}
+		}
+
+		Map<Id<Link>, Leg> legs = stopLinkIds.isEmpty() ? Collections.emptyMap()
+				: networkRouter.calcLegs(facility.getLinkId(), stopLinkIds, departureTime, direction, person, paramset.getMaxRadius() * NETWORK_DETOUR_FACTOR);
+		for (int i = 0; i < stopCount; i++) {
+			if (stopFacilities[i] != null) {
+				List<? extends PlanElement> routeParts;
+				if (networkRouter.canRoute(stopFacilities[i].getLinkId())) {
+					Leg leg = legs.get(stopFacilities[i].getLinkId());
+					// several stops can be on the same link, each of them needs its own leg
+					routeParts = leg == null ? null : Collections.singletonList(PopulationUtils.createLeg(leg));
+				} else {
+					routeParts = calcRouteParts(facility, stopFacilities[i], person, departureTime, direction, this.routingModules.get(paramset.getMode()));
+				}
+				stopResults[i] = createInitialStop(stopArray[i], stopFacilities[i], routeParts, person, departureTime, direction, parameters, cacheKeys[i]);
+			}
+			if (stopResults[i] != null) {
+				initialStops.add(stopResults[i]);
+			}
 		}
-		if (stopFacilities instanceof List) {
-			return (List<TransitStopFacility>) stopFacilities;
+	}
+
+	private static Facility getStopFacility(TransitStopFacility stop, IntermodalAccessEgressParameterSet paramset) {
+		String linkIdAttribute = paramset.getLinkIdAttribute();
+		if (linkIdAttribute != null) {
+			Object attr = stop.getAttributes().getAttribute(linkIdAttribute);
+			if (attr != null) {
+				return new ChangedLinkFacility(stop, Id.create(attr.toString(), Link.class));
+			}
 		}
-		return new ArrayList<>(stopFacilities);
+		return stop;
+	}
+
+	private static InitialStop createInitialStop(TransitStopFacility stop, IntermodalAccessEgressCache.CachedAccessEgress cached, double departureTime) {
+		if (cached.accessEgress == null) {
+			return null;
+		}
+		return new InitialStop(stop, cached.accessEgress.disutility, cached.accessEgress.travelTime, cached.copyRouteParts(departureTime));
+	}
+
+	/**
+	 * @param routeParts the routed access or egress legs between the facility and the stop facility, or <code>null</code> if no route was found.
+	 * @return the initial stop, or <code>null</code> if no route was found.
+	 */
+	private InitialStop createInitialStop(TransitStopFacility stop, Facility stopFacility, List<? extends PlanElement> routeParts, Person person,
+										  double departureTime, Direction direction, RaptorParameters parameters, IntermodalAccessEgressCache.Key cacheKey) {
+		if (routeParts == null) {
+			// the router for the access/egress mode could not find a route, skip that access/egress mode
+			if (cacheKey != null) {
+				this.cache.put(cacheKey, departureTime, null);
+			}
+			return null;
+		}
+		if (stopFacility != stop) {
+			if (direction == Direction.ACCESS) {
+				Leg transferLeg = PopulationUtils.createLeg(TransportMode.non_network_walk);
+				Route transferRoute = RouteUtils.createGenericRouteImpl(stopFacility.getLinkId(), stop.getLinkId());
+				transferRoute.setTravelTime(0);
+				transferRoute.setDistance(0);
+				transferLeg.setRoute(transferRoute);
+				transferLeg.setTravelTime(0);
+
+				List<PlanElement> tmp = new ArrayList<>(routeParts.size() + 1);
+				tmp.addAll(routeParts);
+				tmp.add(transferLeg);
+				routeParts = tmp;
+			} else {
+				Leg transferLeg = PopulationUtils.createLeg(TransportMode.non_network_walk);
+				Route transferRoute = RouteUtils.createGenericRouteImpl(stop.getLinkId(), stopFacility.getLinkId());
+				transferRoute.setTravelTime(0);
+				transferRoute.setDistance(0);
+				transferLeg.setRoute(transferRoute);
+				transferLeg.setTravelTime(0);
+
+				List<PlanElement> tmp = new ArrayList<>(routeParts.size() + 1);
+				tmp.add(transferLeg);
+				tmp.addAll(routeParts);
+				routeParts = tmp;
+			}
+		}
+		RaptorIntermodalAccessEgress.RIntermodalAccessEgress accessEgress = this.intermodalAE.calcIntermodalAccessEgress(routeParts, parameters, person);
+		List<? extends PlanElement> accessEgressRouteParts = accessEgress.routeParts;
+		if (cacheKey != null) {
+			// the returned legs may be modified later on, so the cached ones must not be handed out
+			accessEgressRouteParts = this.cache.put(cacheKey, departureTime, accessEgress).copyRouteParts(departureTime);
+		}
+		return new InitialStop(stop, accessEgress.disutility, accessEgress.travelTime, accessEgressRouteParts);
+	}
+
+	private int[] findNearbyStops(Facility facility, RaptorParameters parameters, SwissRailRaptorData data) {
+		return data.findNearbyStopIndices(facility, parameters.getSearchRadius(), parameters.getExtensionRadius(), 2);
 	}
 
 	private static class ChangedLinkFacility implements Facility, Identifiable<TransitStopFacility> {
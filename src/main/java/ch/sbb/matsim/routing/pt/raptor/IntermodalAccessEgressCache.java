@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.population.Activity;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.PlanElement;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.controler.events.IterationStartsEvent;
+import org.matsim.core.controler.listener.IterationStartsListener;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.facilities.Facility;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the intermodal access and egress legs calculated by {@link DefaultRaptorStopFinder}, so repeated routing
+ * requests from the same location do not have to route the same access and egress legs again.
+ *
+ * The legs are identified by the link and coordinate of the facility, the stop, the intermodal access/egress parameter set
+ * (which includes the mode and the person filter), the direction, the raptor parameters and the time bin of the departure.
+ * The parameter sets and raptor parameters are compared by their values, not by identity, as the raptor parameters are
+ * often created for each person: persons with equal parameters that pass the same person filter share the cached legs.
+ * Each entry is only returned as a copy, with the departure times moved to the actual departure, as the legs
+ * end up in the plans of the agents. When the cache is full, the least recently used entries are removed.
+ * All entries are removed at the start of every iteration, as the travel times of the network modes may have changed.
+ *
+ * This class is thread-safe, the entries are distributed over several segments that are locked independently.
+ *
+ * @author mrieser / SBB
+ */
+@Singleton
+public class IntermodalAccessEgressCache implements IterationStartsListener {
+
+    private static final Logger log = Logger.getLogger(IntermodalAccessEgressCache.class);
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final double timeBinSize;
+    private final Segment[] segments;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    @Inject
+    public IntermodalAccessEgressCache(Config config) {
+        this(ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class).getIntermodalAccessEgressCacheSize(),
+                ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class).getIntermodalAccessEgressCacheTimeBinSize());
+    }
+
+    /**
+     * @param maxSize the maximum number of cached legs, or 0 to disable the cache.
+     * @param timeBinSize the duration in seconds of the time bins in which departures share the same cached legs.
+     */
+    public IntermodalAccessEgressCache(int maxSize, double timeBinSize) {
+        this.timeBinSize = timeBinSize;
+        if (maxSize == 0) {
+            this.segments = null;
+        } else {
+            int segmentCount = Math.min(SEGMENT_COUNT, maxSize);
+            this.segments = new Segment[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                this.segments[i] = new Segment((maxSize + segmentCount - 1 - i) / segmentCount);
+            }
+        }
+    }
+
+    public boolean isEnabled() {
+        return this.segments != null;
+    }
+
+    Key createKey(Facility facility, TransitStopFacility stop, IntermodalAccessEgressParameterSet accessEgressParameters, RaptorStopFinder.Direction direction,
+                  RaptorParameters parameters, double departureTime) {
+        return new Key(facility.getLinkId(), facility.getCoord(), stop, accessEgressParameters, direction, parameters, (int) Math.floor(departureTime / this.timeBinSize));
+    }
+
+    /**
+     * @return the cached legs, or <code>null</code> if none are cached for this key.
+     */
+    CachedAccessEgress get(Key key) {
+        if (this.segments == null) {
+            return null;
+        }
+        Segment segment = getSegment(key);
+        CachedAccessEgress cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+        }
+        if (cached == null) {
+            this.misses.incrementAndGet();
+        } else {
+            this.hits.incrementAndGet();
+        }
+        return cached;
+    }
+
+    /**
+     * @param accessEgress the calculated legs, or <code>null</code> if no route could be found for the access or egress.
+     *                     The legs must not be modified or handed out afterwards, use {@link CachedAccessEgress#copyRouteParts(double)} instead.
+     * @return the cached entry.
+     */
+    CachedAccessEgress put(Key key, double departureTime, RaptorIntermodalAccessEgress.RIntermodalAccessEgress accessEgress) {
+        CachedAccessEgress cached = new CachedAccessEgress(departureTime, accessEgress);
+        if (this.segments != null) {
+            Segment segment = getSegment(key);
+            synchronized (segment) {
+                segment.put(key, cached);
+            }
+        }
+        return cached;
+    }
+
+    public void clear() {
+        if (this.segments == null) {
+            return;
+        }
+        for (Segment segment : this.segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+        this.hits.set(0);
+        this.misses.set(0);
+    }
+
+    @Override
+    public void notifyIterationStarts(IterationStartsEvent event) {
+        if (this.segments == null) {
+            return;
+        }
+        long hits = this.hits.get();
+        long misses = this.misses.get();
+        if (hits + misses > 0) {
+            log.info("Intermodal access/egress cache: " + hits + " hits, " + misses + " misses (hit rate " + (100 * hits / (hits + misses)) + "%).");
+        }
+        clear();
+    }
+
+    private Segment getSegment(Key key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return this.segments[(hash & 0x7fffffff) % this.segments.length];
+    }
+
+    private static final class Segment extends LinkedHashMap<Key, CachedAccessEgress> {
+        private final int maxSize;
+
+        Segment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CachedAccessEgress> eldest) {
+            return size() > this.maxSize;
+        }
+    }
+
+    static final class Key {
+        private final Id<Link> linkId;
+        private final double x;
+        private final double y;
+        private final TransitStopFacility stop;
+        private final IntermodalAccessEgressParameterSet accessEgressParameters;
+        private final RaptorStopFinder.Direction direction;
+        private final RaptorParameters parameters;
+        private final int timeBin;
+        private final int hash;
+
+        private Key(Id<Link> linkId, Coord coord, TransitStopFacility stop, IntermodalAccessEgressParameterSet accessEgressParameters, RaptorStopFinder.Direction direction,
+                    RaptorParameters parameters, int timeBin) {
+            this.linkId = linkId;
+            this.x = coord.getX();
+            this.y = coord.getY();
+            this.stop = stop;
+            this.accessEgressParameters = accessEgressParameters;
+            this.direction = direction;
+            this.parameters = parameters;
+            this.timeBin = timeBin;
+            int hash = Objects.hashCode(linkId);
+            hash = 31 * hash + Double.hashCode(this.x);
+            hash = 31 * hash + Double.hashCode(this.y);
+            hash = 31 * hash + System.identityHashCode(stop);
+            hash = 31 * hash + Objects.hashCode(accessEgressParameters.getMode());
+            hash = 31 * hash + Double.hashCode(accessEgressParameters.getMaxRadius());
+            hash = 31 * hash + Objects.hashCode(accessEgressParameters.getPersonFilterValue());
+            hash = 31 * hash + direction.hashCode();
+            hash = 31 * hash + parameters.calcValuesHashCode();
+            hash = 31 * hash + timeBin;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return this.hash == other.hash
+                    && this.timeBin == other.timeBin
+                    && this.x == other.x
+                    && this.y == other.y
+                    && this.stop == other.stop
+                    && this.direction == other.direction
+                    && Objects.equals(this.linkId, other.linkId)
+                    && hasSameValues(this.accessEgressParameters, other.accessEgressParameters)
+                    && (this.parameters == other.parameters || this.parameters.hasSameValues(other.parameters));
+        }
+
+        private static boolean hasSameValues(IntermodalAccessEgressParameterSet p1, IntermodalAccessEgressParameterSet p2) {
+            return p1 == p2 || (Objects.equals(p1.getMode(), p2.getMode())
+                    && Double.compare(p1.getMaxRadius(), p2.getMaxRadius()) == 0
+                    && Double.compare(p1.getInitialSearchRadius(), p2.getInitialSearchRadius()) == 0
+                    && Double.compare(p1.getSearchExtensionRadius(), p2.getSearchExtensionRadius()) == 0
+                    && Objects.equals(p1.getLinkIdAttribute(), p2.getLinkIdAttribute())
+                    && Objects.equals(p1.getPersonFilterAttribute(), p2.getPersonFilterAttribute())
+                    && Objects.equals(p1.getPersonFilterValue(), p2.getPersonFilterValue())
+                    && Objects.equals(p1.getStopFilterAttribute(), p2.getStopFilterAttribute())
+                    && Objects.equals(p1.getStopFilterValue(), p2.getStopFilterValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    static final class CachedAccessEgress {
+        private final double departureTime;
+        final RaptorIntermodalAccessEgress.RIntermodalAccessEgress accessEgress; // null if there is no route
+
+        private CachedAccessEgress(double departureTime, RaptorIntermodalAccessEgress.RIntermodalAccessEgress accessEgress) {
+            this.departureTime = departureTime;
+            this.accessEgress = accessEgress;
+        }
+
+        /**
+         * @return a copy of the cached legs and activities, with all defined departure times moved by the difference
+         * between the given and the cached departure time.
+         */
+        List<PlanElement> copyRouteParts(double departureTime) {
+            double timeShift = departureTime - this.departureTime;
+            List<PlanElement> routeParts = new ArrayList<>(this.accessEgress.routeParts.size());
+            for (PlanElement pe : this.accessEgress.routeParts) {
+                if (pe instanceof Leg) {
+                    Leg leg = PopulationUtils.createLeg((Leg) pe);
+                    if (!Time.isUndefinedTime(leg.getDepartureTime())) {
+                        leg.setDepartureTime(leg.getDepartureTime() + timeShift);
+                    }
+                    routeParts.add(leg);
+                } else if (pe instanceof Activity) {
+                    Activity act = PopulationUtils.createActivity((Activity) pe);
+                    if (!Time.isUndefinedTime(act.getStartTime())) {
+                        act.setStartTime(act.getStartTime() + timeShift);
+                    }
+                    if (!Time.isUndefinedTime(act.getEndTime())) {
+                        act.setEndTime(act.getEndTime() + timeShift);
+                    }
+                    routeParts.add(act);
+                } else {
+                    routeParts.add(pe);
+                }
+            }
+            return routeParts;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import java.util.Arrays;
+
+/**
+ * Stores a bag of label indices per route stop or stop, as used by the multi-criteria route search
+ * in {@link SwissRailRaptorCore#calcParetoRoutes}. The order of the labels in a bag is not preserved when
+ * labels are removed. Like the labels, the bags are re-used for every route search and only the bags
+ * that were filled during the last search are cleared.
+ *
+ * This class is not thread-safe.
+ *
+ * @author mrieser / SBB
+ */
+final class LabelBags {
+
+    private static final int[] EMPTY = new int[0];
+
+    private final int[][] labels;
+    private final int[] sizes;
+    private final int[] usedBags;
+    private final boolean[] isUsedBag;
+    private int usedBagCount = 0;
+
+    LabelBags(int bagCount) {
+        this.labels = new int[bagCount][];
+        this.sizes = new int[bagCount];
+        this.usedBags = new int[bagCount];
+        this.isUsedBag = new boolean[bagCount];
+        Arrays.fill(this.labels, EMPTY);
+    }
+
+    int size(int bag) {
+        return this.sizes[bag];
+    }
+
+    int get(int bag, int index) {
+        return this.labels[bag][index];
+    }
+
+    void add(int bag, int label) {
+        if (!this.isUsedBag[bag]) {
+            this.isUsedBag[bag] = true;
+            this.usedBags[this.usedBagCount++] = bag;
+        }
+        int size = this.sizes[bag];
+        int[] labels = this.labels[bag];
+        if (size == labels.length) {
+            labels = Arrays.copyOf(labels, Math.max(4, size * 2));
+            this.labels[bag] = labels;
+        }
+        labels[size] = label;
+        this.sizes[bag] = size + 1;
+    }
+
+    /**
+     * Removes the label at the given position by replacing it with the last label of the bag.
+     */
+    void remove(int bag, int index) {
+        int size = this.sizes[bag] - 1;
+        this.labels[bag][index] = this.labels[bag][size];
+        this.sizes[bag] = size;
+    }
+
+    void clear() {
+        for (int i = 0; i < this.usedBagCount; i++) {
+            int bag = this.usedBags[i];
+            this.sizes[bag] = 0;
+            this.isUsedBag[bag] = false;
+        }
+        this.usedBagCount = 0;
+    }
+}
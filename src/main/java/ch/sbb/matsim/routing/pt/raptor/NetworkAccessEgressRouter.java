@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.utils.misc.Time;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Calculates the intermodal access or egress legs of a network mode between one facility and many stops
+ * with a single least-cost path tree, instead of routing to every stop separately.
+ *
+ * For access, the tree grows forward from the facility's link, with time-dependent travel times starting at the
+ * departure time. For egress, the tree grows backward from the facility's link on the incoming links, using the
+ * travel times at the departure time, as the arrival time at the stops is not known yet (the same approximation
+ * is done when routing egress legs with the routing modules). In both cases, the tree stops growing as soon as
+ * all stop links are reached, and never grows beyond the given maximal network distance, so stops that cannot be reached
+ * with the mode do not lead to a search of the whole network.
+ *
+ * Like the network routing modules, the routes run from the end of the start link to the start of the end link,
+ * and only links allowing the mode are used.
+ * This class is thread-safe as long as the travel time and travel disutility are.
+ *
+ * @author mrieser / SBB
+ */
+public class NetworkAccessEgressRouter {
+
+    private final Network network;
+    private final String mode;
+    private final TravelTime travelTime;
+    private final TravelDisutility travelDisutility;
+
+    public NetworkAccessEgressRouter(Network network, String mode, TravelTime travelTime, TravelDisutility travelDisutility) {
+        this.network = network;
+        this.mode = mode;
+        this.travelTime = travelTime;
+        this.travelDisutility = travelDisutility;
+    }
+
+    /**
+     * @return <code>true</code> if the facility's link is part of the network of this mode, so legs can be calculated from and to it.
+     */
+    boolean canRoute(Id<Link> facilityLinkId) {
+        if (facilityLinkId == null) {
+            return false;
+        }
+        Link link = this.network.getLinks().get(facilityLinkId);
+        return link != null && link.getAllowedModes().contains(this.mode);
+    }
+
+    /**
+     * Calculates the legs from the facility's link to all stop links (access), or from all stop links to the facility's link (egress).
+     *
+     * @param maxDistance the maximal length of the legs in meters, the tree does not grow any further.
+     * @return the legs by the id of the stop link. Stop links that do not allow the mode or cannot be reached within
+     * <code>maxDistance</code> are not contained.
+     */
+    Map<Id<Link>, Leg> calcLegs(Id<Link> facilityLinkId, Collection<Id<Link>> stopLinkIds, double departureTime, RaptorStopFinder.Direction direction,
+                                Person person, double maxDistance) {
+        boolean isAccess = direction == RaptorStopFinder.Direction.ACCESS;
+        Link facilityLink = this.network.getLinks().get(facilityLinkId);
+
+        // the nodes at which the routes to the stop links end
+        Map<Id<Node>, List<Link>> stopLinksByNode = new HashMap<>();
+        Map<Id<Link>, Leg> legs = new HashMap<>();
+        for (Id<Link> stopLinkId : stopLinkIds) {
+            Link stopLink = this.network.getLinks().get(stopLinkId);
+            if (stopLink == null || !stopLink.getAllowedModes().contains(this.mode) || legs.containsKey(stopLinkId)) {
+                continue;
+            }
+            if (stopLink == facilityLink) {
+                legs.put(stopLinkId, createLeg(facilityLink, stopLink, Collections.emptyList(), 0, 0, departureTime, isAccess));
+                continue;
+            }
+            Node node = isAccess ? stopLink.getFromNode() : stopLink.getToNode();
+            stopLinksByNode.computeIfAbsent(node.getId(), id -> new ArrayList<>(2)).add(stopLink);
+        }
+        int remainingNodeCount = stopLinksByNode.size();
+        if (remainingNodeCount == 0) {
+            return legs;
+        }
+
+        Map<Id<Node>, NodeData> nodeData = new HashMap<>();
+        PriorityQueue<NodeData> queue = new PriorityQueue<>();
+        Node startNode = isAccess ? facilityLink.getToNode() : facilityLink.getFromNode();
+        NodeData start = new NodeData(startNode, 0, departureTime, 0, null, null);
+        nodeData.put(startNode.getId(), start);
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            NodeData current = queue.poll();
+            if (current.isSettled) {
+                continue;
+            }
+            current.isSettled = true;
+
+            List<Link> stopLinks = stopLinksByNode.get(current.node.getId());
+            if (stopLinks != null) {
+                List<Link> path = getPath(current, isAccess);
+                for (Link stopLink : stopLinks) {
+                    Link fromLink = isAccess ? facilityLink : stopLink;
+                    Link toLink = isAccess ? stopLink : facilityLink;
+                    legs.put(stopLink.getId(), createLeg(fromLink, toLink, path, current.time - departureTime, current.cost, departureTime, isAccess));
+                }
+                remainingNodeCount--;
+                if (remainingNodeCount == 0) {
+                    break;
+                }
+            }
+
+            Map<Id<Link>, ? extends Link> links = isAccess ? current.node.getOutLinks() : current.node.getInLinks();
+            for (Link link : links.values()) {
+                if (!link.getAllowedModes().contains(this.mode)) {
+                    continue;
+                }
+                double distance = current.distance + link.getLength();
+                if (distance > maxDistance) {
+                    continue;
+                }
+                // for egress, the travel times are not time-dependent, see the class comment
+                double linkTime = isAccess ? current.time : departureTime;
+                double time = current.time + this.travelTime.getLinkTravelTime(link, linkTime, person, null);
+                double cost = current.cost + this.travelDisutility.getLinkTravelDisutility(link, linkTime, person, null);
+                Node nextNode = isAccess ? link.getToNode() : link.getFromNode();
+                NodeData next = nodeData.get(nextNode.getId());
+                if (next == null) {
+                    next = new NodeData(nextNode, cost, time, distance, link, current);
+                    nodeData.put(nextNode.getId(), next);
+                    queue.add(next);
+                } else if (!next.isSettled && cost < next.cost) {
+                    // the queue does not support decreasing the cost, add a new entry and skip the old one once it is polled
+                    next.isSettled = true;
+                    next = new NodeData(nextNode, cost, time, distance, link, current);
+                    nodeData.put(nextNode.getId(), next);
+                    queue.add(next);
+                }
+            }
+        }
+        return legs;
+    }
+
+    /**
+     * @return the links between the start node and the given node, in the direction of travel.
+     */
+    private static List<Link> getPath(NodeData data, boolean isAccess) {
+        List<Link> path = new ArrayList<>();
+        for (NodeData current = data; current.previous != null; current = current.previous) {
+            path.add(current.previousLink);
+        }
+        // the tree is traversed towards its root, which is against the direction of travel for access
+        if (isAccess) {
+            Collections.reverse(path);
+        }
+        return path;
+    }
+
+    private Leg createLeg(Link fromLink, Link toLink, List<Link> path, double travelTime, double travelCost, double departureTime, boolean isAccess) {
+        List<Id<Link>> linkIds = new ArrayList<>(path.size());
+        double distance = 0;
+        for (Link link : path) {
+            linkIds.add(link.getId());
+            distance += link.getLength();
+        }
+        if (fromLink != toLink) {
+            distance += toLink.getLength();
+        }
+        NetworkRoute route = RouteUtils.createLinkNetworkRouteImpl(fromLink.getId(), linkIds, toLink.getId());
+        route.setTravelTime(travelTime);
+        route.setTravelCost(travelCost);
+        route.setDistance(distance);
+
+        Leg leg = PopulationUtils.createLeg(this.mode);
+        leg.setRoute(route);
+        leg.setTravelTime(travelTime);
+        // the departure time of egress legs is not known yet
+        leg.setDepartureTime(isAccess ? departureTime : Time.getUndefinedTime());
+        return leg;
+    }
+
+    private static final class NodeData implements Comparable<NodeData> {
+        final Node node;
+        final double cost;
+        final double time;
+        final double distance;
+        final Link previousLink; // null for the start node
+        final NodeData previous; // null for the start node
+        boolean isSettled = false;
+
+        NodeData(Node node, double cost, double time, double distance, Link previousLink, NodeData previous) {
+            this.node = node;
+            this.cost = cost;
+            this.time = time;
+            this.distance = distance;
+            this.previousLink = previousLink;
+            this.previous = previous;
+        }
+
+        @Override
+        public int compareTo(NodeData other) {
+            return Double.compare(this.cost, other.cost);
+        }
+    }
+}
@@ -34,6 +34,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  * This class chooses randomly exactly one of the available access / egress modes and returns the access / egress trips
@@ -62,11 +63,13 @@ public class RandomAccessEgressModeRaptorStopFinder implements RaptorStopFinder
 
 	private final RaptorIntermodalAccessEgress intermodalAE;
 	private final Map<String, RoutingModule> routingModules;
+	private final RoutingModulePool routingModulePool; // null if no routing module providers are known, the legs are then never routed in parallel
 	private static final Logger log = Logger.getLogger( SwissRailRaptorCore.class ) ;
 
 	@Inject
 	public RandomAccessEgressModeRaptorStopFinder(Population population, Config config, RaptorIntermodalAccessEgress intermodalAE, Map<String, Provider<RoutingModule>> routingModuleProviders) {
 		this.intermodalAE = intermodalAE;
+		this.routingModulePool = new RoutingModulePool(routingModuleProviders);
 
 		SwissRailRaptorConfigGroup srrConfig = ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class);
 		this.routingModules = new HashMap<>();
@@ -81,6 +84,7 @@ public class RandomAccessEgressModeRaptorStopFinder implements RaptorStopFinder
 	public RandomAccessEgressModeRaptorStopFinder(Population population, RaptorIntermodalAccessEgress intermodalAE, Map<String, RoutingModule> routingModules) {
 		this.intermodalAE = intermodalAE;
 		this.routingModules = routingModules;
+		this.routingModulePool = null;
 	}
 
 	@Override
@@ -120,8 +124,6 @@ public class RandomAccessEgressModeRaptorStopFinder implements RaptorStopFinder
 		RaptorParameters parameters, SwissRailRaptorData data, double x, double y, String personId,
 		List<InitialStop> initialStops, IntermodalAccessEgressParameterSet paramset) {
 
-		String mode = paramset.getMode();
-		String linkIdAttribute = paramset.getLinkIdAttribute();
 		String personFilterAttribute = paramset.getPersonFilterAttribute();
 		String personFilterValue = paramset.getPersonFilterValue();
 		String stopFilterAttribute = paramset.getStopFilterAttribute();
@@ -137,8 +139,7 @@ public class RandomAccessEgressModeRaptorStopFinder implements RaptorStopFinder
 		if (personMatches) {
 			QuadTree<TransitStopFacility> filteredStopsQT;
 			if (stopFilterAttribute != null) {
-				data.prepareStopFilterQuadTreeIfNotExistent(stopFilterAttribute, stopFilterValue);
-				filteredStopsQT = data.stopFilterAttribute2Value2StopsQT.get(stopFilterAttribute).get(stopFilterValue);
+				filteredStopsQT = data.getStopFilterQuadTree(stopFilterAttribute, stopFilterValue);
 			} else {
 				filteredStopsQT = data.stopsQT;
 			}
@@ -151,71 +152,100 @@ public class RandomAccessEgressModeRaptorStopFinder implements RaptorStopFinder
 				stopFacilities = filteredStopsQT.getDisk(x, y, searchRadius);
 			}
 
-			for (TransitStopFacility stop : stopFacilities) {
-				Facility stopFacility = stop;
-				if (linkIdAttribute != null) {
-					Object attr = stop.getAttributes().getAttribute(linkIdAttribute);
-					if (attr != null) {
-						stopFacility = new ChangedLinkFacility(stop, Id.create(attr.toString(), Link.class));
-					}
-				}
-				
-				List<? extends PlanElement> routeParts;
-				if (direction == Direction.ACCESS) {
-					RoutingModule module = this.routingModules.get(mode);
-					routeParts = module.calcRoute(facility, stopFacility, departureTime, person);
-				} else { // it's Egress
-					// We don't know the departure time for the egress trip, so just use the original departureTime,
-					// although it is wrong and might result in a wrong traveltime and thus wrong route.
-					RoutingModule module = this.routingModules.get(mode);
-					routeParts = module.calcRoute(stopFacility, facility, departureTime, person);
-					if (routeParts == null) {
-						// the router for the access/egress mode could not find a route, skip that access/egress mode
-						continue;
-					}
-					// clear the (wrong) departureTime so users don't get confused
-					for (PlanElement pe : routeParts) {
-						if (pe instanceof Leg) {
-							((Leg) pe).setDepartureTime(Time.getUndefinedTime());
-						}
+			if (parameters.getConfig().isUseParallelIntermodalAccessEgress() && this.routingModulePool != null && stopFacilities.size() > 1) {
+				// each task borrows its own routing module, as the routing modules are usually not thread-safe
+				String mode = paramset.getMode();
+				stopFacilities.parallelStream()
+						.map(stop -> {
+							RoutingModule module = this.routingModulePool.borrow(mode);
+							try {
+								return calcIntermodalStop(facility, stop, paramset, person, departureTime, direction, parameters, module);
+							} finally {
+								this.routingModulePool.release(mode, module);
+							}
+						})
+						.filter(Objects::nonNull)
+						.forEachOrdered(initialStops::add);
+			} else {
+				RoutingModule module = this.routingModules.get(paramset.getMode());
+				for (TransitStopFacility stop : stopFacilities) {
+					InitialStop iStop = calcIntermodalStop(facility, stop, paramset, person, departureTime, direction, parameters, module);
+					if (iStop != null) {
+						initialStops.add(iStop);
 					}
 				}
-				if (routeParts == null) {
-					// the router for the access/egress mode could not find a route, skip that access/egress mode
-					continue;
-				}
-				if (stopFacility != stop) {
-					if (direction == Direction.ACCESS) {
-						Leg transferLeg = PopulationUtils.createLeg(TransportMode.non_network_walk);
-						Route transferRoute = RouteUtils.createGenericRouteImpl(stopFacility.getLinkId(), stop.getLinkId());
-						transferRoute.setTravelTime(0);
-						transferRoute.setDistance(0);
-						transferLeg.setRoute(transferRoute);
-						transferLeg.setTravelTime(0);
-
-						List<PlanElement> tmp = new ArrayList<>(routeParts.size() + 1);
-						tmp.addAll(routeParts);
-						tmp.add(transferLeg);
-						routeParts = tmp;
-					} else {
-						Leg transferLeg = PopulationUtils.createLeg(TransportMode.non_network_walk);
-						Route transferRoute = RouteUtils.createGenericRouteImpl(stop.getLinkId(), stopFacility.getLinkId());
-						transferRoute.setTravelTime(0);
-						transferRoute.setDistance(0);
-						transferLeg.setRoute(transferRoute);
-						transferLeg.setTravelTime(0);
-
-						List<PlanElement> tmp = new ArrayList<>(routeParts.size() + 1);
-						tmp.add(transferLeg);
-						tmp.addAll(routeParts);
-						routeParts = tmp;
-					}
+			}
+		}
+	}
+
+	/**
+	 * Routes the access or egress leg between the facility and one stop.
+	 *
+	 * @param module the routing module of the mode, which must not be used by other threads at the same time.
+	 * @return the initial stop, or <code>null</code> if the routing module could not find a route.
+	 */
+	private InitialStop calcIntermodalStop(Facility facility, TransitStopFacility stop, IntermodalAccessEgressParameterSet paramset, Person person,
+										   double departureTime, Direction direction, RaptorParameters parameters, RoutingModule module) {
+		String linkIdAttribute = paramset.getLinkIdAttribute();
+		Facility stopFacility = stop;
+		if (linkIdAttribute != null) {
+			Object attr = stop.getAttributes().getAttribute(linkIdAttribute);
+			if (attr != null) {
+				stopFacility = new ChangedLinkFacility(stop, Id.create(attr.toString(), Link.class));
+			}
+		}
+		
+		List<? extends PlanElement> routeParts;
+		if (direction == Direction.ACCESS) {
+			routeParts = module.calcRoute(facility, stopFacility, departureTime, person);
+		} else { // it's Egress
+			// We don't know the departure time for the egress trip, so just use the original departureTime,
+			// although it is wrong and might result in a wrong traveltime and thus wrong route.
+			routeParts = module.calcRoute(stopFacility, facility, departureTime, person);
+			if (routeParts == null) {
+				// the router for the access/egress mode could not find a route, skip that access/egress mode
+				return null;
+			}
+			// clear the (wrong) departureTime so users don't get confused
+			for (PlanElement pe : routeParts) {
+				if (pe instanceof Leg) {
+					((Leg) pe).setDepartureTime(Time.getUndefinedTime());
 				}
-				RaptorIntermodalAccessEgress.RIntermodalAccessEgress accessEgress = this.intermodalAE.calcIntermodalAccessEgress(routeParts, parameters, person);
-				InitialStop iStop = new InitialStop(stop, accessEgress.disutility, accessEgress.travelTime, accessEgress.routeParts);
-				initialStops.add(iStop);
 			}
 		}
+		if (routeParts == null) {
+			// the router for the access/egress mode could not find a route, skip that access/egress mode
+			return null;
+		}
+		if (stopFacility != stop) {
+			if (direction == Direction.ACCESS) {
+				Leg transferLeg = PopulationUtils.createLeg(TransportMode.non_network_walk);
+				Route transferRoute = RouteUtils.createGenericRouteImpl(stopFacility.getLinkId(), stop.getLinkId());
+				transferRoute.setTravelTime(0);
+				transferRoute.setDistance(0);
+				transferLeg.setRoute(transferRoute);
+				transferLeg.setTravelTime(0);
+
+				List<PlanElement> tmp = new ArrayList<>(routeParts.size() + 1);
+				tmp.addAll(routeParts);
+				tmp.add(transferLeg);
+				routeParts = tmp;
+			} else {
+				Leg transferLeg = PopulationUtils.createLeg(TransportMode.non_network_walk);
+				Route transferRoute = RouteUtils.createGenericRouteImpl(stop.getLinkId(), stopFacility.getLinkId());
+				transferRoute.setTravelTime(0);
+				transferRoute.setDistance(0);
+				transferLeg.setRoute(transferRoute);
+				transferLeg.setTravelTime(0);
+
+				List<PlanElement> tmp = new ArrayList<>(routeParts.size() + 1);
+				tmp.add(transferLeg);
+				tmp.addAll(routeParts);
+				routeParts = tmp;
+			}
+		}
+		RaptorIntermodalAccessEgress.RIntermodalAccessEgress accessEgress = this.intermodalAE.calcIntermodalAccessEgress(routeParts, parameters, person);
+		return new InitialStop(stop, accessEgress.disutility, accessEgress.travelTime, accessEgress.routeParts);
 	}
 
 	private static class ChangedLinkFacility implements Facility, Identifiable<TransitStopFacility> {
@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData.RRoute;
+import org.matsim.api.core.v01.TransportMode;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Calculates lower bounds of the remaining costs from a stop to the destination of a route search,
+ * so the search can discard labels that cannot lead to an arrival better than the best one found so far.
+ *
+ * The bounds are the least costs in a relaxed network of stops, where every route can be ridden without
+ * waiting, stopping or paying transfer penalties, and where transfers can be used by every route stop of
+ * a stop. They are calculated backwards from the destination stops with Dijkstra's algorithm. The search
+ * is incremental: stops are only settled as long as their bound does not exceed the costs that are still
+ * allowed, so the effort depends on the costs of the best arrival and not on the size of the schedule.
+ *
+ * The bounds are only valid if no part of a connection can have negative costs, see {@link #init}.
+ * This class is not thread-safe, every {@link SwissRailRaptorCore} uses its own instance.
+ *
+ * @author mrieser / SBB
+ */
+final class RaptorLowerBounds {
+
+    private static final int NOT_QUEUED = -1;
+    private static final int SETTLED = -2;
+
+    private final SwissRailRaptorData data;
+    private final StopGraph graph;
+    private final double[] costPerSecondPerKind;
+
+    private final double[] costs; // tentative or final lower bound per stop
+    private final int[] heapPositions; // position of the stop in the heap, or NOT_QUEUED or SETTLED
+    private final int[] heap;
+    private int heapSize = 0;
+    private final int[] touchedStops;
+    private int touchedStopCount = 0;
+
+    RaptorLowerBounds(SwissRailRaptorData data) {
+        this.data = data;
+        this.graph = data.getLowerBoundsGraph();
+        this.costPerSecondPerKind = new double[this.graph.modes.length + 1];
+        this.costs = new double[data.countStops];
+        this.heapPositions = new int[data.countStops];
+        this.heap = new int[data.countStops];
+        this.touchedStops = new int[data.countStops];
+        Arrays.fill(this.costs, Double.POSITIVE_INFINITY);
+        Arrays.fill(this.heapPositions, NOT_QUEUED);
+    }
+
+    /**
+     * Prepares the calculation of lower bounds towards the given destination route stops.
+     *
+     * @return <code>false</code> if the parameters allow negative costs for travelling, walking, waiting or transfers,
+     * in which case no valid lower bounds can be calculated.
+     */
+    boolean init(RaptorParameters parameters, BitSet destinationRouteStopIndices, double[] egressCostsPerRouteStop) {
+        reset();
+        if (parameters.getMarginalUtilityOfWaitingPt_utl_s() > 0) {
+            return false;
+        }
+        // the relaxed network has no transfer penalties, so they must not be negative. As the transfer costs of a
+        // connection are recalculated with its growing travel time, they must not decrease with the travel time either.
+        if (parameters.getTransferPenaltyPerTravelTimeHour() < 0) {
+            return false;
+        }
+        double minTransferPenalty = SwissRailRaptorCore.calcTransferCost(parameters.getTransferPenaltyFixCostPerTransfer(), 0,
+                parameters.getTransferPenaltyMinimum(), parameters.getTransferPenaltyMaximum(), 0);
+        if (minTransferPenalty < 0) {
+            return false;
+        }
+        String[] modes = this.graph.modes;
+        for (int kind = 0; kind < modes.length; kind++) {
+            // routes of a mode without parameters cannot be used by the route search anyway
+            double costPerSecond = parameters.hasMarginalUtilityOfTravelTime(modes[kind]) ? -parameters.getMarginalUtilityOfTravelTime_utl_s(modes[kind]) : 0;
+            if (costPerSecond < 0) {
+                return false;
+            }
+            this.costPerSecondPerKind[kind] = costPerSecond;
+        }
+        double walkCostPerSecond = -parameters.getMarginalUtilityOfTravelTime_utl_s(TransportMode.transit_walk);
+        if (walkCostPerSecond < 0) {
+            return false;
+        }
+        this.costPerSecondPerKind[modes.length] = walkCostPerSecond;
+
+        for (int routeStopIndex = destinationRouteStopIndices.nextSetBit(0); routeStopIndex >= 0; routeStopIndex = destinationRouteStopIndices.nextSetBit(routeStopIndex + 1)) {
+            decreaseCost(this.data.routeStopStopFacilityIndices[routeStopIndex], egressCostsPerRouteStop[routeStopIndex]);
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if every connection from the stop of the given route stop to a destination costs more than <code>maxCost</code>.
+     */
+    boolean exceeds(int routeStopIndex, double maxCost) {
+        if (!(maxCost < Double.POSITIVE_INFINITY)) {
+            return false;
+        }
+        int stopIndex = this.data.routeStopStopFacilityIndices[routeStopIndex];
+        while (this.heapPositions[stopIndex] != SETTLED) {
+            if (this.heapSize == 0 || this.costs[this.heap[0]] > maxCost) {
+                // all stops not yet settled have at least the costs of the first one in the heap
+                return true;
+            }
+            settleNext();
+        }
+        return this.costs[stopIndex] > maxCost;
+    }
+
+    private void settleNext() {
+        int stopIndex = this.heap[0];
+        removeFirst();
+        this.heapPositions[stopIndex] = SETTLED;
+        double cost = this.costs[stopIndex];
+        StopGraph graph = this.graph;
+        for (int edge = graph.firstIncomingEdges[stopIndex], lastEdge = graph.firstIncomingEdges[stopIndex + 1]; edge < lastEdge; edge++) {
+            decreaseCost(graph.edgeFromStops[edge], cost + graph.edgeTimes[edge] * this.costPerSecondPerKind[graph.edgeKinds[edge]]);
+        }
+    }
+
+    private void decreaseCost(int stopIndex, double cost) {
+        int position = this.heapPositions[stopIndex];
+        if (position == SETTLED || cost >= this.costs[stopIndex]) {
+            return;
+        }
+        if (position == NOT_QUEUED) {
+            this.touchedStops[this.touchedStopCount++] = stopIndex;
+            position = this.heapSize++;
+        }
+        this.costs[stopIndex] = cost;
+        siftUp(position, stopIndex);
+    }
+
+    private void removeFirst() {
+        int last = this.heap[--this.heapSize];
+        if (this.heapSize > 0) {
+            siftDown(0, last);
+        }
+    }
+
+    private void siftUp(int position, int stopIndex) {
+        double cost = this.costs[stopIndex];
+        while (position > 0) {
+            int parentPosition = (position - 1) >>> 1;
+            int parent = this.heap[parentPosition];
+            if (this.costs[parent] <= cost) {
+                break;
+            }
+            this.heap[position] = parent;
+            this.heapPositions[parent] = position;
+            position = parentPosition;
+        }
+        this.heap[position] = stopIndex;
+        this.heapPositions[stopIndex] = position;
+    }
+
+    private void siftDown(int position, int stopIndex) {
+        double cost = this.costs[stopIndex];
+        int half = this.heapSize >>> 1;
+        while (position < half) {
+            int childPosition = 2 * position + 1;
+            int child = this.heap[childPosition];
+            int rightPosition = childPosition + 1;
+            if (rightPosition < this.heapSize && this.costs[this.heap[rightPosition]] < this.costs[child]) {
+                childPosition = rightPosition;
+                child = this.heap[childPosition];
+            }
+            if (cost <= this.costs[child]) {
+                break;
+            }
+            this.heap[position] = child;
+            this.heapPositions[child] = position;
+            position = childPosition;
+        }
+        this.heap[position] = stopIndex;
+        this.heapPositions[stopIndex] = position;
+    }
+
+    private void reset() {
+        for (int i = 0; i < this.touchedStopCount; i++) {
+            int stopIndex = this.touchedStops[i];
+            this.costs[stopIndex] = Double.POSITIVE_INFINITY;
+            this.heapPositions[stopIndex] = NOT_QUEUED;
+        }
+        this.touchedStopCount = 0;
+        this.heapSize = 0;
+    }
+
+    /**
+     * The stops connected by the shortest ride of each mode and by the shortest transfer, stored backwards
+     * so the edges leading to a stop can be iterated. The edges of stop i are
+     * <code>firstIncomingEdges[i] .. firstIncomingEdges[i+1]-1</code>. The kind of an edge is the index of
+     * the mode in <code>modes</code>, or <code>modes.length</code> for transfers.
+     * This class is immutable and shared by all route searches on the same data.
+     */
+    static final class StopGraph {
+        final String[] modes;
+        final int[] firstIncomingEdges;
+        final int[] edgeFromStops;
+        final double[] edgeTimes;
+        final int[] edgeKinds;
+
+        StopGraph(SwissRailRaptorData data) {
+            Map<String, Integer> modeIndices = new HashMap<>();
+            for (RRoute route : data.routes) {
+                modeIndices.putIfAbsent(route.mode, modeIndices.size());
+            }
+            this.modes = new String[modeIndices.size()];
+            for (Map.Entry<String, Integer> e : modeIndices.entrySet()) {
+                this.modes[e.getValue()] = e.getKey();
+            }
+            int transferKind = this.modes.length;
+            long countKinds = transferKind + 1;
+            long countStops = data.countStops;
+
+            // collect all edges as (toStop, fromStop, kind) keys, then only keep the shortest one per key
+            long[] keys = new long[data.countRouteStops + data.transferFromRouteStops.length];
+            double[] times = new double[keys.length];
+            int count = 0;
+            for (RRoute route : data.routes) {
+                long kind = modeIndices.get(route.mode);
+                for (int routeStopIndex = route.indexFirstRouteStop + 1; routeStopIndex < route.indexFirstRouteStop + route.countRouteStops; routeStopIndex++) {
+                    int fromStop = data.routeStopStopFacilityIndices[routeStopIndex - 1];
+                    int toStop = data.routeStopStopFacilityIndices[routeStopIndex];
+                    keys[count] = (toStop * countStops + fromStop) * countKinds + kind;
+                    times[count] = Math.max(0, data.routeStopArrivalOffsets[routeStopIndex] - data.routeStopDepartureOffsets[routeStopIndex - 1]);
+                    count++;
+                }
+            }
+            for (int transferIndex = 0; transferIndex < data.transferFromRouteStops.length; transferIndex++) {
+                int fromStop = data.routeStopStopFacilityIndices[data.transferFromRouteStops[transferIndex]];
+                int toStop = data.routeStopStopFacilityIndices[data.transferToRouteStops[transferIndex]];
+                if (fromStop != toStop) {
+                    keys[count] = (toStop * countStops + fromStop) * countKinds + transferKind;
+                    times[count] = data.transferTimes[transferIndex];
+                    count++;
+                }
+            }
+
+            long[] uniqueKeys = Arrays.copyOf(keys, count);
+            Arrays.sort(uniqueKeys);
+            int uniqueCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || uniqueKeys[i] != uniqueKeys[i - 1]) {
+                    uniqueKeys[uniqueCount++] = uniqueKeys[i];
+                }
+            }
+            this.edgeTimes = new double[uniqueCount];
+            Arrays.fill(this.edgeTimes, Double.POSITIVE_INFINITY);
+            for (int i = 0; i < count; i++) {
+                int edge = Arrays.binarySearch(uniqueKeys, 0, uniqueCount, keys[i]);
+                this.edgeTimes[edge] = Math.min(this.edgeTimes[edge], times[i]);
+            }
+
+            this.firstIncomingEdges = new int[data.countStops + 1];
+            this.edgeFromStops = new int[uniqueCount];
+            this.edgeKinds = new int[uniqueCount];
+            for (int edge = 0; edge < uniqueCount; edge++) {
+                long key = uniqueKeys[edge];
+                this.edgeKinds[edge] = (int) (key % countKinds);
+                long stops = key / countKinds;
+                this.edgeFromStops[edge] = (int) (stops % countStops);
+                this.firstIncomingEdges[(int) (stops / countStops) + 1]++;
+            }
+            for (int i = 1; i < this.firstIncomingEdges.length; i++) {
+                this.firstIncomingEdges[i] += this.firstIncomingEdges[i - 1];
+            }
+        }
+    }
+}
@@ -100,6 +100,10 @@ public class RaptorParameters {
         return marginalUtility;
     }
 
+    public boolean hasMarginalUtilityOfTravelTime(String mode) {
+        return this.marginalUtilityOfTravelTime_utl_s.containsKey(mode);
+    }
+
     public void setMarginalUtilityOfTravelTime_utl_s(String mode, double marginalUtilityOfTravelTime_utl_s) {
         this.marginalUtilityOfTravelTime_utl_s.put(mode, marginalUtilityOfTravelTime_utl_s);
     }
@@ -144,4 +148,35 @@ public class RaptorParameters {
         this.transferPenaltyMaximum = transferPenaltyMaximum;
     }
 
+    /**
+     * @return <code>true</code> if the other parameters use the same config and have the same values,
+     * so route searches with either of them have the same results.
+     */
+    boolean hasSameValues(RaptorParameters other) {
+        return this.config == other.config
+                && Double.compare(this.searchRadius, other.searchRadius) == 0
+                && Double.compare(this.extensionRadius, other.extensionRadius) == 0
+                && Double.compare(this.directWalkFactor, other.directWalkFactor) == 0
+                && Double.compare(this.beelineWalkSpeed, other.beelineWalkSpeed) == 0
+                && Double.compare(this.marginalUtilityOfWaitingPt_utl_s, other.marginalUtilityOfWaitingPt_utl_s) == 0
+                && Double.compare(this.transferPenaltyFixCostPerTransfer, other.transferPenaltyFixCostPerTransfer) == 0
+                && Double.compare(this.transferPenaltyPerTravelTimeHour, other.transferPenaltyPerTravelTimeHour) == 0
+                && Double.compare(this.transferPenaltyMinimum, other.transferPenaltyMinimum) == 0
+                && Double.compare(this.transferPenaltyMaximum, other.transferPenaltyMaximum) == 0
+                && this.marginalUtilityOfTravelTime_utl_s.equals(other.marginalUtilityOfTravelTime_utl_s);
+    }
+
+    /**
+     * @return a hash code consistent with {@link #hasSameValues(RaptorParameters)}.
+     */
+    int calcValuesHashCode() {
+        int hash = System.identityHashCode(this.config);
+        hash = 31 * hash + Double.hashCode(this.searchRadius);
+        hash = 31 * hash + Double.hashCode(this.beelineWalkSpeed);
+        hash = 31 * hash + Double.hashCode(this.marginalUtilityOfWaitingPt_utl_s);
+        hash = 31 * hash + Double.hashCode(this.transferPenaltyFixCostPerTransfer);
+        hash = 31 * hash + this.marginalUtilityOfTravelTime_utl_s.hashCode();
+        return hash;
+    }
+
 }
@@ -4,8 +4,14 @@
 
 package ch.sbb.matsim.routing.pt.raptor;
 
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Static configuration of SwissRailRaptor used to initialize it.
@@ -39,11 +45,45 @@ public class RaptorStaticConfig {
 
     private double minimalTransferTime = 60;
 
+    /**
+     * The time that is added to the transfers starting at a stop facility, per time slice of
+     * <code>transferTimeSliceDuration</code> seconds. See {@link #setAdditionalTransferTimes}.
+     */
+    private double transferTimeSliceDuration = 900.0;
+    private final Map<Id<TransitStopFacility>, double[]> additionalTransferTimes = new HashMap<>();
+
+    /**
+     * The mode of the network links that can be used to walk between stops, or <code>null</code> if the transfers
+     * are only calculated with beeline distances. See {@link #setTransferWalkNetworkMode(String)}.
+     */
+    private String transferWalkNetworkMode = null;
+    private double maxTransferWalkDistance = 1000.0;
+    private String transferWalkCacheDirectory = null;
+
     private boolean useModeMappingForPassengers = false;
     private final Map<String, String> passengerModeMappings = new HashMap<>();
 
+    /**
+     * The values per stop attribute for which the stops are indexed separately, see {@link #addStopFilter(String, String)}.
+     */
+    private final Map<String, Set<String>> stopFilters = new HashMap<>();
+
     private RaptorOptimization optimization = RaptorOptimization.OneToOneRouting;
 
+    /**
+     * The number of threads used to calculate the transfers when preparing the data.
+     * The resulting data is the same for any number of threads.
+     * Routers also keep the working state for this many parallel route searches for re-use.
+     */
+    private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * When a tree is calculated in parallel, a round is only split into parts with at least this many routes or stops.
+     * Handing a part to the executor costs some microseconds, while exploring a single route or stop typically takes
+     * well below one, so smaller parts are slower than exploring the round sequentially.
+     */
+    private int minItemsPerParallelTask = 256;
+
     public double getBeelineWalkConnectionDistance() {
         return this.beelineWalkConnectionDistance;
     }
@@ -76,6 +116,72 @@ public class RaptorStaticConfig {
         this.minimalTransferTime = minimalTransferTime;
     }
 
+    public double getTransferTimeSliceDuration() {
+        return this.transferTimeSliceDuration;
+    }
+
+    public void setTransferTimeSliceDuration(double transferTimeSliceDuration) {
+        if (transferTimeSliceDuration <= 0) {
+            throw new IllegalArgumentException("The duration of the transfer time slices must be positive: " + transferTimeSliceDuration);
+        }
+        this.transferTimeSliceDuration = transferTimeSliceDuration;
+    }
+
+    /**
+     * Sets the time that is added to all transfers starting at the given stop facility, e.g. at large stations
+     * where crowded underpasses or slower walking during peak hours make transfers take longer. The element
+     * <code>i</code> applies to transfers starting between <code>i * transferTimeSliceDuration</code> and
+     * <code>(i+1) * transferTimeSliceDuration</code>, transfers starting later take their regular transfer time.
+     * The additional times must not be negative, as the regular transfer times are used as lower bounds.
+     */
+    public void setAdditionalTransferTimes(Id<TransitStopFacility> stopId, double[] additionalTransferTimes) {
+        for (double additionalTransferTime : additionalTransferTimes) {
+            if (!(additionalTransferTime >= 0)) {
+                throw new IllegalArgumentException("Additional transfer times must not be negative, but got " + additionalTransferTime + " for stop " + stopId);
+            }
+        }
+        this.additionalTransferTimes.put(stopId, additionalTransferTimes.clone());
+    }
+
+    public Map<Id<TransitStopFacility>, double[]> getAdditionalTransferTimes() {
+        return Collections.unmodifiableMap(this.additionalTransferTimes);
+    }
+
+    public String getTransferWalkNetworkMode() {
+        return this.transferWalkNetworkMode;
+    }
+
+    /**
+     * If set, the transfers between stops are calculated with the shortest walk on the network links allowing this mode,
+     * which can be used in both directions. Stops are connected to the walk network at their nearest node if it is within
+     * <code>beelineWalkConnectionDistance</code>. Transfers between two such stops are only created if the walk on the
+     * network is not longer than <code>maxTransferWalkDistance</code>, also if the stops are further apart than
+     * <code>beelineWalkConnectionDistance</code>. All other transfers are still calculated with beeline distances.
+     */
+    public void setTransferWalkNetworkMode(String transferWalkNetworkMode) {
+        this.transferWalkNetworkMode = transferWalkNetworkMode;
+    }
+
+    public double getMaxTransferWalkDistance() {
+        return this.maxTransferWalkDistance;
+    }
+
+    public void setMaxTransferWalkDistance(double maxTransferWalkDistance) {
+        this.maxTransferWalkDistance = maxTransferWalkDistance;
+    }
+
+    public String getTransferWalkCacheDirectory() {
+        return this.transferWalkCacheDirectory;
+    }
+
+    /**
+     * Sets the directory where the walking distances between stops on the walk network are stored for re-use,
+     * or <code>null</code> if they should be calculated every time.
+     */
+    public void setTransferWalkCacheDirectory(String transferWalkCacheDirectory) {
+        this.transferWalkCacheDirectory = transferWalkCacheDirectory;
+    }
+
     public boolean isUseModeMappingForPassengers() {
         return this.useModeMappingForPassengers;
     }
@@ -92,6 +198,18 @@ public class RaptorStaticConfig {
         return this.passengerModeMappings.get(routeMode);
     }
 
+    /**
+     * Adds a stop filter used by the intermodal access and egress, so the stops having the given value
+     * in the given attribute are indexed separately when the data is prepared.
+     */
+    public void addStopFilter(String stopFilterAttribute, String stopFilterValue) {
+        this.stopFilters.computeIfAbsent(stopFilterAttribute, k -> new HashSet<>()).add(stopFilterValue);
+    }
+
+    public Map<String, Set<String>> getStopFilters() {
+        return Collections.unmodifiableMap(this.stopFilters);
+    }
+
     public RaptorOptimization getOptimization() {
         return this.optimization;
     }
@@ -99,4 +217,20 @@ public class RaptorStaticConfig {
     public void setOptimization(RaptorOptimization optimization) {
         this.optimization = optimization;
     }
+
+    public int getNumberOfThreads() {
+        return this.numberOfThreads;
+    }
+
+    public void setNumberOfThreads(int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    public int getMinItemsPerParallelTask() {
+        return this.minItemsPerParallelTask;
+    }
+
+    public void setMinItemsPerParallelTask(int minItemsPerParallelTask) {
+        this.minItemsPerParallelTask = minItemsPerParallelTask;
+    }
 }
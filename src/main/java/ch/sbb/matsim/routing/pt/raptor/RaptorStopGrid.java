@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * A uniform grid over the stop facilities, used to find the stops near the start and end of trips.
+ *
+ * The stop indices (as in {@link SwissRailRaptorData#stopFacilityIndices}) of each cell are stored in one
+ * array, sorted by cell and stop index, with the index of each cell's first entry in a second array. These
+ * candidate lists are prepared once. As the cells are numbered row by row, the entries of neighbouring cells
+ * of a row follow each other, so a query visits one contiguous range of entries per row. Queries only read
+ * these arrays and return the found stops in the order of the entries, so the lookups do not sort and do not
+ * create any collections or boxed values. Once created, this class is immutable and thread-safe.
+ *
+ * @author mrieser / SBB
+ */
+final class RaptorStopGrid {
+
+    private static final int MAX_CELLS_PER_STOP = 4;
+    private static final int[] EMPTY = new int[0];
+
+    final TransitStopFacility[] stops; // by stop index
+    private final double[] stopX; // by stop index
+    private final double[] stopY; // by stop index
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int cols;
+    private final int rows;
+    private final int[] cellFirstEntries; // by cell, the last element is the total number of entries
+    private final int[] cellStopIndices;
+
+    RaptorStopGrid(Map<TransitStopFacility, Integer> stopFacilityIndices) {
+        int countStops = stopFacilityIndices.size();
+        this.stops = new TransitStopFacility[countStops];
+        this.stopX = new double[countStops];
+        this.stopY = new double[countStops];
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Map.Entry<TransitStopFacility, Integer> e : stopFacilityIndices.entrySet()) {
+            int stopIndex = e.getValue();
+            TransitStopFacility stop = e.getKey();
+            this.stops[stopIndex] = stop;
+            this.stopX[stopIndex] = stop.getCoord().getX();
+            this.stopY[stopIndex] = stop.getCoord().getY();
+            minX = Math.min(minX, this.stopX[stopIndex]);
+            minY = Math.min(minY, this.stopY[stopIndex]);
+            maxX = Math.max(maxX, this.stopX[stopIndex]);
+            maxY = Math.max(maxY, this.stopY[stopIndex]);
+        }
+        if (countStops == 0) {
+            minX = 0;
+            minY = 0;
+            maxX = 0;
+            maxY = 0;
+        }
+        this.minX = minX;
+        this.minY = minY;
+
+        // aim for about one stop per cell on average, but limit the number of cells if the stops are not evenly distributed
+        double width = maxX - minX;
+        double height = maxY - minY;
+        double cellSize = Math.max(1.0, Math.sqrt(width * height / Math.max(1, countStops)));
+        while (((long) (width / cellSize) + 1) * ((long) (height / cellSize) + 1) > (long) MAX_CELLS_PER_STOP * countStops + 1) {
+            cellSize *= 2;
+        }
+        this.cellSize = cellSize;
+        this.cols = (int) (width / cellSize) + 1;
+        this.rows = (int) (height / cellSize) + 1;
+
+        int cellCount = this.cols * this.rows;
+        int[] stopCells = new int[countStops];
+        this.cellFirstEntries = new int[cellCount + 1];
+        for (int stopIndex = 0; stopIndex < countStops; stopIndex++) {
+            int cell = getRow(this.stopY[stopIndex]) * this.cols + getCol(this.stopX[stopIndex]);
+            stopCells[stopIndex] = cell;
+            this.cellFirstEntries[cell + 1]++;
+        }
+        for (int cell = 0; cell < cellCount; cell++) {
+            this.cellFirstEntries[cell + 1] += this.cellFirstEntries[cell];
+        }
+        this.cellStopIndices = new int[countStops];
+        int[] nextEntries = Arrays.copyOf(this.cellFirstEntries, cellCount);
+        // the stops are added in the order of their index, so the entries of each cell are sorted
+        for (int stopIndex = 0; stopIndex < countStops; stopIndex++) {
+            this.cellStopIndices[nextEntries[stopCells[stopIndex]]++] = stopIndex;
+        }
+    }
+
+    /**
+     * Calls the consumer with the index of every stop within the given distance, in the order of the grid entries.
+     * Other than {@link #getDisk(double, double, double)}, this does not allocate any memory.
+     */
+    void forEachInDisk(double x, double y, double distance, IntConsumer consumer) {
+        int fromCol = Math.max(0, getUnboundedCol(x - distance));
+        int toCol = Math.min(this.cols - 1, getUnboundedCol(x + distance));
+        int fromRow = Math.max(0, getUnboundedRow(y - distance));
+        int toRow = Math.min(this.rows - 1, getUnboundedRow(y + distance));
+        if (fromCol > toCol) {
+            return;
+        }
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int entry = this.cellFirstEntries[row * this.cols + fromCol], end = this.cellFirstEntries[row * this.cols + toCol + 1]; entry < end; entry++) {
+                int stopIndex = this.cellStopIndices[entry];
+                if (calcDistance(stopIndex, x, y) <= distance) {
+                    consumer.accept(stopIndex);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the indices of all stops within the given distance, in the order of the grid entries.
+     */
+    int[] getDisk(double x, double y, double distance) {
+        int fromCol = Math.max(0, getUnboundedCol(x - distance));
+        int toCol = Math.min(this.cols - 1, getUnboundedCol(x + distance));
+        int fromRow = Math.max(0, getUnboundedRow(y - distance));
+        int toRow = Math.min(this.rows - 1, getUnboundedRow(y + distance));
+        if (fromCol > toCol) {
+            return EMPTY;
+        }
+        // the number of candidates is known from the entry ranges, so the stops are only visited once
+        int candidateCount = 0;
+        for (int row = fromRow; row <= toRow; row++) {
+            candidateCount += this.cellFirstEntries[row * this.cols + toCol + 1] - this.cellFirstEntries[row * this.cols + fromCol];
+        }
+        if (candidateCount == 0) {
+            return EMPTY;
+        }
+        int[] stopIndices = new int[candidateCount];
+        int count = 0;
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int entry = this.cellFirstEntries[row * this.cols + fromCol], end = this.cellFirstEntries[row * this.cols + toCol + 1]; entry < end; entry++) {
+                int stopIndex = this.cellStopIndices[entry];
+                if (calcDistance(stopIndex, x, y) <= distance) {
+                    stopIndices[count++] = stopIndex;
+                }
+            }
+        }
+        return count == candidateCount ? stopIndices : Arrays.copyOf(stopIndices, count);
+    }
+
+    /**
+     * @return the index of the stop closest to the given coordinate, or -1 if there are no stops.
+     * If several stops are equally close, the one with the smallest index is returned.
+     */
+    int getClosest(double x, double y) {
+        if (this.stops.length == 0) {
+            return -1;
+        }
+        // search the cells in rings around the cell containing the coordinate (which may be outside the grid),
+        // starting with the first ring that overlaps the grid
+        int centerCol = getUnboundedCol(x);
+        int centerRow = getUnboundedRow(y);
+        int minRing = Math.max(0, Math.max(Math.max(-centerCol, centerCol - this.cols + 1), Math.max(-centerRow, centerRow - this.rows + 1)));
+        int maxRing = Math.max(Math.max(Math.abs(centerCol), Math.abs(centerCol - this.cols + 1)),
+                Math.max(Math.abs(centerRow), Math.abs(centerRow - this.rows + 1)));
+        int bestStopIndex = -1;
+        for (int ring = minRing; ring <= maxRing; ring++) {
+            int fromRow = Math.max(0, centerRow - ring);
+            int toRow = Math.min(this.rows - 1, centerRow + ring);
+            int fromCol = Math.max(0, centerCol - ring);
+            int toCol = Math.min(this.cols - 1, centerCol + ring);
+            for (int row = fromRow; row <= toRow; row++) {
+                if (row == centerRow - ring || row == centerRow + ring) {
+                    for (int col = fromCol; col <= toCol; col++) {
+                        bestStopIndex = findClosestInCell(row * this.cols + col, x, y, bestStopIndex);
+                    }
+                } else {
+                    if (centerCol - ring >= 0 && centerCol - ring < this.cols) {
+                        bestStopIndex = findClosestInCell(row * this.cols + centerCol - ring, x, y, bestStopIndex);
+                    }
+                    if (centerCol + ring >= 0 && centerCol + ring < this.cols) {
+                        bestStopIndex = findClosestInCell(row * this.cols + centerCol + ring, x, y, bestStopIndex);
+                    }
+                }
+            }
+            // all cells in the remaining rings are at least ring * cellSize away from the coordinate
+            if (bestStopIndex >= 0 && calcDistance(bestStopIndex, x, y) < ring * this.cellSize) {
+                break;
+            }
+        }
+        return bestStopIndex;
+    }
+
+    private int findClosestInCell(int cell, double x, double y, int bestStopIndex) {
+        double bestDistance = bestStopIndex < 0 ? Double.POSITIVE_INFINITY : calcDistance(bestStopIndex, x, y);
+        for (int entry = this.cellFirstEntries[cell], end = this.cellFirstEntries[cell + 1]; entry < end; entry++) {
+            int stopIndex = this.cellStopIndices[entry];
+            double distance = calcDistance(stopIndex, x, y);
+            if (distance < bestDistance || (distance == bestDistance && stopIndex < bestStopIndex)) {
+                bestDistance = distance;
+                bestStopIndex = stopIndex;
+            }
+        }
+        return bestStopIndex;
+    }
+
+    double calcDistance(int stopIndex, double x, double y) {
+        double xDiff = this.stopX[stopIndex] - x;
+        double yDiff = this.stopY[stopIndex] - y;
+        return Math.sqrt((xDiff * xDiff) + (yDiff * yDiff));
+    }
+
+    private int getCol(double x) {
+        return Math.min(this.cols - 1, Math.max(0, getUnboundedCol(x)));
+    }
+
+    private int getRow(double y) {
+        return Math.min(this.rows - 1, Math.max(0, getUnboundedRow(y)));
+    }
+
+    private int getUnboundedCol(double x) {
+        double col = Math.floor((x - this.minX) / this.cellSize);
+        return (int) Math.max(Integer.MIN_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, col));
+    }
+
+    private int getUnboundedRow(double y) {
+        double row = Math.floor((y - this.minY) / this.cellSize);
+        return (int) Math.max(Integer.MIN_VALUE / 2, Math.min(Integer.MAX_VALUE / 2, row));
+    }
+}
@@ -55,6 +55,14 @@ public final class RaptorUtils {
             }
         }
 
+        if (srrConfig.isUseIntermodalAccessEgress()) {
+            for (SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet paramset : srrConfig.getIntermodalAccessEgressParameterSets()) {
+                if (paramset.getStopFilterAttribute() != null) {
+                    staticConfig.addStopFilter(paramset.getStopFilterAttribute(), paramset.getStopFilterValue());
+                }
+            }
+        }
+
         return staticConfig;
     }
 
@@ -0,0 +1,555 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The walking distances between stop facilities on a walk network, as used to calculate the transfers
+ * if {@link RaptorStaticConfig#getTransferWalkNetworkMode()} is set.
+ *
+ * Each stop is connected to the nearest node of the walk network, if it is not further away than
+ * <code>beelineWalkConnectionDistance</code>. From each stop, a Dijkstra search on the walk network finds all
+ * other connected stops that can be reached within <code>maxTransferWalkDistance</code>, including the beeline
+ * distances between the stops and their nodes. The searches of different stops run in parallel.
+ * The distances from stop i are <code>distances[firstEntries[i]] .. distances[firstEntries[i+1]-1]</code>
+ * to the stops <code>toStops[firstEntries[i]] ..</code>, using the stop indices of {@link SwissRailRaptorData}.
+ *
+ * If a cache directory is configured, the distances of all stops are written to a file identified by the walk
+ * network, the stops and the config, and read from there again as long as none of them changes.
+ * This class is immutable.
+ *
+ * @author mrieser / SBB
+ */
+final class RaptorWalkTransfers {
+
+    private static final Logger log = Logger.getLogger(RaptorWalkTransfers.class);
+
+    private static final int MAGIC = 0x53525754; // "SRWT"
+    private static final int VERSION = 1;
+
+    private static final String FILENAME_PREFIX = "swissRailRaptorWalkTransfers-";
+    private static final String FILENAME_SUFFIX = ".bin";
+
+    final boolean[] isOnWalkNetwork;
+    final int[] firstEntries;
+    final int[] toStops;
+    final double[] distances;
+
+    private RaptorWalkTransfers(boolean[] isOnWalkNetwork, int[] firstEntries, int[] toStops, double[] distances) {
+        this.isOnWalkNetwork = isOnWalkNetwork;
+        this.firstEntries = firstEntries;
+        this.toStops = toStops;
+        this.distances = distances;
+    }
+
+    /**
+     * Calculates the walking distances from the given stops, or reads them from the cache.
+     *
+     * @param stops the stop facilities by their index.
+     * @param fromStops the stops from which the walking distances are required, the other stops have no entries.
+     */
+    static RaptorWalkTransfers calculate(Network network, TransitStopFacility[] stops, Collection<TransitStopFacility> fromStops,
+                                         Map<TransitStopFacility, Integer> stopFacilityIndices, RaptorStaticConfig config) {
+        if (network == null) {
+            throw new IllegalArgumentException("A network is required to calculate the transfers on the walk network.");
+        }
+        WalkGraph graph = new WalkGraph(network, config.getTransferWalkNetworkMode());
+        boolean allStops = fromStops.size() == stops.length;
+        File cacheFile = null;
+        String key = null;
+        if (allStops && config.getTransferWalkCacheDirectory() != null) {
+            key = calcKey(graph, stops, config);
+            cacheFile = new File(config.getTransferWalkCacheDirectory(), FILENAME_PREFIX + key + FILENAME_SUFFIX);
+            if (cacheFile.exists()) {
+                try {
+                    RaptorWalkTransfers walkTransfers = read(cacheFile, key, stops.length);
+                    if (walkTransfers != null) {
+                        log.info("Walk transfers loaded from " + cacheFile.getAbsolutePath());
+                        return walkTransfers;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    log.warn("Could not read walk transfers from " + cacheFile.getAbsolutePath() + ", they will be calculated again.", e);
+                }
+            }
+        }
+
+        long startMillis = System.currentTimeMillis();
+        RaptorWalkTransfers walkTransfers = calculate(graph, stops, fromStops, stopFacilityIndices, config);
+        log.info("Walk transfers calculated for " + fromStops.size() + " stop facilities. Took " + (System.currentTimeMillis() - startMillis) / 1000 + " seconds.");
+
+        if (cacheFile != null) {
+            try {
+                File directory = cacheFile.getParentFile();
+                if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                    throw new IOException("Could not create directory " + directory.getAbsolutePath());
+                }
+                write(walkTransfers, key, cacheFile);
+                log.info("Walk transfers written to " + cacheFile.getAbsolutePath());
+            } catch (IOException e) {
+                log.warn("Could not write walk transfers to " + cacheFile.getAbsolutePath(), e);
+            }
+        }
+        return walkTransfers;
+    }
+
+    private static RaptorWalkTransfers calculate(WalkGraph graph, TransitStopFacility[] stops, Collection<TransitStopFacility> fromStops,
+                                                 Map<TransitStopFacility, Integer> stopFacilityIndices, RaptorStaticConfig config) {
+        double maxSnapDistance = config.getBeelineWalkConnectionDistance();
+        double maxDistance = config.getMaxTransferWalkDistance();
+
+        // connect the stops to their nearest node
+        boolean[] isOnWalkNetwork = new boolean[stops.length];
+        int[] stopNodes = new int[stops.length];
+        double[] snapDistances = new double[stops.length];
+        int[] stopCountPerNode = new int[graph.nodeCount + 1];
+        for (int stopIndex = 0; stopIndex < stops.length; stopIndex++) {
+            Coord coord = stops[stopIndex].getCoord();
+            Integer node = graph.nodeCount == 0 ? null : graph.nodesQT.getClosest(coord.getX(), coord.getY());
+            if (node != null) {
+                double snapDistance = CoordUtils.calcEuclideanDistance(coord, graph.nodeCoords[node]);
+                if (snapDistance <= maxSnapDistance) {
+                    isOnWalkNetwork[stopIndex] = true;
+                    stopNodes[stopIndex] = node;
+                    snapDistances[stopIndex] = snapDistance;
+                    stopCountPerNode[node + 1]++;
+                }
+            }
+        }
+        int[] firstStopsPerNode = stopCountPerNode;
+        for (int i = 1; i < firstStopsPerNode.length; i++) {
+            firstStopsPerNode[i] += firstStopsPerNode[i - 1];
+        }
+        int[] stopsPerNode = new int[firstStopsPerNode[graph.nodeCount]];
+        int[] nextPositions = Arrays.copyOf(firstStopsPerNode, graph.nodeCount);
+        for (int stopIndex = 0; stopIndex < stops.length; stopIndex++) {
+            if (isOnWalkNetwork[stopIndex]) {
+                stopsPerNode[nextPositions[stopNodes[stopIndex]]++] = stopIndex;
+            }
+        }
+
+        // search from every stop, in parallel
+        int[][] toStopsPerStop = new int[stops.length][];
+        double[][] distancesPerStop = new double[stops.length][];
+        int[] searchStops = new int[fromStops.size()];
+        int count = 0;
+        for (TransitStopFacility stop : fromStops) {
+            int stopIndex = stopFacilityIndices.get(stop);
+            if (isOnWalkNetwork[stopIndex]) {
+                searchStops[count++] = stopIndex;
+            }
+        }
+        final int searchCount = count;
+        AtomicInteger nextSearch = new AtomicInteger(0);
+        Runnable worker = () -> {
+            NodeSearch search = new NodeSearch(graph);
+            List<Integer> toStops = new ArrayList<>();
+            List<Double> distances = new ArrayList<>();
+            int i;
+            while ((i = nextSearch.getAndIncrement()) < searchCount) {
+                int fromStopIndex = searchStops[i];
+                toStops.clear();
+                distances.clear();
+                search.start(stopNodes[fromStopIndex], snapDistances[fromStopIndex]);
+                int node;
+                while ((node = search.settleNext(maxDistance)) >= 0) {
+                    for (int s = firstStopsPerNode[node]; s < firstStopsPerNode[node + 1]; s++) {
+                        int toStopIndex = stopsPerNode[s];
+                        double distance = search.getDistance(node) + snapDistances[toStopIndex];
+                        if (toStopIndex != fromStopIndex && distance <= maxDistance) {
+                            toStops.add(toStopIndex);
+                            distances.add(distance);
+                        }
+                    }
+                }
+                int[] toStopIndices = new int[toStops.size()];
+                double[] walkDistances = new double[toStops.size()];
+                for (int t = 0; t < toStopIndices.length; t++) {
+                    toStopIndices[t] = toStops.get(t);
+                    walkDistances[t] = distances.get(t);
+                }
+                toStopsPerStop[fromStopIndex] = toStopIndices;
+                distancesPerStop[fromStopIndex] = walkDistances;
+            }
+        };
+        runInParallel(worker, Math.max(1, Math.min(config.getNumberOfThreads(), searchCount)));
+
+        int[] firstEntries = new int[stops.length + 1];
+        for (int stopIndex = 0; stopIndex < stops.length; stopIndex++) {
+            firstEntries[stopIndex + 1] = firstEntries[stopIndex] + (toStopsPerStop[stopIndex] == null ? 0 : toStopsPerStop[stopIndex].length);
+        }
+        int[] toStops = new int[firstEntries[stops.length]];
+        double[] distances = new double[toStops.length];
+        for (int stopIndex = 0; stopIndex < stops.length; stopIndex++) {
+            if (toStopsPerStop[stopIndex] != null) {
+                System.arraycopy(toStopsPerStop[stopIndex], 0, toStops, firstEntries[stopIndex], toStopsPerStop[stopIndex].length);
+                System.arraycopy(distancesPerStop[stopIndex], 0, distances, firstEntries[stopIndex], distancesPerStop[stopIndex].length);
+            }
+        }
+        return new RaptorWalkTransfers(isOnWalkNetwork, firstEntries, toStops, distances);
+    }
+
+    private static void runInParallel(Runnable worker, int numberOfThreads) {
+        if (numberOfThreads == 1) {
+            worker.run();
+            return;
+        }
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            threads[i] = new Thread(worker, "SwissRailRaptorData-WalkTransfers-" + i);
+            threads[i].setUncaughtExceptionHandler((thread, e) -> error.compareAndSet(null, e));
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        if (error.get() != null) {
+            throw new RuntimeException("Error while calculating walk transfers.", error.get());
+        }
+    }
+
+    private static String calcKey(WalkGraph graph, TransitStopFacility[] stops, RaptorStaticConfig config) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(new SwissRailRaptorDataIO.NullOutputStream(), digest)))) {
+            out.writeInt(VERSION);
+            out.writeDouble(config.getBeelineWalkConnectionDistance());
+            out.writeDouble(config.getMaxTransferWalkDistance());
+            out.writeInt(graph.nodeCount);
+            for (Coord coord : graph.nodeCoords) {
+                out.writeDouble(coord.getX());
+                out.writeDouble(coord.getY());
+            }
+            for (int node = 0; node < graph.nodeCount; node++) {
+                for (int edge = graph.firstEdges[node]; edge < graph.firstEdges[node + 1]; edge++) {
+                    out.writeInt(graph.edgeToNodes[edge]);
+                    out.writeDouble(graph.edgeLengths[edge]);
+                }
+            }
+            out.writeInt(stops.length);
+            for (TransitStopFacility stop : stops) {
+                out.writeUTF(stop.getId().toString());
+                out.writeDouble(stop.getCoord().getX());
+                out.writeDouble(stop.getCoord().getY());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void write(RaptorWalkTransfers walkTransfers, String key, File file) throws IOException {
+        // write to a temporary file first and move it afterwards, so other processes never see a partially written file
+        File tmpFile = new File(file.getAbsolutePath() + "." + System.nanoTime() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(key);
+            out.writeInt(walkTransfers.isOnWalkNetwork.length);
+            out.writeInt(walkTransfers.toStops.length);
+            for (boolean isOnWalkNetwork : walkTransfers.isOnWalkNetwork) {
+                out.writeBoolean(isOnWalkNetwork);
+            }
+            for (int firstEntry : walkTransfers.firstEntries) {
+                out.writeInt(firstEntry);
+            }
+            for (int toStop : walkTransfers.toStops) {
+                out.writeInt(toStop);
+            }
+            for (double distance : walkTransfers.distances) {
+                out.writeDouble(distance);
+            }
+            out.writeInt(MAGIC);
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return the walk transfers stored in the file, or <code>null</code> if the file was written with a different
+     * version of the format or for a different key.
+     */
+    private static RaptorWalkTransfers read(File file, String expectedKey, int expectedStopCount) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 20))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a walk transfers file: " + file.getAbsolutePath());
+            }
+            if (in.readInt() != VERSION || !in.readUTF().equals(expectedKey)) {
+                return null;
+            }
+            int stopCount = in.readInt();
+            int entryCount = in.readInt();
+            if (stopCount != expectedStopCount) {
+                return null;
+            }
+            boolean[] isOnWalkNetwork = new boolean[stopCount];
+            for (int i = 0; i < stopCount; i++) {
+                isOnWalkNetwork[i] = in.readBoolean();
+            }
+            int[] firstEntries = new int[stopCount + 1];
+            for (int i = 0; i <= stopCount; i++) {
+                firstEntries[i] = in.readInt();
+            }
+            int[] toStops = new int[entryCount];
+            for (int i = 0; i < entryCount; i++) {
+                toStops[i] = in.readInt();
+            }
+            double[] distances = new double[entryCount];
+            for (int i = 0; i < entryCount; i++) {
+                distances[i] = in.readDouble();
+            }
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unexpected end of walk transfers in " + file.getAbsolutePath());
+            }
+            return new RaptorWalkTransfers(isOnWalkNetwork, firstEntries, toStops, distances);
+        }
+    }
+
+    /**
+     * The nodes and links of the network that allow the walk mode, with each link usable in both directions.
+     * The edges of node i are <code>firstEdges[i] .. firstEdges[i+1]-1</code>.
+     */
+    private static final class WalkGraph {
+        final int nodeCount;
+        final Coord[] nodeCoords;
+        final QuadTree<Integer> nodesQT;
+        final int[] firstEdges;
+        final int[] edgeToNodes;
+        final double[] edgeLengths;
+
+        WalkGraph(Network network, String mode) {
+            // sort the links by id, so the node indices and thus the cache key do not depend on the order of the links
+            List<Link> links = new ArrayList<>();
+            for (Link link : network.getLinks().values()) {
+                if (link.getAllowedModes().contains(mode) && link.getFromNode() != link.getToNode()) {
+                    links.add(link);
+                }
+            }
+            links.sort((l1, l2) -> l1.getId().toString().compareTo(l2.getId().toString()));
+
+            Map<Id<Node>, Integer> nodeIndices = new HashMap<>();
+            List<Coord> coords = new ArrayList<>();
+            int[] fromNodes = new int[links.size()];
+            int[] toNodes = new int[links.size()];
+            for (int i = 0; i < links.size(); i++) {
+                Link link = links.get(i);
+                fromNodes[i] = getNodeIndex(link.getFromNode(), nodeIndices, coords);
+                toNodes[i] = getNodeIndex(link.getToNode(), nodeIndices, coords);
+            }
+            this.nodeCount = coords.size();
+            this.nodeCoords = coords.toArray(new Coord[0]);
+
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (Coord coord : this.nodeCoords) {
+                minX = Math.min(minX, coord.getX());
+                minY = Math.min(minY, coord.getY());
+                maxX = Math.max(maxX, coord.getX());
+                maxY = Math.max(maxY, coord.getY());
+            }
+            if (this.nodeCount == 0) {
+                minX = minY = maxX = maxY = 0;
+            }
+            this.nodesQT = new QuadTree<>(minX, minY, maxX, maxY);
+            for (int node = 0; node < this.nodeCount; node++) {
+                this.nodesQT.put(this.nodeCoords[node].getX(), this.nodeCoords[node].getY(), node);
+            }
+
+            this.firstEdges = new int[this.nodeCount + 1];
+            for (int i = 0; i < links.size(); i++) {
+                this.firstEdges[fromNodes[i] + 1]++;
+                this.firstEdges[toNodes[i] + 1]++;
+            }
+            for (int node = 1; node <= this.nodeCount; node++) {
+                this.firstEdges[node] += this.firstEdges[node - 1];
+            }
+            this.edgeToNodes = new int[2 * links.size()];
+            this.edgeLengths = new double[2 * links.size()];
+            int[] nextEdges = Arrays.copyOf(this.firstEdges, this.nodeCount);
+            for (int i = 0; i < links.size(); i++) {
+                double length = links.get(i).getLength();
+                int edge = nextEdges[fromNodes[i]]++;
+                this.edgeToNodes[edge] = toNodes[i];
+                this.edgeLengths[edge] = length;
+                edge = nextEdges[toNodes[i]]++;
+                this.edgeToNodes[edge] = fromNodes[i];
+                this.edgeLengths[edge] = length;
+            }
+        }
+
+        private static int getNodeIndex(Node node, Map<Id<Node>, Integer> nodeIndices, List<Coord> coords) {
+            Integer index = nodeIndices.get(node.getId());
+            if (index == null) {
+                index = coords.size();
+                nodeIndices.put(node.getId(), index);
+                coords.add(node.getCoord());
+            }
+            return index;
+        }
+    }
+
+    /**
+     * The working state of a Dijkstra search on the walk graph, re-used for all searches of one thread.
+     */
+    private static final class NodeSearch {
+        private static final int NOT_QUEUED = -1;
+        private static final int SETTLED = -2;
+
+        private final WalkGraph graph;
+        private final double[] distances;
+        private final int[] heapPositions;
+        private final int[] heap;
+        private int heapSize = 0;
+        private final int[] touchedNodes;
+        private int touchedNodeCount = 0;
+
+        NodeSearch(WalkGraph graph) {
+            this.graph = graph;
+            this.distances = new double[graph.nodeCount];
+            this.heapPositions = new int[graph.nodeCount];
+            this.heap = new int[graph.nodeCount];
+            this.touchedNodes = new int[graph.nodeCount];
+            Arrays.fill(this.distances, Double.POSITIVE_INFINITY);
+            Arrays.fill(this.heapPositions, NOT_QUEUED);
+        }
+
+        void start(int node, double distance) {
+            for (int i = 0; i < this.touchedNodeCount; i++) {
+                int touchedNode = this.touchedNodes[i];
+                this.distances[touchedNode] = Double.POSITIVE_INFINITY;
+                this.heapPositions[touchedNode] = NOT_QUEUED;
+            }
+            this.touchedNodeCount = 0;
+            this.heapSize = 0;
+            decreaseDistance(node, distance);
+        }
+
+        double getDistance(int node) {
+            return this.distances[node];
+        }
+
+        /**
+         * @return the node that was settled, or <code>-1</code> if no more nodes can be reached within <code>maxDistance</code>.
+         */
+        int settleNext(double maxDistance) {
+            if (this.heapSize == 0 || this.distances[this.heap[0]] > maxDistance) {
+                return -1;
+            }
+            int node = this.heap[0];
+            int last = this.heap[--this.heapSize];
+            if (this.heapSize > 0) {
+                siftDown(0, last);
+            }
+            this.heapPositions[node] = SETTLED;
+            double distance = this.distances[node];
+            WalkGraph graph = this.graph;
+            for (int edge = graph.firstEdges[node]; edge < graph.firstEdges[node + 1]; edge++) {
+                decreaseDistance(graph.edgeToNodes[edge], distance + graph.edgeLengths[edge]);
+            }
+            return node;
+        }
+
+        private void decreaseDistance(int node, double distance) {
+            int position = this.heapPositions[node];
+            if (position == SETTLED || distance >= this.distances[node]) {
+                return;
+            }
+            if (position == NOT_QUEUED) {
+                this.touchedNodes[this.touchedNodeCount++] = node;
+                position = this.heapSize++;
+            }
+            this.distances[node] = distance;
+            siftUp(position, node);
+        }
+
+        private void siftUp(int position, int node) {
+            double distance = this.distances[node];
+            while (position > 0) {
+                int parentPosition = (position - 1) >>> 1;
+                int parent = this.heap[parentPosition];
+                if (this.distances[parent] <= distance) {
+                    break;
+                }
+                this.heap[position] = parent;
+                this.heapPositions[parent] = position;
+                position = parentPosition;
+            }
+            this.heap[position] = node;
+            this.heapPositions[node] = position;
+        }
+
+        private void siftDown(int position, int node) {
+            double distance = this.distances[node];
+            int half = this.heapSize >>> 1;
+            while (position < half) {
+                int childPosition = 2 * position + 1;
+                int child = this.heap[childPosition];
+                int rightPosition = childPosition + 1;
+                if (rightPosition < this.heapSize && this.distances[this.heap[rightPosition]] < this.distances[child]) {
+                    childPosition = rightPosition;
+                    child = this.heap[childPosition];
+                }
+                if (distance <= this.distances[child]) {
+                    break;
+                }
+                this.heap[position] = child;
+                this.heapPositions[child] = position;
+                position = childPosition;
+            }
+            this.heap[position] = node;
+            this.heapPositions[node] = position;
+        }
+    }
+}
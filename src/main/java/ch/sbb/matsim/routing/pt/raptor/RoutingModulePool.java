@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.matsim.core.router.RoutingModule;
+
+import javax.inject.Provider;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Manages the routing modules of the intermodal access and egress modes when the legs are routed in parallel.
+ * Routing modules are usually not thread-safe, so each parallel task borrows a module that no other task uses
+ * at the same time, and returns it when done.
+ *
+ * Like {@link SwissRailRaptorCorePool}, borrowing never blocks: if no idle module of the mode is available, a new
+ * one is created with the mode's provider. As modules are only created while all others are in use, their number is
+ * limited by the number of tasks running at the same time. This class is thread-safe.
+ *
+ * @author mrieser / SBB
+ */
+final class RoutingModulePool {
+
+    private final Map<String, Provider<RoutingModule>> routingModuleProviders;
+    private final Map<String, Queue<RoutingModule>> idleModules = new ConcurrentHashMap<>();
+
+    RoutingModulePool(Map<String, Provider<RoutingModule>> routingModuleProviders) {
+        this.routingModuleProviders = routingModuleProviders;
+    }
+
+    RoutingModule borrow(String mode) {
+        RoutingModule module = this.idleModules.computeIfAbsent(mode, m -> new ConcurrentLinkedQueue<>()).poll();
+        if (module == null) {
+            module = this.routingModuleProviders.get(mode).get();
+        }
+        return module;
+    }
+
+    void release(String mode, RoutingModule module) {
+        this.idleModules.get(mode).offer(module);
+    }
+}
@@ -5,9 +5,11 @@
 package ch.sbb.matsim.routing.pt.raptor;
 
 import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.RoutingLimitsParameterSet;
 import ch.sbb.matsim.routing.pt.raptor.RaptorRoute.RoutePart;
 
 import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.population.Leg;
@@ -21,13 +23,24 @@ import org.matsim.utils.objectattributes.ObjectAttributes;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * Provides public transport route search capabilities using an implementation of the
  * RAPTOR algorithm underneath.
  *
+ * A single instance can be used by multiple threads concurrently, as the working state of
+ * each route search is borrowed from a {@link SwissRailRaptorCorePool}. The
+ * {@link RaptorParametersForPerson}, {@link RaptorRouteSelector} and {@link RaptorStopFinder}
+ * must then be thread-safe as well.
+ *
  * @author mrieser / SBB
  */
 public class SwissRailRaptor implements TransitRouter {
@@ -35,14 +48,17 @@ public class SwissRailRaptor implements TransitRouter {
     private static final Logger log = Logger.getLogger(SwissRailRaptor.class);
 
     private final SwissRailRaptorData data;
-    private final SwissRailRaptorCore raptor;
+    private final SwissRailRaptorCorePool corePool;
     private final RaptorParametersForPerson parametersForPerson;
     private final RaptorRouteSelector defaultRouteSelector;
     private final RaptorStopFinder stopFinder;
     private final String subpopulationAttribute;
 //    private final ObjectAttributes personAttributes;
 
-    private boolean treeWarningShown = false;
+    private volatile boolean treeWarningShown = false;
+
+    /** requests departing within the same window of this many seconds are routed together in a batch. */
+    private static final double BATCH_DEPARTURE_WINDOW = 3600.0;
 
     public SwissRailRaptor(final SwissRailRaptorData data, RaptorParametersForPerson parametersForPerson,
                            RaptorRouteSelector routeSelector, RaptorStopFinder stopFinder) {
@@ -54,8 +70,13 @@ public class SwissRailRaptor implements TransitRouter {
 				    RaptorRouteSelector routeSelector,
 				    RaptorStopFinder stopFinder,
 				    String subpopulationAttribute ) {
-        this.data = data;
-        this.raptor = new SwissRailRaptorCore(data);
+        this(new SwissRailRaptorCorePool(data), parametersForPerson, routeSelector, stopFinder, subpopulationAttribute);
+    }
+
+    SwissRailRaptor(SwissRailRaptorCorePool corePool, RaptorParametersForPerson parametersForPerson,
+                    RaptorRouteSelector routeSelector, RaptorStopFinder stopFinder, String subpopulationAttribute) {
+        this.data = corePool.getData();
+        this.corePool = corePool;
         this.parametersForPerson = parametersForPerson;
         this.defaultRouteSelector = routeSelector;
         this.stopFinder = stopFinder;
@@ -72,7 +93,18 @@ public class SwissRailRaptor implements TransitRouter {
         List<InitialStop> accessStops = findAccessStops(fromFacility, person, departureTime, parameters);
         List<InitialStop> egressStops = findEgressStops(toFacility, person, departureTime, parameters);
 
-        RaptorRoute foundRoute = this.raptor.calcLeastCostRoute(departureTime, fromFacility, toFacility, accessStops, egressStops, parameters);
+        SwissRailRaptorCore raptor = this.corePool.borrow();
+        try {
+            return calcLeastCostRoute(raptor, fromFacility, toFacility, departureTime, person, accessStops, egressStops, parameters);
+        } finally {
+            this.corePool.release(raptor);
+        }
+    }
+
+    private List<Leg> calcLeastCostRoute(SwissRailRaptorCore raptor, Facility fromFacility, Facility toFacility, double departureTime, Person person,
+                                         List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters) {
+        RoutingLimitsParameterSet limits = parameters.getConfig().getRoutingLimits(getSubpopulation(person));
+        RaptorRoute foundRoute = raptor.calcLeastCostRoute(departureTime, fromFacility, toFacility, accessStops, egressStops, parameters, limits);
         RaptorRoute directWalk = createDirectWalk(fromFacility, toFacility, departureTime, person, parameters);
 
         /*
@@ -129,27 +161,59 @@ public class SwissRailRaptor implements TransitRouter {
 	}
 
 	private List<Leg> performRangeQuery(Facility fromFacility, Facility toFacility, double desiredDepartureTime, Person person, RaptorParameters parameters) {
+        return performRangeQuery(fromFacility, toFacility, desiredDepartureTime, person, parameters, false);
+    }
+
+    /**
+     * @param synchronizeStopFinder if <code>true</code>, the stop finder is never called by several threads at the same time.
+     */
+    private List<Leg> performRangeQuery(Facility fromFacility, Facility toFacility, double desiredDepartureTime, Person person, RaptorParameters parameters,
+                                        boolean synchronizeStopFinder) {
         SwissRailRaptorConfigGroup srrConfig = parameters.getConfig();
 
-//        Object attr = this.personAttributes.getAttribute(person.getId().toString(), this.subpopulationAttribute);
-	    Object attr = person.getAttributes().getAttribute( this.subpopulationAttribute ) ;
-        String subpopulation = attr == null ? null : attr.toString();
+        String subpopulation = getSubpopulation(person);
         SwissRailRaptorConfigGroup.RangeQuerySettingsParameterSet rangeSettings = srrConfig.getRangeQuerySettings(subpopulation);
 
         double earliestDepartureTime = desiredDepartureTime - rangeSettings.getMaxEarlierDeparture();
         double latestDepartureTime = desiredDepartureTime + rangeSettings.getMaxLaterDeparture();
 
+        RaptorRouteSelector selector = this.defaultRouteSelector;
         if (this.defaultRouteSelector instanceof ConfigurableRaptorRouteSelector) {
-            ConfigurableRaptorRouteSelector selector = (ConfigurableRaptorRouteSelector) this.defaultRouteSelector;
+            ConfigurableRaptorRouteSelector configurableSelector = (ConfigurableRaptorRouteSelector) this.defaultRouteSelector;
 
             SwissRailRaptorConfigGroup.RouteSelectorParameterSet params = srrConfig.getRouteSelector(subpopulation);
 
-            selector.setBetaTransfer(params.getBetaTransfers());
-            selector.setBetaTravelTime(params.getBetaTravelTime());
-            selector.setBetaDepartureTime(params.getBetaDepartureTime());
+            // the selector is shared, so configure it and select the route in one step to stay thread-safe
+            selector = (routes, desiredDepTime) -> {
+                synchronized (configurableSelector) {
+                    configurableSelector.setBetaTransfer(params.getBetaTransfers());
+                    configurableSelector.setBetaTravelTime(params.getBetaTravelTime());
+                    configurableSelector.setBetaDepartureTime(params.getBetaDepartureTime());
+                    return configurableSelector.selectOne(routes, desiredDepTime);
+                }
+            };
+        } else if (this.defaultRouteSelector.getClass() != LeastCostRaptorRouteSelector.class) {
+            // other selectors might keep state as well, so they are never called by several threads at the same time
+            RaptorRouteSelector sharedSelector = this.defaultRouteSelector;
+            selector = (routes, desiredDepTime) -> {
+                synchronized (sharedSelector) {
+                    return sharedSelector.selectOne(routes, desiredDepTime);
+                }
+            };
         }
 
-        return this.calcRoute(fromFacility, toFacility, earliestDepartureTime, desiredDepartureTime, latestDepartureTime, person, this.defaultRouteSelector);
+        List<InitialStop> accessStops;
+        List<InitialStop> egressStops;
+        if (synchronizeStopFinder) {
+            synchronized (this.stopFinder) {
+                accessStops = findAccessStops(fromFacility, person, desiredDepartureTime, parameters);
+                egressStops = findEgressStops(toFacility, person, desiredDepartureTime, parameters);
+            }
+        } else {
+            accessStops = findAccessStops(fromFacility, person, desiredDepartureTime, parameters);
+            egressStops = findEgressStops(toFacility, person, desiredDepartureTime, parameters);
+        }
+        return calcRoute(fromFacility, toFacility, earliestDepartureTime, desiredDepartureTime, latestDepartureTime, person, parameters, accessStops, egressStops, selector);
     }
 
     public List<Leg> calcRoute(Facility fromFacility, Facility toFacility, double earliestDepartureTime, double desiredDepartureTime, double latestDepartureTime, Person person) {
@@ -160,8 +224,12 @@ public class SwissRailRaptor implements TransitRouter {
         RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(person);
         List<InitialStop> accessStops = findAccessStops(fromFacility, person, desiredDepartureTime, parameters);
         List<InitialStop> egressStops = findEgressStops(toFacility, person, desiredDepartureTime, parameters);
+        return calcRoute(fromFacility, toFacility, earliestDepartureTime, desiredDepartureTime, latestDepartureTime, person, parameters, accessStops, egressStops, selector);
+    }
 
-        List<RaptorRoute> foundRoutes = this.raptor.calcRoutes(earliestDepartureTime, desiredDepartureTime, latestDepartureTime, fromFacility, toFacility, accessStops, egressStops, parameters);
+    private List<Leg> calcRoute(Facility fromFacility, Facility toFacility, double earliestDepartureTime, double desiredDepartureTime, double latestDepartureTime, Person person,
+                                RaptorParameters parameters, List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorRouteSelector selector) {
+        List<RaptorRoute> foundRoutes = calcRoutesForStops(earliestDepartureTime, desiredDepartureTime, latestDepartureTime, fromFacility, toFacility, accessStops, egressStops, parameters, person);
         RaptorRoute foundRoute = selector.selectOne(foundRoutes, desiredDepartureTime);
         RaptorRoute directWalk = createDirectWalk(fromFacility, toFacility, desiredDepartureTime, person, parameters);
 
@@ -189,7 +257,7 @@ public class SwissRailRaptor implements TransitRouter {
         List<InitialStop> accessStops = findAccessStops(fromFacility, person, desiredDepartureTime, parameters);
         List<InitialStop> egressStops = findEgressStops(toFacility, person, desiredDepartureTime, parameters);
 
-        List<RaptorRoute> foundRoutes = this.raptor.calcRoutes(earliestDepartureTime, desiredDepartureTime, latestDepartureTime, fromFacility, toFacility, accessStops, egressStops, parameters);
+        List<RaptorRoute> foundRoutes = calcRoutesForStops(earliestDepartureTime, desiredDepartureTime, latestDepartureTime, fromFacility, toFacility, accessStops, egressStops, parameters, person);
         RaptorRoute directWalk = createDirectWalk(fromFacility, toFacility, desiredDepartureTime, person, parameters);
 
         if (foundRoutes == null) {
@@ -201,36 +269,294 @@ public class SwissRailRaptor implements TransitRouter {
         return foundRoutes;
     }
 
+    /**
+     * Calculates the routes departing at <code>departureTime</code> that are Pareto-optimal with respect to their
+     * arrival time, number of transfers and costs, see {@link SwissRailRaptorCore#calcParetoRoutes}.
+     * In contrast to {@link #calcRoutes}, no direct walk is added.
+     */
+    public List<RaptorRoute> calcParetoRoutes(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+        RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(person);
+        List<InitialStop> accessStops = findAccessStops(fromFacility, person, departureTime, parameters);
+        List<InitialStop> egressStops = findEgressStops(toFacility, person, departureTime, parameters);
+        RoutingLimitsParameterSet limits = parameters.getConfig().getRoutingLimits(getSubpopulation(person));
+        SwissRailRaptorCore raptor = this.corePool.borrow();
+        try {
+            return raptor.calcParetoRoutes(departureTime, fromFacility, toFacility, accessStops, egressStops, parameters, limits);
+        } finally {
+            this.corePool.release(raptor);
+        }
+    }
+
+    /**
+     * Calculates the least cost route that arrives at <code>toFacility</code> not later than <code>arrivalTime</code>,
+     * see {@link SwissRailRaptorCore#calcLeastCostRouteArriveBy}. Like in {@link #calcRoute(Facility, Facility, double, Person)},
+     * the route is compared with a direct walk, which then arrives exactly at <code>arrivalTime</code>.
+     */
+    public List<Leg> calcRouteArriveBy(Facility fromFacility, Facility toFacility, double arrivalTime, Person person) {
+        RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(person);
+        List<InitialStop> accessStops = findAccessStops(fromFacility, person, arrivalTime, parameters);
+        List<InitialStop> egressStops = findEgressStops(toFacility, person, arrivalTime, parameters);
+        RoutingLimitsParameterSet limits = parameters.getConfig().getRoutingLimits(getSubpopulation(person));
+        RaptorRoute foundRoute;
+        SwissRailRaptorCore raptor = this.corePool.borrow();
+        try {
+            foundRoute = raptor.calcLeastCostRouteArriveBy(arrivalTime, fromFacility, toFacility, accessStops, egressStops, parameters, limits);
+        } finally {
+            this.corePool.release(raptor);
+        }
+        double walkTime = CoordUtils.calcEuclideanDistance(fromFacility.getCoord(), toFacility.getCoord()) / parameters.getBeelineWalkSpeed();
+        RaptorRoute directWalk = createDirectWalk(fromFacility, toFacility, arrivalTime - walkTime, person, parameters);
+        if (foundRoute == null || foundRoute.parts.size() == 0 || hasNoPtLeg(foundRoute.parts) ||
+                directWalk.getTotalCosts() * parameters.getDirectWalkFactor() < foundRoute.getTotalCosts()) {
+            foundRoute = directWalk;
+        }
+        return RaptorUtils.convertRouteToLegs(foundRoute);
+    }
+
+    /**
+     * Calculates the routes for many trips at once. The result contains the legs for each request,
+     * in the same order as the requests.
+     *
+     * Requests are grouped by their origin, routing parameters and departure time window, and each group
+     * is routed as one task on the given executor, re-using the same working state for all its requests.
+     * The routing parameters are looked up only once per person, and requests of persons with parameters of the
+     * same values are grouped together. If the access and egress stops only depend on the location of the facility
+     * (i.e. the {@link DefaultRaptorStopFinder} without intermodal access and egress), they are only searched once
+     * per location and parameters and shared by all requests.
+     *
+     * The tasks run concurrently, but the components of this router are used in a thread-safe way even if they are
+     * not thread-safe themselves: the {@link RaptorParametersForPerson} is only called by the calling thread, other
+     * stop finders are only called by one task at a time, and the route selector of range queries is synchronized.
+     * The executor is owned by the caller, who can re-use it for many batches.
+     */
+    public List<List<Leg>> calcRouteBatch(List<RouteRequest> requests, Executor executor) {
+        Map<Person, RaptorParameters> parametersPerPerson = new HashMap<>();
+        Map<ParametersKey, RaptorParameters> parametersPerValues = new HashMap<>();
+        Map<BatchGroupKey, List<Integer>> groups = new LinkedHashMap<>();
+        boolean shareStops = this.stopFinder instanceof DefaultRaptorStopFinder;
+        for (int i = 0; i < requests.size(); i++) {
+            RouteRequest request = requests.get(i);
+            // use the same instance for all parameters of the same values, so the keys below can compare them by identity
+            RaptorParameters parameters = parametersPerPerson.computeIfAbsent(request.person,
+                    person -> parametersPerValues.computeIfAbsent(new ParametersKey(this.parametersForPerson.getRaptorParameters(person)), k -> k.parameters));
+            BatchGroupKey key = new BatchGroupKey(request, parameters, shareStops && !parameters.getConfig().isUseIntermodalAccessEgress());
+            groups.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+
+        Map<StopSearchKey, List<InitialStop>> accessStopsCache = new ConcurrentHashMap<>();
+        Map<StopSearchKey, List<InitialStop>> egressStopsCache = new ConcurrentHashMap<>();
+        List<List<Leg>> results = new ArrayList<>(Collections.nCopies(requests.size(), null));
+        List<CompletableFuture<Void>> futures = new ArrayList<>(groups.size());
+        for (Map.Entry<BatchGroupKey, List<Integer>> e : groups.entrySet()) {
+            BatchGroupKey key = e.getKey();
+            List<Integer> indices = e.getValue();
+            futures.add(CompletableFuture.runAsync(() -> {
+                // each request of a group is written by only one task, and joining the futures makes the results visible
+                if (key.parameters.getConfig().isUseRangeQuery()) {
+                    for (int index : indices) {
+                        RouteRequest request = requests.get(index);
+                        results.set(index, performRangeQuery(request.fromFacility, request.toFacility, request.departureTime, request.person, key.parameters, !key.shareStops));
+                    }
+                    return;
+                }
+                SwissRailRaptorCore raptor = this.corePool.borrow();
+                try {
+                    for (int index : indices) {
+                        RouteRequest request = requests.get(index);
+                        List<InitialStop> accessStops;
+                        List<InitialStop> egressStops;
+                        if (key.shareStops) {
+                            accessStops = accessStopsCache.computeIfAbsent(new StopSearchKey(request.fromFacility, key.parameters),
+                                    k -> findAccessStops(request.fromFacility, request.person, request.departureTime, key.parameters));
+                            egressStops = egressStopsCache.computeIfAbsent(new StopSearchKey(request.toFacility, key.parameters),
+                                    k -> findEgressStops(request.toFacility, request.person, request.departureTime, key.parameters));
+                        } else {
+                            // the stop finder might route intermodal legs with routing modules that are not thread-safe
+                            synchronized (this.stopFinder) {
+                                accessStops = findAccessStops(request.fromFacility, request.person, request.departureTime, key.parameters);
+                                egressStops = findEgressStops(request.toFacility, request.person, request.departureTime, key.parameters);
+                            }
+                        }
+                        results.set(index, calcLeastCostRoute(raptor, request.fromFacility, request.toFacility, request.departureTime, request.person, accessStops, egressStops, key.parameters));
+                    }
+                } finally {
+                    this.corePool.release(raptor);
+                }
+            }, executor));
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("Error while calculating the routes of a batch.", e.getCause());
+        }
+        return results;
+    }
+
     public Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcTree(TransitStopFacility fromStop, double departureTime, RaptorParameters parameters) {
         return this.calcTree(Collections.singletonList(fromStop), departureTime, parameters);
     }
 
     public Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcTree(Collection<TransitStopFacility> fromStops, double departureTime, RaptorParameters parameters) {
-        if (this.data.config.getOptimization() != RaptorStaticConfig.RaptorOptimization.OneToAllRouting && !this.treeWarningShown) {
-            log.warn("SwissRailRaptorData was not initialized with full support for tree calculations and may result in unexpected results. Use `RaptorStaticConfig.setOptimization(RaptorOptimization.OneToAllRouting)` to fix this issue.");
-            this.treeWarningShown = true;
-        }
+        return this.calcTree(fromStops, departureTime, parameters, null, 1);
+    }
+
+    /**
+     * Calculates the tree, exploring each round in up to <code>parallelism</code> parts in parallel on the given executor.
+     * The result is the same as when calculating the tree sequentially, but single very large trees can be calculated faster.
+     *
+     * @see SwissRailRaptorCore#calcLeastCostTree(double, Collection, RaptorParameters, Executor, int)
+     */
+    public Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcTree(Collection<TransitStopFacility> fromStops, double departureTime, RaptorParameters parameters, Executor executor, int parallelism) {
+        checkTreeOptimization();
         List<InitialStop> accessStops = new ArrayList<>();
         for (TransitStopFacility stop : fromStops) {
             accessStops.add(new InitialStop(stop, 0, 0, 0, null));
         }
-        return this.calcLeastCostTree(accessStops, departureTime, parameters);
+        return this.calcLeastCostTree(accessStops, departureTime, parameters, executor, parallelism);
     }
 
     public Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcTree(Facility fromFacility, double departureTime, Person person) {
         RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(person);
         List<InitialStop> accessStops = findAccessStops(fromFacility, person, departureTime, parameters);
-        return this.calcLeastCostTree(accessStops, departureTime, parameters);
+        return this.calcLeastCostTree(accessStops, departureTime, parameters, null, 1);
+    }
+
+    public Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcTreeArriveBy(TransitStopFacility toStop, double arrivalTime, RaptorParameters parameters) {
+        return this.calcTreeArriveBy(Collections.singletonList(toStop), arrivalTime, parameters);
+    }
+
+    /**
+     * Calculates for every stop the least cost connection that arrives at one of the given stops not later than
+     * <code>arrivalTime</code>, see {@link SwissRailRaptorCore#calcTreeArriveBy}.
+     */
+    public Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcTreeArriveBy(Collection<TransitStopFacility> toStops, double arrivalTime, RaptorParameters parameters) {
+        checkTreeOptimization();
+        List<InitialStop> egressStops = new ArrayList<>();
+        for (TransitStopFacility stop : toStops) {
+            egressStops.add(new InitialStop(stop, 0, 0, 0, null));
+        }
+        return this.calcLeastCostTreeArriveBy(egressStops, arrivalTime, parameters);
+    }
+
+    public Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcTreeArriveBy(Facility toFacility, double arrivalTime, Person person) {
+        RaptorParameters parameters = this.parametersForPerson.getRaptorParameters(person);
+        List<InitialStop> egressStops = findEgressStops(toFacility, person, arrivalTime, parameters);
+        return this.calcLeastCostTreeArriveBy(egressStops, arrivalTime, parameters);
+    }
+
+    private Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcLeastCostTreeArriveBy(Collection<InitialStop> egressStops, double arrivalTime, RaptorParameters parameters) {
+        SwissRailRaptorCore raptor = this.corePool.borrow();
+        try {
+            return raptor.calcTreeArriveBy(arrivalTime, egressStops, parameters);
+        } finally {
+            this.corePool.release(raptor);
+        }
+    }
+
+    /**
+     * Calculates for every stop the least cost connections from the given stops that depart between <code>earliestDepartureTime</code>
+     * and <code>latestDepartureTime</code>, ordered by their departure time. This is much faster than calculating a tree for
+     * every departure time in the window, see {@link SwissRailRaptorCore#calcLeastCostProfileTree}.
+     */
+    public Map<Id<TransitStopFacility>, List<SwissRailRaptorCore.TravelInfo>> calcProfileTree(Collection<TransitStopFacility> fromStops, double earliestDepartureTime, double latestDepartureTime, RaptorParameters parameters) {
+        checkTreeOptimization();
+        List<InitialStop> accessStops = new ArrayList<>();
+        for (TransitStopFacility stop : fromStops) {
+            accessStops.add(new InitialStop(stop, 0, 0, 0, null));
+        }
+        SwissRailRaptorCore raptor = this.corePool.borrow();
+        try {
+            return raptor.calcLeastCostProfileTree(earliestDepartureTime, latestDepartureTime, accessStops, parameters);
+        } finally {
+            this.corePool.release(raptor);
+        }
+    }
+
+    /**
+     * Calculates the same tree as {@link #calcTree(Collection, double, RaptorParameters)}, but returns it as
+     * {@link SwissRailRaptorCore.TravelInfoTree}, which stores the values in arrays addressed by stop index.
+     */
+    public SwissRailRaptorCore.TravelInfoTree calcTravelInfoTree(Collection<TransitStopFacility> fromStops, double departureTime, RaptorParameters parameters) {
+        checkTreeOptimization();
+        List<InitialStop> accessStops = new ArrayList<>();
+        for (TransitStopFacility stop : fromStops) {
+            accessStops.add(new InitialStop(stop, 0, 0, 0, null));
+        }
+        SwissRailRaptorCore raptor = this.corePool.borrow();
+        try {
+            return raptor.calcTravelInfoTree(departureTime, accessStops, parameters);
+        } finally {
+            this.corePool.release(raptor);
+        }
+    }
+
+    /**
+     * Calculates the same profiles as {@link #calcProfileTree}, but returns them as {@link SwissRailRaptorCore.TravelInfoTree}
+     * with the connections of each stop as its entries.
+     */
+    public SwissRailRaptorCore.TravelInfoTree calcProfileTravelInfoTree(Collection<TransitStopFacility> fromStops, double earliestDepartureTime, double latestDepartureTime, RaptorParameters parameters) {
+        return calcProfileTravelInfoTree(fromStops, earliestDepartureTime, latestDepartureTime, parameters, false);
+    }
+
+    /**
+     * Calculates the same profiles as {@link #calcProfileTravelInfoTree(Collection, double, double, RaptorParameters)}, but
+     * optionally also includes the connections using the first departure after the window at each reachable route stop,
+     * see {@link SwissRailRaptorCore#calcProfileTravelInfoTree(double, double, Collection, RaptorParameters, boolean)}.
+     */
+    public SwissRailRaptorCore.TravelInfoTree calcProfileTravelInfoTree(Collection<TransitStopFacility> fromStops, double earliestDepartureTime, double latestDepartureTime, RaptorParameters parameters, boolean includeNextDepartures) {
+        checkTreeOptimization();
+        List<InitialStop> accessStops = new ArrayList<>();
+        for (TransitStopFacility stop : fromStops) {
+            accessStops.add(new InitialStop(stop, 0, 0, 0, null));
+        }
+        SwissRailRaptorCore raptor = this.corePool.borrow();
+        try {
+            return raptor.calcProfileTravelInfoTree(earliestDepartureTime, latestDepartureTime, accessStops, parameters, includeNextDepartures);
+        } finally {
+            this.corePool.release(raptor);
+        }
+    }
+
+    private void checkTreeOptimization() {
+        if (this.data.config.getOptimization() != RaptorStaticConfig.RaptorOptimization.OneToAllRouting && !this.treeWarningShown) {
+            log.warn("SwissRailRaptorData was not initialized with full support for tree calculations and may result in unexpected results. Use `RaptorStaticConfig.setOptimization(RaptorOptimization.OneToAllRouting)` to fix this issue.");
+            this.treeWarningShown = true;
+        }
+    }
+
+    private Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcLeastCostTree(Collection<InitialStop> accessStops, double departureTime, RaptorParameters parameters, Executor executor, int parallelism) {
+        SwissRailRaptorCore raptor = this.corePool.borrow();
+        try {
+            return raptor.calcLeastCostTree(departureTime, accessStops, parameters, executor, parallelism);
+        } finally {
+            this.corePool.release(raptor);
+        }
     }
 
-    private Map<Id<TransitStopFacility>, SwissRailRaptorCore.TravelInfo> calcLeastCostTree(Collection<InitialStop> accessStops, double departureTime, RaptorParameters parameters) {
-        return this.raptor.calcLeastCostTree(departureTime, accessStops, parameters);
+    private List<RaptorRoute> calcRoutesForStops(double earliestDepartureTime, double desiredDepartureTime, double latestDepartureTime, Facility fromFacility, Facility toFacility,
+                                                 List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters, Person person) {
+        RoutingLimitsParameterSet limits = parameters.getConfig().getRoutingLimits(getSubpopulation(person));
+        SwissRailRaptorCore raptor = this.corePool.borrow();
+        try {
+            return raptor.calcRoutes(earliestDepartureTime, desiredDepartureTime, latestDepartureTime, fromFacility, toFacility, accessStops, egressStops, parameters, limits);
+        } finally {
+            this.corePool.release(raptor);
+        }
     }
 
     public SwissRailRaptorData getUnderlyingData() {
         return this.data;
     }
 
+    private String getSubpopulation(Person person) {
+        if (person == null || this.subpopulationAttribute == null) {
+            return null;
+        }
+//        Object attr = this.personAttributes.getAttribute(person.getId().toString(), this.subpopulationAttribute);
+        Object attr = person.getAttributes().getAttribute(this.subpopulationAttribute);
+        return attr == null ? null : attr.toString();
+    }
+
     private List<InitialStop> findAccessStops(Facility facility, Person person, double departureTime, RaptorParameters parameters) {
         return this.stopFinder.findStops(facility, person, departureTime, parameters, this.data, RaptorStopFinder.Direction.ACCESS);
     }
@@ -239,6 +565,129 @@ public class SwissRailRaptor implements TransitRouter {
         return this.stopFinder.findStops(facility, person, departureTime, parameters, this.data, RaptorStopFinder.Direction.EGRESS);
     }
 
+    /**
+     * A single trip to be routed with {@link #calcRouteBatch(List, Executor)}.
+     */
+    public static final class RouteRequest {
+        final Facility fromFacility;
+        final Facility toFacility;
+        final double departureTime;
+        final Person person;
+
+        public RouteRequest(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+            this.fromFacility = fromFacility;
+            this.toFacility = toFacility;
+            this.departureTime = departureTime;
+            this.person = person;
+        }
+
+        public Facility getFromFacility() {
+            return this.fromFacility;
+        }
+
+        public Facility getToFacility() {
+            return this.toFacility;
+        }
+
+        public double getDepartureTime() {
+            return this.departureTime;
+        }
+
+        public Person getPerson() {
+            return this.person;
+        }
+    }
+
+    /**
+     * Requests with the same origin, the same parameters and departing in the same time window are routed together.
+     * The parameters are compared by identity, as calcRouteBatch uses the same instance for all parameters of the same values.
+     * If the stops cannot be shared, the person is part of the key as well, so the requests are still batched
+     * per person and origin, but every request searches its own access and egress stops.
+     */
+    private static final class BatchGroupKey {
+        private final Coord fromCoord;
+        private final Person person;
+        private final RaptorParameters parameters;
+        private final int departureWindow;
+        private final boolean shareStops;
+
+        BatchGroupKey(RouteRequest request, RaptorParameters parameters, boolean shareStops) {
+            this.fromCoord = request.fromFacility.getCoord();
+            this.person = shareStops ? null : request.person;
+            this.parameters = parameters;
+            this.departureWindow = (int) Math.floor(request.departureTime / BATCH_DEPARTURE_WINDOW);
+            this.shareStops = shareStops;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof BatchGroupKey)) {
+                return false;
+            }
+            BatchGroupKey other = (BatchGroupKey) o;
+            return this.departureWindow == other.departureWindow
+                    && this.shareStops == other.shareStops
+                    && this.parameters == other.parameters
+                    && this.person == other.person
+                    && this.fromCoord.equals(other.fromCoord);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * this.fromCoord.hashCode() + System.identityHashCode(this.parameters)) + this.departureWindow;
+        }
+    }
+
+    /**
+     * Compares routing parameters by their values instead of by identity, see {@link RaptorParameters#hasSameValues(RaptorParameters)}.
+     */
+    private static final class ParametersKey {
+        private final RaptorParameters parameters;
+        private final int hash;
+
+        ParametersKey(RaptorParameters parameters) {
+            this.parameters = parameters;
+            this.hash = parameters.calcValuesHashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ParametersKey)) {
+                return false;
+            }
+            return this.parameters.hasSameValues(((ParametersKey) o).parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+    }
+
+    private static final class StopSearchKey {
+        private final Coord coord;
+        private final RaptorParameters parameters;
+
+        StopSearchKey(Facility facility, RaptorParameters parameters) {
+            this.coord = facility.getCoord();
+            this.parameters = parameters;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StopSearchKey)) {
+                return false;
+            }
+            StopSearchKey other = (StopSearchKey) o;
+            return this.parameters == other.parameters && this.coord.equals(other.coord);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.coord.hashCode() + System.identityHashCode(this.parameters);
+        }
+    }
+
     private RaptorRoute createDirectWalk(Facility fromFacility, Facility toFacility, double departureTime, Person person, RaptorParameters parameters) {
         double beelineDistance = CoordUtils.calcEuclideanDistance(fromFacility.getCoord(), toFacility.getCoord());
         double walkTime = beelineDistance / parameters.getBeelineWalkSpeed();
@@ -4,17 +4,16 @@
 
 package ch.sbb.matsim.routing.pt.raptor;
 
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.RoutingLimitsParameterSet;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData.RIncomingTransfers;
 import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData.RRoute;
-import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData.RRouteStop;
-import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData.RTransfer;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData.RTransferTimeProfiles;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.population.Leg;
 import org.matsim.core.utils.misc.Time;
 import org.matsim.facilities.Facility;
-import org.matsim.pt.transitSchedule.api.TransitLine;
-import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 
 import java.util.ArrayList;
@@ -25,6 +24,9 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * The actual RAPTOR implementation, based on Delling et al, Round-Based Public Transit Routing.
@@ -36,56 +38,121 @@ import java.util.Map;
 public class SwissRailRaptorCore {
 	private static final Logger log = Logger.getLogger( SwissRailRaptorCore.class ) ;
 
+    private static final int NO_DEPARTURE = Integer.MAX_VALUE;
+
     private final SwissRailRaptorData data;
 
-    private final PathElement[] arrivalPathPerRouteStop;
+    private final PathLabels labels;
+    private final int[] arrivalPathPerRouteStop; // label index, -1 if not reached
     private final double[] egressCostsPerRouteStop;
     private final double[] leastArrivalCostAtRouteStop;
     private final double[] leastArrivalCostAtStop;
     private final BitSet improvedRouteStopIndices;
-    private final BitSet reachedRouteStopIndices;
+    // the routes with improved route stops, in the order they were marked. Like in the RAPTOR paper,
+    // the earliest improved route stop of each marked route is stored, so no bit set over all route stops has to be scanned.
+    private final int[] markedRoutes;
+    private int markedRouteCount = 0;
+    private final int[] earliestMarkedRouteStopPerRoute; // -1 if the route is not marked
+    private final int[] routeStopsToExplore; // the earliest marked route stops, sorted, see collectRouteStopsToExplore()
     private final BitSet improvedStops;
     private final BitSet destinationRouteStopIndices;
     private double bestArrivalCost = Double.POSITIVE_INFINITY;
-    private final PathElement[] arrivalPathPerStop;
-    private final PathElement[] tmpArrivalPathPerStop; // only used to ensure parallel update
+    private double maxArrivalTime = Double.POSITIVE_INFINITY; // do not create labels arriving later
+    private double minDepartureTime = Double.NEGATIVE_INFINITY; // backward searches do not create labels departing earlier
+    private RaptorLowerBounds lowerBounds = null; // created on first use
+    private boolean useLowerBounds = false; // only used for least cost routes, see calcLeastCostRoute
+    private final int[] arrivalPathPerStop; // label index, -1 if not reached
+    private final int[] tmpArrivalPathPerStop; // only used to ensure parallel update
     private final BitSet tmpImprovedStops; // only used to ensure parallel update
 
+    // the route stops and stops that were reached during the last route search, so only those need to be reset
+    private final int[] touchedRouteStops;
+    private int touchedRouteStopCount = 0;
+    private final int[] touchedStops;
+    private final boolean[] isTouchedStop;
+    private int touchedStopCount = 0;
+
+    // only used when exploring the rounds of a tree in parallel, created on first use
+    private int[] stopsToHandle = null;
+    private PathLabels[] parallelLabels = null;
+
+    // only used by calcParetoRoutes, created on first use
+    private LabelBags boardingBags = null; // per route stop, the access and transfer labels that can board there
+    private LabelBags arrivalBags = null; // per stop, the labels arriving there by a route
+    private RouteBag routeBag = null;
+    private double bagWaitingCostPerSecond = 0; // the waiting costs considered when comparing labels in bags, never negative
+
     public SwissRailRaptorCore(SwissRailRaptorData data) {
         this.data = data;
-        this.arrivalPathPerRouteStop = new PathElement[data.countRouteStops];
+        this.labels = new PathLabels(data.countRouteStops + data.countStops);
+        this.arrivalPathPerRouteStop = new int[data.countRouteStops];
         this.egressCostsPerRouteStop = new double[data.countRouteStops];
         this.leastArrivalCostAtRouteStop = new double[data.countRouteStops];
         this.leastArrivalCostAtStop = new double[data.countStops];
         this.improvedRouteStopIndices = new BitSet(this.data.countRouteStops);
-        this.reachedRouteStopIndices = new BitSet(this.data.countRouteStops);
+        this.markedRoutes = new int[this.data.routes.length];
+        this.earliestMarkedRouteStopPerRoute = new int[this.data.routes.length];
+        this.routeStopsToExplore = new int[this.data.routes.length];
         this.destinationRouteStopIndices = new BitSet(this.data.countRouteStops);
         this.improvedStops = new BitSet(this.data.countStops);
-        this.arrivalPathPerStop = new PathElement[this.data.countStops];
-        this.tmpArrivalPathPerStop = new PathElement[this.data.countStops];
+        this.arrivalPathPerStop = new int[this.data.countStops];
+        this.tmpArrivalPathPerStop = new int[this.data.countStops];
         this.tmpImprovedStops = new BitSet(this.data.countStops);
-    }
+        this.touchedRouteStops = new int[this.data.countRouteStops];
+        this.touchedStops = new int[this.data.countStops];
+        this.isTouchedStop = new boolean[this.data.countStops];
 
-    private void reset() {
-        Arrays.fill(this.arrivalPathPerRouteStop, null);
+        Arrays.fill(this.arrivalPathPerRouteStop, -1);
+        Arrays.fill(this.earliestMarkedRouteStopPerRoute, -1);
         Arrays.fill(this.egressCostsPerRouteStop, Double.POSITIVE_INFINITY);
-        Arrays.fill(this.arrivalPathPerStop, null);
+        Arrays.fill(this.arrivalPathPerStop, -1);
         Arrays.fill(this.leastArrivalCostAtRouteStop, Double.POSITIVE_INFINITY);
         Arrays.fill(this.leastArrivalCostAtStop, Double.POSITIVE_INFINITY);
-        this.improvedStops.clear();
-        this.improvedRouteStopIndices.clear();
-        this.reachedRouteStopIndices.clear();
-        this.destinationRouteStopIndices.clear();
+    }
+
+    /**
+     * Only resets the entries and bits touched by the previous route search, so the costs of a reset
+     * depend on the size of the previous search and not on the size of the schedule.
+     */
+    private void reset() {
+        this.labels.clear();
+        for (int i = 0; i < this.touchedRouteStopCount; i++) {
+            int routeStopIndex = this.touchedRouteStops[i];
+            this.arrivalPathPerRouteStop[routeStopIndex] = -1;
+            this.leastArrivalCostAtRouteStop[routeStopIndex] = Double.POSITIVE_INFINITY;
+        }
+        this.touchedRouteStopCount = 0;
+        for (int i = 0; i < this.touchedStopCount; i++) {
+            int stopIndex = this.touchedStops[i];
+            this.arrivalPathPerStop[stopIndex] = -1;
+            this.leastArrivalCostAtStop[stopIndex] = Double.POSITIVE_INFINITY;
+            this.isTouchedStop[stopIndex] = false;
+            this.improvedStops.clear(stopIndex);
+        }
+        this.touchedStopCount = 0;
+        for (int routeStopIndex = this.destinationRouteStopIndices.nextSetBit(0); routeStopIndex >= 0; routeStopIndex = this.destinationRouteStopIndices.nextSetBit(routeStopIndex + 1)) {
+            this.egressCostsPerRouteStop[routeStopIndex] = Double.POSITIVE_INFINITY;
+            this.destinationRouteStopIndices.clear(routeStopIndex);
+        }
+        clearMarkedRouteStops();
         this.bestArrivalCost = Double.POSITIVE_INFINITY;
+        this.maxArrivalTime = Double.POSITIVE_INFINITY;
+        this.minDepartureTime = Double.NEGATIVE_INFINITY;
+        this.useLowerBounds = false;
     }
 
     public RaptorRoute calcLeastCostRoute(double depTime, Facility fromFacility, Facility toFacility, List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters) {
-        final int maxTransfers = 20; // sensible defaults, could be made configurable if there is a need for it.
-        final int maxTransfersAfterFirstArrival = 2;
+        return calcLeastCostRoute(depTime, fromFacility, toFacility, accessStops, egressStops, parameters, parameters.getConfig().getRoutingLimits(null));
+    }
+
+    public RaptorRoute calcLeastCostRoute(double depTime, Facility fromFacility, Facility toFacility, List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters, RoutingLimitsParameterSet limits) {
+        final int maxTransfers = limits.getMaxTransfers();
+        final int maxTransfersAfterFirstArrival = limits.getMaxTransfersAfterFirstArrival();
 
 //        log.warn("Calc route from x=" + fromFacility.getCoord().getX() + " y=" + fromFacility.getCoord().getY() + " dep=" + depTime + " to x=" + toFacility.getCoord().getX() + " y=" + toFacility.getCoord().getY() );
         
         reset();
+        this.maxArrivalTime = depTime + limits.getMaxTravelTime();
 
         Map<TransitStopFacility, InitialStop> destinationStops = new HashMap<>();
 
@@ -109,6 +176,10 @@ public class SwissRailRaptorCore {
             }
         }
 
+        if (parameters.getConfig().isUseLowerBoundPruning()) {
+            this.useLowerBounds = initLowerBounds(parameters);
+        }
+
         // same as (*) for access stops:
         Map<TransitStopFacility, InitialStop> initialStops = new HashMap<>();
         for (InitialStop accessStop : accessStops) {
@@ -136,29 +207,25 @@ public class SwissRailRaptorCore {
                 double arrivalTime = depTime + stop.accessTime;
                 double arrivalCost = stop.accessCost;
 
-                RRouteStop routeStop = this.data.routeStops[routeStopIndex];
-
                 boolean isIntermodalAccess = stop.planElements != null;
 			// (intermodal access is if there are planElements that describe the intermodal access, which depends, I think, on which constructor was
 			// called (since also non-intermodal access has a leg). kai, jul'19
 
-                if (!isIntermodalAccess && routeStop.routeStop == routeStop.route.getStops().get(routeStop.route.getStops().size() - 1)) {
+                RRoute route = this.data.routes[this.data.routeStopRouteIndices[routeStopIndex]];
+                if (!isIntermodalAccess && isLastRouteStop(route, routeStopIndex)) {
                     // this is the last stop of a route, doesn't make sense to start here
                     // if it's intermodal, we still start here, as we might transfer to another close-by but non-intermodal stop.
                     continue;
                 }
-                RRoute route = this.data.routes[routeStop.transitRouteIndex];
-                double depOffset = routeStop.departureOffset;
+                double depOffset = this.data.routeStopDepartureOffsets[routeStopIndex];
+                int stopFacilityIndex = this.data.routeStopStopFacilityIndices[routeStopIndex];
 
-                int departureIndex = findNextDepartureIndex(route, routeStop, arrivalTime);
-                if (departureIndex >= 0) {
-                    double nextDepartureTimeAtStop = this.data.departures[departureIndex] + depOffset;
+                int departureTime = findNextDepartureTime(route, routeStopIndex, arrivalTime);
+                if (departureTime != NO_DEPARTURE) {
+                    double nextDepartureTimeAtStop = departureTime + depOffset;
                     double waitingTime = nextDepartureTimeAtStop - arrivalTime;
                     double waitingCost = waitingTime * -parameters.getMarginalUtilityOfWaitingPt_utl_s();
 
-                    RRouteStop toRouteStop = this.data.routeStops[routeStopIndex];
-                    PathElement pe = new PathElement(null, toRouteStop, Double.NaN, nextDepartureTimeAtStop, arrivalTime, arrivalCost, 0, stop.distance, 0, true, stop);
-
                     /* okay, the following is not very nice...
                      * we want to find the least-cost access leg including the waiting time
                      * until the next departure. But that waiting time should not be included anywhere else,
@@ -173,32 +240,35 @@ public class SwissRailRaptorCore {
                     double xCost = arrivalCost + waitingCost;
 
                     if (xCost < this.leastArrivalCostAtRouteStop[routeStopIndex]) {
-                        this.arrivalPathPerRouteStop[routeStopIndex] = pe;
+                        int label = this.labels.add(-1, routeStopIndex, Double.NaN, nextDepartureTimeAtStop, arrivalTime, arrivalCost, 0, stop.distance, 0, true, stop);
+                        touchRouteStop(routeStopIndex);
+                        this.arrivalPathPerRouteStop[routeStopIndex] = label;
                         this.leastArrivalCostAtRouteStop[routeStopIndex] = xCost;
-                        this.improvedRouteStopIndices.set(routeStopIndex);
-                        if (xCost < this.leastArrivalCostAtStop[toRouteStop.stopFacilityIndex]) {
-                            this.improvedStops.set(toRouteStop.stopFacilityIndex);
-                            this.arrivalPathPerStop[toRouteStop.stopFacilityIndex] = pe;
-                            this.leastArrivalCostAtStop[toRouteStop.stopFacilityIndex] = xCost;
+                        markRouteStop(routeStopIndex);
+                        if (xCost < this.leastArrivalCostAtStop[stopFacilityIndex]) {
+                            this.improvedStops.set(stopFacilityIndex);
+                            touchStop(stopFacilityIndex);
+                            this.arrivalPathPerStop[stopFacilityIndex] = label;
+                            this.leastArrivalCostAtStop[stopFacilityIndex] = xCost;
                         }
                     }
                 } else if (isIntermodalAccess) {
                     // there is no more departure, but we start here by intermodal access, so still register to allow transfers to other (non-)intermodal stops.
-                    RRouteStop toRouteStop = this.data.routeStops[routeStopIndex];
-                    PathElement pe = new PathElement(null, toRouteStop, Double.NaN, Time.getUndefinedTime(), arrivalTime, arrivalCost, 0, stop.distance, 0, true, stop);
-
                     /* okay, the following is not very nice...
                      * ... see long comment above, it's the same
                      */
                     if (arrivalCost < this.leastArrivalCostAtRouteStop[routeStopIndex]) {
                         hasIntermodalAccess = true;
-                        this.arrivalPathPerRouteStop[routeStopIndex] = pe;
+                        int label = this.labels.add(-1, routeStopIndex, Double.NaN, Time.getUndefinedTime(), arrivalTime, arrivalCost, 0, stop.distance, 0, true, stop);
+                        touchRouteStop(routeStopIndex);
+                        this.arrivalPathPerRouteStop[routeStopIndex] = label;
                         this.leastArrivalCostAtRouteStop[routeStopIndex] = arrivalCost;
-                        this.improvedRouteStopIndices.set(routeStopIndex);
-                        if (arrivalCost < this.leastArrivalCostAtStop[toRouteStop.stopFacilityIndex]) {
-                            this.improvedStops.set(toRouteStop.stopFacilityIndex);
-                            this.arrivalPathPerStop[toRouteStop.stopFacilityIndex] = pe;
-                            this.leastArrivalCostAtStop[toRouteStop.stopFacilityIndex] = arrivalCost;
+                        markRouteStop(routeStopIndex);
+                        if (arrivalCost < this.leastArrivalCostAtStop[stopFacilityIndex]) {
+                            this.improvedStops.set(stopFacilityIndex);
+                            touchStop(stopFacilityIndex);
+                            this.arrivalPathPerStop[stopFacilityIndex] = label;
+                            this.leastArrivalCostAtStop[stopFacilityIndex] = arrivalCost;
                         }
                     }
                 }
@@ -209,14 +279,15 @@ public class SwissRailRaptorCore {
             // allow transfering from the initial stop to another one if we have intermodal access,
             // as not all stops might be intermodal
 
-            // handleTransfers clears improvedRouteStopIndices, which is correct during rounds
+            // handleTransfers clears the marked route stops, which is correct during rounds
             // but it loses the initial route stop indices directly after initialization.
             // so keep a copy and restore it
-            BitSet initialRouteStopIndices = new BitSet();
-            initialRouteStopIndices.or(this.improvedRouteStopIndices);
+            int[] initialRouteStopIndices = getMarkedRouteStops();
 
             handleTransfers(true, parameters);
-            this.improvedRouteStopIndices.or(initialRouteStopIndices);
+            for (int routeStopIndex : initialRouteStopIndices) {
+                markRouteStop(routeStopIndex);
+            }
         }
 
         int allowedTransfersLeft = maxTransfersAfterFirstArrival;
@@ -228,7 +299,7 @@ public class SwissRailRaptorCore {
             // second stage: process routes
             exploreRoutes(parameters);
 
-		  PathElement leastCostPath = findLeastCostArrival(destinationStops);
+		  int leastCostPath = findLeastCostArrival(destinationStops);
 
 //		  log.warn("") ;
 //		  log.warn("leastCostPath with nTransfers=" + k + ":") ;
@@ -239,7 +310,7 @@ public class SwissRailRaptorCore {
 //		  log.warn("") ;
 
 
-		  if (leastCostPath != null) {
+		  if (leastCostPath >= 0) {
                 if (allowedTransfersLeft == 0) {
                     break;
                 }
@@ -255,29 +326,32 @@ public class SwissRailRaptorCore {
             handleTransfers(true, parameters);
 
             // final stage: check stop criterion
-            if (this.improvedRouteStopIndices.isEmpty()) {
+            if ((this.markedRouteCount == 0)) {
 //            	log.warn( "improvedRouteStopIndices isEmpty; leaving loop ...") ;
                 break;
             }
         }
 
         // create RaptorRoute based on PathElements
-        PathElement leastCostPath = findLeastCostArrival(destinationStops);
-        RaptorRoute raptorRoute = createRaptorRoute(fromFacility, toFacility, leastCostPath, depTime);
+        int leastCostPath = findLeastCostArrival(destinationStops);
+        RaptorRoute raptorRoute = createRaptorRoute(this.data, fromFacility, toFacility, this.labels.toPathElement(leastCostPath, null), depTime);
         return raptorRoute;
     }
 
     public List<RaptorRoute> calcRoutes(double earliestDepTime, double desiredDepTime, double latestDepTime, Facility fromFacility, Facility toFacility, List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters) {
+        return calcRoutes(earliestDepTime, desiredDepTime, latestDepTime, fromFacility, toFacility, accessStops, egressStops, parameters, parameters.getConfig().getRoutingLimits(null));
+    }
+
+    public List<RaptorRoute> calcRoutes(double earliestDepTime, double desiredDepTime, double latestDepTime, Facility fromFacility, Facility toFacility, List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters, RoutingLimitsParameterSet limits) {
         List<RaptorRoute> foundRoutes = new ArrayList<>();
-        int maxTransfers = 20; // sensible defaults, could be made configurable if there is a need for it.
-        final int maxTransfersAfterFirstArrival = 2;
-        Map<PathElement, InitialStop> initialStopsPerStartPath = new HashMap<>();
+        int maxTransfers = limits.getMaxTransfers();
+        final int maxTransfersAfterFirstArrival = limits.getMaxTransfersAfterFirstArrival();
 
         reset();
 
         double marginalUtilityOfWaitingPt_utl_s = parameters.getMarginalUtilityOfWaitingPt_utl_s();
 
-        PathElement lastFoundBestPath = null;
+        int lastFoundBestPath = -1;
 
         /* the original algorithm works with time. Starting with the latest departure,
          * it's easy to go backwards in time and potentially improve already visited stops when
@@ -302,21 +376,13 @@ public class SwissRailRaptorCore {
             int[] routeStopIndices = this.data.routeStopsPerStopFacility.get(stop);
             if (routeStopIndices != null) {
                 for (int routeStopIndex : routeStopIndices) {
-                    RRouteStop routeStop = this.data.routeStops[routeStopIndex];
-                    if (routeStop.routeStop == routeStop.route.getStops().get(routeStop.route.getStops().size() - 1)) {
+                    int routeIndex = this.data.routeStopRouteIndices[routeStopIndex];
+                    RRoute route = this.data.routes[routeIndex];
+                    if (isLastRouteStop(route, routeStopIndex)) {
                         // this is the last stop of a route
                         continue;
                     }
-                    RRoute route = this.data.routes[routeStop.transitRouteIndex];
-                    double depOffset = routeStop.departureOffset;
-                    for (int depIndex = route.indexFirstDeparture; depIndex < route.indexFirstDeparture + route.countDepartures; depIndex++) {
-                        double depTimeAtStart = this.data.departures[depIndex];
-                        double depTimeAtStop = depTimeAtStart + depOffset;
-                        if (depTimeAtStop >= earliestTimeAtStop && depTimeAtStop <= latestTimeAtStop) {
-                            double costOffset = (depTimeAtStop - earliestTimeAtStop) * marginalUtilityOfWaitingPt_utl_s;
-                            departures.add(new DepartureAtRouteStop(routeStop, routeStopIndex, depIndex, depTimeAtStop, costOffset, accessStop));
-                        }
-                    }
+                    addDeparturesInWindow(departures, route, routeIndex, routeStopIndex, earliestTimeAtStop, latestTimeAtStop, false, accessStop, -1, marginalUtilityOfWaitingPt_utl_s);
                 }
             }
         }
@@ -326,7 +392,10 @@ public class SwissRailRaptorCore {
             double c2 = d2.costOffset + d2.accessStop.accessCost;
             int cmp = Double.compare(c1, c2);
             if (cmp == 0) {
-                cmp = Integer.compare(d1.departureIndex, d2.departureIndex);
+                cmp = Integer.compare(d1.routeIndex, d2.routeIndex);
+            }
+            if (cmp == 0) {
+                cmp = Integer.compare(d1.departureTimeAtRouteStart, d2.departureTimeAtRouteStart);
             }
             return -cmp; // negate, we want to order from biggest to smallest
         });
@@ -348,22 +417,28 @@ public class SwissRailRaptorCore {
             }
         }
 
+        /* The labels are not reset between the departures, so each departure only needs to explore where it
+         * improves the labels of the previously handled departures. For the same reason, bestArrivalCost is
+         * kept as well: all departures use the same cost space including the costOffset, and only arrivals
+         * not more expensive than the current least cost arrival can result in a new route.
+         */
         for (DepartureAtRouteStop depAtRouteStop : departures) {
             this.improvedStops.clear();
-            this.improvedRouteStopIndices.clear();
-            this.bestArrivalCost = Double.POSITIVE_INFINITY;
+            clearMarkedRouteStops();
+            this.maxArrivalTime = depAtRouteStop.depTime - depAtRouteStop.accessStop.accessTime + limits.getMaxTravelTime();
             { // initialization for this departure Time
                 double arrivalTime = depAtRouteStop.depTime;
                 double arrivalCost = depAtRouteStop.accessStop.accessCost + depAtRouteStop.costOffset;
-                RRouteStop toRouteStop = depAtRouteStop.routeStop;
                 int routeStopIndex = depAtRouteStop.routeStopIndex;
-                PathElement pe = new PathElement(null, toRouteStop, depAtRouteStop.depTime, depAtRouteStop.depTime, arrivalTime, arrivalCost, 0, depAtRouteStop.accessStop.distance, 0, true, depAtRouteStop.accessStop);
-                this.arrivalPathPerRouteStop[routeStopIndex] = pe;
+                int stopFacilityIndex = this.data.routeStopStopFacilityIndices[routeStopIndex];
+                int label = this.labels.add(-1, routeStopIndex, depAtRouteStop.depTime, depAtRouteStop.depTime, arrivalTime, arrivalCost, 0, depAtRouteStop.accessStop.distance, 0, true, depAtRouteStop.accessStop);
+                touchRouteStop(routeStopIndex);
+                touchStop(stopFacilityIndex);
+                this.arrivalPathPerRouteStop[routeStopIndex] = label;
                 this.leastArrivalCostAtRouteStop[routeStopIndex] = arrivalCost;
-                this.arrivalPathPerStop[toRouteStop.stopFacilityIndex] = pe;
-                this.leastArrivalCostAtStop[toRouteStop.stopFacilityIndex] = arrivalCost;
-                this.improvedRouteStopIndices.set(routeStopIndex);
-                initialStopsPerStartPath.put(pe, depAtRouteStop.accessStop);
+                this.arrivalPathPerStop[stopFacilityIndex] = label;
+                this.leastArrivalCostAtStop[stopFacilityIndex] = arrivalCost;
+                markRouteStop(routeStopIndex);
             }
 
             // the main loop
@@ -374,17 +449,17 @@ public class SwissRailRaptorCore {
                 // second stage: process routes
                 exploreRoutes(parameters);
 
-                PathElement leastCostPath = findLeastCostArrival(destinationStops);
-                if (leastCostPath != null && (lastFoundBestPath == null || leastCostPath.comingFrom != lastFoundBestPath.comingFrom)) {
+                int leastCostPath = findLeastCostArrival(destinationStops);
+                if (leastCostPath >= 0 && (lastFoundBestPath < 0 || this.labels.comingFrom[leastCostPath] != this.labels.comingFrom[lastFoundBestPath])) {
                     lastFoundBestPath = leastCostPath;
 
-                    double depTime = calculateOptimalDepartureTime(leastCostPath, initialStopsPerStartPath);
-                    leastCostPath.arrivalTravelCost -= depAtRouteStop.costOffset;
-                    RaptorRoute raptorRoute = createRaptorRoute(fromFacility, toFacility, leastCostPath, depTime);
-                    leastCostPath.arrivalTravelCost += depAtRouteStop.costOffset;
+                    double depTime = calculateOptimalDepartureTime(leastCostPath);
+                    PathElement destinationPathElement = this.labels.toPathElement(leastCostPath, null);
+                    destinationPathElement.arrivalTravelCost -= depAtRouteStop.costOffset;
+                    RaptorRoute raptorRoute = createRaptorRoute(this.data, fromFacility, toFacility, destinationPathElement, depTime);
                     foundRoutes.add(raptorRoute);
 
-                    int optimizedTransferLimit = leastCostPath.transferCount + maxTransfersAfterFirstArrival;
+                    int optimizedTransferLimit = this.labels.transferCount[leastCostPath] + maxTransfersAfterFirstArrival;
                     if (optimizedTransferLimit < maxTransfers) {
                         maxTransfers = optimizedTransferLimit;
                     }
@@ -401,7 +476,7 @@ public class SwissRailRaptorCore {
                 handleTransfers(false, parameters);
 
                 // final stage: check stop criterion
-                if (this.improvedRouteStopIndices.isEmpty()) {
+                if ((this.markedRouteCount == 0)) {
                     break;
                 }
             }
@@ -411,17 +486,70 @@ public class SwissRailRaptorCore {
         return routes;
     }
 
-    private double calculateOptimalDepartureTime(PathElement leastCostPath, Map<PathElement, InitialStop> initialStopsPerStartPath) {
-        PathElement firstPE = leastCostPath;
-        while (firstPE.comingFrom != null) {
-            firstPE = firstPE.comingFrom;
+    /**
+     * Adds the departures of the route at the given route stop that depart within the time window. Instead of
+     * checking all departures of the route, only the frequency-based departures and the explicit departures
+     * in the time window are visited.
+     *
+     * @param includeNextDepartures if <code>true</code>, the first departure after the time window is added as well.
+     * @param accessTransferIndex the transfer from the access stop to the route stop, or <code>-1</code> if the route stop is at the access stop.
+     */
+    private void addDeparturesInWindow(List<DepartureAtRouteStop> departures, RRoute route, int routeIndex, int routeStopIndex, double earliestTimeAtStop, double latestTimeAtStop, boolean includeNextDepartures, InitialStop accessStop, int accessTransferIndex, double marginalUtilityOfWaitingPt_utl_s) {
+        double depOffset = this.data.routeStopDepartureOffsets[routeStopIndex];
+        if (route.frequencyCount > 0) {
+            int k = (int) Math.max(0, Math.ceil((earliestTimeAtStop - depOffset - route.frequencyFirstDeparture) / route.frequencyHeadway) - 1);
+            for (; k < route.frequencyCount; k++) {
+                int depTimeAtStart = route.frequencyFirstDeparture + k * route.frequencyHeadway;
+                if (!addDepartureInWindow(departures, routeIndex, routeStopIndex, depTimeAtStart, depOffset, earliestTimeAtStop, latestTimeAtStop, includeNextDepartures, accessStop, accessTransferIndex, marginalUtilityOfWaitingPt_utl_s)) {
+                    break;
+                }
+            }
+        }
+        if (route.countDepartures > 0) {
+            int fromIndex = route.indexFirstDeparture;
+            int toIndex = fromIndex + route.countDepartures;
+            int pos = Arrays.binarySearch(this.data.departures, fromIndex, toIndex, (int) Math.floor(earliestTimeAtStop - depOffset));
+            if (pos < 0) {
+                pos = -(pos + 1);
+            }
+            while (pos > fromIndex && this.data.departures[pos - 1] == this.data.departures[pos]) {
+                pos--; // binarySearch returns any of several equal departures
+            }
+            for (; pos < toIndex; pos++) {
+                if (!addDepartureInWindow(departures, routeIndex, routeStopIndex, this.data.departures[pos], depOffset, earliestTimeAtStop, latestTimeAtStop, includeNextDepartures, accessStop, accessTransferIndex, marginalUtilityOfWaitingPt_utl_s)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return <code>false</code> if the departure is after the time window, <code>true</code> otherwise.
+     */
+    private static boolean addDepartureInWindow(List<DepartureAtRouteStop> departures, int routeIndex, int routeStopIndex, int depTimeAtStart, double depOffset, double earliestTimeAtStop, double latestTimeAtStop, boolean includeNextDepartures, InitialStop accessStop, int accessTransferIndex, double marginalUtilityOfWaitingPt_utl_s) {
+        double depTimeAtStop = depTimeAtStart + depOffset;
+        boolean isInWindow = depTimeAtStop <= latestTimeAtStop;
+        if (!isInWindow && !includeNextDepartures) {
+            return false;
         }
-        double depTime = firstPE.arrivalTime;
-        // currently, firstPE.arrivalTime is exactly the time of departure at that stop
+        if (depTimeAtStop >= earliestTimeAtStop) {
+            double costOffset = (depTimeAtStop - earliestTimeAtStop) * marginalUtilityOfWaitingPt_utl_s;
+            departures.add(new DepartureAtRouteStop(routeStopIndex, routeIndex, depTimeAtStart, depTimeAtStop, costOffset, accessStop, accessTransferIndex));
+        }
+        return isInWindow;
+    }
+
+    private double calculateOptimalDepartureTime(int leastCostPath) {
+        int firstLabel = leastCostPath;
+        while (this.labels.comingFrom[firstLabel] >= 0) {
+            firstLabel = this.labels.comingFrom[firstLabel];
+        }
+        double depTime = this.labels.arrivalTime[firstLabel];
+        // currently, the arrival time of the first label is exactly the time of departure at that stop
         // let's add some time for safety reasons and to add some realism
         depTime -= this.data.config.getMinimalTransferTime();
         // for more realism, a (random) value from a distribution could be taken instead of a fixed value
-        InitialStop accessStop = initialStopsPerStartPath.get(firstPE);
+        InitialStop accessStop = this.labels.initialStop[firstLabel];
         depTime -= accessStop.accessTime; // take access time into account
         return Math.floor(depTime);
     }
@@ -477,367 +605,1828 @@ public class SwissRailRaptorCore {
         return routesToKeep;
     }
 
-    public Map<Id<TransitStopFacility>, TravelInfo> calcLeastCostTree(double depTime, Collection<InitialStop> startStops, RaptorParameters parameters) {
-        reset();
+    public List<RaptorRoute> calcParetoRoutes(double depTime, Facility fromFacility, Facility toFacility, List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters) {
+        return calcParetoRoutes(depTime, fromFacility, toFacility, accessStops, egressStops, parameters, parameters.getConfig().getRoutingLimits(null));
+    }
 
-        BitSet initialRouteStopIndices = new BitSet();
-        BitSet initialStopIndices = new BitSet();
-        for (InitialStop stop : startStops) {
+    /**
+     * Calculates the routes that are Pareto-optimal with respect to their arrival time, their number of transfers and
+     * their costs, based on McRAPTOR as described by Delling et al. Instead of a single label, every route stop and stop
+     * keeps a bag of labels that do not dominate each other, and every label in a bag is extended. A label dominates
+     * another one if it is not worse in any of the criteria. Labels dominated by an already found route to the
+     * destination are discarded right away, as the remaining part of a connection cannot make them better.
+     *
+     * The transfer costs depend on the travel time since the first departure, so the costs of two labels are compared
+     * where the labels meet. In rare cases, a label may be discarded although it would have become better than the
+     * dominating label later on. Transfers directly from intermodal access stops are not considered.
+     *
+     * @return the found routes, sorted by their arrival time.
+     */
+    public List<RaptorRoute> calcParetoRoutes(double depTime, Facility fromFacility, Facility toFacility, List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters, RoutingLimitsParameterSet limits) {
+        final int maxTransfers = limits.getMaxTransfers();
+
+        reset();
+        this.maxArrivalTime = depTime + limits.getMaxTravelTime();
+        if (this.boardingBags == null) {
+            this.boardingBags = new LabelBags(this.data.countRouteStops);
+            this.arrivalBags = new LabelBags(this.data.countStops);
+            this.routeBag = new RouteBag();
+        }
+        this.boardingBags.clear();
+        this.arrivalBags.clear();
+        LabelBags results = new LabelBags(1);
+        CostParameters costParameters = new CostParameters(parameters);
+        this.bagWaitingCostPerSecond = Math.max(0, -costParameters.marginalUtilityOfWaitingPt_utl_s);
+
+        // all access stops are kept, a more expensive access might still be faster
+        for (InitialStop stop : accessStops) {
             int[] routeStopIndices = this.data.routeStopsPerStopFacility.get(stop.stop);
+            if (routeStopIndices == null) {
+                continue;
+            }
+            double arrivalTime = depTime + stop.accessTime;
             for (int routeStopIndex : routeStopIndices) {
-                double arrivalTime = depTime + stop.accessTime;
-                double arrivalCost = stop.accessCost;
-                RRouteStop toRouteStop = this.data.routeStops[routeStopIndex];
-                PathElement pe = new PathElement(null, toRouteStop, Double.NaN, Double.NaN, arrivalTime, arrivalCost, 0, stop.distance, 0, true, stop);
-                this.arrivalPathPerRouteStop[routeStopIndex] = pe;
-                this.arrivalPathPerStop[toRouteStop.stopFacilityIndex] = pe;
-                this.leastArrivalCostAtRouteStop[routeStopIndex] = arrivalCost;
-                this.leastArrivalCostAtStop[toRouteStop.stopFacilityIndex] = arrivalCost;
-                this.improvedRouteStopIndices.set(routeStopIndex);
-                // this is special: make sure we can transfer even at the start stop
-                initialRouteStopIndices.set(routeStopIndex);
-                initialStopIndices.set(toRouteStop.stopFacilityIndex);
+                RRoute route = this.data.routes[this.data.routeStopRouteIndices[routeStopIndex]];
+                if (isLastRouteStop(route, routeStopIndex) || isDominated(this.boardingBags, routeStopIndex, arrivalTime, 0, stop.accessCost, this.bagWaitingCostPerSecond)) {
+                    continue;
+                }
+                int label = this.labels.add(-1, routeStopIndex, Double.NaN, Double.NaN, arrivalTime, stop.accessCost, 0, stop.distance, 0, true, stop);
+                addToBag(this.boardingBags, routeStopIndex, label, this.bagWaitingCostPerSecond);
+                markRouteStop(routeStopIndex);
             }
         }
 
-        // the main loop
-        while (true) {
-            // first stage (according to paper) is to set earliestArrivalTime_k(stop) = earliestArrivalTime_k-1(stop)
-            // but because we re-use the earliestArrivalTime-array, we don't have to do anything.
-
-            // second stage: process routes
-            exploreRoutes(parameters);
-
-            if (this.improvedStops.isEmpty()) {
-                break;
+        for (int k = 0; k <= maxTransfers && this.markedRouteCount > 0; k++) {
+            // routes, only boarding with the labels created in the previous round
+            this.improvedStops.clear();
+            int routeCount = collectRouteStopsToExplore();
+            for (int i = 0; i < routeCount; i++) {
+                int routeStopIndex = this.routeStopsToExplore[i];
+                exploreParetoRoute(this.data.routeStopRouteIndices[routeStopIndex], routeStopIndex, k, costParameters, results);
             }
+            clearMarkedRouteStops();
 
-            if (initialRouteStopIndices != null) {
-                this.improvedRouteStopIndices.or(initialRouteStopIndices);
-                this.improvedStops.or(initialStopIndices);
-                initialRouteStopIndices = null;
-                initialStopIndices = null;
+            // transfers, only from the labels created in this round
+            for (int stopIndex = this.improvedStops.nextSetBit(0); stopIndex >= 0; stopIndex = this.improvedStops.nextSetBit(stopIndex + 1)) {
+                handleParetoTransfers(stopIndex, k, costParameters, results);
             }
 
-            // third stage (according to paper): handle footpaths / transfers
-            handleTransfers(true, parameters);
-
-            // final stage: check stop criterion
-            if (this.improvedRouteStopIndices.isEmpty()) {
-                break;
+            for (InitialStop egressStop : egressStops) {
+                addParetoArrivals(egressStop, k, results);
             }
         }
 
-        // collect information for each stop
-        Map<Id<TransitStopFacility>, TravelInfo> result = new HashMap<>();
-        for (Map.Entry<TransitStopFacility, Integer> e : this.data.stopFacilityIndices.entrySet()) {
-            TransitStopFacility stop = e.getKey();
-            int index = e.getValue();
-            PathElement destination = this.arrivalPathPerStop[index];
-            if (destination != null) {
-                TravelInfo ti = getTravelInfo(destination, parameters);
-                result.put(stop.getId(), ti);
+        final PathLabels labels = this.labels;
+        Integer[] resultLabels = new Integer[results.size(0)];
+        for (int i = 0; i < resultLabels.length; i++) {
+            resultLabels[i] = results.get(0, i);
+        }
+        Arrays.sort(resultLabels, (label1, label2) -> {
+            int cmp = Double.compare(labels.arrivalTime[label1], labels.arrivalTime[label2]);
+            if (cmp == 0) {
+                cmp = Integer.compare(labels.transferCount[label1], labels.transferCount[label2]);
             }
+            return cmp;
+        });
+        List<RaptorRoute> routes = new ArrayList<>(resultLabels.length);
+        for (int label : resultLabels) {
+            routes.add(createRaptorRoute(this.data, fromFacility, toFacility, labels.toPathElement(label, null), depTime));
         }
-        return result;
+        return routes;
     }
 
-    private TravelInfo getTravelInfo(PathElement destination, RaptorParameters parameters) {
-        PathElement firstStage = destination;
-        PathElement secondStage = null;
-        while (firstStage.comingFrom != null) {
-            secondStage = firstStage;
-            firstStage = firstStage.comingFrom;
-        }
-        double arrivalTimeAtLastStop = destination.arrivalTime;
-        double departureTimeAtFirstStop = destination.firstDepartureTime;
-        if (Double.isNaN(departureTimeAtFirstStop)) {
-            // a trip with no actual pt-leg, likely the start-location
-            departureTimeAtFirstStop = arrivalTimeAtLastStop;
-        }
-        double accessTime = firstStage.initialStop.accessTime;
-        double accessCost = firstStage.initialStop.accessCost;
-
-        double waitingTime = departureTimeAtFirstStop - firstStage.arrivalTime;
-        double waitingCost = waitingTime * -parameters.getMarginalUtilityOfWaitingPt_utl_s();
+    /**
+     * Explores a route in the multi-criteria search. The route bag contains the trips boarded so far, each together
+     * with the label it was boarded from. At every route stop, the boarded trips first create arrival labels, then
+     * the labels of the current round waiting at this route stop board the next departure.
+     */
+    private void exploreParetoRoute(int routeIndex, int firstRouteStopIndex, int round, CostParameters costParameters, LabelBags results) {
+        final double[] routeStopArrivalOffsets = this.data.routeStopArrivalOffsets;
+        final double[] routeStopDistancesAlongRoute = this.data.routeStopDistancesAlongRoute;
+        final PathLabels labels = this.labels;
+        final LabelBags boardingBags = this.boardingBags;
+        final RouteBag routeBag = this.routeBag;
+
+        RRoute route = this.data.routes[routeIndex];
+        double inVehicleCostPerSecond = -costParameters.parameters.getMarginalUtilityOfTravelTime_utl_s(route.mode);
+        double waitingCostPerSecond = -costParameters.marginalUtilityOfWaitingPt_utl_s;
+        routeBag.clear();
+
+        for (int routeStopIndex = firstRouteStopIndex; routeStopIndex < route.indexFirstRouteStop + route.countRouteStops; routeStopIndex++) {
+            int stopIndex = this.data.routeStopStopFacilityIndices[routeStopIndex];
+            for (int i = 0; i < routeBag.size; i++) {
+                int boardingLabel = routeBag.boardingLabels[i];
+                double arrivalTime = routeBag.departureTimes[i] + routeStopArrivalOffsets[routeStopIndex];
+                if (arrivalTime > this.maxArrivalTime) {
+                    continue;
+                }
+                int transferCount = labels.transferCount[boardingLabel];
+                double arrivalTravelCost = routeBag.travelCostsWhenBoarding[i] + (arrivalTime - routeBag.boardingTimes[i]) * inVehicleCostPerSecond;
+                double arrivalTransferCost = costParameters.calcTransferCost(arrivalTime - routeBag.firstDepartureTimes[i]) * transferCount;
+                double totalArrivalCost = arrivalTravelCost + arrivalTransferCost;
+                if (isDominated(this.arrivalBags, stopIndex, arrivalTime, transferCount, totalArrivalCost, this.bagWaitingCostPerSecond) || isDominated(results, 0, arrivalTime, transferCount, totalArrivalCost, 0)) {
+                    continue;
+                }
+                double distance = routeStopDistancesAlongRoute[routeStopIndex] - routeStopDistancesAlongRoute[labels.toRouteStop[boardingLabel]];
+                int label = labels.add(boardingLabel, routeStopIndex, routeBag.firstDepartureTimes[i], routeBag.boardingTimes[i], arrivalTime, arrivalTravelCost, arrivalTransferCost, distance, transferCount, false, null);
+                addToBag(this.arrivalBags, stopIndex, label, this.bagWaitingCostPerSecond);
+                touchStop(stopIndex);
+                this.improvedStops.set(stopIndex);
+            }
 
-        double travelCost = destination.arrivalTravelCost - firstStage.arrivalTravelCost - waitingCost;
-        int transferCount = destination.transferCount;
-        if (destination.isTransfer && transferCount > 0) {
-            transferCount--; // do not count this as transfer, as the router would merge it with the egress walk
-        }
-        if (secondStage != null && secondStage.isTransfer && transferCount > 0) {
-            transferCount--; // the first "leg" is a transfer, do not count it as such as the router would merge it with the access walk
+            if (!this.improvedRouteStopIndices.get(routeStopIndex)) {
+                continue;
+            }
+            for (int i = 0; i < boardingBags.size(routeStopIndex); i++) {
+                int boardingLabel = boardingBags.get(routeStopIndex, i);
+                if (labels.transferCount[boardingLabel] != round) {
+                    continue; // was already boarded in an earlier round
+                }
+                double agentArrivalTime = labels.arrivalTime[boardingLabel];
+                int departureTime = findNextDepartureTime(route, routeStopIndex, agentArrivalTime);
+                if (departureTime == NO_DEPARTURE) {
+                    continue;
+                }
+                double vehicleArrivalTime = departureTime + routeStopArrivalOffsets[routeStopIndex];
+                double boardingTime = (agentArrivalTime < vehicleArrivalTime) ? vehicleArrivalTime : agentArrivalTime;
+                double travelCostWhenBoarding = labels.arrivalTravelCost[boardingLabel] + (boardingTime - agentArrivalTime) * waitingCostPerSecond;
+                double firstDepartureTime = Double.isNaN(labels.firstDepartureTime[boardingLabel]) ? boardingTime : labels.firstDepartureTime[boardingLabel];
+                addToRouteBag(routeStopIndex, boardingLabel, departureTime, boardingTime, travelCostWhenBoarding, firstDepartureTime, inVehicleCostPerSecond, costParameters);
+            }
         }
-        Id<TransitStopFacility> departureStopId = firstStage.toRouteStop.routeStop.getStopFacility().getId();
-        return new TravelInfo(departureStopId, departureTimeAtFirstStop, arrivalTimeAtLastStop, travelCost, accessTime, accessCost, transferCount, waitingTime, waitingCost, destination);
     }
 
-    private void exploreRoutes(RaptorParameters parameters) {
-        this.improvedStops.clear();
-        this.reachedRouteStopIndices.clear();
-
-        double transferCostBase = parameters.getTransferPenaltyFixCostPerTransfer();
-        double transferCostPerHour = parameters.getTransferPenaltyPerTravelTimeHour();
-        double transferCostMin = parameters.getTransferPenaltyMinimum();
-        double transferCostMax = parameters.getTransferPenaltyMaximum();
+    /**
+     * Adds a boarded trip to the route bag, unless a trip in the bag departs earlier with fewer transfers and less costs.
+     * The costs are compared at the departure from the given route stop: as the costs of all trips of a route grow at
+     * the same rate, the trip with less costs there also arrives with less costs at any later route stop.
+     */
+    private void addToRouteBag(int routeStopIndex, int boardingLabel, int departureTime, double boardingTime, double travelCostWhenBoarding,
+                               double firstDepartureTime, double inVehicleCostPerSecond, CostParameters costParameters) {
+        final RouteBag routeBag = this.routeBag;
+        final int[] transferCounts = this.labels.transferCount;
+        double depOffset = this.data.routeStopDepartureOffsets[routeStopIndex];
+        int transferCount = transferCounts[boardingLabel];
+        double cost = calcCostAtDeparture(departureTime + depOffset, boardingTime, travelCostWhenBoarding, firstDepartureTime, transferCount, inVehicleCostPerSecond, costParameters);
+        int i = 0;
+        while (i < routeBag.size) {
+            int otherDepartureTime = routeBag.departureTimes[i];
+            int otherTransferCount = transferCounts[routeBag.boardingLabels[i]];
+            double otherCost = calcCostAtDeparture(otherDepartureTime + depOffset, routeBag.boardingTimes[i], routeBag.travelCostsWhenBoarding[i], routeBag.firstDepartureTimes[i], otherTransferCount, inVehicleCostPerSecond, costParameters);
+            if (otherDepartureTime <= departureTime && otherTransferCount <= transferCount && otherCost <= cost) {
+                return;
+            }
+            if (departureTime <= otherDepartureTime && transferCount <= otherTransferCount && cost <= otherCost) {
+                routeBag.remove(i);
+            } else {
+                i++;
+            }
+        }
+        routeBag.add(boardingLabel, departureTime, boardingTime, travelCostWhenBoarding, firstDepartureTime);
+    }
 
-        double marginalUtilityOfWaitingPt_utl_s = parameters.getMarginalUtilityOfWaitingPt_utl_s();
+    private static double calcCostAtDeparture(double departureTime, double boardingTime, double travelCostWhenBoarding, double firstDepartureTime, int transferCount,
+                                              double inVehicleCostPerSecond, CostParameters costParameters) {
+        return travelCostWhenBoarding + (departureTime - boardingTime) * inVehicleCostPerSecond + costParameters.calcTransferCost(departureTime - firstDepartureTime) * transferCount;
+    }
 
-        int routeIndex = -1;
-        for (int firstRouteStopIndex = this.improvedRouteStopIndices.nextSetBit(0); firstRouteStopIndex >= 0; firstRouteStopIndex = this.improvedRouteStopIndices.nextSetBit(firstRouteStopIndex+1)) {
-            RRouteStop firstRouteStop = this.data.routeStops[firstRouteStopIndex];
-            if (firstRouteStop.transitRouteIndex == routeIndex) {
-                continue; // we've handled this route already
-            }
-            int tmpRouteIndex = firstRouteStop.transitRouteIndex;
-
-            // for each relevant route, step along route and look for new/improved connections
-            RRoute route = this.data.routes[tmpRouteIndex];
-
-            // firstRouteStop is the first RouteStop in the route we can board in this round
-            // figure out which departure we can take
-            PathElement boardingPE = this.arrivalPathPerRouteStop[firstRouteStopIndex];
-            double agentFirstArrivalTime = boardingPE.arrivalTime;
-            int currentDepartureIndex = findNextDepartureIndex(route, firstRouteStop, agentFirstArrivalTime);
-            if (currentDepartureIndex >= 0) {
-                double currentDepartureTime = this.data.departures[currentDepartureIndex];
-                double currentAgentBoardingTime;
-                double currentTravelCostWhenBoarding;
-                double currentTransferCostWhenBoarding;
-                {
-                    double vehicleArrivalTime = currentDepartureTime + firstRouteStop.arrivalOffset;
-                    currentAgentBoardingTime = (agentFirstArrivalTime < vehicleArrivalTime) ? vehicleArrivalTime : agentFirstArrivalTime;
-                    double waitingTime = currentAgentBoardingTime - agentFirstArrivalTime;
-                    double waitingCost = -marginalUtilityOfWaitingPt_utl_s * waitingTime;
-                    currentTravelCostWhenBoarding = boardingPE.arrivalTravelCost + waitingCost;
-                    currentTransferCostWhenBoarding = boardingPE.arrivalTransferCost;
-                }
-
-                if ((currentTravelCostWhenBoarding + currentTransferCostWhenBoarding) > this.bestArrivalCost) {
+    /**
+     * Adds the transfers from the labels that arrived at the given stop in the current round to the bags of the route stops they lead to.
+     */
+    private void handleParetoTransfers(int stopIndex, int round, CostParameters costParameters, LabelBags results) {
+        final int[] transferToRouteStops = this.data.transferToRouteStops;
+        final double[] transferTimes = this.data.transferTimes;
+        final RTransferTimeProfiles transferTimeProfiles = this.data.transferTimeProfiles;
+        final PathLabels labels = this.labels;
+        final LabelBags arrivalBags = this.arrivalBags;
+        final double margUtilityTransitWalk = costParameters.marginalUtilityOfTransitWalk_utl_s;
+
+        for (int i = 0; i < arrivalBags.size(stopIndex); i++) {
+            int fromLabel = arrivalBags.get(stopIndex, i);
+            int transferCount = labels.transferCount[fromLabel];
+            if (transferCount != round) {
+                continue;
+            }
+            double arrivalTime = labels.arrivalTime[fromLabel];
+            double arrivalTravelCost = labels.arrivalTravelCost[fromLabel];
+            double firstDepartureTime = labels.firstDepartureTime[fromLabel];
+            int fromRouteStopIndex = labels.toRouteStop[fromLabel];
+            double additionalTransferTime = transferTimeProfiles == null ? 0 : transferTimeProfiles.getAdditionalTransferTime(stopIndex, arrivalTime);
+            int firstTransferIndex = this.data.routeStopFirstTransferIndices[fromRouteStopIndex];
+            int lastTransferIndex = firstTransferIndex + this.data.routeStopTransferCounts[fromRouteStopIndex];
+            for (int transferIndex = firstTransferIndex; transferIndex < lastTransferIndex; transferIndex++) {
+                int toRouteStopIndex = transferToRouteStops[transferIndex];
+                double transferTime = transferTimes[transferIndex] + additionalTransferTime;
+                double newArrivalTime = arrivalTime + transferTime;
+                if (newArrivalTime > this.maxArrivalTime) {
                     continue;
                 }
-                routeIndex = tmpRouteIndex;
-                double firstDepartureTime = Double.isNaN(boardingPE.firstDepartureTime) ? currentAgentBoardingTime : boardingPE.firstDepartureTime;
-
-                double marginalUtilityOfTravelTime_utl_s = parameters.getMarginalUtilityOfTravelTime_utl_s(boardingPE.toRouteStop.mode);
-
-                for (int toRouteStopIndex = firstRouteStopIndex + 1; toRouteStopIndex < route.indexFirstRouteStop + route.countRouteStops; toRouteStopIndex++) {
-                    RRouteStop toRouteStop = this.data.routeStops[toRouteStopIndex];
-                    double arrivalTime = currentDepartureTime + toRouteStop.arrivalOffset;
-                    double inVehicleTime = arrivalTime - currentAgentBoardingTime;
-                    double inVehicleCost = inVehicleTime * -marginalUtilityOfTravelTime_utl_s;
-                    double arrivalTravelCost = currentTravelCostWhenBoarding + inVehicleCost;
-                    double arrivalTransferCost = calcTransferCost(transferCostBase, transferCostPerHour, transferCostMin, transferCostMax, arrivalTime - firstDepartureTime) * (boardingPE.transferCount);
-                    double previousArrivalCost = this.leastArrivalCostAtRouteStop[toRouteStopIndex];
-                    double totalArrivalCost = arrivalTravelCost + arrivalTransferCost;
-                    if (totalArrivalCost <= previousArrivalCost) {
-                        double distance = toRouteStop.distanceAlongRoute - boardingPE.toRouteStop.distanceAlongRoute;
-                        PathElement pe = new PathElement(boardingPE, toRouteStop, firstDepartureTime, currentAgentBoardingTime, arrivalTime, arrivalTravelCost, arrivalTransferCost, distance, boardingPE.transferCount, false, null);
-                        this.arrivalPathPerRouteStop[toRouteStopIndex] = pe;
-                        this.leastArrivalCostAtRouteStop[toRouteStopIndex] = totalArrivalCost;
-                        if (totalArrivalCost <= this.leastArrivalCostAtStop[toRouteStop.stopFacilityIndex]) {
-                            this.leastArrivalCostAtStop[toRouteStop.stopFacilityIndex] = totalArrivalCost;
-                            this.arrivalPathPerStop[toRouteStop.stopFacilityIndex] = pe;
-                            this.improvedStops.set(toRouteStop.stopFacilityIndex);
-                            checkForBestArrival(toRouteStopIndex, totalArrivalCost);
-                        }
-                    } else /*if (previousArrivalCost < arrivalCost)*/ {
-                        // looks like we could reach this stop with better cost from somewhere else
-                        // check if we can depart also with better cost, if yes, switch to this connection
-                        PathElement alternativeBoardingPE = this.arrivalPathPerRouteStop[toRouteStopIndex];
-                        double alternativeAgentFirstArrivalTime = alternativeBoardingPE.arrivalTime;
-                        int alternativeDepartureIndex = findNextDepartureIndex(route, toRouteStop, alternativeAgentFirstArrivalTime);
-                        if (alternativeDepartureIndex >= 0) {
-                            double alternativeDepartureTime = this.data.departures[alternativeDepartureIndex];
-                            double alternativeVehicleArrivalTime = alternativeDepartureTime + toRouteStop.arrivalOffset;
-                            double alternativeAgentBoardingTime = (alternativeAgentFirstArrivalTime < alternativeVehicleArrivalTime) ? alternativeVehicleArrivalTime : alternativeAgentFirstArrivalTime;
-                            double alternativeWaitingTime = alternativeAgentBoardingTime - alternativeAgentFirstArrivalTime;
-                            double alternativeWaitingCost = -marginalUtilityOfWaitingPt_utl_s * alternativeWaitingTime;
-                            double alternativeTravelCostWhenBoarding = alternativeBoardingPE.arrivalTravelCost + alternativeWaitingCost;
-                            double alternativeTotalCostWhenBoarding = alternativeTravelCostWhenBoarding + alternativeBoardingPE.arrivalTransferCost;
-                            if (alternativeTotalCostWhenBoarding < totalArrivalCost) {
-                                currentDepartureIndex = alternativeDepartureIndex;
-                                currentDepartureTime = alternativeDepartureTime;
-                                if (!alternativeBoardingPE.isTransfer) {
-                                    // we improve to a line/route we entered at some earlier stop, do not create a new transfer for this,
-                                    // but set the boarding info back to the original boarding of this route
-                                    alternativeBoardingPE = alternativeBoardingPE.comingFrom;
-                                    alternativeAgentFirstArrivalTime = alternativeBoardingPE.arrivalTime;
-                                    alternativeVehicleArrivalTime = alternativeDepartureTime + alternativeBoardingPE.toRouteStop.arrivalOffset;
-                                    alternativeAgentBoardingTime = (alternativeAgentFirstArrivalTime < alternativeVehicleArrivalTime) ? alternativeVehicleArrivalTime : alternativeAgentFirstArrivalTime;
-
-                                    alternativeWaitingTime = alternativeAgentBoardingTime - alternativeAgentFirstArrivalTime;
-                                    alternativeWaitingCost = -marginalUtilityOfWaitingPt_utl_s * alternativeWaitingTime;
-                                    alternativeTravelCostWhenBoarding = alternativeBoardingPE.arrivalTravelCost + alternativeWaitingCost;
-                                }
-                                currentAgentBoardingTime = alternativeAgentBoardingTime;
-                                currentTravelCostWhenBoarding = alternativeTravelCostWhenBoarding;
-                                currentTransferCostWhenBoarding = alternativeBoardingPE.arrivalTransferCost;
-                                boardingPE = alternativeBoardingPE;
-                                firstDepartureTime = Double.isNaN(boardingPE.firstDepartureTime) ? currentAgentBoardingTime : boardingPE.firstDepartureTime;
-                            }
-                        }
-                    }
-                    firstRouteStopIndex = toRouteStopIndex; // we've handled this route stop, so we can skip it in the outer loop
+                double newArrivalTravelCost = arrivalTravelCost - transferTime * margUtilityTransitWalk;
+                double newArrivalTransferCost = costParameters.calcTransferCost(newArrivalTime - firstDepartureTime) * (transferCount + 1);
+                double newTotalArrivalCost = newArrivalTravelCost + newArrivalTransferCost;
+                if (isDominated(this.boardingBags, toRouteStopIndex, newArrivalTime, transferCount + 1, newTotalArrivalCost, this.bagWaitingCostPerSecond)
+                        || isDominated(results, 0, newArrivalTime, transferCount + 1, newTotalArrivalCost, 0)) {
+                    continue;
                 }
+                int label = labels.add(fromLabel, toRouteStopIndex, firstDepartureTime, Double.NaN, newArrivalTime, newArrivalTravelCost, newArrivalTransferCost, this.data.transferDistances[transferIndex], transferCount + 1, true, null);
+                addToBag(this.boardingBags, toRouteStopIndex, label, this.bagWaitingCostPerSecond);
+                markRouteStop(toRouteStopIndex);
             }
         }
     }
 
-    private void checkForBestArrival(int routeStopIndex, double arrivalCost) {
-        if (this.destinationRouteStopIndices.get(routeStopIndex)) {
-            // this is a destination stop
-            double totalCost = arrivalCost + this.egressCostsPerRouteStop[routeStopIndex];
-            if (totalCost < this.bestArrivalCost) {
-                this.bestArrivalCost = totalCost;
+    /**
+     * Adds the egress legs to the results, starting from the labels that arrived at the stop of the egress stop by a
+     * route in the current round, or that transferred to it afterwards. Like in {@link #findLeastCostArrival}, the
+     * transfers are charged like the transfers to another route.
+     */
+    private void addParetoArrivals(InitialStop egressStop, int round, LabelBags results) {
+        Integer stopIndex = this.data.stopFacilityIndices.get(egressStop.stop);
+        if (stopIndex == null) {
+            return;
+        }
+        for (int i = 0; i < this.arrivalBags.size(stopIndex); i++) {
+            int label = this.arrivalBags.get(stopIndex, i);
+            if (this.labels.transferCount[label] == round) {
+                addParetoArrival(label, egressStop, round, results);
+            }
+        }
+        int[] routeStopIndices = this.data.routeStopsPerStopFacility.get(egressStop.stop);
+        if (routeStopIndices != null) {
+            for (int routeStopIndex : routeStopIndices) {
+                for (int i = 0; i < this.boardingBags.size(routeStopIndex); i++) {
+                    int label = this.boardingBags.get(routeStopIndex, i);
+                    if (this.labels.transferCount[label] == round + 1 && this.labels.comingFrom[label] >= 0) {
+                        // the transfer becomes part of the egress, so it does not count as a transfer between routes
+                        addParetoArrival(label, egressStop, round, results);
+                    }
+                }
             }
         }
     }
 
-    private int findNextDepartureIndex(RRoute route, RRouteStop routeStop, double time) {
-        double depTimeAtRouteStart = time - routeStop.departureOffset;
-        int fromIndex = route.indexFirstDeparture;
-        int toIndex = fromIndex + route.countDepartures;
-        int pos = Arrays.binarySearch(this.data.departures, fromIndex, toIndex, depTimeAtRouteStart);
-        if (pos < 0) {
-            // binarySearch returns (-(insertion point) - 1) if the element was not found, which will happen most of the times.
-            // insertion_point points to the next larger element, which is the next departure in our case
-            // This can be transformed as follows:
-            // retval = -(insertion point) - 1
-            // ==> insertion point = -(retval+1) .
-            pos = -(pos + 1);
-        }
-        if (pos >= toIndex) {
-            // there is no later departure time
-            return -1;
+    private void addParetoArrival(int label, InitialStop egressStop, int transferCount, LabelBags results) {
+        final PathLabels labels = this.labels;
+        double arrivalTime = labels.arrivalTime[label] + egressStop.accessTime;
+        double arrivalTravelCost = labels.arrivalTravelCost[label] + egressStop.accessCost;
+        double arrivalTransferCost = labels.arrivalTransferCost[label];
+        if (isDominated(results, 0, arrivalTime, transferCount, arrivalTravelCost + arrivalTransferCost, 0)) {
+            return;
         }
-        return pos;
+        int egressLabel = labels.add(label, -1, labels.firstDepartureTime[label], Double.NaN, arrivalTime, arrivalTravelCost, arrivalTransferCost, egressStop.distance, transferCount, true, egressStop);
+        addToBag(results, 0, egressLabel, 0);
     }
 
-    private double calcTransferCost(double costBase, double costPerHour, double costMin, double costMax, double travelTime) {
-        double cost = costBase + costPerHour / 3600 * travelTime;
-        double max = Math.max(costMin, costMax);
-        double min = Math.min(costMin, costMax);
-        if (cost > max) {
-            cost = max;
+    /**
+     * @param waitingCostPerSecond the costs of waiting at the stop, if the labels still have to wait for a departure.
+     *                             A label arriving earlier would have to wait longer for the same departure, so it
+     *                             only dominates if its costs are not higher even after waiting until the later arrival.
+     * @return <code>true</code> if a label in the bag arrives not later, with not more transfers and not more costs.
+     */
+    private boolean isDominated(LabelBags bags, int bag, double arrivalTime, int transferCount, double totalCost, double waitingCostPerSecond) {
+        final PathLabels labels = this.labels;
+        for (int i = 0; i < bags.size(bag); i++) {
+            int label = bags.get(bag, i);
+            double otherArrivalTime = labels.arrivalTime[label];
+            if (otherArrivalTime <= arrivalTime && labels.transferCount[label] <= transferCount
+                    && labels.arrivalTravelCost[label] + labels.arrivalTransferCost[label] + (arrivalTime - otherArrivalTime) * waitingCostPerSecond <= totalCost) {
+                return true;
+            }
         }
-        if (cost < min) {
-            cost = min;
+        return false;
+    }
+
+    /**
+     * Adds a label that is not dominated by the labels in the bag, and removes the labels it dominates.
+     */
+    private void addToBag(LabelBags bags, int bag, int newLabel, double waitingCostPerSecond) {
+        final PathLabels labels = this.labels;
+        double arrivalTime = labels.arrivalTime[newLabel];
+        int transferCount = labels.transferCount[newLabel];
+        double totalCost = labels.arrivalTravelCost[newLabel] + labels.arrivalTransferCost[newLabel];
+        int i = 0;
+        while (i < bags.size(bag)) {
+            int label = bags.get(bag, i);
+            double otherArrivalTime = labels.arrivalTime[label];
+            if (arrivalTime <= otherArrivalTime && transferCount <= labels.transferCount[label]
+                    && totalCost + (otherArrivalTime - arrivalTime) * waitingCostPerSecond <= labels.arrivalTravelCost[label] + labels.arrivalTransferCost[label]) {
+                bags.remove(bag, i);
+            } else {
+                i++;
+            }
         }
-        return cost;
+        bags.add(bag, newLabel);
     }
 
-    private void handleTransfers(boolean strict, RaptorParameters raptorParams) {
-        this.improvedRouteStopIndices.clear();
-        this.tmpImprovedStops.clear();
+    public RaptorRoute calcLeastCostRouteArriveBy(double arrTime, Facility fromFacility, Facility toFacility, List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters) {
+        return calcLeastCostRouteArriveBy(arrTime, fromFacility, toFacility, accessStops, egressStops, parameters, parameters.getConfig().getRoutingLimits(null));
+    }
 
-        double transferCostBase = raptorParams.getTransferPenaltyFixCostPerTransfer();
-        double transferCostPerHour = raptorParams.getTransferPenaltyPerTravelTimeHour();
-        double transferCostMin = raptorParams.getTransferPenaltyMinimum();
-        double transferCostMax = raptorParams.getTransferPenaltyMaximum();
-        double margUtilityTransitWalk = raptorParams.getMarginalUtilityOfTravelTime_utl_s(TransportMode.transit_walk);
+    /**
+     * Calculates the least cost route arriving at the destination not later than <code>arrTime</code>, using a backward
+     * search. The search starts at the egress stops and explores the routes against their direction, always taking the
+     * latest departure that still reaches the next part of the connection in time. Labels of the backward search point
+     * towards the destination, see {@link #exploreRouteBackward}. The costs are the same as for a forward search, waiting
+     * happens at the stop where a route is left instead of where it is entered. Transfer costs depend on the travel time
+     * until the last arrival, which results in the same costs for complete routes.
+     *
+     * Other than the forward search, no transfers are made at intermodal egress stops that have no more arrivals.
+     *
+     * @return the found route, departing as late as its costs allow. Its arrival may be earlier than <code>arrTime</code>.
+     */
+    public RaptorRoute calcLeastCostRouteArriveBy(double arrTime, Facility fromFacility, Facility toFacility, List<InitialStop> accessStops, List<InitialStop> egressStops, RaptorParameters parameters, RoutingLimitsParameterSet limits) {
+        final int maxTransfers = limits.getMaxTransfers();
+        final int maxTransfersAfterFirstArrival = limits.getMaxTransfersAfterFirstArrival();
 
-        for (int stopIndex = this.improvedStops.nextSetBit(0); stopIndex >= 0; stopIndex = this.improvedStops.nextSetBit(stopIndex + 1)) {
-            PathElement fromPE = this.arrivalPathPerStop[stopIndex];
-            double arrivalTime = fromPE.arrivalTime;
-            double arrivalTravelCost = fromPE.arrivalTravelCost;
-            double arrivalTransferCost = fromPE.arrivalTransferCost;
-            double totalArrivalCost = arrivalTravelCost + arrivalTransferCost;
-            if (totalArrivalCost > this.bestArrivalCost) {
-                continue;
+        reset();
+        this.minDepartureTime = arrTime - limits.getMaxTravelTime();
+
+        // in the backward search, the access stops are the destination
+        Map<TransitStopFacility, InitialStop> originStops = new HashMap<>();
+        for (InitialStop accessStop : accessStops) {
+            InitialStop alternative = originStops.get(accessStop.stop);
+            if (alternative == null || accessStop.accessCost < alternative.accessCost) {
+                originStops.put(accessStop.stop, accessStop);
             }
-            RRouteStop fromRouteStop = fromPE.toRouteStop; // this is the route stop we arrive with least cost at stop
-            int firstTransferIndex = fromRouteStop.indexFirstTransfer;
-            int lastTransferIndex = firstTransferIndex + fromRouteStop.countTransfers;
-            for (int transferIndex = firstTransferIndex; transferIndex < lastTransferIndex; transferIndex++) {
-                RTransfer transfer = this.data.transfers[transferIndex];
-                int toRouteStopIndex = transfer.toRouteStop;
-                double newArrivalTime = arrivalTime + transfer.transferTime;
-                double newArrivalTravelCost = arrivalTravelCost - transfer.transferTime * margUtilityTransitWalk;
-                double newArrivalTransferCost = Double.isFinite(fromPE.firstDepartureTime) ? calcTransferCost (transferCostBase, transferCostPerHour, transferCostMin, transferCostMax, newArrivalTime - fromPE.firstDepartureTime) * (fromPE.transferCount + 1) : 0;
-                double newTotalArrivalCost = newArrivalTravelCost + newArrivalTransferCost;
-                double prevLeastArrivalCost = this.leastArrivalCostAtRouteStop[toRouteStopIndex];
-                if (newTotalArrivalCost < prevLeastArrivalCost || (!strict && newTotalArrivalCost <= prevLeastArrivalCost)) {
-                    RRouteStop toRouteStop = this.data.routeStops[toRouteStopIndex];
-                    PathElement pe = new PathElement(fromPE, toRouteStop, fromPE.firstDepartureTime, Double.NaN, newArrivalTime, newArrivalTravelCost, newArrivalTransferCost, transfer.transferDistance, fromPE.transferCount + 1, true, null);
-                    this.arrivalPathPerRouteStop[toRouteStopIndex] = pe;
-                    this.leastArrivalCostAtRouteStop[toRouteStopIndex] = newTotalArrivalCost;
-                    this.improvedRouteStopIndices.set(toRouteStopIndex);
-                    int toStopFacilityIndex = toRouteStop.stopFacilityIndex;
-                    prevLeastArrivalCost = this.leastArrivalCostAtStop[toStopFacilityIndex];
-                    if (newTotalArrivalCost < prevLeastArrivalCost || (!strict && newTotalArrivalCost <= prevLeastArrivalCost)) {
-                        // store it in tmp only. We don't want that this PE is used by a stop processed later in the same round. ("parallel update")
-                        this.leastArrivalCostAtStop[toStopFacilityIndex] = newTotalArrivalCost;
-                        this.tmpArrivalPathPerStop[toStopFacilityIndex] = pe;
-                        this.tmpImprovedStops.set(toStopFacilityIndex);
-                    }
+        }
+        for (InitialStop accessStop : originStops.values()) {
+            int[] routeStopIndices = this.data.routeStopsPerStopFacility.get(accessStop.stop);
+            if (routeStopIndices != null) {
+                for (int routeStopIndex : routeStopIndices) {
+                    this.destinationRouteStopIndices.set(routeStopIndex);
+                    this.egressCostsPerRouteStop[routeStopIndex] = accessStop.accessCost;
                 }
             }
         }
-        // "parallel update". now copy over the newly improved data after all transfers were handled
-        for (int stopIndex = this.tmpImprovedStops.nextSetBit(0); stopIndex >= 0; stopIndex = this.tmpImprovedStops.nextSetBit(stopIndex + 1)) {
-            PathElement pe = this.tmpArrivalPathPerStop[stopIndex];
-            this.arrivalPathPerStop[stopIndex] = pe;
-        }
-    }
 
-    private PathElement findLeastCostArrival(Map<TransitStopFacility, InitialStop> destinationStops) {
-        double leastCost = Double.POSITIVE_INFINITY;
-        PathElement leastCostPath = null;
+        Map<TransitStopFacility, InitialStop> initialStops = new HashMap<>();
+        for (InitialStop egressStop : egressStops) {
+            InitialStop alternative = initialStops.get(egressStop.stop);
+            if (alternative == null || egressStop.accessCost < alternative.accessCost) {
+                initialStops.put(egressStop.stop, egressStop);
+            }
+        }
 
-        for (Map.Entry<TransitStopFacility, InitialStop> e : destinationStops.entrySet()) {
-            TransitStopFacility stop = e.getKey();
-            int stopIndex = this.data.stopFacilityIndices.get(stop);
-            PathElement pe = this.arrivalPathPerStop[stopIndex];
-            if (pe != null) {
-                InitialStop egressStop = e.getValue();
-                double arrivalTime = pe.arrivalTime + egressStop.accessTime;
-                double arrivalTravelCost = pe.arrivalTravelCost + egressStop.accessCost;
-                double totalCost = arrivalTravelCost + pe.arrivalTransferCost;
-                if ((totalCost < leastCost) || (totalCost == leastCost && pe.transferCount < leastCostPath.transferCount)) {
-                    leastCost = totalCost;
-                    leastCostPath = new PathElement(pe, null, pe.firstDepartureTime, Double.NaN, arrivalTime, arrivalTravelCost, pe.arrivalTransferCost, egressStop.distance, pe.transferCount, true, egressStop); // this is the egress leg
+        BitSet initialRouteStopIndices = new BitSet();
+        BitSet initialStopIndices = new BitSet();
+        for (InitialStop stop : initialStops.values()) {
+            int[] routeStopIndices = this.data.routeStopsPerStopFacility.get(stop.stop);
+            for (int routeStopIndex : routeStopIndices) {
+                double departureTime = arrTime - stop.accessTime;
+                double departureCost = stop.accessCost;
+                RRoute route = this.data.routes[this.data.routeStopRouteIndices[routeStopIndex]];
+                if (routeStopIndex == route.indexFirstRouteStop) {
+                    // this is the first stop of a route, no vehicle arrives here
+                    continue;
+                }
+                int stopFacilityIndex = this.data.routeStopStopFacilityIndices[routeStopIndex];
+                int vehicleDepartureTime = findPreviousDepartureTime(route, routeStopIndex, departureTime);
+                if (vehicleDepartureTime != NO_DEPARTURE) {
+                    // like in the forward search, the waiting time is only used to find the best egress
+                    double waitingTime = departureTime - (vehicleDepartureTime + this.data.routeStopArrivalOffsets[routeStopIndex]);
+                    double xCost = departureCost + waitingTime * -parameters.getMarginalUtilityOfWaitingPt_utl_s();
+                    if (xCost < this.leastArrivalCostAtRouteStop[routeStopIndex]) {
+                        int label = this.labels.add(-1, routeStopIndex, Double.NaN, Double.NaN, departureTime, departureCost, 0, stop.distance, 0, true, stop);
+                        touchRouteStop(routeStopIndex);
+                        this.arrivalPathPerRouteStop[routeStopIndex] = label;
+                        this.leastArrivalCostAtRouteStop[routeStopIndex] = xCost;
+                        markRouteStop(routeStopIndex);
+                        initialRouteStopIndices.set(routeStopIndex);
+                        if (xCost < this.leastArrivalCostAtStop[stopFacilityIndex]) {
+                            this.improvedStops.set(stopFacilityIndex);
+                            touchStop(stopFacilityIndex);
+                            this.arrivalPathPerStop[stopFacilityIndex] = label;
+                            this.leastArrivalCostAtStop[stopFacilityIndex] = xCost;
+                            initialStopIndices.set(stopFacilityIndex);
+                        }
+                    }
                 }
             }
         }
-        return leastCostPath;
-    }
 
-    private static RaptorRoute createRaptorRoute(Facility fromFacility, Facility toFacility, PathElement destinationPathElement, double departureTime) {
-        LinkedList<PathElement> pes = new LinkedList<>();
-        double arrivalCost = Double.POSITIVE_INFINITY;
-        if (destinationPathElement != null) {
-            arrivalCost = destinationPathElement.arrivalTravelCost + destinationPathElement.arrivalTransferCost;
-            PathElement pe = destinationPathElement;
-            while (pe.comingFrom != null) {
-                pes.addFirst(pe);
-                pe = pe.comingFrom;
+        int allowedTransfersLeft = maxTransfersAfterFirstArrival;
+        for (int k = 0; k <= maxTransfers; k++) {
+            exploreRoutesBackward(parameters);
+
+            int leastCostPath = findLeastCostDeparture(originStops);
+            if (leastCostPath >= 0) {
+                if (allowedTransfersLeft == 0) {
+                    break;
+                }
+                allowedTransfersLeft--;
+            }
+            if (initialRouteStopIndices != null) {
+                // the forward search can transfer after the last route before the egress, so transfer from the egress stops as well
+                for (int routeStopIndex = initialRouteStopIndices.nextSetBit(0); routeStopIndex >= 0; routeStopIndex = initialRouteStopIndices.nextSetBit(routeStopIndex + 1)) {
+                    markRouteStop(routeStopIndex);
+                }
+                this.improvedStops.or(initialStopIndices);
+                initialRouteStopIndices = null;
+                initialStopIndices = null;
+            }
+            if (this.improvedStops.isEmpty()) {
+                break;
+            }
+            handleTransfersBackward(parameters);
+            if (this.markedRouteCount == 0) {
+                break;
             }
-            pes.addFirst(pe);
         }
-        if (pes.size() == 2 && pes.get(0).isTransfer && pes.get(1).isTransfer) {
-            // it's only access and egress, no real pt trip
-            arrivalCost = Double.POSITIVE_INFINITY;
-            pes.clear();
+
+        int leastCostPath = findLeastCostDeparture(originStops);
+        if (leastCostPath < 0) {
+            return createRaptorRoute(this.data, fromFacility, toFacility, null, arrTime);
         }
+        return createRaptorRoute(this.data, fromFacility, toFacility, toForwardPathElement(leastCostPath), this.labels.arrivalTime[leastCostPath]);
+    }
 
-	    // yyyyyy I am having the following situation:
-	    // * assume there is only one drt link.  This happens when the pt trip is outside the service area, and then both the starting and the ending
-	    // location are mapped to the same link.
-	    // * In consequence, the trip becomes "access_walk_to_drt"---"egress_walk_to_drt" (*).  However, the cost of that is set to infty here ... with the
-	    // consequence that the raptor returns a "pure transit walk" later.
-	    // I thought that you said that it would directly return (*).  It would (I think) also be easier to debug.  kai, jun'19
+    public Map<Id<TransitStopFacility>, TravelInfo> calcTreeArriveBy(double arrTime, Collection<InitialStop> destinationStops, RaptorParameters parameters) {
+        return calcTreeArriveBy(arrTime, destinationStops, parameters, parameters.getConfig().getRoutingLimits(null));
+    }
 
-        RaptorRoute raptorRoute = new RaptorRoute(fromFacility, toFacility, arrivalCost);
-        double time = departureTime;
-        TransitStopFacility fromStop = null;
-        int peCount = pes.size();
-        int i = -1;
-        for (PathElement pe : pes) {
-            i++;
-            TransitStopFacility toStop = pe.toRouteStop == null ? null : pe.toRouteStop.routeStop.getStopFacility();
-            double travelTime = pe.arrivalTime - time;
+    /**
+     * Calculates the latest least cost departures from all stops that reach the destination not later than
+     * <code>arrTime</code>, using a backward search like {@link #calcLeastCostRouteArriveBy}.
+     *
+     * In the returned TravelInfos, the departure stop is the stop the tree was calculated for, the access time and costs are
+     * the ones of the destination stop the trip ends at, and the waiting time and costs are the ones at the last stop before
+     * leaving it towards the destination.
+     */
+    public Map<Id<TransitStopFacility>, TravelInfo> calcTreeArriveBy(double arrTime, Collection<InitialStop> destinationStops, RaptorParameters parameters, RoutingLimitsParameterSet limits) {
+        reset();
+        this.minDepartureTime = arrTime - limits.getMaxTravelTime();
+
+        BitSet initialRouteStopIndices = new BitSet();
+        BitSet initialStopIndices = new BitSet();
+        for (InitialStop stop : destinationStops) {
+            int[] routeStopIndices = this.data.routeStopsPerStopFacility.get(stop.stop);
+            for (int routeStopIndex : routeStopIndices) {
+                double departureTime = arrTime - stop.accessTime;
+                double departureCost = stop.accessCost;
+                int stopFacilityIndex = this.data.routeStopStopFacilityIndices[routeStopIndex];
+                int label = this.labels.add(-1, routeStopIndex, Double.NaN, Double.NaN, departureTime, departureCost, 0, stop.distance, 0, true, stop);
+                touchRouteStop(routeStopIndex);
+                touchStop(stopFacilityIndex);
+                this.arrivalPathPerRouteStop[routeStopIndex] = label;
+                this.arrivalPathPerStop[stopFacilityIndex] = label;
+                this.leastArrivalCostAtRouteStop[routeStopIndex] = departureCost;
+                this.leastArrivalCostAtStop[stopFacilityIndex] = departureCost;
+                markRouteStop(routeStopIndex);
+                // like in the forward tree, make sure we can transfer at the stops where the search starts
+                initialRouteStopIndices.set(routeStopIndex);
+                initialStopIndices.set(stopFacilityIndex);
+            }
+        }
+
+        while (true) {
+            exploreRoutesBackward(parameters);
+            if (this.improvedStops.isEmpty()) {
+                break;
+            }
+            if (initialRouteStopIndices != null) {
+                for (int routeStopIndex = initialRouteStopIndices.nextSetBit(0); routeStopIndex >= 0; routeStopIndex = initialRouteStopIndices.nextSetBit(routeStopIndex + 1)) {
+                    markRouteStop(routeStopIndex);
+                }
+                this.improvedStops.or(initialStopIndices);
+                initialRouteStopIndices = null;
+                initialStopIndices = null;
+            }
+            handleTransfersBackward(parameters);
+            if (this.markedRouteCount == 0) {
+                break;
+            }
+        }
+
+        Map<Id<TransitStopFacility>, TravelInfo> result = new HashMap<>();
+        for (Map.Entry<TransitStopFacility, Integer> e : this.data.stopFacilityIndices.entrySet()) {
+            int label = this.arrivalPathPerStop[e.getValue()];
+            if (label >= 0) {
+                result.put(e.getKey().getId(), getTravelInfoArriveBy(label, parameters));
+            }
+        }
+        return result;
+    }
+
+    private TravelInfo getTravelInfoArriveBy(int firstStage, RaptorParameters parameters) {
+        PathLabels labels = this.labels;
+        int lastStage = firstStage;
+        int secondLastStage = -1;
+        while (labels.comingFrom[lastStage] >= 0) {
+            secondLastStage = lastStage;
+            lastStage = labels.comingFrom[lastStage];
+        }
+        PathElement destinationPath = toForwardPathElement(firstStage);
+        double departureTimeAtFirstStop = labels.arrivalTime[firstStage];
+        double arrivalTimeAtLastStop = destinationPath.arrivalTime;
+        double egressTime = labels.initialStop[lastStage].accessTime;
+        double egressCost = labels.initialStop[lastStage].accessCost;
+
+        double waitingTime = labels.arrivalTime[lastStage] - arrivalTimeAtLastStop;
+        double waitingCost = waitingTime * -parameters.getMarginalUtilityOfWaitingPt_utl_s();
+
+        double travelCost = labels.arrivalTravelCost[firstStage] - labels.arrivalTravelCost[lastStage] - waitingCost;
+        int transferCount = labels.transferCount[firstStage];
+        if (labels.isTransfer[firstStage] && transferCount > 0) {
+            transferCount--; // do not count this as transfer, as the router would merge it with the access walk
+        }
+        if (secondLastStage >= 0 && labels.isTransfer[secondLastStage] && transferCount > 0) {
+            transferCount--; // the last "leg" is a transfer, do not count it as such as the router would merge it with the egress walk
+        }
+        Id<TransitStopFacility> departureStopId = this.data.transitRouteStops[labels.toRouteStop[firstStage]].getStopFacility().getId();
+        return new TravelInfo(this.data, departureStopId, departureTimeAtFirstStop, arrivalTimeAtLastStop, travelCost, egressTime, egressCost, transferCount, waitingTime, waitingCost, destinationPath);
+    }
+
+    /**
+     * Creates the PathElements in the direction of travel for a path found by a backward search. If the first label is the
+     * access leg found by {@link #findLeastCostDeparture}, the path ends with the egress leg to the destination. Otherwise,
+     * it starts at the stop of the first label and ends at the stop where the backward search started, like a path of a
+     * forward tree. Only the last PathElement contains the costs of the whole path.
+     */
+    private PathElement toForwardPathElement(int firstLabel) {
+        final PathLabels labels = this.labels;
+        boolean hasAccessAndEgress = labels.toRouteStop[firstLabel] < 0;
+        int label = firstLabel;
+        double time = labels.arrivalTime[label];
+        PathElement pe;
+        if (hasAccessAndEgress) {
+            label = labels.comingFrom[firstLabel];
+            time += labels.initialStop[firstLabel].accessTime;
+            pe = new PathElement(null, labels.toRouteStop[label], Double.NaN, Double.NaN, time, 0, 0, labels.distance[firstLabel], 0, true, labels.initialStop[firstLabel]);
+        } else {
+            pe = new PathElement(null, labels.toRouteStop[label], Double.NaN, Double.NaN, time, 0, 0, 0, 0, true, null);
+        }
+        while (labels.comingFrom[label] >= 0) {
+            int nextLabel = labels.comingFrom[label];
+            if (labels.isTransfer[label]) {
+                time += labels.arrivalTime[nextLabel] - labels.arrivalTime[label];
+                pe = new PathElement(pe, labels.toRouteStop[nextLabel], Double.NaN, Double.NaN, time, 0, 0, labels.distance[label], 0, true, null);
+            } else {
+                time = labels.boardingTime[label]; // the arrival at the route stop where the route is left
+                pe = new PathElement(pe, labels.toRouteStop[nextLabel], Double.NaN, labels.arrivalTime[label], time, 0, 0, labels.distance[label], 0, false, null);
+            }
+            label = nextLabel;
+        }
+        if (hasAccessAndEgress) {
+            time += labels.initialStop[label].accessTime;
+            pe = new PathElement(pe, -1, Double.NaN, Double.NaN, time, 0, 0, labels.distance[label], 0, true, labels.initialStop[label]);
+        }
+        pe.arrivalTravelCost = labels.arrivalTravelCost[firstLabel];
+        pe.arrivalTransferCost = labels.arrivalTransferCost[firstLabel];
+        return pe;
+    }
+
+    private void exploreRoutesBackward(RaptorParameters parameters) {
+        this.improvedStops.clear();
+
+        CostParameters costParameters = new CostParameters(parameters);
+        final int[] routeStopRouteIndices = this.data.routeStopRouteIndices;
+
+        int routeCount = collectRouteStopsToExplore();
+        for (int i = 0; i < routeCount; i++) {
+            int routeIndex = routeStopRouteIndices[this.routeStopsToExplore[i]];
+            RRoute route = this.data.routes[routeIndex];
+            // start at the last marked route stop; if the route cannot be used there, the previous marked route stop is tried
+            int lastRouteStopIndex = route.indexFirstRouteStop + route.countRouteStops - 1;
+            for (int routeStopIndex = this.improvedRouteStopIndices.previousSetBit(lastRouteStopIndex); routeStopIndex >= route.indexFirstRouteStop; routeStopIndex = this.improvedRouteStopIndices.previousSetBit(routeStopIndex - 1)) {
+                if (exploreRouteBackward(routeIndex, routeStopIndex, costParameters)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Explores a route against its direction, leaving it at the given route stop. The labels created are stored
+     * with reversed meanings: <code>toRouteStop</code> is the route stop where the route is entered,
+     * <code>arrivalTime</code> the departure there, <code>boardingTime</code> the arrival at the route stop where the
+     * route is left and <code>firstDepartureTime</code> the last arrival of the connection. <code>comingFrom</code>
+     * points to the label where the connection continues.
+     *
+     * @return <code>true</code> if the route could be used.
+     */
+    private boolean exploreRouteBackward(int routeIndex, int lastRouteStopIndex, CostParameters costParameters) {
+        final double[] routeStopArrivalOffsets = this.data.routeStopArrivalOffsets;
+        final double[] routeStopDepartureOffsets = this.data.routeStopDepartureOffsets;
+        final double[] routeStopDistancesAlongRoute = this.data.routeStopDistancesAlongRoute;
+        final PathLabels labels = this.labels;
+        final double marginalUtilityOfWaitingPt_utl_s = costParameters.marginalUtilityOfWaitingPt_utl_s;
+
+        RRoute route = this.data.routes[routeIndex];
+
+        int alightingLabel = this.arrivalPathPerRouteStop[lastRouteStopIndex];
+        double agentLatestDepartureTime = labels.arrivalTime[alightingLabel];
+        int currentDepartureTime = findPreviousDepartureTime(route, lastRouteStopIndex, agentLatestDepartureTime);
+        if (currentDepartureTime == NO_DEPARTURE) {
+            return false;
+        }
+        double currentAlightingTime = currentDepartureTime + routeStopArrivalOffsets[lastRouteStopIndex];
+        double currentTravelCostWhenAlighting = labels.arrivalTravelCost[alightingLabel] + (agentLatestDepartureTime - currentAlightingTime) * -marginalUtilityOfWaitingPt_utl_s;
+        if ((currentTravelCostWhenAlighting + labels.arrivalTransferCost[alightingLabel]) > this.bestArrivalCost) {
+            return false;
+        }
+        double lastArrivalTime = Double.isNaN(labels.firstDepartureTime[alightingLabel]) ? currentAlightingTime : labels.firstDepartureTime[alightingLabel];
+
+        double marginalUtilityOfTravelTime_utl_s = costParameters.parameters.getMarginalUtilityOfTravelTime_utl_s(route.mode);
+
+        for (int toRouteStopIndex = lastRouteStopIndex - 1; toRouteStopIndex >= route.indexFirstRouteStop; toRouteStopIndex--) {
+            double departureTime = currentDepartureTime + routeStopDepartureOffsets[toRouteStopIndex];
+            double inVehicleCost = (currentAlightingTime - departureTime) * -marginalUtilityOfTravelTime_utl_s;
+            double travelCost = currentTravelCostWhenAlighting + inVehicleCost;
+            double transferCost = costParameters.calcTransferCost(lastArrivalTime - departureTime) * labels.transferCount[alightingLabel];
+            double totalCost = travelCost + transferCost;
+            if (totalCost <= this.leastArrivalCostAtRouteStop[toRouteStopIndex]) {
+                if (departureTime < this.minDepartureTime) {
+                    continue;
+                }
+                double distance = routeStopDistancesAlongRoute[labels.toRouteStop[alightingLabel]] - routeStopDistancesAlongRoute[toRouteStopIndex];
+                int label = labels.add(alightingLabel, toRouteStopIndex, lastArrivalTime, currentAlightingTime, departureTime, travelCost, transferCost, distance, labels.transferCount[alightingLabel], false, null);
+                addRouteArrival(label, toRouteStopIndex, totalCost);
+            } else {
+                // this route stop was reached with better cost from somewhere else,
+                // check if we can also leave the route here with better cost, if yes, switch to this connection
+                int alternativeAlightingLabel = this.arrivalPathPerRouteStop[toRouteStopIndex];
+                double alternativeAgentLatestDepartureTime = labels.arrivalTime[alternativeAlightingLabel];
+                int alternativeDepartureTime = findPreviousDepartureTime(route, toRouteStopIndex, alternativeAgentLatestDepartureTime);
+                if (alternativeDepartureTime != NO_DEPARTURE) {
+                    double alternativeAlightingTime = alternativeDepartureTime + routeStopArrivalOffsets[toRouteStopIndex];
+                    double alternativeTravelCostWhenAlighting = labels.arrivalTravelCost[alternativeAlightingLabel] + (alternativeAgentLatestDepartureTime - alternativeAlightingTime) * -marginalUtilityOfWaitingPt_utl_s;
+                    if (alternativeTravelCostWhenAlighting + labels.arrivalTransferCost[alternativeAlightingLabel] < totalCost) {
+                        currentDepartureTime = alternativeDepartureTime;
+                        if (!labels.isTransfer[alternativeAlightingLabel]) {
+                            // we improve to a route we leave at some later stop, do not create a new transfer for this,
+                            // but set the alighting info back to the original alighting from this route
+                            alternativeAlightingLabel = labels.comingFrom[alternativeAlightingLabel];
+                            alternativeAgentLatestDepartureTime = labels.arrivalTime[alternativeAlightingLabel];
+                            alternativeAlightingTime = alternativeDepartureTime + routeStopArrivalOffsets[labels.toRouteStop[alternativeAlightingLabel]];
+                            alternativeTravelCostWhenAlighting = labels.arrivalTravelCost[alternativeAlightingLabel] + (alternativeAgentLatestDepartureTime - alternativeAlightingTime) * -marginalUtilityOfWaitingPt_utl_s;
+                        }
+                        currentAlightingTime = alternativeAlightingTime;
+                        currentTravelCostWhenAlighting = alternativeTravelCostWhenAlighting;
+                        alightingLabel = alternativeAlightingLabel;
+                        lastArrivalTime = Double.isNaN(labels.firstDepartureTime[alightingLabel]) ? currentAlightingTime : labels.firstDepartureTime[alightingLabel];
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void handleTransfersBackward(RaptorParameters raptorParams) {
+        clearMarkedRouteStops();
+        this.tmpImprovedStops.clear();
+
+        final RIncomingTransfers incomingTransfers = this.data.getIncomingTransfers();
+        final int[] transferFromRouteStops = this.data.transferFromRouteStops;
+        final double[] transferTimes = this.data.transferTimes;
+        final boolean hasTransferTimeProfiles = this.data.transferTimeProfiles != null;
+        final PathLabels labels = this.labels;
+        CostParameters costParameters = new CostParameters(raptorParams);
+        final double margUtilityTransitWalk = costParameters.marginalUtilityOfTransitWalk_utl_s;
+
+        for (int stopIndex = this.improvedStops.nextSetBit(0); stopIndex >= 0; stopIndex = this.improvedStops.nextSetBit(stopIndex + 1)) {
+            int fromLabel = this.arrivalPathPerStop[stopIndex];
+            double departureTime = labels.arrivalTime[fromLabel];
+            double travelCost = labels.arrivalTravelCost[fromLabel];
+            double lastArrivalTime = labels.firstDepartureTime[fromLabel];
+            int transferCount = labels.transferCount[fromLabel];
+            if (travelCost + labels.arrivalTransferCost[fromLabel] > this.bestArrivalCost) {
+                continue;
+            }
+            int toRouteStopIndex = labels.toRouteStop[fromLabel];
+            for (int i = incomingTransfers.firstTransferIndices[toRouteStopIndex]; i < incomingTransfers.firstTransferIndices[toRouteStopIndex + 1]; i++) {
+                int transferIndex = incomingTransfers.transferIndices[i];
+                int fromRouteStopIndex = transferFromRouteStops[transferIndex];
+                double transferTime = transferTimes[transferIndex];
+                if (hasTransferTimeProfiles) {
+                    // the start of the transfer depends on its duration, use the start without additional transfer time
+                    transferTime = this.data.getTransferTime(transferIndex, departureTime - transferTime);
+                }
+                double newDepartureTime = departureTime - transferTime;
+                if (newDepartureTime < this.minDepartureTime) {
+                    continue;
+                }
+                double newTravelCost = travelCost - transferTime * margUtilityTransitWalk;
+                double newTransferCost = Double.isFinite(lastArrivalTime) ? costParameters.calcTransferCost(lastArrivalTime - newDepartureTime) * (transferCount + 1) : 0;
+                double newTotalCost = newTravelCost + newTransferCost;
+                if (newTotalCost < this.leastArrivalCostAtRouteStop[fromRouteStopIndex]) {
+                    int label = labels.add(fromLabel, fromRouteStopIndex, lastArrivalTime, Double.NaN, newDepartureTime, newTravelCost, newTransferCost, this.data.transferDistances[transferIndex], transferCount + 1, true, null);
+                    addTransferArrival(label, fromRouteStopIndex, newTotalCost, true);
+                }
+            }
+        }
+        updateArrivalPathPerStop();
+    }
+
+    /**
+     * @return the label of the access leg of the least cost path of a backward search, or -1 if no origin stop was reached yet.
+     */
+    private int findLeastCostDeparture(Map<TransitStopFacility, InitialStop> originStops) {
+        final PathLabels labels = this.labels;
+        double leastCost = Double.POSITIVE_INFINITY;
+        int leastCostLabel = -1;
+        InitialStop leastCostAccessStop = null;
+
+        for (Map.Entry<TransitStopFacility, InitialStop> e : originStops.entrySet()) {
+            int stopIndex = this.data.stopFacilityIndices.get(e.getKey());
+            int label = this.arrivalPathPerStop[stopIndex];
+            if (label >= 0) {
+                InitialStop accessStop = e.getValue();
+                double totalCost = labels.arrivalTravelCost[label] + accessStop.accessCost + labels.arrivalTransferCost[label];
+                if ((totalCost < leastCost) || (totalCost == leastCost && labels.transferCount[label] < labels.transferCount[leastCostLabel])) {
+                    leastCost = totalCost;
+                    leastCostLabel = label;
+                    leastCostAccessStop = accessStop;
+                }
+            }
+        }
+        if (leastCostLabel < 0) {
+            return -1;
+        }
+        // this is the access leg
+        return labels.add(leastCostLabel, -1, labels.firstDepartureTime[leastCostLabel], Double.NaN,
+                labels.arrivalTime[leastCostLabel] - leastCostAccessStop.accessTime, labels.arrivalTravelCost[leastCostLabel] + leastCostAccessStop.accessCost,
+                labels.arrivalTransferCost[leastCostLabel], leastCostAccessStop.distance, labels.transferCount[leastCostLabel], true, leastCostAccessStop);
+    }
+
+    public Map<Id<TransitStopFacility>, TravelInfo> calcLeastCostTree(double depTime, Collection<InitialStop> startStops, RaptorParameters parameters) {
+        return calcLeastCostTree(depTime, startStops, parameters, null, 1);
+    }
+
+    /**
+     * Calculates the least cost tree, optionally exploring the routes and handling the transfers of each round
+     * in parallel. This is useful for single, very large trees, as the result is exactly the same as
+     * when calculating the tree sequentially. Small rounds are always handled by the calling thread.
+     *
+     * @param executor the executor to explore parts of the rounds in parallel, may be <code>null</code> if <code>parallelism</code> is 1.
+     * @param parallelism into how many parts a round is split at most, 1 to calculate the tree sequentially.
+     */
+    public Map<Id<TransitStopFacility>, TravelInfo> calcLeastCostTree(double depTime, Collection<InitialStop> startStops, RaptorParameters parameters, Executor executor, int parallelism) {
+        calcLeastCostTreeLabels(depTime, startStops, parameters, executor, parallelism);
+
+        // collect information for each stop
+        Map<Id<TransitStopFacility>, TravelInfo> result = new HashMap<>();
+        PathElement[] pathElements = new PathElement[this.labels.count]; // the paths to different stops share their beginnings, only create them once
+        for (Map.Entry<TransitStopFacility, Integer> e : this.data.stopFacilityIndices.entrySet()) {
+            TransitStopFacility stop = e.getKey();
+            int index = e.getValue();
+            int destination = this.arrivalPathPerStop[index];
+            if (destination >= 0) {
+                TravelInfo ti = getTravelInfo(destination, parameters, pathElements);
+                result.put(stop.getId(), ti);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Calculates the same least cost tree as {@link #calcLeastCostTree(double, Collection, RaptorParameters)}, but returns
+     * it as {@link TravelInfoTree} with one entry for every reached stop.
+     */
+    public TravelInfoTree calcTravelInfoTree(double depTime, Collection<InitialStop> startStops, RaptorParameters parameters) {
+        calcLeastCostTreeLabels(depTime, startStops, parameters, null, 1);
+
+        int[] firstEntries = new int[this.data.countStops + 1];
+        int[] entryLabels = new int[this.data.countStops];
+        int entryCount = 0;
+        for (int stopIndex = 0; stopIndex < this.data.countStops; stopIndex++) {
+            firstEntries[stopIndex] = entryCount;
+            int destination = this.arrivalPathPerStop[stopIndex];
+            if (destination >= 0) {
+                entryLabels[entryCount++] = destination;
+            }
+        }
+        firstEntries[this.data.countStops] = entryCount;
+        return createTravelInfoTree(firstEntries, entryLabels, parameters);
+    }
+
+    private void calcLeastCostTreeLabels(double depTime, Collection<InitialStop> startStops, RaptorParameters parameters, Executor executor, int parallelism) {
+        reset();
+        boolean parallel = executor != null && parallelism > 1;
+
+        BitSet initialRouteStopIndices = new BitSet();
+        BitSet initialStopIndices = new BitSet();
+        for (InitialStop stop : startStops) {
+            int[] routeStopIndices = this.data.routeStopsPerStopFacility.get(stop.stop);
+            for (int routeStopIndex : routeStopIndices) {
+                double arrivalTime = depTime + stop.accessTime;
+                double arrivalCost = stop.accessCost;
+                int stopFacilityIndex = this.data.routeStopStopFacilityIndices[routeStopIndex];
+                int label = this.labels.add(-1, routeStopIndex, Double.NaN, Double.NaN, arrivalTime, arrivalCost, 0, stop.distance, 0, true, stop);
+                touchRouteStop(routeStopIndex);
+                touchStop(stopFacilityIndex);
+                this.arrivalPathPerRouteStop[routeStopIndex] = label;
+                this.arrivalPathPerStop[stopFacilityIndex] = label;
+                this.leastArrivalCostAtRouteStop[routeStopIndex] = arrivalCost;
+                this.leastArrivalCostAtStop[stopFacilityIndex] = arrivalCost;
+                markRouteStop(routeStopIndex);
+                // this is special: make sure we can transfer even at the start stop
+                initialRouteStopIndices.set(routeStopIndex);
+                initialStopIndices.set(stopFacilityIndex);
+            }
+        }
+
+        // the main loop
+        while (true) {
+            // first stage (according to paper) is to set earliestArrivalTime_k(stop) = earliestArrivalTime_k-1(stop)
+            // but because we re-use the earliestArrivalTime-array, we don't have to do anything.
+
+            // second stage: process routes
+            if (parallel) {
+                exploreRoutes(parameters, executor, parallelism);
+            } else {
+                exploreRoutes(parameters);
+            }
+
+            if (this.improvedStops.isEmpty()) {
+                break;
+            }
+
+            if (initialRouteStopIndices != null) {
+                for (int routeStopIndex = initialRouteStopIndices.nextSetBit(0); routeStopIndex >= 0; routeStopIndex = initialRouteStopIndices.nextSetBit(routeStopIndex + 1)) {
+                    markRouteStop(routeStopIndex);
+                }
+                this.improvedStops.or(initialStopIndices);
+                initialRouteStopIndices = null;
+                initialStopIndices = null;
+            }
+
+            // third stage (according to paper): handle footpaths / transfers
+            if (parallel) {
+                handleTransfers(true, parameters, executor, parallelism);
+            } else {
+                handleTransfers(true, parameters);
+            }
+
+            // final stage: check stop criterion
+            if ((this.markedRouteCount == 0)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Creates the result of a tree calculation. Only the labels on the paths to the entries are copied, so the routes
+     * can be created later while the labels of this instance are already re-used for the next route search.
+     *
+     * @param firstEntries the index of the first entry per stop, with an additional element for the end of the last stop's entries.
+     * @param entryLabels the label of each entry.
+     */
+    private TravelInfoTree createTravelInfoTree(int[] firstEntries, int[] entryLabels, RaptorParameters parameters) {
+        PathLabels labels = this.labels;
+        int entryCount = firstEntries[firstEntries.length - 1];
+
+        // the predecessor of a label is always added before the label itself, so the order of the labels can be kept
+        final int NOT_USED = -1;
+        int[] copiedLabels = new int[labels.count];
+        Arrays.fill(copiedLabels, NOT_USED);
+        for (int entry = 0; entry < entryCount; entry++) {
+            for (int label = entryLabels[entry]; label >= 0 && copiedLabels[label] == NOT_USED; label = labels.comingFrom[label]) {
+                copiedLabels[label] = 0;
+            }
+        }
+        PathLabels paths = new PathLabels(entryCount);
+        for (int label = 0; label < labels.count; label++) {
+            if (copiedLabels[label] != NOT_USED) {
+                int copy = paths.add(labels, label);
+                int comingFrom = labels.comingFrom[label];
+                paths.comingFrom[copy] = comingFrom < 0 ? -1 : copiedLabels[comingFrom];
+                copiedLabels[label] = copy;
+            }
+        }
+
+        // the first label, the second label and whether there is a pt leg, for each path
+        int[] firstStages = new int[paths.count];
+        int[] secondStages = new int[paths.count];
+        boolean[] hasPtLeg = new boolean[paths.count];
+        for (int label = 0; label < paths.count; label++) {
+            int comingFrom = paths.comingFrom[label];
+            if (comingFrom < 0) {
+                firstStages[label] = label;
+                secondStages[label] = -1;
+                hasPtLeg[label] = false;
+            } else {
+                firstStages[label] = firstStages[comingFrom];
+                secondStages[label] = paths.comingFrom[comingFrom] < 0 ? label : secondStages[comingFrom];
+                hasPtLeg[label] = !paths.isTransfer[label] || hasPtLeg[comingFrom];
+            }
+        }
+
+        TravelInfoTree tree = new TravelInfoTree(this.data, firstEntries, paths);
+        double waitingCostPerSecond = -parameters.getMarginalUtilityOfWaitingPt_utl_s();
+        for (int entry = 0; entry < entryCount; entry++) {
+            int destination = copiedLabels[entryLabels[entry]];
+            int firstStage = firstStages[destination];
+            int secondStage = secondStages[destination];
+            double arrivalTimeAtLastStop = paths.arrivalTime[destination];
+            double departureTimeAtFirstStop = paths.firstDepartureTime[destination];
+            if (Double.isNaN(departureTimeAtFirstStop)) {
+                // a trip with no actual pt-leg, likely the start-location
+                departureTimeAtFirstStop = arrivalTimeAtLastStop;
+            }
+            double waitingTime = departureTimeAtFirstStop - paths.arrivalTime[firstStage];
+            double waitingCost = waitingTime * waitingCostPerSecond;
+            int transferCount = paths.transferCount[destination];
+            if (paths.isTransfer[destination] && transferCount > 0) {
+                transferCount--; // do not count this as transfer, as the router would merge it with the egress walk
+            }
+            if (secondStage >= 0 && paths.isTransfer[secondStage] && transferCount > 0) {
+                transferCount--; // the first "leg" is a transfer, do not count it as such as the router would merge it with the access walk
+            }
+            tree.entryLabels[entry] = destination;
+            tree.departureRouteStops[entry] = paths.toRouteStop[firstStage];
+            tree.ptDepartureTimes[entry] = departureTimeAtFirstStop;
+            tree.ptArrivalTimes[entry] = arrivalTimeAtLastStop;
+            tree.travelCosts[entry] = paths.arrivalTravelCost[destination] - paths.arrivalTravelCost[firstStage] - waitingCost;
+            tree.accessTimes[entry] = paths.initialStop[firstStage].accessTime;
+            tree.accessCosts[entry] = paths.initialStop[firstStage].accessCost;
+            tree.waitingTimes[entry] = waitingTime;
+            tree.waitingCosts[entry] = waitingCost;
+            tree.transferCounts[entry] = transferCount;
+            tree.walkOnly[entry] = !hasPtLeg[destination];
+        }
+        return tree;
+    }
+
+    private TravelInfo getTravelInfo(int destination, RaptorParameters parameters, PathElement[] pathElements) {
+        PathLabels labels = this.labels;
+        int firstStage = destination;
+        int secondStage = -1;
+        while (labels.comingFrom[firstStage] >= 0) {
+            secondStage = firstStage;
+            firstStage = labels.comingFrom[firstStage];
+        }
+        double arrivalTimeAtLastStop = labels.arrivalTime[destination];
+        double departureTimeAtFirstStop = labels.firstDepartureTime[destination];
+        if (Double.isNaN(departureTimeAtFirstStop)) {
+            // a trip with no actual pt-leg, likely the start-location
+            departureTimeAtFirstStop = arrivalTimeAtLastStop;
+        }
+        double accessTime = labels.initialStop[firstStage].accessTime;
+        double accessCost = labels.initialStop[firstStage].accessCost;
+
+        double waitingTime = departureTimeAtFirstStop - labels.arrivalTime[firstStage];
+        double waitingCost = waitingTime * -parameters.getMarginalUtilityOfWaitingPt_utl_s();
+
+        double travelCost = labels.arrivalTravelCost[destination] - labels.arrivalTravelCost[firstStage] - waitingCost;
+        int transferCount = labels.transferCount[destination];
+        if (labels.isTransfer[destination] && transferCount > 0) {
+            transferCount--; // do not count this as transfer, as the router would merge it with the egress walk
+        }
+        if (secondStage >= 0 && labels.isTransfer[secondStage] && transferCount > 0) {
+            transferCount--; // the first "leg" is a transfer, do not count it as such as the router would merge it with the access walk
+        }
+        Id<TransitStopFacility> departureStopId = this.data.transitRouteStops[labels.toRouteStop[firstStage]].getStopFacility().getId();
+        return new TravelInfo(this.data, departureStopId, departureTimeAtFirstStop, arrivalTimeAtLastStop, travelCost, accessTime, accessCost, transferCount, waitingTime, waitingCost, labels.toPathElement(destination, pathElements));
+    }
+
+    /**
+     * Calculates for every stop the profile of the least cost connections from the start stops departing between
+     * <code>earliestDepTime</code> and <code>latestDepTime</code>, in one sweep over all departures at the start stops
+     * and at the stops reachable from them by a transfer, as in rRAPTOR.
+     *
+     * The departures are handled from the latest to the earliest one without resetting the labels in between. Similar
+     * to {@link #calcRoutes}, each departure gets an additional cost for waiting at the origin from <code>earliestDepTime</code>
+     * until the departure, so costs behave like arrival times: an earlier departure only improves the labels of a stop
+     * if it reaches the stop with less costs than waiting for a later departure. Each departure thus only explores where
+     * it improves the labels, and each improved stop gets a new entry in its profile.
+     *
+     * @return for each reached stop the connections ordered by their departure time at the origin. Every connection
+     * has less costs (including the waiting at the origin) than all connections departing later. Connections without
+     * any pt leg are not included, and neither are the start stops and the stops reachable from them by a transfer, as
+     * a tree reaches them by walking.
+     */
+    public Map<Id<TransitStopFacility>, List<TravelInfo>> calcLeastCostProfileTree(double earliestDepTime, double latestDepTime, Collection<InitialStop> startStops, RaptorParameters parameters) {
+        TravelInfoTree tree = calcProfileTravelInfoTree(earliestDepTime, latestDepTime, startStops, parameters);
+        Map<Id<TransitStopFacility>, List<TravelInfo>> result = new HashMap<>();
+        for (Map.Entry<TransitStopFacility, Integer> e : this.data.stopFacilityIndices.entrySet()) {
+            int stopIndex = e.getValue();
+            int entryCount = tree.getEntryCount(stopIndex);
+            if (entryCount > 0) {
+                List<TravelInfo> profile = new ArrayList<>(entryCount);
+                for (int entry = tree.getFirstEntry(stopIndex); entry < tree.getFirstEntry(stopIndex) + entryCount; entry++) {
+                    profile.add(tree.getTravelInfo(entry));
+                }
+                result.put(e.getKey().getId(), profile);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Calculates the same profiles as {@link #calcLeastCostProfileTree}, but returns them as {@link TravelInfoTree}
+     * with the connections of each stop as its entries.
+     */
+    public TravelInfoTree calcProfileTravelInfoTree(double earliestDepTime, double latestDepTime, Collection<InitialStop> startStops, RaptorParameters parameters) {
+        return calcProfileTravelInfoTree(earliestDepTime, latestDepTime, startStops, parameters, false);
+    }
+
+    /**
+     * Calculates the profiles like {@link #calcProfileTravelInfoTree(double, double, Collection, RaptorParameters)}.
+     * If <code>includeNextDepartures</code> is <code>true</code>, the first departure after the time window at each route
+     * stop reachable from the start stops is handled as well, so the profiles also contain the connections a tree calculated
+     * at <code>latestDepTime</code> would find. These connections depart after <code>latestDepTime</code>.
+     */
+    public TravelInfoTree calcProfileTravelInfoTree(double earliestDepTime, double latestDepTime, Collection<InitialStop> startStops, RaptorParameters parameters, boolean includeNextDepartures) {
+        reset();
+
+        double marginalUtilityOfWaitingPt_utl_s = parameters.getMarginalUtilityOfWaitingPt_utl_s();
+        List<DepartureAtRouteStop> departures = new ArrayList<>();
+        BitSet walkReachedStops = new BitSet(this.data.countStops); // a tree reaches these stops without any pt leg
+        for (InitialStop startStop : startStops) {
+            int startStopIndex = this.data.stopFacilityIndices.get(startStop.stop);
+            walkReachedStops.set(startStopIndex);
+            int[] routeStopIndices = this.data.routeStopsPerStopFacility.get(startStop.stop);
+            if (routeStopIndices == null) {
+                continue;
+            }
+            double earliestTimeAtStop = earliestDepTime + startStop.accessTime;
+            double latestTimeAtStop = latestDepTime + startStop.accessTime;
+            Map<Integer, Integer> accessTransfers = new HashMap<>(); // the fastest transfer to each route stop at another stop
+            for (int routeStopIndex : routeStopIndices) {
+                int routeIndex = this.data.routeStopRouteIndices[routeStopIndex];
+                RRoute route = this.data.routes[routeIndex];
+                if (!isLastRouteStop(route, routeStopIndex)) {
+                    addDeparturesInWindow(departures, route, routeIndex, routeStopIndex, earliestTimeAtStop, latestTimeAtStop, includeNextDepartures, startStop, -1, marginalUtilityOfWaitingPt_utl_s);
+                }
+                int firstTransferIndex = this.data.routeStopFirstTransferIndices[routeStopIndex];
+                int lastTransferIndex = firstTransferIndex + this.data.routeStopTransferCounts[routeStopIndex];
+                for (int transferIndex = firstTransferIndex; transferIndex < lastTransferIndex; transferIndex++) {
+                    int toRouteStopIndex = this.data.transferToRouteStops[transferIndex];
+                    walkReachedStops.set(this.data.routeStopStopFacilityIndices[toRouteStopIndex]);
+                    if (this.data.routeStopStopFacilityIndices[toRouteStopIndex] != startStopIndex) {
+                        accessTransfers.merge(toRouteStopIndex, transferIndex, (t1, t2) -> this.data.transferTimes[t2] < this.data.transferTimes[t1] ? t2 : t1);
+                    }
+                }
+            }
+            // departures after the additional transfer time are only removed later, when the time of the transfer is known
+            double maxAdditionalTransferTime = this.data.transferTimeProfiles == null ? 0 : this.data.transferTimeProfiles.getMaxAdditionalTransferTime(startStopIndex);
+            for (Map.Entry<Integer, Integer> e : accessTransfers.entrySet()) {
+                int routeStopIndex = e.getKey();
+                int transferIndex = e.getValue();
+                int routeIndex = this.data.routeStopRouteIndices[routeStopIndex];
+                RRoute route = this.data.routes[routeIndex];
+                if (!isLastRouteStop(route, routeStopIndex)) {
+                    double transferTime = this.data.transferTimes[transferIndex];
+                    addDeparturesInWindow(departures, route, routeIndex, routeStopIndex, earliestTimeAtStop + transferTime, latestTimeAtStop + transferTime + maxAdditionalTransferTime, includeNextDepartures, startStop, transferIndex, marginalUtilityOfWaitingPt_utl_s);
+                }
+            }
+        }
+        departures.sort((d1, d2) -> {
+            // from the latest departure at the origin to the earliest one, as in the original algorithm
+            int cmp = Double.compare(getDepartureTimeAtOrigin(d1), getDepartureTimeAtOrigin(d2));
+            if (cmp == 0) {
+                cmp = Integer.compare(d1.routeIndex, d2.routeIndex);
+            }
+            if (cmp == 0) {
+                cmp = Integer.compare(d1.departureTimeAtRouteStart, d2.departureTimeAtRouteStart);
+            }
+            if (cmp == 0) {
+                cmp = Integer.compare(d1.routeStopIndex, d2.routeStopIndex);
+            }
+            return -cmp;
+        });
+
+        CostParameters costParameters = new CostParameters(parameters);
+        double[] profileCostPerStop = new double[this.data.countStops];
+        Arrays.fill(profileCostPerStop, Double.POSITIVE_INFINITY);
+        for (int stopIndex = walkReachedStops.nextSetBit(0); stopIndex >= 0; stopIndex = walkReachedStops.nextSetBit(stopIndex + 1)) {
+            profileCostPerStop[stopIndex] = Double.NEGATIVE_INFINITY; // no pt connection beats walking there, as in a tree
+        }
+        int[] entryLabels = new int[16];
+        int entryCount = 0;
+        BitSet departureImprovedStops = new BitSet(this.data.countStops);
+
+        for (DepartureAtRouteStop depAtRouteStop : departures) {
+            InitialStop startStop = depAtRouteStop.accessStop;
+            int transferIndex = depAtRouteStop.accessTransferIndex;
+            int routeStopIndex = depAtRouteStop.routeStopIndex;
+            double transferTime = getAccessTransferTime(depAtRouteStop);
+            double additionalTransferTime = transferIndex < 0 ? 0 : transferTime - this.data.transferTimes[transferIndex];
+            if (additionalTransferTime > 0 && depAtRouteStop.depTime < earliestDepTime + startStop.accessTime + transferTime) {
+                continue; // the additional transfer time moves the departure at the origin out of the window
+            }
+            if (!includeNextDepartures && transferIndex >= 0 && this.data.transferTimeProfiles != null && depAtRouteStop.depTime > latestDepTime + startStop.accessTime + transferTime) {
+                continue; // the departure was only added in case the transfer time is longer
+            }
+            // the costOffset of the departure is negative, the waiting at the origin has to be added instead.
+            // It was calculated without the additional transfer time, which reduces the waiting.
+            double startCost = startStop.accessCost - depAtRouteStop.costOffset + additionalTransferTime * marginalUtilityOfWaitingPt_utl_s;
+            double arrivalCost = startCost - transferTime * costParameters.marginalUtilityOfTransitWalk_utl_s;
+            if (arrivalCost >= this.leastArrivalCostAtRouteStop[routeStopIndex]) {
+                continue; // a later departure already reaches this route stop with less costs
+            }
+            this.improvedStops.clear();
+            clearMarkedRouteStops();
+            departureImprovedStops.clear();
+
+            int label;
+            if (transferIndex < 0) {
+                label = this.labels.add(-1, routeStopIndex, Double.NaN, Double.NaN, depAtRouteStop.depTime, arrivalCost, 0, startStop.distance, 0, true, startStop);
+            } else {
+                int startLabel = this.labels.add(-1, this.data.transferFromRouteStops[transferIndex], Double.NaN, Double.NaN, depAtRouteStop.depTime - transferTime, startCost, 0, startStop.distance, 0, true, startStop);
+                label = this.labels.add(startLabel, routeStopIndex, Double.NaN, Double.NaN, depAtRouteStop.depTime, arrivalCost, 0, this.data.transferDistances[transferIndex], 1, true, null);
+            }
+            touchRouteStop(routeStopIndex);
+            this.arrivalPathPerRouteStop[routeStopIndex] = label;
+            this.leastArrivalCostAtRouteStop[routeStopIndex] = arrivalCost;
+            int stopFacilityIndex = this.data.routeStopStopFacilityIndices[routeStopIndex];
+            if (arrivalCost < this.leastArrivalCostAtStop[stopFacilityIndex]) {
+                touchStop(stopFacilityIndex);
+                this.arrivalPathPerStop[stopFacilityIndex] = label;
+                this.leastArrivalCostAtStop[stopFacilityIndex] = arrivalCost;
+            }
+            markRouteStop(routeStopIndex);
+
+            // the main loop
+            while (true) {
+                exploreRoutes(parameters);
+                if (this.improvedStops.isEmpty()) {
+                    break;
+                }
+                departureImprovedStops.or(this.improvedStops);
+                handleTransfers(true, parameters);
+                departureImprovedStops.or(this.tmpImprovedStops);
+                if (this.markedRouteCount == 0) {
+                    break;
+                }
+            }
+
+            for (int stopIndex = departureImprovedStops.nextSetBit(0); stopIndex >= 0; stopIndex = departureImprovedStops.nextSetBit(stopIndex + 1)) {
+                double cost = this.leastArrivalCostAtStop[stopIndex];
+                if (cost < profileCostPerStop[stopIndex]) {
+                    profileCostPerStop[stopIndex] = cost;
+                    if (entryCount == entryLabels.length) {
+                        entryLabels = Arrays.copyOf(entryLabels, entryCount * 2);
+                    }
+                    entryLabels[entryCount++] = this.arrivalPathPerStop[stopIndex];
+                }
+            }
+        }
+
+        // the entries were collected from the latest to the earliest departure, sort them by stop and reverse their order
+        int[] firstEntries = new int[this.data.countStops + 1];
+        for (int i = 0; i < entryCount; i++) {
+            firstEntries[this.data.routeStopStopFacilityIndices[this.labels.toRouteStop[entryLabels[i]]] + 1]++;
+        }
+        for (int stopIndex = 0; stopIndex < this.data.countStops; stopIndex++) {
+            firstEntries[stopIndex + 1] += firstEntries[stopIndex];
+        }
+        int[] nextEntries = Arrays.copyOf(firstEntries, this.data.countStops);
+        int[] sortedEntryLabels = new int[entryCount];
+        for (int i = entryCount - 1; i >= 0; i--) {
+            int stopIndex = this.data.routeStopStopFacilityIndices[this.labels.toRouteStop[entryLabels[i]]];
+            sortedEntryLabels[nextEntries[stopIndex]++] = entryLabels[i];
+        }
+        return createTravelInfoTree(firstEntries, sortedEntryLabels, parameters);
+    }
+
+    private double getDepartureTimeAtOrigin(DepartureAtRouteStop departure) {
+        return departure.depTime - getAccessTransferTime(departure) - departure.accessStop.accessTime;
+    }
+
+    private double getAccessTransferTime(DepartureAtRouteStop departure) {
+        int transferIndex = departure.accessTransferIndex;
+        if (transferIndex < 0) {
+            return 0;
+        }
+        // the start of the transfer depends on its duration, use the start without additional transfer time
+        return this.data.getTransferTime(transferIndex, departure.depTime - this.data.transferTimes[transferIndex]);
+    }
+
+    private void exploreRoutes(RaptorParameters parameters) {
+        this.improvedStops.clear();
+
+        CostParameters costParameters = new CostParameters(parameters);
+        final int[] routeStopRouteIndices = this.data.routeStopRouteIndices;
+
+        int routeCount = collectRouteStopsToExplore();
+        for (int i = 0; i < routeCount; i++) {
+            int firstRouteStopIndex = this.routeStopsToExplore[i];
+            exploreMarkedRoute(routeStopRouteIndices[firstRouteStopIndex], firstRouteStopIndex, costParameters, this.labels);
+        }
+    }
+
+    /**
+     * Same as {@link #exploreRoutes(RaptorParameters)}, but the improved routes are partitioned into
+     * consecutive chunks which are explored in parallel. As every route stop belongs to exactly one route,
+     * the routes can be explored independently. The new labels are collected per chunk and merged afterwards
+     * in the order of the routes, resulting in exactly the same labels as the sequential exploration.
+     * This requires that there are no destination stops, so <code>bestArrivalCost</code> does not change.
+     */
+    private void exploreRoutes(RaptorParameters parameters, Executor executor, int parallelism) {
+        final int[] routeStopRouteIndices = this.data.routeStopRouteIndices;
+        final int[] routeStopsToExplore = this.routeStopsToExplore;
+        int routeCount = collectRouteStopsToExplore();
+        int taskCount = Math.min(parallelism, routeCount / Math.max(1, this.data.config.getMinItemsPerParallelTask()));
+        if (taskCount <= 1) {
+            exploreRoutes(parameters);
+            return;
+        }
+
+        this.improvedStops.clear();
+
+        CostParameters costParameters = new CostParameters(parameters);
+        PathLabels[] buffers = getParallelLabels(taskCount);
+        runInParallel(routeCount, taskCount, executor, (taskIndex, fromIndex, toIndex) -> {
+            PathLabels buffer = buffers[taskIndex];
+            for (int i = fromIndex; i < toIndex; i++) {
+                int firstRouteStopIndex = routeStopsToExplore[i];
+                exploreMarkedRoute(routeStopRouteIndices[firstRouteStopIndex], firstRouteStopIndex, costParameters, buffer);
+            }
+        });
+        for (int t = 0; t < taskCount; t++) {
+            PathLabels buffer = buffers[t];
+            for (int i = 0; i < buffer.count; i++) {
+                int label = this.labels.add(buffer, i);
+                addRouteArrival(label, buffer.toRouteStop[i], buffer.arrivalTravelCost[i] + buffer.arrivalTransferCost[i]);
+            }
+        }
+    }
+
+    /**
+     * Explores a marked route, boarding it at its earliest marked route stop. If the route cannot be boarded there,
+     * the next marked route stop of the route is tried.
+     */
+    private void exploreMarkedRoute(int routeIndex, int firstRouteStopIndex, CostParameters costParameters, PathLabels newLabels) {
+        RRoute route = this.data.routes[routeIndex];
+        int endRouteStopIndex = route.indexFirstRouteStop + route.countRouteStops;
+        for (int routeStopIndex = firstRouteStopIndex; routeStopIndex >= 0 && routeStopIndex < endRouteStopIndex; routeStopIndex = this.improvedRouteStopIndices.nextSetBit(routeStopIndex + 1)) {
+            if (exploreRoute(routeIndex, routeStopIndex, costParameters, newLabels) >= 0) {
+                break;
+            }
+        }
+    }
+
+    private void markRouteStop(int routeStopIndex) {
+        this.improvedRouteStopIndices.set(routeStopIndex);
+        int routeIndex = this.data.routeStopRouteIndices[routeStopIndex];
+        int earliestRouteStopIndex = this.earliestMarkedRouteStopPerRoute[routeIndex];
+        if (earliestRouteStopIndex < 0) {
+            this.markedRoutes[this.markedRouteCount++] = routeIndex;
+            this.earliestMarkedRouteStopPerRoute[routeIndex] = routeStopIndex;
+        } else if (routeStopIndex < earliestRouteStopIndex) {
+            this.earliestMarkedRouteStopPerRoute[routeIndex] = routeStopIndex;
+        }
+    }
+
+    private void clearMarkedRouteStops() {
+        for (int i = 0; i < this.markedRouteCount; i++) {
+            int routeIndex = this.markedRoutes[i];
+            RRoute route = this.data.routes[routeIndex];
+            this.improvedRouteStopIndices.clear(route.indexFirstRouteStop, route.indexFirstRouteStop + route.countRouteStops);
+            this.earliestMarkedRouteStopPerRoute[routeIndex] = -1;
+        }
+        this.markedRouteCount = 0;
+    }
+
+    private int[] getMarkedRouteStops() {
+        int count = 0;
+        for (int i = 0; i < this.markedRouteCount; i++) {
+            RRoute route = this.data.routes[this.markedRoutes[i]];
+            count += this.improvedRouteStopIndices.get(route.indexFirstRouteStop, route.indexFirstRouteStop + route.countRouteStops).cardinality();
+        }
+        int[] routeStopIndices = new int[count];
+        count = 0;
+        for (int i = 0; i < this.markedRouteCount; i++) {
+            int routeIndex = this.markedRoutes[i];
+            RRoute route = this.data.routes[routeIndex];
+            int endRouteStopIndex = route.indexFirstRouteStop + route.countRouteStops;
+            for (int routeStopIndex = this.earliestMarkedRouteStopPerRoute[routeIndex]; routeStopIndex >= 0 && routeStopIndex < endRouteStopIndex; routeStopIndex = this.improvedRouteStopIndices.nextSetBit(routeStopIndex + 1)) {
+                routeStopIndices[count++] = routeStopIndex;
+            }
+        }
+        return routeStopIndices;
+    }
+
+    /**
+     * Stores the earliest marked route stop of every marked route in <code>routeStopsToExplore</code>, sorted by
+     * the route stop index. As the route stops of a route are stored consecutively, this explores the routes in the
+     * same order as a scan over all improved route stops would.
+     *
+     * @return the number of marked routes
+     */
+    private int collectRouteStopsToExplore() {
+        int routeCount = this.markedRouteCount;
+        for (int i = 0; i < routeCount; i++) {
+            this.routeStopsToExplore[i] = this.earliestMarkedRouteStopPerRoute[this.markedRoutes[i]];
+        }
+        Arrays.sort(this.routeStopsToExplore, 0, routeCount);
+        return routeCount;
+    }
+
+    /**
+     * Explores a route, boarding it at the given route stop.
+     *
+     * @param newLabels where the new labels are stored. If these are not the labels of this route search,
+     *                  the new labels are only collected and the arrivals are not updated.
+     * @return the index of the last route stop of the route if the route could be boarded, <code>-1</code> otherwise.
+     */
+    private int exploreRoute(int routeIndex, int firstRouteStopIndex, CostParameters costParameters, PathLabels newLabels) {
+        final double[] routeStopArrivalOffsets = this.data.routeStopArrivalOffsets;
+        final double[] routeStopDistancesAlongRoute = this.data.routeStopDistancesAlongRoute;
+        final PathLabels labels = this.labels;
+        final double marginalUtilityOfWaitingPt_utl_s = costParameters.marginalUtilityOfWaitingPt_utl_s;
+
+        // for each relevant route, step along route and look for new/improved connections
+        RRoute route = this.data.routes[routeIndex];
+
+        // firstRouteStop is the first RouteStop in the route we can board in this round
+        // figure out which departure we can take
+        int boardingLabel = this.arrivalPathPerRouteStop[firstRouteStopIndex];
+        double agentFirstArrivalTime = labels.arrivalTime[boardingLabel];
+        int currentDepartureTime = findNextDepartureTime(route, firstRouteStopIndex, agentFirstArrivalTime);
+        if (currentDepartureTime == NO_DEPARTURE) {
+            return -1;
+        }
+        double currentAgentBoardingTime;
+        double currentTravelCostWhenBoarding;
+        double currentTransferCostWhenBoarding;
+        {
+            double vehicleArrivalTime = currentDepartureTime + routeStopArrivalOffsets[firstRouteStopIndex];
+            currentAgentBoardingTime = (agentFirstArrivalTime < vehicleArrivalTime) ? vehicleArrivalTime : agentFirstArrivalTime;
+            double waitingTime = currentAgentBoardingTime - agentFirstArrivalTime;
+            double waitingCost = -marginalUtilityOfWaitingPt_utl_s * waitingTime;
+            currentTravelCostWhenBoarding = labels.arrivalTravelCost[boardingLabel] + waitingCost;
+            currentTransferCostWhenBoarding = labels.arrivalTransferCost[boardingLabel];
+        }
+
+        if ((currentTravelCostWhenBoarding + currentTransferCostWhenBoarding) > this.bestArrivalCost) {
+            return -1;
+        }
+        double firstDepartureTime = Double.isNaN(labels.firstDepartureTime[boardingLabel]) ? currentAgentBoardingTime : labels.firstDepartureTime[boardingLabel];
+
+        double marginalUtilityOfTravelTime_utl_s = costParameters.parameters.getMarginalUtilityOfTravelTime_utl_s(route.mode);
+
+        for (int toRouteStopIndex = firstRouteStopIndex + 1; toRouteStopIndex < route.indexFirstRouteStop + route.countRouteStops; toRouteStopIndex++) {
+            double arrivalTime = currentDepartureTime + routeStopArrivalOffsets[toRouteStopIndex];
+            double inVehicleTime = arrivalTime - currentAgentBoardingTime;
+            double inVehicleCost = inVehicleTime * -marginalUtilityOfTravelTime_utl_s;
+            double arrivalTravelCost = currentTravelCostWhenBoarding + inVehicleCost;
+            double arrivalTransferCost = costParameters.calcTransferCost(arrivalTime - firstDepartureTime) * (labels.transferCount[boardingLabel]);
+            double previousArrivalCost = this.leastArrivalCostAtRouteStop[toRouteStopIndex];
+            double totalArrivalCost = arrivalTravelCost + arrivalTransferCost;
+            if (totalArrivalCost <= previousArrivalCost) {
+                if (arrivalTime > this.maxArrivalTime) {
+                    continue; // do not stop here, a later route stop might still be reached in time by switching to an earlier departure
+                }
+                if (this.useLowerBounds && this.lowerBounds.exceeds(toRouteStopIndex, this.bestArrivalCost - totalArrivalCost)) {
+                    continue; // cannot lead to a better arrival
+                }
+                double distance = routeStopDistancesAlongRoute[toRouteStopIndex] - routeStopDistancesAlongRoute[labels.toRouteStop[boardingLabel]];
+                int label = newLabels.add(boardingLabel, toRouteStopIndex, firstDepartureTime, currentAgentBoardingTime, arrivalTime, arrivalTravelCost, arrivalTransferCost, distance, labels.transferCount[boardingLabel], false, null);
+                if (newLabels == labels) {
+                    addRouteArrival(label, toRouteStopIndex, totalArrivalCost);
+                }
+            } else /*if (previousArrivalCost < arrivalCost)*/ {
+                // looks like we could reach this stop with better cost from somewhere else
+                // check if we can depart also with better cost, if yes, switch to this connection
+                int alternativeBoardingLabel = this.arrivalPathPerRouteStop[toRouteStopIndex];
+                double alternativeAgentFirstArrivalTime = labels.arrivalTime[alternativeBoardingLabel];
+                int alternativeDepartureTime = findNextDepartureTime(route, toRouteStopIndex, alternativeAgentFirstArrivalTime);
+                if (alternativeDepartureTime != NO_DEPARTURE) {
+                    double alternativeVehicleArrivalTime = alternativeDepartureTime + routeStopArrivalOffsets[toRouteStopIndex];
+                    double alternativeAgentBoardingTime = (alternativeAgentFirstArrivalTime < alternativeVehicleArrivalTime) ? alternativeVehicleArrivalTime : alternativeAgentFirstArrivalTime;
+                    double alternativeWaitingTime = alternativeAgentBoardingTime - alternativeAgentFirstArrivalTime;
+                    double alternativeWaitingCost = -marginalUtilityOfWaitingPt_utl_s * alternativeWaitingTime;
+                    double alternativeTravelCostWhenBoarding = labels.arrivalTravelCost[alternativeBoardingLabel] + alternativeWaitingCost;
+                    double alternativeTotalCostWhenBoarding = alternativeTravelCostWhenBoarding + labels.arrivalTransferCost[alternativeBoardingLabel];
+                    if (alternativeTotalCostWhenBoarding < totalArrivalCost) {
+                        currentDepartureTime = alternativeDepartureTime;
+                        if (!labels.isTransfer[alternativeBoardingLabel]) {
+                            // we improve to a line/route we entered at some earlier stop, do not create a new transfer for this,
+                            // but set the boarding info back to the original boarding of this route
+                            alternativeBoardingLabel = labels.comingFrom[alternativeBoardingLabel];
+                            alternativeAgentFirstArrivalTime = labels.arrivalTime[alternativeBoardingLabel];
+                            alternativeVehicleArrivalTime = alternativeDepartureTime + routeStopArrivalOffsets[labels.toRouteStop[alternativeBoardingLabel]];
+                            alternativeAgentBoardingTime = (alternativeAgentFirstArrivalTime < alternativeVehicleArrivalTime) ? alternativeVehicleArrivalTime : alternativeAgentFirstArrivalTime;
+
+                            alternativeWaitingTime = alternativeAgentBoardingTime - alternativeAgentFirstArrivalTime;
+                            alternativeWaitingCost = -marginalUtilityOfWaitingPt_utl_s * alternativeWaitingTime;
+                            alternativeTravelCostWhenBoarding = labels.arrivalTravelCost[alternativeBoardingLabel] + alternativeWaitingCost;
+                        }
+                        currentAgentBoardingTime = alternativeAgentBoardingTime;
+                        currentTravelCostWhenBoarding = alternativeTravelCostWhenBoarding;
+                        currentTransferCostWhenBoarding = labels.arrivalTransferCost[alternativeBoardingLabel];
+                        boardingLabel = alternativeBoardingLabel;
+                        firstDepartureTime = Double.isNaN(labels.firstDepartureTime[boardingLabel]) ? currentAgentBoardingTime : labels.firstDepartureTime[boardingLabel];
+                    }
+                }
+            }
+        }
+        return route.indexFirstRouteStop + route.countRouteStops - 1;
+    }
+
+    private void addRouteArrival(int label, int toRouteStopIndex, double totalArrivalCost) {
+        touchRouteStop(toRouteStopIndex);
+        this.arrivalPathPerRouteStop[toRouteStopIndex] = label;
+        this.leastArrivalCostAtRouteStop[toRouteStopIndex] = totalArrivalCost;
+        int toStopFacilityIndex = this.data.routeStopStopFacilityIndices[toRouteStopIndex];
+        if (totalArrivalCost <= this.leastArrivalCostAtStop[toStopFacilityIndex]) {
+            touchStop(toStopFacilityIndex);
+            this.leastArrivalCostAtStop[toStopFacilityIndex] = totalArrivalCost;
+            this.arrivalPathPerStop[toStopFacilityIndex] = label;
+            this.improvedStops.set(toStopFacilityIndex);
+            checkForBestArrival(toRouteStopIndex, totalArrivalCost);
+        }
+    }
+
+    /**
+     * Must be called before a route stop gets its first arrival in a route search.
+     */
+    private void touchRouteStop(int routeStopIndex) {
+        if (this.arrivalPathPerRouteStop[routeStopIndex] < 0) {
+            this.touchedRouteStops[this.touchedRouteStopCount++] = routeStopIndex;
+        }
+    }
+
+    /**
+     * Must be called before a stop gets its first arrival cost in a route search, or is first marked as improved.
+     */
+    private void touchStop(int stopIndex) {
+        if (!this.isTouchedStop[stopIndex]) {
+            this.isTouchedStop[stopIndex] = true;
+            this.touchedStops[this.touchedStopCount++] = stopIndex;
+        }
+    }
+
+    private void checkForBestArrival(int routeStopIndex, double arrivalCost) {
+        if (this.destinationRouteStopIndices.get(routeStopIndex)) {
+            // this is a destination stop
+            double totalCost = arrivalCost + this.egressCostsPerRouteStop[routeStopIndex];
+            if (totalCost < this.bestArrivalCost) {
+                this.bestArrivalCost = totalCost;
+            }
+        }
+    }
+
+    /**
+     * @return the departure time at the start of the route of the first departure that is at the given route stop
+     * at <code>time</code> or later, or {@link #NO_DEPARTURE} if there is no such departure.
+     */
+    private int findNextDepartureTime(RRoute route, int routeStopIndex, double time) {
+        double depTimeAtRouteStart = time - this.data.routeStopDepartureOffsets[routeStopIndex];
+        int nextDepartureTime = NO_DEPARTURE;
+        if (route.frequencyCount > 0) {
+            // frequency-based departures, no search required
+            double k = Math.ceil((depTimeAtRouteStart - route.frequencyFirstDeparture) / route.frequencyHeadway);
+            if (k < route.frequencyCount) {
+                nextDepartureTime = (k <= 0) ? route.frequencyFirstDeparture : (route.frequencyFirstDeparture + (int) k * route.frequencyHeadway);
+            }
+        }
+        if (route.countDepartures > 0) {
+            int fromIndex = route.indexFirstDeparture;
+            int toIndex = fromIndex + route.countDepartures;
+            int pos = Arrays.binarySearch(this.data.departures, fromIndex, toIndex, (int) Math.ceil(depTimeAtRouteStart));
+            if (pos < 0) {
+                // binarySearch returns (-(insertion point) - 1) if the element was not found, which will happen most of the times.
+                // insertion_point points to the next larger element, which is the next departure in our case
+                // This can be transformed as follows:
+                // retval = -(insertion point) - 1
+                // ==> insertion point = -(retval+1) .
+                pos = -(pos + 1);
+            }
+            if (pos < toIndex && this.data.departures[pos] < nextDepartureTime) {
+                nextDepartureTime = this.data.departures[pos];
+            }
+        }
+        return nextDepartureTime;
+    }
+
+    /**
+     * @return the departure time at the start of the route of the last departure that arrives at the given route stop
+     * at <code>time</code> or earlier, or {@link #NO_DEPARTURE} if there is no such departure.
+     */
+    private int findPreviousDepartureTime(RRoute route, int routeStopIndex, double time) {
+        double depTimeAtRouteStart = time - this.data.routeStopArrivalOffsets[routeStopIndex];
+        int previousDepartureTime = NO_DEPARTURE;
+        if (route.frequencyCount > 0) {
+            double k = Math.floor((depTimeAtRouteStart - route.frequencyFirstDeparture) / route.frequencyHeadway);
+            if (k >= 0) {
+                previousDepartureTime = route.frequencyFirstDeparture + (int) Math.min(k, route.frequencyCount - 1) * route.frequencyHeadway;
+            }
+        }
+        if (route.countDepartures > 0) {
+            int fromIndex = route.indexFirstDeparture;
+            int toIndex = fromIndex + route.countDepartures;
+            int pos = Arrays.binarySearch(this.data.departures, fromIndex, toIndex, (int) Math.floor(depTimeAtRouteStart));
+            if (pos < 0) {
+                // the element before the insertion point is the previous departure
+                pos = -(pos + 1) - 1;
+            }
+            if (pos >= fromIndex && (previousDepartureTime == NO_DEPARTURE || this.data.departures[pos] > previousDepartureTime)) {
+                previousDepartureTime = this.data.departures[pos];
+            }
+        }
+        return previousDepartureTime;
+    }
+
+    private static boolean isLastRouteStop(RRoute route, int routeStopIndex) {
+        return routeStopIndex == route.indexFirstRouteStop + route.countRouteStops - 1;
+    }
+
+    /**
+     * Lower bounds are only valid if the costs of a connection can only grow along the way, which is checked by
+     * {@link RaptorLowerBounds#init}.
+     */
+    private boolean initLowerBounds(RaptorParameters parameters) {
+        if (this.lowerBounds == null) {
+            this.lowerBounds = new RaptorLowerBounds(this.data);
+        }
+        return this.lowerBounds.init(parameters, this.destinationRouteStopIndices, this.egressCostsPerRouteStop);
+    }
+
+    static double calcTransferCost(double costBase, double costPerHour, double costMin, double costMax, double travelTime) {
+        double cost = costBase + costPerHour / 3600 * travelTime;
+        double max = Math.max(costMin, costMax);
+        double min = Math.min(costMin, costMax);
+        if (cost > max) {
+            cost = max;
+        }
+        if (cost < min) {
+            cost = min;
+        }
+        return cost;
+    }
+
+    private void handleTransfers(boolean strict, RaptorParameters raptorParams) {
+        clearMarkedRouteStops();
+        this.tmpImprovedStops.clear();
+
+        CostParameters costParameters = new CostParameters(raptorParams);
+        for (int stopIndex = this.improvedStops.nextSetBit(0); stopIndex >= 0; stopIndex = this.improvedStops.nextSetBit(stopIndex + 1)) {
+            handleTransfers(stopIndex, strict, costParameters, this.labels);
+        }
+        updateArrivalPathPerStop();
+    }
+
+    /**
+     * Same as {@link #handleTransfers(boolean, RaptorParameters)}, but the improved stops are partitioned into
+     * consecutive chunks which are handled in parallel. Each chunk only collects the transfers improving the
+     * costs before this stage, and the collected transfers are then checked again and merged in the order of the stops,
+     * resulting in exactly the same labels as the sequential handling of the transfers.
+     */
+    private void handleTransfers(boolean strict, RaptorParameters raptorParams, Executor executor, int parallelism) {
+        if (this.stopsToHandle == null) {
+            this.stopsToHandle = new int[this.data.countStops];
+        }
+        final int[] stopsToHandle = this.stopsToHandle;
+        int stopCount = 0;
+        for (int stopIndex = this.improvedStops.nextSetBit(0); stopIndex >= 0; stopIndex = this.improvedStops.nextSetBit(stopIndex + 1)) {
+            stopsToHandle[stopCount++] = stopIndex;
+        }
+        int taskCount = Math.min(parallelism, stopCount / Math.max(1, this.data.config.getMinItemsPerParallelTask()));
+        if (taskCount <= 1) {
+            handleTransfers(strict, raptorParams);
+            return;
+        }
+
+        CostParameters costParameters = new CostParameters(raptorParams);
+        PathLabels[] buffers = getParallelLabels(taskCount);
+        runInParallel(stopCount, taskCount, executor, (taskIndex, fromIndex, toIndex) -> {
+            PathLabels buffer = buffers[taskIndex];
+            for (int i = fromIndex; i < toIndex; i++) {
+                handleTransfers(stopsToHandle[i], strict, costParameters, buffer);
+            }
+        });
+
+        clearMarkedRouteStops();
+        this.tmpImprovedStops.clear();
+        for (int t = 0; t < taskCount; t++) {
+            PathLabels buffer = buffers[t];
+            for (int i = 0; i < buffer.count; i++) {
+                int toRouteStopIndex = buffer.toRouteStop[i];
+                double newTotalArrivalCost = buffer.arrivalTravelCost[i] + buffer.arrivalTransferCost[i];
+                double prevLeastArrivalCost = this.leastArrivalCostAtRouteStop[toRouteStopIndex];
+                if (newTotalArrivalCost < prevLeastArrivalCost || (!strict && newTotalArrivalCost <= prevLeastArrivalCost)) {
+                    int label = this.labels.add(buffer, i);
+                    addTransferArrival(label, toRouteStopIndex, newTotalArrivalCost, strict);
+                }
+            }
+        }
+        updateArrivalPathPerStop();
+    }
+
+    /**
+     * Handles the transfers starting at the given stop.
+     *
+     * @param newLabels where the new labels are stored. If these are not the labels of this route search,
+     *                  the new labels are only collected and the arrivals are not updated.
+     */
+    private void handleTransfers(int stopIndex, boolean strict, CostParameters costParameters, PathLabels newLabels) {
+        final int[] transferToRouteStops = this.data.transferToRouteStops;
+        final double[] transferTimes = this.data.transferTimes;
+        final RTransferTimeProfiles transferTimeProfiles = this.data.transferTimeProfiles;
+        final PathLabels labels = this.labels;
+        final double margUtilityTransitWalk = costParameters.marginalUtilityOfTransitWalk_utl_s;
+
+        int fromLabel = this.arrivalPathPerStop[stopIndex];
+        double arrivalTime = labels.arrivalTime[fromLabel];
+        double arrivalTravelCost = labels.arrivalTravelCost[fromLabel];
+        double arrivalTransferCost = labels.arrivalTransferCost[fromLabel];
+        double firstDepartureTime = labels.firstDepartureTime[fromLabel];
+        int transferCount = labels.transferCount[fromLabel];
+        double totalArrivalCost = arrivalTravelCost + arrivalTransferCost;
+        if (totalArrivalCost > this.bestArrivalCost) {
+            return;
+        }
+        int fromRouteStopIndex = labels.toRouteStop[fromLabel]; // this is the route stop we arrive with least cost at stop
+        // all transfers start at the same stop and time, so they also have the same additional transfer time
+        double additionalTransferTime = transferTimeProfiles == null ? 0 : transferTimeProfiles.getAdditionalTransferTime(stopIndex, arrivalTime);
+        int firstTransferIndex = this.data.routeStopFirstTransferIndices[fromRouteStopIndex];
+        int lastTransferIndex = firstTransferIndex + this.data.routeStopTransferCounts[fromRouteStopIndex];
+        for (int transferIndex = firstTransferIndex; transferIndex < lastTransferIndex; transferIndex++) {
+            int toRouteStopIndex = transferToRouteStops[transferIndex];
+            double transferTime = transferTimes[transferIndex] + additionalTransferTime;
+            double newArrivalTime = arrivalTime + transferTime;
+            if (newArrivalTime > this.maxArrivalTime) {
+                continue;
+            }
+            double newArrivalTravelCost = arrivalTravelCost - transferTime * margUtilityTransitWalk;
+            double newArrivalTransferCost = Double.isFinite(firstDepartureTime) ? costParameters.calcTransferCost(newArrivalTime - firstDepartureTime) * (transferCount + 1) : 0;
+            double newTotalArrivalCost = newArrivalTravelCost + newArrivalTransferCost;
+            double prevLeastArrivalCost = this.leastArrivalCostAtRouteStop[toRouteStopIndex];
+            if (newTotalArrivalCost < prevLeastArrivalCost || (!strict && newTotalArrivalCost <= prevLeastArrivalCost)) {
+                if (this.useLowerBounds && this.lowerBounds.exceeds(toRouteStopIndex, this.bestArrivalCost - newTotalArrivalCost)) {
+                    continue;
+                }
+                int label = newLabels.add(fromLabel, toRouteStopIndex, firstDepartureTime, Double.NaN, newArrivalTime, newArrivalTravelCost, newArrivalTransferCost, this.data.transferDistances[transferIndex], transferCount + 1, true, null);
+                if (newLabels == labels) {
+                    addTransferArrival(label, toRouteStopIndex, newTotalArrivalCost, strict);
+                }
+            }
+        }
+    }
+
+    private void addTransferArrival(int label, int toRouteStopIndex, double newTotalArrivalCost, boolean strict) {
+        touchRouteStop(toRouteStopIndex);
+        this.arrivalPathPerRouteStop[toRouteStopIndex] = label;
+        this.leastArrivalCostAtRouteStop[toRouteStopIndex] = newTotalArrivalCost;
+        markRouteStop(toRouteStopIndex);
+        int toStopFacilityIndex = this.data.routeStopStopFacilityIndices[toRouteStopIndex];
+        double prevLeastArrivalCost = this.leastArrivalCostAtStop[toStopFacilityIndex];
+        if (newTotalArrivalCost < prevLeastArrivalCost || (!strict && newTotalArrivalCost <= prevLeastArrivalCost)) {
+            // store it in tmp only. We don't want that this label is used by a stop processed later in the same round. ("parallel update")
+            touchStop(toStopFacilityIndex);
+            this.leastArrivalCostAtStop[toStopFacilityIndex] = newTotalArrivalCost;
+            this.tmpArrivalPathPerStop[toStopFacilityIndex] = label;
+            this.tmpImprovedStops.set(toStopFacilityIndex);
+        }
+    }
+
+    private void updateArrivalPathPerStop() {
+        // "parallel update". now copy over the newly improved data after all transfers were handled
+        for (int stopIndex = this.tmpImprovedStops.nextSetBit(0); stopIndex >= 0; stopIndex = this.tmpImprovedStops.nextSetBit(stopIndex + 1)) {
+            this.arrivalPathPerStop[stopIndex] = this.tmpArrivalPathPerStop[stopIndex];
+        }
+    }
+
+    private PathLabels[] getParallelLabels(int count) {
+        if (this.parallelLabels == null || this.parallelLabels.length < count) {
+            PathLabels[] parallelLabels = new PathLabels[count];
+            for (int i = 0; i < count; i++) {
+                parallelLabels[i] = (this.parallelLabels != null && i < this.parallelLabels.length) ? this.parallelLabels[i] : new PathLabels(this.data.countStops);
+            }
+            this.parallelLabels = parallelLabels;
+        }
+        for (int i = 0; i < count; i++) {
+            this.parallelLabels[i].clear();
+        }
+        return this.parallelLabels;
+    }
+
+    /**
+     * Splits the items into <code>taskCount</code> consecutive chunks and runs the task for each chunk.
+     * The first chunk is handled by the calling thread, the others by the executor. Returns after all
+     * chunks were handled.
+     */
+    private static void runInParallel(int itemCount, int taskCount, Executor executor, ChunkTask task) {
+        CompletableFuture<?>[] futures = new CompletableFuture[taskCount - 1];
+        for (int t = 1; t < taskCount; t++) {
+            int taskIndex = t;
+            int fromIndex = (int) ((long) itemCount * t / taskCount);
+            int toIndex = (int) ((long) itemCount * (t + 1) / taskCount);
+            futures[t - 1] = CompletableFuture.runAsync(() -> task.run(taskIndex, fromIndex, toIndex), executor);
+        }
+        Throwable error = null;
+        try {
+            task.run(0, 0, (int) ((long) itemCount / taskCount));
+        } catch (RuntimeException | Error e) {
+            error = e;
+        }
+        // always wait for all chunks, the tasks use the state of this instance
+        for (CompletableFuture<?> future : futures) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                if (error == null) {
+                    error = e.getCause();
+                }
+            }
+        }
+        if (error != null) {
+            throw new RuntimeException("Error while exploring a round in parallel.", error);
+        }
+    }
+
+    @FunctionalInterface
+    private interface ChunkTask {
+        void run(int taskIndex, int fromIndex, int toIndex);
+    }
+
+    /**
+     * The cost parameters used in every round, looked up only once per stage.
+     */
+    private static final class CostParameters {
+        final RaptorParameters parameters;
+        final double transferCostBase;
+        final double transferCostPerHour;
+        final double transferCostMin;
+        final double transferCostMax;
+        final double marginalUtilityOfWaitingPt_utl_s;
+        final double marginalUtilityOfTransitWalk_utl_s;
+
+        CostParameters(RaptorParameters parameters) {
+            this.parameters = parameters;
+            this.transferCostBase = parameters.getTransferPenaltyFixCostPerTransfer();
+            this.transferCostPerHour = parameters.getTransferPenaltyPerTravelTimeHour();
+            this.transferCostMin = parameters.getTransferPenaltyMinimum();
+            this.transferCostMax = parameters.getTransferPenaltyMaximum();
+            this.marginalUtilityOfWaitingPt_utl_s = parameters.getMarginalUtilityOfWaitingPt_utl_s();
+            this.marginalUtilityOfTransitWalk_utl_s = parameters.getMarginalUtilityOfTravelTime_utl_s(TransportMode.transit_walk);
+        }
+
+        double calcTransferCost(double travelTime) {
+            return SwissRailRaptorCore.calcTransferCost(this.transferCostBase, this.transferCostPerHour, this.transferCostMin, this.transferCostMax, travelTime);
+        }
+    }
+
+    /**
+     * @return the label of the egress leg of the least cost path, or -1 if no destination stop was reached yet.
+     */
+    private int findLeastCostArrival(Map<TransitStopFacility, InitialStop> destinationStops) {
+        final PathLabels labels = this.labels;
+        double leastCost = Double.POSITIVE_INFINITY;
+        int leastCostLabel = -1;
+        InitialStop leastCostEgressStop = null;
+
+        for (Map.Entry<TransitStopFacility, InitialStop> e : destinationStops.entrySet()) {
+            TransitStopFacility stop = e.getKey();
+            int stopIndex = this.data.stopFacilityIndices.get(stop);
+            int label = this.arrivalPathPerStop[stopIndex];
+            if (label >= 0) {
+                InitialStop egressStop = e.getValue();
+                double arrivalTravelCost = labels.arrivalTravelCost[label] + egressStop.accessCost;
+                double totalCost = arrivalTravelCost + labels.arrivalTransferCost[label];
+                if ((totalCost < leastCost) || (totalCost == leastCost && labels.transferCount[label] < labels.transferCount[leastCostLabel])) {
+                    leastCost = totalCost;
+                    leastCostLabel = label;
+                    leastCostEgressStop = egressStop;
+                }
+            }
+        }
+        if (leastCostLabel < 0) {
+            return -1;
+        }
+        // this is the egress leg
+        return labels.add(leastCostLabel, -1, labels.firstDepartureTime[leastCostLabel], Double.NaN,
+                labels.arrivalTime[leastCostLabel] + leastCostEgressStop.accessTime, labels.arrivalTravelCost[leastCostLabel] + leastCostEgressStop.accessCost,
+                labels.arrivalTransferCost[leastCostLabel], leastCostEgressStop.distance, labels.transferCount[leastCostLabel], true, leastCostEgressStop);
+    }
+
+    private static RaptorRoute createRaptorRoute(SwissRailRaptorData data, Facility fromFacility, Facility toFacility, PathElement destinationPathElement, double departureTime) {
+        LinkedList<PathElement> pes = new LinkedList<>();
+        double arrivalCost = Double.POSITIVE_INFINITY;
+        if (destinationPathElement != null) {
+            arrivalCost = destinationPathElement.arrivalTravelCost + destinationPathElement.arrivalTransferCost;
+            PathElement pe = destinationPathElement;
+            while (pe.comingFrom != null) {
+                pes.addFirst(pe);
+                pe = pe.comingFrom;
+            }
+            pes.addFirst(pe);
+        }
+        if (pes.size() == 2 && pes.get(0).isTransfer && pes.get(1).isTransfer) {
+            // it's only access and egress, no real pt trip
+            arrivalCost = Double.POSITIVE_INFINITY;
+            pes.clear();
+        }
+
+	    // yyyyyy I am having the following situation:
+	    // * assume there is only one drt link.  This happens when the pt trip is outside the service area, and then both the starting and the ending
+	    // location are mapped to the same link.
+	    // * In consequence, the trip becomes "access_walk_to_drt"---"egress_walk_to_drt" (*).  However, the cost of that is set to infty here ... with the
+	    // consequence that the raptor returns a "pure transit walk" later.
+	    // I thought that you said that it would directly return (*).  It would (I think) also be easier to debug.  kai, jun'19
+
+        RaptorRoute raptorRoute = new RaptorRoute(fromFacility, toFacility, arrivalCost);
+        double time = departureTime;
+        TransitStopFacility fromStop = null;
+        int peCount = pes.size();
+        int i = -1;
+        for (PathElement pe : pes) {
+            i++;
+            TransitStopFacility toStop = pe.toRouteStop < 0 ? null : data.transitRouteStops[pe.toRouteStop].getStopFacility();
+            double travelTime = pe.arrivalTime - time;
             if (pe.initialStop != null && pe.initialStop.planElements != null) {
                 raptorRoute.addPlanElements(time, travelTime, pe.initialStop.planElements);
             } else if (pe.isTransfer) {
@@ -859,9 +2448,8 @@ public class SwissRailRaptorCore {
                     raptorRoute.addNonPt(fromStop, toStop, time, travelTime, pe.distance, mode);
                 }
             } else {
-                TransitLine line = pe.toRouteStop.line;
-                TransitRoute route = pe.toRouteStop.route;
-                raptorRoute.addPt(fromStop, toStop, line, route, pe.toRouteStop.mode, time, pe.boardingTime, pe.arrivalTime, pe.distance);
+                RRoute route = data.routes[data.routeStopRouteIndices[pe.toRouteStop]];
+                raptorRoute.addPt(fromStop, toStop, route.line, route.route, route.mode, time, pe.boardingTime, pe.arrivalTime, pe.distance);
             }
             time = pe.arrivalTime;
             fromStop = toStop;
@@ -873,9 +2461,160 @@ public class SwissRailRaptorCore {
         return initialStop != null && initialStop.planElements != null;
     }
 
+    /**
+     * The trips boarded while exploring a route in the multi-criteria search, each together with the label it was
+     * boarded from. Re-used for every route, like {@link PathLabels}.
+     */
+    private static final class RouteBag {
+        int size = 0;
+        int[] boardingLabels = new int[16];
+        int[] departureTimes = new int[16]; // the departure time at the start of the route
+        double[] boardingTimes = new double[16];
+        double[] travelCostsWhenBoarding = new double[16];
+        double[] firstDepartureTimes = new double[16];
+
+        void clear() {
+            this.size = 0;
+        }
+
+        void add(int boardingLabel, int departureTime, double boardingTime, double travelCostWhenBoarding, double firstDepartureTime) {
+            if (this.size == this.boardingLabels.length) {
+                int capacity = this.size * 2;
+                this.boardingLabels = Arrays.copyOf(this.boardingLabels, capacity);
+                this.departureTimes = Arrays.copyOf(this.departureTimes, capacity);
+                this.boardingTimes = Arrays.copyOf(this.boardingTimes, capacity);
+                this.travelCostsWhenBoarding = Arrays.copyOf(this.travelCostsWhenBoarding, capacity);
+                this.firstDepartureTimes = Arrays.copyOf(this.firstDepartureTimes, capacity);
+            }
+            int i = this.size++;
+            this.boardingLabels[i] = boardingLabel;
+            this.departureTimes[i] = departureTime;
+            this.boardingTimes[i] = boardingTime;
+            this.travelCostsWhenBoarding[i] = travelCostWhenBoarding;
+            this.firstDepartureTimes[i] = firstDepartureTime;
+        }
+
+        /**
+         * Removes the trip at the given position by replacing it with the last one.
+         */
+        void remove(int i) {
+            int last = --this.size;
+            this.boardingLabels[i] = this.boardingLabels[last];
+            this.departureTimes[i] = this.departureTimes[last];
+            this.boardingTimes[i] = this.boardingTimes[last];
+            this.travelCostsWhenBoarding[i] = this.travelCostsWhenBoarding[last];
+            this.firstDepartureTimes[i] = this.firstDepartureTimes[last];
+        }
+    }
+
+    /**
+     * Stores the path labels of a route search in primitive arrays, so no objects need to be allocated while
+     * routing. A label is referenced by its index, <code>-1</code> stands for no label. The arrays are re-used
+     * for every route search, {@link PathElement}s are only created when a found path must be returned.
+     */
+    private static final class PathLabels {
+        int count = 0;
+        int[] comingFrom;
+        int[] toRouteStop; // index of the route stop, -1 for the egress leg
+        double[] firstDepartureTime; // the departure time at the start stop
+        double[] boardingTime;
+        double[] arrivalTime;
+        double[] arrivalTravelCost;
+        double[] arrivalTransferCost;
+        double[] distance;
+        int[] transferCount;
+        boolean[] isTransfer;
+        InitialStop[] initialStop;
+
+        PathLabels(int capacity) {
+            capacity = Math.max(capacity, 16);
+            this.comingFrom = new int[capacity];
+            this.toRouteStop = new int[capacity];
+            this.firstDepartureTime = new double[capacity];
+            this.boardingTime = new double[capacity];
+            this.arrivalTime = new double[capacity];
+            this.arrivalTravelCost = new double[capacity];
+            this.arrivalTransferCost = new double[capacity];
+            this.distance = new double[capacity];
+            this.transferCount = new int[capacity];
+            this.isTransfer = new boolean[capacity];
+            this.initialStop = new InitialStop[capacity];
+        }
+
+        void clear() {
+            Arrays.fill(this.initialStop, 0, this.count, null);
+            this.count = 0;
+        }
+
+        int add(int comingFrom, int toRouteStop, double firstDepartureTime, double boardingTime, double arrivalTime, double arrivalTravelCost, double arrivalTransferCost, double distance, int transferCount, boolean isTransfer, InitialStop initialStop) {
+            if (this.count == this.comingFrom.length) {
+                grow();
+            }
+            int label = this.count;
+            this.comingFrom[label] = comingFrom;
+            this.toRouteStop[label] = toRouteStop;
+            this.firstDepartureTime[label] = firstDepartureTime;
+            this.boardingTime[label] = boardingTime;
+            this.arrivalTime[label] = arrivalTime;
+            this.arrivalTravelCost[label] = arrivalTravelCost;
+            this.arrivalTransferCost[label] = arrivalTransferCost;
+            this.distance[label] = distance;
+            this.transferCount[label] = transferCount;
+            this.isTransfer[label] = isTransfer;
+            this.initialStop[label] = initialStop;
+            this.count++;
+            return label;
+        }
+
+        /**
+         * Adds a copy of a label of another instance.
+         */
+        int add(PathLabels other, int label) {
+            return add(other.comingFrom[label], other.toRouteStop[label], other.firstDepartureTime[label], other.boardingTime[label], other.arrivalTime[label],
+                    other.arrivalTravelCost[label], other.arrivalTransferCost[label], other.distance[label], other.transferCount[label], other.isTransfer[label], other.initialStop[label]);
+        }
+
+        private void grow() {
+            int capacity = this.comingFrom.length * 2;
+            this.comingFrom = Arrays.copyOf(this.comingFrom, capacity);
+            this.toRouteStop = Arrays.copyOf(this.toRouteStop, capacity);
+            this.firstDepartureTime = Arrays.copyOf(this.firstDepartureTime, capacity);
+            this.boardingTime = Arrays.copyOf(this.boardingTime, capacity);
+            this.arrivalTime = Arrays.copyOf(this.arrivalTime, capacity);
+            this.arrivalTravelCost = Arrays.copyOf(this.arrivalTravelCost, capacity);
+            this.arrivalTransferCost = Arrays.copyOf(this.arrivalTransferCost, capacity);
+            this.distance = Arrays.copyOf(this.distance, capacity);
+            this.transferCount = Arrays.copyOf(this.transferCount, capacity);
+            this.isTransfer = Arrays.copyOf(this.isTransfer, capacity);
+            this.initialStop = Arrays.copyOf(this.initialStop, capacity);
+        }
+
+        /**
+         * Creates the PathElements for the given label and all its predecessors.
+         *
+         * @param pathElements optional, already created PathElements per label that can be re-used. Newly created PathElements are added.
+         * @return <code>null</code> if <code>label</code> is <code>-1</code>
+         */
+        PathElement toPathElement(int label, PathElement[] pathElements) {
+            if (label < 0) {
+                return null;
+            }
+            if (pathElements != null && pathElements[label] != null) {
+                return pathElements[label];
+            }
+            PathElement comingFrom = toPathElement(this.comingFrom[label], pathElements);
+            PathElement pe = new PathElement(comingFrom, this.toRouteStop[label], this.firstDepartureTime[label], this.boardingTime[label], this.arrivalTime[label],
+                    this.arrivalTravelCost[label], this.arrivalTransferCost[label], this.distance[label], this.transferCount[label], this.isTransfer[label], this.initialStop[label]);
+            if (pathElements != null) {
+                pathElements[label] = pe;
+            }
+            return pe;
+        }
+    }
+
     private static class PathElement {
         final PathElement comingFrom;
-        final RRouteStop toRouteStop;
+        final int toRouteStop; // index of the route stop, -1 for the egress leg
         final double firstDepartureTime; // the departure time at the start stop
         final double boardingTime;
         final double arrivalTime;
@@ -886,7 +2625,7 @@ public class SwissRailRaptorCore {
         final boolean isTransfer;
         final InitialStop initialStop;
 
-        PathElement(PathElement comingFrom, RRouteStop toRouteStop, double firstDepartureTime, double boardingTime, double arrivalTime, double arrivalTravelCost, double arrivalTransferCost, double distance, int transferCount, boolean isTransfer, InitialStop initialStop) {
+        PathElement(PathElement comingFrom, int toRouteStop, double firstDepartureTime, double boardingTime, double arrivalTime, double arrivalTravelCost, double arrivalTransferCost, double distance, int transferCount, boolean isTransfer, InitialStop initialStop) {
             this.comingFrom = comingFrom;
             this.toRouteStop = toRouteStop;
             this.firstDepartureTime = firstDepartureTime;
@@ -902,20 +2641,22 @@ public class SwissRailRaptorCore {
     }
 
     private static class DepartureAtRouteStop {
-        final RRouteStop routeStop;
         final InitialStop accessStop;
-        final int departureIndex;
+        final int routeIndex;
+        final int departureTimeAtRouteStart;
         final int routeStopIndex;
         final double depTime;
         final double costOffset;
+        final int accessTransferIndex;
 
-        DepartureAtRouteStop(RRouteStop routeStop, int routeStopIndex, int departureIndex, double depTime, double costOffset, InitialStop accessStop) {
-            this.routeStop = routeStop;
+        DepartureAtRouteStop(int routeStopIndex, int routeIndex, int departureTimeAtRouteStart, double depTime, double costOffset, InitialStop accessStop, int accessTransferIndex) {
             this.routeStopIndex = routeStopIndex;
-            this.departureIndex = departureIndex;
+            this.routeIndex = routeIndex;
+            this.departureTimeAtRouteStart = departureTimeAtRouteStart;
             this.depTime = depTime;
             this.costOffset = costOffset;
             this.accessStop = accessStop;
+            this.accessTransferIndex = accessTransferIndex;
         }
     }
 
@@ -941,9 +2682,10 @@ public class SwissRailRaptorCore {
         /** the costs an agent accumulates due to waiting at the first stop until the first pt vehicle departs. */
         public final double waitingCost;
 
+        private final SwissRailRaptorData data;
         private final PathElement destinationPath;
 
-        TravelInfo(Id<TransitStopFacility> departureStop, double departureTime, double arrivalTime, double travelCost, double accessTime, double accessCost, int transferCount, double waitingTime, double waitingCost, PathElement destinationPath) {
+        TravelInfo(SwissRailRaptorData data, Id<TransitStopFacility> departureStop, double departureTime, double arrivalTime, double travelCost, double accessTime, double accessCost, int transferCount, double waitingTime, double waitingCost, PathElement destinationPath) {
             this.departureStop = departureStop;
             this.ptDepartureTime = departureTime;
             this.ptArrivalTime = arrivalTime;
@@ -954,6 +2696,7 @@ public class SwissRailRaptorCore {
             this.transferCount = transferCount;
             this.waitingTime = waitingTime;
             this.waitingCost = waitingCost;
+            this.data = data;
             this.destinationPath = destinationPath;
         }
 
@@ -963,9 +2706,9 @@ public class SwissRailRaptorCore {
                 firstPath = firstPath.comingFrom;
             }
 
-            Facility fromFacility = firstPath.toRouteStop.routeStop.getStopFacility();
-            Facility toFacility = this.destinationPath.toRouteStop.routeStop.getStopFacility();
-            return createRaptorRoute(fromFacility, toFacility, this.destinationPath, firstPath.arrivalTime);
+            Facility fromFacility = this.data.transitRouteStops[firstPath.toRouteStop].getStopFacility();
+            Facility toFacility = this.data.transitRouteStops[this.destinationPath.toRouteStop].getStopFacility();
+            return createRaptorRoute(this.data, fromFacility, toFacility, this.destinationPath, firstPath.arrivalTime);
         }
 
         public boolean isWalkOnly() {
@@ -982,4 +2725,119 @@ public class SwissRailRaptorCore {
             return true;
         }
     }
+
+    /**
+     * The result of a tree calculation, where the values are stored in arrays addressed by the index of the stop and of
+     * the entry instead of in one {@link TravelInfo} per reached stop. The entries of the stop with index <code>i</code> are
+     * <code>getFirstEntry(i) .. getFirstEntry(i) + getEntryCount(i) - 1</code>. A least cost tree has at most one entry per stop,
+     * a profile tree has one entry for each connection in the profile of a stop. The routes are only created on request.
+     */
+    public static final class TravelInfoTree {
+        private final SwissRailRaptorData data;
+        private final int[] firstEntries;
+        private final PathLabels paths;
+        final int[] entryLabels;
+        final int[] departureRouteStops;
+        final double[] ptDepartureTimes;
+        final double[] ptArrivalTimes;
+        final double[] travelCosts;
+        final double[] accessTimes;
+        final double[] accessCosts;
+        final double[] waitingTimes;
+        final double[] waitingCosts;
+        final int[] transferCounts;
+        final boolean[] walkOnly;
+
+        TravelInfoTree(SwissRailRaptorData data, int[] firstEntries, PathLabels paths) {
+            int entryCount = firstEntries[firstEntries.length - 1];
+            this.data = data;
+            this.firstEntries = firstEntries;
+            this.paths = paths;
+            this.entryLabels = new int[entryCount];
+            this.departureRouteStops = new int[entryCount];
+            this.ptDepartureTimes = new double[entryCount];
+            this.ptArrivalTimes = new double[entryCount];
+            this.travelCosts = new double[entryCount];
+            this.accessTimes = new double[entryCount];
+            this.accessCosts = new double[entryCount];
+            this.waitingTimes = new double[entryCount];
+            this.waitingCosts = new double[entryCount];
+            this.transferCounts = new int[entryCount];
+            this.walkOnly = new boolean[entryCount];
+        }
+
+        /**
+         * @return the index of the stop, or <code>-1</code> if the stop is not served by any route.
+         */
+        public int getStopIndex(TransitStopFacility stop) {
+            Integer stopIndex = this.data.stopFacilityIndices.get(stop);
+            return stopIndex == null ? -1 : stopIndex;
+        }
+
+        public int getFirstEntry(int stopIndex) {
+            return this.firstEntries[stopIndex];
+        }
+
+        public int getEntryCount(int stopIndex) {
+            return this.firstEntries[stopIndex + 1] - this.firstEntries[stopIndex];
+        }
+
+        /** The stop where the connection of the entry starts. */
+        public TransitStopFacility getDepartureStop(int entry) {
+            return this.data.transitRouteStops[this.departureRouteStops[entry]].getStopFacility();
+        }
+
+        public int getTransferCount(int entry) {
+            return this.transferCounts[entry];
+        }
+
+        /** The departure time at the first stop */
+        public double getPtDepartureTime(int entry) {
+            return this.ptDepartureTimes[entry];
+        }
+
+        /** The arrival time at the last stop */
+        public double getPtArrivalTime(int entry) {
+            return this.ptArrivalTimes[entry];
+        }
+
+        public double getPtTravelTime(int entry) {
+            return this.ptArrivalTimes[entry] - this.ptDepartureTimes[entry];
+        }
+
+        /** The cost for travelling from the first stop to the last stop, without access cost and waiting at the first stop. */
+        public double getTravelCost(int entry) {
+            return this.travelCosts[entry];
+        }
+
+        public double getAccessTime(int entry) {
+            return this.accessTimes[entry];
+        }
+
+        public double getAccessCost(int entry) {
+            return this.accessCosts[entry];
+        }
+
+        public double getWaitingTime(int entry) {
+            return this.waitingTimes[entry];
+        }
+
+        public double getWaitingCost(int entry) {
+            return this.waitingCosts[entry];
+        }
+
+        public boolean isWalkOnly(int entry) {
+            return this.walkOnly[entry];
+        }
+
+        public RaptorRoute getRaptorRoute(int entry) {
+            return getTravelInfo(entry).getRaptorRoute();
+        }
+
+        public TravelInfo getTravelInfo(int entry) {
+            PathElement destinationPath = this.paths.toPathElement(this.entryLabels[entry], null);
+            return new TravelInfo(this.data, getDepartureStop(entry).getId(), this.ptDepartureTimes[entry], this.ptArrivalTimes[entry], this.travelCosts[entry],
+                    this.accessTimes[entry], this.accessCosts[entry], this.transferCounts[entry], this.waitingTimes[entry], this.waitingCosts[entry], destinationPath);
+        }
+    }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Manages the working state ({@link SwissRailRaptorCore}) of route searches for one {@link SwissRailRaptorData}.
+ * As the working state contains several arrays sized to the number of route stops, it should not be
+ * created for every router or even every route search, but be shared between all routers using the same data.
+ *
+ * Borrowing a core never blocks: if no idle core is available, a new one is created. At most
+ * <code>maxIdleCores</code> cores are kept for re-use, additional ones are discarded when they are returned.
+ * This class is thread-safe.
+ *
+ * @author mrieser / SBB
+ */
+final class SwissRailRaptorCorePool {
+
+    private final SwissRailRaptorData data;
+    private final ArrayBlockingQueue<SwissRailRaptorCore> idleCores;
+
+    SwissRailRaptorCorePool(SwissRailRaptorData data) {
+        this(data, data.config.getNumberOfThreads());
+    }
+
+    SwissRailRaptorCorePool(SwissRailRaptorData data, int maxIdleCores) {
+        this.data = data;
+        this.idleCores = new ArrayBlockingQueue<>(Math.max(1, maxIdleCores));
+    }
+
+    SwissRailRaptorData getData() {
+        return this.data;
+    }
+
+    SwissRailRaptorCore borrow() {
+        SwissRailRaptorCore core = this.idleCores.poll();
+        if (core == null) {
+            core = new SwissRailRaptorCore(this.data);
+        }
+        return core;
+    }
+
+    void release(SwissRailRaptorCore core) {
+        this.idleCores.offer(core);
+    }
+}
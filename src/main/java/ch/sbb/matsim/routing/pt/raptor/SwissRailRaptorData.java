@@ -14,6 +14,8 @@ import org.matsim.core.population.routes.NetworkRoute;
 import org.matsim.core.utils.collections.QuadTree;
 import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.misc.Time;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.Facility;
 import org.matsim.pt.transitSchedule.api.Departure;
 import org.matsim.pt.transitSchedule.api.MinimalTransferTimes;
 import org.matsim.pt.transitSchedule.api.TransitLine;
@@ -25,11 +27,17 @@ import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * @author mrieser / SBB
@@ -38,39 +46,378 @@ public class SwissRailRaptorData {
 
     private static final Logger log = Logger.getLogger(SwissRailRaptorData.class);
 
+    /** the minimal number of departures with a regular headway to store them frequency-based instead of explicitly. */
+    static final int MIN_FREQUENCY_DEPARTURES = 3;
+
+    /** the maximal number of facilities for which the nearby stops are remembered, about 100 bytes plus the stop indices each. */
+    static final int MAX_REMEMBERED_FACILITIES = 200_000;
+    private static final int NEARBY_STOPS_SEGMENT_COUNT = 16;
+
     final RaptorStaticConfig config;
     final int countStops;
     final int countRouteStops;
     final RRoute[] routes;
-    final double[] departures; // in the RAPTOR paper, this is usually called "trips", but I stick with the MATSim nomenclature
-    final RRouteStop[] routeStops; // list of all route stops
-    final RTransfer[] transfers;
+    final int[] departures; // in the RAPTOR paper, this is usually called "trips", but I stick with the MATSim nomenclature. Only contains the explicit departures, see RRoute.
+
+    // route stops, stored as struct-of-arrays for better memory locality in the routing loops.
+    // All arrays are indexed by the route stop index.
+    final int[] routeStopRouteIndices;
+    final int[] routeStopStopFacilityIndices;
+    final double[] routeStopArrivalOffsets;
+    final double[] routeStopDepartureOffsets;
+    final double[] routeStopDistancesAlongRoute;
+    final int[] routeStopFirstTransferIndices;
+    final int[] routeStopTransferCounts;
+    final TransitRouteStop[] transitRouteStops; // only required to reconstruct the routes, not used during routing
+
+    // transfers, also stored as struct-of-arrays, indexed by the transfer index.
+    final int[] transferFromRouteStops;
+    final int[] transferToRouteStops;
+    final double[] transferTimes;
+    final double[] transferDistances;
+    final RTransferTimeProfiles transferTimeProfiles; // null if no stop has additional transfer times
+
     final Map<TransitStopFacility, Integer> stopFacilityIndices;
     final Map<TransitStopFacility, int[]> routeStopsPerStopFacility;
     final QuadTree<TransitStopFacility> stopsQT;
-    final Map<String, Map<String, QuadTree<TransitStopFacility>>> stopFilterAttribute2Value2StopsQT;
+    final RaptorStopGrid stopGrid;
+    private final NearbyStopsSegment[] nearbyStopsPerFacility = createNearbyStopsSegments(); // at most MAX_REMEMBERED_FACILITIES entries in total
+    private final Map<String, Map<String, QuadTree<TransitStopFacility>>> stopFilterAttribute2Value2StopsQT; // immutable, prepared for the stop filters of the static config
+    private final Map<String, Map<String, QuadTree<TransitStopFacility>>> additionalStopFilterQTs = new ConcurrentHashMap<>(); // only used for stop filters missing in the static config
+    final Map<Id<TransitStopFacility>, Map<Id<TransitStopFacility>, Double>> minimalTransferTimes; // the minimal transfer times the data was created with, required for updates
+    private volatile RaptorLowerBounds.StopGraph lowerBoundsGraph = null; // only created if required
+    private volatile RIncomingTransfers incomingTransfers = null; // only created if required
 
-    private SwissRailRaptorData(RaptorStaticConfig config, int countStops,
-                                RRoute[] routes, double[] departures, RRouteStop[] routeStops,
-                                RTransfer[] transfers, Map<TransitStopFacility, Integer> stopFacilityIndices,
-                                Map<TransitStopFacility, int[]> routeStopsPerStopFacility, QuadTree<TransitStopFacility> stopsQT) {
+    SwissRailRaptorData(RaptorStaticConfig config, int countStops, RRoute[] routes, int[] departures,
+                        int[] routeStopRouteIndices, int[] routeStopStopFacilityIndices,
+                        double[] routeStopArrivalOffsets, double[] routeStopDepartureOffsets, double[] routeStopDistancesAlongRoute,
+                        int[] routeStopFirstTransferIndices, int[] routeStopTransferCounts, TransitRouteStop[] transitRouteStops,
+                        int[] transferFromRouteStops, int[] transferToRouteStops, double[] transferTimes, double[] transferDistances,
+                        Map<TransitStopFacility, Integer> stopFacilityIndices,
+                        Map<TransitStopFacility, int[]> routeStopsPerStopFacility, QuadTree<TransitStopFacility> stopsQT,
+                        Map<Id<TransitStopFacility>, Map<Id<TransitStopFacility>, Double>> minimalTransferTimes) {
         this.config = config;
         this.countStops = countStops;
-        this.countRouteStops = routeStops.length;
+        this.countRouteStops = routeStopRouteIndices.length;
         this.routes = routes;
         this.departures = departures;
-        this.routeStops = routeStops;
-        this.transfers = transfers;
+        this.routeStopRouteIndices = routeStopRouteIndices;
+        this.routeStopStopFacilityIndices = routeStopStopFacilityIndices;
+        this.routeStopArrivalOffsets = routeStopArrivalOffsets;
+        this.routeStopDepartureOffsets = routeStopDepartureOffsets;
+        this.routeStopDistancesAlongRoute = routeStopDistancesAlongRoute;
+        this.routeStopFirstTransferIndices = routeStopFirstTransferIndices;
+        this.routeStopTransferCounts = routeStopTransferCounts;
+        this.transitRouteStops = transitRouteStops;
+        this.transferFromRouteStops = transferFromRouteStops;
+        this.transferToRouteStops = transferToRouteStops;
+        this.transferTimes = transferTimes;
+        this.transferDistances = transferDistances;
+        this.transferTimeProfiles = RTransferTimeProfiles.create(config, stopFacilityIndices);
         this.stopFacilityIndices = stopFacilityIndices;
         this.routeStopsPerStopFacility = routeStopsPerStopFacility;
         this.stopsQT = stopsQT;
-        this.stopFilterAttribute2Value2StopsQT = new HashMap<String, Map<String, QuadTree<TransitStopFacility>>>();
+        this.stopGrid = new RaptorStopGrid(stopFacilityIndices);
+        this.stopFilterAttribute2Value2StopsQT = createStopFilterQuadTrees(config.getStopFilters(), routeStopsPerStopFacility.keySet(), stopsQT);
+        this.minimalTransferTimes = minimalTransferTimes;
     }
 
     public static SwissRailRaptorData create(TransitSchedule schedule, RaptorStaticConfig staticConfig, Network network) {
         log.info("Preparing data for SwissRailRaptor...");
         long startMillis = System.currentTimeMillis();
 
+        PreparedRoutes prepared = prepareRoutes(schedule, staticConfig, network);
+        RTransfer[][] allTransfers = new RTransfer[prepared.routeStops.length][];
+        calculateRouteStopTransfers(schedule, network, prepared, staticConfig, prepared.routeStopsPerStopFacility.keySet(), allTransfers);
+        SwissRailRaptorData data = createData(schedule, staticConfig, prepared, allTransfers);
+
+        long endMillis = System.currentTimeMillis();
+        log.info("SwissRailRaptor data preparation done. Took " + (endMillis - startMillis) / 1000 + " seconds.");
+        logStatistics(data);
+        return data;
+    }
+
+    /**
+     * Creates new data for the (modified) schedule, re-using the transfers of <code>previousData</code> wherever
+     * possible. Only the transfers from stop facilities that are near a stop served by a changed, added or removed
+     * route (within the beeline or walk network transfer distance), or whose minimal transfer times changed, are calculated again. Changes to departures that do not
+     * change the first or last departure of a route do not require any transfers to be calculated again.
+     *
+     * <code>previousData</code> is not modified, so routers still using it keep a consistent view of the schedule.
+     */
+    public static SwissRailRaptorData update(SwissRailRaptorData previousData, TransitSchedule schedule, Network network) {
+        log.info("Updating data for SwissRailRaptor...");
+        long startMillis = System.currentTimeMillis();
+
+        RaptorStaticConfig staticConfig = previousData.config;
+        PreparedRoutes prepared = prepareRoutes(schedule, staticConfig, network);
+
+        TransitStopFacility[] previousStops = new TransitStopFacility[previousData.countStops];
+        for (Map.Entry<TransitStopFacility, Integer> e : previousData.stopFacilityIndices.entrySet()) {
+            previousStops[e.getValue()] = e.getKey();
+        }
+        Map<Id<TransitLine>, Map<Id<TransitRoute>, Integer>> previousRouteIndices = new HashMap<>();
+        for (int r = 0; r < previousData.routes.length; r++) {
+            RRoute route = previousData.routes[r];
+            previousRouteIndices.computeIfAbsent(route.line.getId(), id -> new HashMap<>()).put(route.route.getId(), r);
+        }
+
+        // find the routes that are unchanged with regards to transfers
+        int[] previousToNewRouteStopIndices = new int[previousData.countRouteStops];
+        Arrays.fill(previousToNewRouteStopIndices, -1);
+        boolean[] previousRouteUnchanged = new boolean[previousData.routes.length];
+        Set<TransitStopFacility> changedStops = new HashSet<>();
+        for (RRoute route : prepared.routes) {
+            Map<Id<TransitRoute>, Integer> routeIndices = previousRouteIndices.get(route.line.getId());
+            Integer previousRouteIndex = routeIndices == null ? null : routeIndices.get(route.route.getId());
+            if (previousRouteIndex != null && hasSameTransferRelevantData(previousData, previousStops, previousRouteIndex, prepared, route)) {
+                previousRouteUnchanged[previousRouteIndex] = true;
+                RRoute previousRoute = previousData.routes[previousRouteIndex];
+                for (int i = 0; i < route.countRouteStops; i++) {
+                    previousToNewRouteStopIndices[previousRoute.indexFirstRouteStop + i] = route.indexFirstRouteStop + i;
+                }
+            } else {
+                for (int i = 0; i < route.countRouteStops; i++) {
+                    changedStops.add(prepared.routeStops[route.indexFirstRouteStop + i].routeStop.getStopFacility());
+                }
+            }
+        }
+        for (int r = 0; r < previousData.routes.length; r++) {
+            if (!previousRouteUnchanged[r]) {
+                RRoute previousRoute = previousData.routes[r];
+                for (int i = 0; i < previousRoute.countRouteStops; i++) {
+                    changedStops.add(previousStops[previousData.routeStopStopFacilityIndices[previousRoute.indexFirstRouteStop + i]]);
+                }
+            }
+        }
+
+        // find the stop facilities from which the transfers must be calculated again.
+        // Transfers on the walk network can be longer than the beeline transfers, but never longer than their beeline distance.
+        Set<TransitStopFacility> affectedStops = new HashSet<>();
+        double maxTransferDistance = staticConfig.getBeelineWalkConnectionDistance();
+        if (staticConfig.getTransferWalkNetworkMode() != null) {
+            maxTransferDistance = Math.max(maxTransferDistance, staticConfig.getMaxTransferWalkDistance());
+        }
+        for (TransitStopFacility stop : changedStops) {
+            affectedStops.add(stop);
+            affectedStops.addAll(prepared.stopsQT.getDisk(stop.getCoord().getX(), stop.getCoord().getY(), maxTransferDistance));
+        }
+        Map<Id<TransitStopFacility>, Map<Id<TransitStopFacility>, Double>> minimalTransferTimes = copyMinimalTransferTimes(schedule.getMinimalTransferTimes());
+        for (Map.Entry<Id<TransitStopFacility>, Map<Id<TransitStopFacility>, Double>> e : minimalTransferTimes.entrySet()) {
+            Map<Id<TransitStopFacility>, Double> previousTransferTimes = previousData.minimalTransferTimes.get(e.getKey());
+            boolean affected = !e.getValue().equals(previousTransferTimes);
+            for (Id<TransitStopFacility> toStopId : e.getValue().keySet()) {
+                affected = affected || changedStops.contains(schedule.getFacilities().get(toStopId));
+            }
+            if (affected) {
+                affectedStops.add(schedule.getFacilities().get(e.getKey()));
+            }
+        }
+        for (Id<TransitStopFacility> fromStopId : previousData.minimalTransferTimes.keySet()) {
+            if (!minimalTransferTimes.containsKey(fromStopId)) {
+                affectedStops.add(schedule.getFacilities().get(fromStopId));
+            }
+        }
+        affectedStops.retainAll(prepared.routeStopsPerStopFacility.keySet());
+
+        // previous transfers leading to a route stop that no longer exists can not be re-used
+        for (Map.Entry<TransitStopFacility, int[]> e : prepared.routeStopsPerStopFacility.entrySet()) {
+            if (!affectedStops.contains(e.getKey()) && !canReuseTransfers(previousData, previousData.routeStopsPerStopFacility.get(e.getKey()), previousToNewRouteStopIndices)) {
+                affectedStops.add(e.getKey());
+            }
+        }
+
+        // re-use the previous transfers of all other stop facilities
+        RTransfer[][] allTransfers = new RTransfer[prepared.routeStops.length][];
+        for (Map.Entry<TransitStopFacility, int[]> e : prepared.routeStopsPerStopFacility.entrySet()) {
+            if (affectedStops.contains(e.getKey())) {
+                continue;
+            }
+            int[] previousRouteStopIndices = previousData.routeStopsPerStopFacility.get(e.getKey());
+            for (int previousRouteStopIndex : previousRouteStopIndices) {
+                int transferCount = previousData.routeStopTransferCounts[previousRouteStopIndex];
+                if (transferCount == 0) {
+                    continue;
+                }
+                int firstTransferIndex = previousData.routeStopFirstTransferIndices[previousRouteStopIndex];
+                int routeStopIndex = previousToNewRouteStopIndices[previousRouteStopIndex];
+                RTransfer[] transfers = new RTransfer[transferCount];
+                for (int i = 0; i < transferCount; i++) {
+                    int t = firstTransferIndex + i;
+                    int toRouteStopIndex = previousToNewRouteStopIndices[previousData.transferToRouteStops[t]];
+                    transfers[i] = new RTransfer(routeStopIndex, toRouteStopIndex, previousData.transferTimes[t], previousData.transferDistances[t]);
+                }
+                allTransfers[routeStopIndex] = transfers;
+            }
+        }
+        calculateRouteStopTransfers(schedule, network, prepared, staticConfig, affectedStops, allTransfers);
+        SwissRailRaptorData data = createData(schedule, staticConfig, prepared, allTransfers);
+
+        long endMillis = System.currentTimeMillis();
+        log.info("SwissRailRaptor data update done. Transfers were re-calculated for " + affectedStops.size() + " of " + data.countStops + " stop facilities. Took " + (endMillis - startMillis) / 1000 + " seconds.");
+        logStatistics(data);
+        return data;
+    }
+
+    private static boolean canReuseTransfers(SwissRailRaptorData previousData, int[] previousRouteStopIndices, int[] previousToNewRouteStopIndices) {
+        if (previousRouteStopIndices == null) {
+            return false;
+        }
+        for (int previousRouteStopIndex : previousRouteStopIndices) {
+            if (previousToNewRouteStopIndices[previousRouteStopIndex] < 0) {
+                return false;
+            }
+            int firstTransferIndex = previousData.routeStopFirstTransferIndices[previousRouteStopIndex];
+            int transferCount = previousData.routeStopTransferCounts[previousRouteStopIndex];
+            for (int t = firstTransferIndex; t < firstTransferIndex + transferCount; t++) {
+                if (previousToNewRouteStopIndices[previousData.transferToRouteStops[t]] < 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasSameTransferRelevantData(SwissRailRaptorData previousData, TransitStopFacility[] previousStops, int previousRouteIndex, PreparedRoutes prepared, RRoute route) {
+        RRoute previousRoute = previousData.routes[previousRouteIndex];
+        if (previousRoute.countRouteStops != route.countRouteStops) {
+            return false;
+        }
+        for (int i = 0; i < route.countRouteStops; i++) {
+            int previousRouteStopIndex = previousRoute.indexFirstRouteStop + i;
+            RRouteStop routeStop = prepared.routeStops[route.indexFirstRouteStop + i];
+            if (previousStops[previousData.routeStopStopFacilityIndices[previousRouteStopIndex]] != routeStop.routeStop.getStopFacility()
+                    || Double.compare(previousData.routeStopArrivalOffsets[previousRouteStopIndex], routeStop.arrivalOffset) != 0
+                    || Double.compare(previousData.routeStopDepartureOffsets[previousRouteStopIndex], routeStop.departureOffset) != 0) {
+                return false;
+            }
+        }
+        // only the first and last departure are relevant for the transfers
+        if ((getDepartureCount(previousRoute) == 0) != (getDepartureCount(route) == 0)) {
+            return false;
+        }
+        if (getDepartureCount(route) == 0) {
+            return true;
+        }
+        return getFirstDepartureTime(previousRoute, previousData.departures) == getFirstDepartureTime(route, prepared.departures)
+                && getLastDepartureTime(previousRoute, previousData.departures) == getLastDepartureTime(route, prepared.departures);
+    }
+
+    /**
+     * @return the graph to calculate lower bounds of routing costs, it is created on first use.
+     */
+    RaptorLowerBounds.StopGraph getLowerBoundsGraph() {
+        RaptorLowerBounds.StopGraph graph = this.lowerBoundsGraph;
+        if (graph == null) {
+            synchronized (this) {
+                graph = this.lowerBoundsGraph;
+                if (graph == null) {
+                    graph = new RaptorLowerBounds.StopGraph(this);
+                    this.lowerBoundsGraph = graph;
+                }
+            }
+        }
+        return graph;
+    }
+
+    /**
+     * @return the transfers per route stop they lead to, as required by backward searches. They are created on first use.
+     */
+    RIncomingTransfers getIncomingTransfers() {
+        RIncomingTransfers transfers = this.incomingTransfers;
+        if (transfers == null) {
+            synchronized (this) {
+                transfers = this.incomingTransfers;
+                if (transfers == null) {
+                    transfers = new RIncomingTransfers(this);
+                    this.incomingTransfers = transfers;
+                }
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * @return the time required for the transfer if it starts at the given time, including the additional
+     * transfer time at its stop facility.
+     */
+    double getTransferTime(int transferIndex, double time) {
+        double transferTime = this.transferTimes[transferIndex];
+        if (this.transferTimeProfiles != null) {
+            transferTime += this.transferTimeProfiles.getAdditionalTransferTime(this.routeStopStopFacilityIndices[this.transferFromRouteStops[transferIndex]], time);
+        }
+        return transferTime;
+    }
+
+    /**
+     * @return the total number of departures of the route, frequency-based and explicit ones.
+     */
+    static int getDepartureCount(RRoute route) {
+        return route.frequencyCount + route.countDepartures;
+    }
+
+    /**
+     * @param index a number between 0 and {@link #getDepartureCount(RRoute)}. The departures are not sorted by this index,
+     *              first come all frequency-based departures, then the explicit ones.
+     * @return the departure time of the departure at the start of the route
+     */
+    static int getDepartureTime(RRoute route, int[] departures, int index) {
+        if (index < route.frequencyCount) {
+            return route.frequencyFirstDeparture + index * route.frequencyHeadway;
+        }
+        return departures[route.indexFirstDeparture + index - route.frequencyCount];
+    }
+
+    static int getFirstDepartureTime(RRoute route, int[] departures) {
+        int first = Integer.MAX_VALUE;
+        if (route.frequencyCount > 0) {
+            first = route.frequencyFirstDeparture;
+        }
+        if (route.countDepartures > 0) {
+            first = Math.min(first, departures[route.indexFirstDeparture]);
+        }
+        return first;
+    }
+
+    static int getLastDepartureTime(RRoute route, int[] departures) {
+        int last = Integer.MIN_VALUE;
+        if (route.frequencyCount > 0) {
+            last = route.frequencyFirstDeparture + (route.frequencyCount - 1) * route.frequencyHeadway;
+        }
+        if (route.countDepartures > 0) {
+            last = Math.max(last, departures[route.indexFirstDeparture + route.countDepartures - 1]);
+        }
+        return last;
+    }
+
+    static Map<Id<TransitStopFacility>, Map<Id<TransitStopFacility>, Double>> copyMinimalTransferTimes(MinimalTransferTimes mtt) {
+        Map<Id<TransitStopFacility>, Map<Id<TransitStopFacility>, Double>> copy = new HashMap<>();
+        MinimalTransferTimes.MinimalTransferTimesIterator iter = mtt.iterator();
+        while (iter.hasNext()) {
+            iter.next();
+            copy.computeIfAbsent(iter.getFromStopId(), id -> new HashMap<>()).put(iter.getToStopId(), iter.getSeconds());
+        }
+        return copy;
+    }
+
+    private static void logStatistics(SwissRailRaptorData data) {
+        log.info("SwissRailRaptor statistics:  #routes = " + data.routes.length);
+        long countDepartures = 0;
+        int countFrequencyRoutes = 0;
+        for (RRoute route : data.routes) {
+            countDepartures += getDepartureCount(route);
+            if (route.frequencyCount > 0) {
+                countFrequencyRoutes++;
+            }
+        }
+        log.info("SwissRailRaptor statistics:  #departures = " + countDepartures + " (explicitly stored: " + data.departures.length + ")");
+        log.info("SwissRailRaptor statistics:  #frequency-based routes = " + countFrequencyRoutes);
+        log.info("SwissRailRaptor statistics:  #routeStops = " + data.countRouteStops);
+        log.info("SwissRailRaptor statistics:  #stopFacilities = " + data.countStops);
+        log.info("SwissRailRaptor statistics:  #transfers (between routeStops) = " + data.transferToRouteStops.length);
+    }
+
+    private static PreparedRoutes prepareRoutes(TransitSchedule schedule, RaptorStaticConfig staticConfig, Network network) {
         int countRoutes = 0;
         long countRouteStops = 0;
         long countDepartures = 0;
@@ -90,7 +437,7 @@ public class SwissRailRaptorData {
             throw new RuntimeException("TransitSchedule has too many Departures: " + countDepartures);
         }
 
-        double[] departures = new double[(int) countDepartures];
+        int[] departures = new int[(int) countDepartures];
         RRoute[] routes = new RRoute[countRoutes];
         RRouteStop[] routeStops = new RRouteStop[(int) countRouteStops];
 
@@ -108,12 +455,19 @@ public class SwissRailRaptorData {
             List<TransitRoute> transitRoutes = new ArrayList<>(line.getRoutes().values());
             transitRoutes.sort((tr1, tr2) -> Double.compare(getEarliestDeparture(tr1).getDepartureTime(), getEarliestDeparture(tr2).getDepartureTime())); // sort routes by earliest departure for additional performance gains
             for (TransitRoute route : transitRoutes) {
-                int indexFirstDeparture = indexDeparture;
                 String mode = TransportMode.pt;
                 if (useModeMapping) {
                     mode = staticConfig.getPassengerMode(route.getTransportMode());
                 }
-                RRoute rroute = new RRoute(indexRouteStops, route.getStops().size(), indexFirstDeparture, route.getDepartures().size());
+                int[] routeDepartures = new int[route.getDepartures().size()];
+                int depIndex = 0;
+                for (Departure dep : route.getDepartures().values()) {
+                    routeDepartures[depIndex] = (int) Math.round(dep.getDepartureTime());
+                    depIndex++;
+                }
+                Arrays.sort(routeDepartures);
+                RRoute rroute = createRoute(indexRouteStops, route.getStops().size(), routeDepartures, departures, indexDeparture, line, route, mode);
+                indexDeparture += rroute.countDepartures;
                 routes[indexRoutes] = rroute;
                 NetworkRoute networkRoute = route.getRoute();
                 List<Id<Link>> allLinkIds = new ArrayList<>();
@@ -151,11 +505,6 @@ public class SwissRailRaptorData {
                     });
                     indexRouteStops++;
                 }
-                for (Departure dep : route.getDepartures().values()) {
-                    departures[indexDeparture] = dep.getDepartureTime();
-                    indexDeparture++;
-                }
-                Arrays.sort(departures, indexFirstDeparture, indexDeparture);
                 indexRoutes++;
             }
         }
@@ -181,20 +530,71 @@ public class SwissRailRaptorData {
             double y = stopFacility.getCoord().getY();
             stopsQT.put(x, y, stopFacility);
         }
-        int countStopFacilities = stops.size();
 
-        Map<Integer, RTransfer[]> allTransfers = calculateRouteStopTransfers(schedule, stopsQT, routeStopsPerStopFacility, routeStops, staticConfig);
+        if (indexDeparture < departures.length) {
+            departures = Arrays.copyOf(departures, indexDeparture);
+        }
+        return new PreparedRoutes(routes, routeStops, departures, stopFacilityIndices, routeStopsPerStopFacility, stopsQT);
+    }
+
+    /**
+     * Creates the route and stores its departures. If the route has a sequence of at least {@link #MIN_FREQUENCY_DEPARTURES}
+     * departures with a regular headway, the longest such sequence is stored frequency-based in the route (first departure,
+     * headway, count) and only the remaining departures are stored explicitly in <code>departures</code>. This saves memory,
+     * and allows to find the next departure with some simple arithmetic instead of a binary search for the large majority
+     * of departures.
+     *
+     * @param sortedRouteDepartures all departures of the route, sorted
+     * @param departures the array where to store the explicit departures, starting at <code>indexFirstDeparture</code>
+     */
+    private static RRoute createRoute(int indexFirstRouteStop, int countRouteStops, int[] sortedRouteDepartures, int[] departures, int indexFirstDeparture,
+                                      TransitLine line, TransitRoute route, String mode) {
+        int count = sortedRouteDepartures.length;
+        int bestStart = 0;
+        int bestCount = 0;
+        int bestHeadway = 0;
+        int start = 0;
+        while (start < count - 1) {
+            int headway = sortedRouteDepartures[start + 1] - sortedRouteDepartures[start];
+            int end = start + 1;
+            if (headway > 0) {
+                while (end + 1 < count && sortedRouteDepartures[end + 1] - sortedRouteDepartures[end] == headway) {
+                    end++;
+                }
+                if (end - start + 1 > bestCount) {
+                    bestStart = start;
+                    bestCount = end - start + 1;
+                    bestHeadway = headway;
+                }
+            }
+            start = end;
+        }
+        if (bestCount < MIN_FREQUENCY_DEPARTURES) {
+            System.arraycopy(sortedRouteDepartures, 0, departures, indexFirstDeparture, count);
+            return new RRoute(indexFirstRouteStop, countRouteStops, indexFirstDeparture, count, 0, 0, 0, line, route, mode);
+        }
+        // all departures not part of the regular sequence are stored explicitly
+        System.arraycopy(sortedRouteDepartures, 0, departures, indexFirstDeparture, bestStart);
+        System.arraycopy(sortedRouteDepartures, bestStart + bestCount, departures, indexFirstDeparture + bestStart, count - bestStart - bestCount);
+        return new RRoute(indexFirstRouteStop, countRouteStops, indexFirstDeparture, count - bestCount,
+                sortedRouteDepartures[bestStart], bestHeadway, bestCount, line, route, mode);
+    }
+
+    private static SwissRailRaptorData createData(TransitSchedule schedule, RaptorStaticConfig staticConfig, PreparedRoutes prepared, RTransfer[][] allTransfers) {
         long countTransfers = 0;
-        for (RTransfer[] transfers : allTransfers.values()) {
-            countTransfers += transfers.length;
+        for (RTransfer[] transfers : allTransfers) {
+            if (transfers != null) {
+                countTransfers += transfers.length;
+            }
         }
         if (countTransfers > Integer.MAX_VALUE) {
             throw new RuntimeException("TransitSchedule has too many Transfers: " + countTransfers);
         }
+        RRouteStop[] routeStops = prepared.routeStops;
         RTransfer[] transfers = new RTransfer[(int) countTransfers];
         int indexTransfer = 0;
         for (int routeStopIndex = 0; routeStopIndex < routeStops.length; routeStopIndex++) {
-            RTransfer[] stopTransfers = allTransfers.get(routeStopIndex);
+            RTransfer[] stopTransfers = allTransfers[routeStopIndex];
             int transferCount = stopTransfers == null ? 0 : stopTransfers.length;
             if (transferCount > 0) {
                 RRouteStop routeStop = routeStops[routeStopIndex];
@@ -205,36 +605,52 @@ public class SwissRailRaptorData {
             }
         }
 
-        SwissRailRaptorData data = new SwissRailRaptorData(staticConfig, countStopFacilities, routes, departures, routeStops, transfers, stopFacilityIndices, routeStopsPerStopFacility, stopsQT);
+        // convert the temporary objects into the struct-of-arrays layout
+        int routeStopCount = routeStops.length;
+        int[] routeStopRouteIndices = new int[routeStopCount];
+        int[] routeStopStopFacilityIndices = new int[routeStopCount];
+        double[] routeStopArrivalOffsets = new double[routeStopCount];
+        double[] routeStopDepartureOffsets = new double[routeStopCount];
+        double[] routeStopDistancesAlongRoute = new double[routeStopCount];
+        int[] routeStopFirstTransferIndices = new int[routeStopCount];
+        int[] routeStopTransferCounts = new int[routeStopCount];
+        TransitRouteStop[] transitRouteStops = new TransitRouteStop[routeStopCount];
+        for (int i = 0; i < routeStopCount; i++) {
+            RRouteStop routeStop = routeStops[i];
+            routeStopRouteIndices[i] = routeStop.transitRouteIndex;
+            routeStopStopFacilityIndices[i] = routeStop.stopFacilityIndex;
+            routeStopArrivalOffsets[i] = routeStop.arrivalOffset;
+            routeStopDepartureOffsets[i] = routeStop.departureOffset;
+            routeStopDistancesAlongRoute[i] = routeStop.distanceAlongRoute;
+            routeStopFirstTransferIndices[i] = routeStop.indexFirstTransfer;
+            routeStopTransferCounts[i] = routeStop.countTransfers;
+            transitRouteStops[i] = routeStop.routeStop;
+        }
 
-        long endMillis = System.currentTimeMillis();
-        log.info("SwissRailRaptor data preparation done. Took " + (endMillis - startMillis) / 1000 + " seconds.");
-        log.info("SwissRailRaptor statistics:  #routes = " + routes.length);
-        log.info("SwissRailRaptor statistics:  #departures = " + departures.length);
-        log.info("SwissRailRaptor statistics:  #routeStops = " + routeStops.length);
-        log.info("SwissRailRaptor statistics:  #stopFacilities = " + countStopFacilities);
-        log.info("SwissRailRaptor statistics:  #transfers (between routeStops) = " + transfers.length);
-        return data;
+        int transferCount = transfers.length;
+        int[] transferFromRouteStops = new int[transferCount];
+        int[] transferToRouteStops = new int[transferCount];
+        double[] transferTimes = new double[transferCount];
+        double[] transferDistances = new double[transferCount];
+        for (int i = 0; i < transferCount; i++) {
+            RTransfer transfer = transfers[i];
+            transferFromRouteStops[i] = transfer.fromRouteStop;
+            transferToRouteStops[i] = transfer.toRouteStop;
+            transferTimes[i] = transfer.transferTime;
+            transferDistances[i] = transfer.transferDistance;
+        }
+
+        return new SwissRailRaptorData(staticConfig, prepared.stopFacilityIndices.size(), prepared.routes, prepared.departures,
+                routeStopRouteIndices, routeStopStopFacilityIndices, routeStopArrivalOffsets, routeStopDepartureOffsets, routeStopDistancesAlongRoute,
+                routeStopFirstTransferIndices, routeStopTransferCounts, transitRouteStops,
+                transferFromRouteStops, transferToRouteStops, transferTimes, transferDistances,
+                prepared.stopFacilityIndices, prepared.routeStopsPerStopFacility, prepared.stopsQT, copyMinimalTransferTimes(schedule.getMinimalTransferTimes()));
     }
 
     // calculate possible transfers between TransitRouteStops
-    private static Map<Integer, RTransfer[]> calculateRouteStopTransfers(TransitSchedule schedule, QuadTree<TransitStopFacility> stopsQT, Map<TransitStopFacility, int[]> routeStopsPerStopFacility, RRouteStop[] routeStops, RaptorStaticConfig config) {
-        Map<Integer, RTransfer[]> transfers = new HashMap<>(stopsQT.size() * 5);
-        double maxBeelineWalkConnectionDistance = config.getBeelineWalkConnectionDistance();
-        double beelineWalkSpeed = config.getBeelineWalkSpeed();
-        double beelineDistanceFactor = config.getBeelineWalkDistanceFactor();
-        double minimalTransferTime = config.getMinimalTransferTime();
-
-        Map<TransitStopFacility, List<TransitStopFacility>> stopToStopsTransfers = new HashMap<>();
-
-        // first, add transfers based on distance
-        for (TransitStopFacility fromStop : routeStopsPerStopFacility.keySet()) {
-            Coord fromCoord = fromStop.getCoord();
-            Collection<TransitStopFacility> nearbyStops = stopsQT.getDisk(fromCoord.getX(), fromCoord.getY(), maxBeelineWalkConnectionDistance);
-            stopToStopsTransfers.computeIfAbsent(fromStop, stop -> new ArrayList<>(5)).addAll(nearbyStops);
-        }
-
-        // take the transfers from the schedule into account
+    private static void calculateRouteStopTransfers(TransitSchedule schedule, Network network, PreparedRoutes prepared, RaptorStaticConfig config, Collection<TransitStopFacility> stops, RTransfer[][] transfers) {
+        // take the transfers from the schedule into account, in addition to the transfers based on distance
+        Map<TransitStopFacility, List<TransitStopFacility>> scheduleTransfers = new HashMap<>();
         MinimalTransferTimes.MinimalTransferTimesIterator iter = schedule.getMinimalTransferTimes().iterator();
         while (iter.hasNext()) {
             iter.next();
@@ -242,120 +658,313 @@ public class SwissRailRaptorData {
             TransitStopFacility fromStop = schedule.getFacilities().get(fromStopId);
             Id<TransitStopFacility> toStopId = iter.getToStopId();
             TransitStopFacility toStop = schedule.getFacilities().get(toStopId);
-            List<TransitStopFacility> destinationStops = stopToStopsTransfers.computeIfAbsent(fromStop, stop -> new ArrayList<>(5));
-            if (!destinationStops.contains(toStop)) {
-                destinationStops.add(toStop);
+            scheduleTransfers.computeIfAbsent(fromStop, stop -> new ArrayList<>(5)).add(toStop);
+        }
+
+        // optionally replace the beeline transfers by the walking distances on the network
+        TransitStopFacility[] stopsByIndex = null;
+        RaptorWalkTransfers walkTransfers = null;
+        if (config.getTransferWalkNetworkMode() != null) {
+            stopsByIndex = new TransitStopFacility[prepared.stopFacilityIndices.size()];
+            for (Map.Entry<TransitStopFacility, Integer> e : prepared.stopFacilityIndices.entrySet()) {
+                stopsByIndex[e.getValue()] = e.getKey();
             }
+            walkTransfers = RaptorWalkTransfers.calculate(network, stopsByIndex, stops, prepared.stopFacilityIndices, config);
         }
 
-        // now calculate the transfers between the route stops
-        MinimalTransferTimes mtt = schedule.getMinimalTransferTimes();
-        ArrayList<RTransfer> stopTransfers = new ArrayList<>();
-        for (Map.Entry<TransitStopFacility, List<TransitStopFacility>> e : stopToStopsTransfers.entrySet()) {
-            TransitStopFacility fromStop = e.getKey();
-            Coord fromCoord = fromStop.getCoord();
-            int[] fromRouteStopIndices = routeStopsPerStopFacility.get(fromStop);
-            Collection<TransitStopFacility> nearbyStops = e.getValue();
-            for (TransitStopFacility toStop : nearbyStops) {
-                int[] toRouteStopIndices = routeStopsPerStopFacility.get(toStop);
-                double beelineDistance = CoordUtils.calcEuclideanDistance(fromCoord, toStop.getCoord());
-                double transferTime = beelineDistance / beelineWalkSpeed;
-                if (transferTime < minimalTransferTime) {
-                    transferTime = minimalTransferTime;
+        TransferCalculator calculator = new TransferCalculator(schedule.getMinimalTransferTimes(), prepared.stopsQT, prepared.routeStopsPerStopFacility, scheduleTransfers,
+                prepared.routes, prepared.routeStops, prepared.departures, walkTransfers, prepared.stopFacilityIndices, stopsByIndex, config);
+        TransitStopFacility[] fromStops = stops.toArray(new TransitStopFacility[0]);
+        // every route stop belongs to exactly one stop facility, so each element is only written by one thread
+        AtomicInteger nextStopIndex = new AtomicInteger(0);
+        Runnable worker = () -> {
+            ArrayList<RTransfer> buffer = new ArrayList<>();
+            int stopIndex;
+            while ((stopIndex = nextStopIndex.getAndIncrement()) < fromStops.length) {
+                calculator.calcTransfers(fromStops[stopIndex], transfers, buffer);
+            }
+        };
+
+        int numberOfThreads = Math.max(1, Math.min(config.getNumberOfThreads(), fromStops.length));
+        if (numberOfThreads == 1) {
+            worker.run();
+            return;
+        }
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            threads[i] = new Thread(worker, "SwissRailRaptorData-Transfers-" + i);
+            threads[i].setUncaughtExceptionHandler((thread, e) -> error.compareAndSet(null, e));
+            threads[i].start();
+        }
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        if (error.get() != null) {
+            throw new RuntimeException("Error while calculating transfers.", error.get());
+        }
+    }
+
+    /**
+     * Only used while building the data structure. Calculates the transfers starting at one stop facility,
+     * using some pre-computed values per route so the checks whether a transfer is useful do not have
+     * to search through the stops of the routes.
+     */
+    private static final class TransferCalculator {
+        private final MinimalTransferTimes mtt;
+        private final QuadTree<TransitStopFacility> stopsQT;
+        private final Map<TransitStopFacility, int[]> routeStopsPerStopFacility;
+        private final Map<TransitStopFacility, List<TransitStopFacility>> scheduleTransfers;
+        private final RRoute[] routes;
+        private final RRouteStop[] routeStops;
+        private final RaptorWalkTransfers walkTransfers; // null if the transfers are based on the beeline distance only
+        private final Map<TransitStopFacility, Integer> stopFacilityIndices;
+        private final TransitStopFacility[] stopsByIndex;
+        private final double[] earliestDeparturePerRoute;
+        private final double[] latestDeparturePerRoute;
+        private final int[][] sortedStopFacilityIndicesPerRoute;
+        private final double maxBeelineWalkConnectionDistance;
+        private final double beelineWalkSpeed;
+        private final double beelineDistanceFactor;
+        private final double minimalTransferTime;
+        private final RaptorStaticConfig.RaptorOptimization optimization;
+
+        TransferCalculator(MinimalTransferTimes mtt, QuadTree<TransitStopFacility> stopsQT, Map<TransitStopFacility, int[]> routeStopsPerStopFacility,
+                           Map<TransitStopFacility, List<TransitStopFacility>> scheduleTransfers, RRoute[] routes, RRouteStop[] routeStops,
+                           int[] departures, RaptorWalkTransfers walkTransfers, Map<TransitStopFacility, Integer> stopFacilityIndices,
+                           TransitStopFacility[] stopsByIndex, RaptorStaticConfig config) {
+            this.mtt = mtt;
+            this.walkTransfers = walkTransfers;
+            this.stopFacilityIndices = stopFacilityIndices;
+            this.stopsByIndex = stopsByIndex;
+            this.stopsQT = stopsQT;
+            this.routeStopsPerStopFacility = routeStopsPerStopFacility;
+            this.scheduleTransfers = scheduleTransfers;
+            this.routes = routes;
+            this.routeStops = routeStops;
+            this.maxBeelineWalkConnectionDistance = config.getBeelineWalkConnectionDistance();
+            this.beelineWalkSpeed = config.getBeelineWalkSpeed();
+            this.beelineDistanceFactor = config.getBeelineWalkDistanceFactor();
+            this.minimalTransferTime = config.getMinimalTransferTime();
+            this.optimization = config.getOptimization();
+
+            this.earliestDeparturePerRoute = new double[routes.length];
+            this.latestDeparturePerRoute = new double[routes.length];
+            this.sortedStopFacilityIndicesPerRoute = new int[routes.length][];
+            for (int r = 0; r < routes.length; r++) {
+                RRoute route = routes[r];
+                // the departures of each route are already sorted
+                if (getDepartureCount(route) == 0) {
+                    this.earliestDeparturePerRoute[r] = Double.NaN;
+                    this.latestDeparturePerRoute[r] = Double.NaN;
+                } else {
+                    this.earliestDeparturePerRoute[r] = getFirstDepartureTime(route, departures);
+                    this.latestDeparturePerRoute[r] = getLastDepartureTime(route, departures);
                 }
+                int[] routeStopFacilityIndices = new int[route.countRouteStops];
+                for (int i = 0; i < route.countRouteStops; i++) {
+                    routeStopFacilityIndices[i] = routeStops[route.indexFirstRouteStop + i].stopFacilityIndex;
+                }
+                Arrays.sort(routeStopFacilityIndices);
+                this.sortedStopFacilityIndicesPerRoute[r] = routeStopFacilityIndices;
+            }
+        }
 
-                transferTime = mtt.get(fromStop.getId(), toStop.getId(), transferTime);
+        void calcTransfers(TransitStopFacility fromStop, RTransfer[][] transfers, ArrayList<RTransfer> buffer) {
+            Coord fromCoord = fromStop.getCoord();
+            List<TransitStopFacility> toStops = new ArrayList<>(this.stopsQT.getDisk(fromCoord.getX(), fromCoord.getY(), this.maxBeelineWalkConnectionDistance));
+            Map<TransitStopFacility, Double> walkDistances = getWalkDistances(fromStop, toStops);
+            List<TransitStopFacility> additionalToStops = this.scheduleTransfers.get(fromStop);
+            if (additionalToStops != null) {
+                for (TransitStopFacility toStop : additionalToStops) {
+                    if (!toStops.contains(toStop)) {
+                        toStops.add(toStop);
+                    }
+                }
+            }
 
-                final double fixedTransferTime = transferTime; // variables must be effective final to be used in lambdas (below)
+            int toStopCount = toStops.size();
+            double[] transferTimes = new double[toStopCount];
+            double[] transferDistances = new double[toStopCount];
+            for (int i = 0; i < toStopCount; i++) {
+                TransitStopFacility toStop = toStops.get(i);
+                Double walkDistance = walkDistances == null ? null : walkDistances.get(toStop);
+                double transferTime;
+                if (walkDistance == null) {
+                    double beelineDistance = CoordUtils.calcEuclideanDistance(fromCoord, toStop.getCoord());
+                    transferTime = beelineDistance / this.beelineWalkSpeed;
+                    transferDistances[i] = beelineDistance * this.beelineDistanceFactor;
+                } else {
+                    // beelineWalkSpeed is the walk speed divided by the beeline distance factor
+                    transferTime = walkDistance / (this.beelineWalkSpeed * this.beelineDistanceFactor);
+                    transferDistances[i] = walkDistance;
+                }
+                if (transferTime < this.minimalTransferTime) {
+                    transferTime = this.minimalTransferTime;
+                }
+                transferTimes[i] = this.mtt.get(fromStop.getId(), toStop.getId(), transferTime);
+            }
 
-                for (int fromRouteStopIndex : fromRouteStopIndices) {
-                    RRouteStop fromRouteStop = routeStops[fromRouteStopIndex];
-                    stopTransfers.clear();
+            for (int fromRouteStopIndex : this.routeStopsPerStopFacility.get(fromStop)) {
+                buffer.clear();
+                for (int i = 0; i < toStopCount; i++) {
+                    int[] toRouteStopIndices = this.routeStopsPerStopFacility.get(toStops.get(i));
+                    if (toRouteStopIndices == null) {
+                        // the stop facility is not served by any route
+                        continue;
+                    }
                     for (int toRouteStopIndex : toRouteStopIndices) {
-                        RRouteStop toRouteStop = routeStops[toRouteStopIndex];
-                        if (isUsefulTransfer(fromRouteStop, toRouteStop, maxBeelineWalkConnectionDistance, config.getOptimization())) {
-                            RTransfer newTransfer = new RTransfer(fromRouteStopIndex, toRouteStopIndex, fixedTransferTime, beelineDistance * beelineDistanceFactor);
-                            stopTransfers.add(newTransfer);
+                        if (isUsefulTransfer(fromRouteStopIndex, toRouteStopIndex)) {
+                            buffer.add(new RTransfer(fromRouteStopIndex, toRouteStopIndex, transferTimes[i], transferDistances[i]));
                         }
                     }
-                    RTransfer[] newTransfers = stopTransfers.toArray(new RTransfer[0]);
-                    transfers.compute(fromRouteStopIndex, (routeStopIndex, currentTransfers) -> {
-                        if (currentTransfers == null) {
-                            return newTransfers;
-                        }
-                        RTransfer[] tmp = new RTransfer[currentTransfers.length + newTransfers.length];
-                        System.arraycopy(currentTransfers, 0, tmp, 0, currentTransfers.length);
-                        System.arraycopy(newTransfers, 0, tmp, currentTransfers.length, newTransfers.length);
-                        return tmp;
-                    });
+                }
+                if (!buffer.isEmpty()) {
+                    transfers[fromRouteStopIndex] = buffer.toArray(new RTransfer[0]);
                 }
             }
         }
-        return transfers;
-    }
 
-    private static boolean isUsefulTransfer(RRouteStop fromRouteStop, RRouteStop toRouteStop, double maxBeelineWalkConnectionDistance, RaptorStaticConfig.RaptorOptimization optimization) {
-        if (fromRouteStop == toRouteStop) {
-            return false;
-        }
-        // there is no use to transfer away from the first stop in a route
-        if (isFirstStopInRoute(fromRouteStop)) {
-            return false;
+        /**
+         * If the stop is connected to the walk network, replaces the beeline transfers to other stops on the walk network
+         * by the transfers found on the network, which may be further away than the beeline connection distance.
+         * Stops not connected to the walk network keep their beeline transfers.
+         *
+         * @return the walking distances to the stops reached on the network, or <code>null</code> if the beeline distance should be used for all stops.
+         */
+        private Map<TransitStopFacility, Double> getWalkDistances(TransitStopFacility fromStop, List<TransitStopFacility> toStops) {
+            if (this.walkTransfers == null) {
+                return null;
+            }
+            int fromStopIndex = this.stopFacilityIndices.get(fromStop);
+            if (!this.walkTransfers.isOnWalkNetwork[fromStopIndex]) {
+                return null;
+            }
+            toStops.removeIf(toStop -> toStop != fromStop && this.walkTransfers.isOnWalkNetwork[this.stopFacilityIndices.get(toStop)]);
+            Map<TransitStopFacility, Double> walkDistances = new HashMap<>();
+            for (int i = this.walkTransfers.firstEntries[fromStopIndex]; i < this.walkTransfers.firstEntries[fromStopIndex + 1]; i++) {
+                TransitStopFacility toStop = this.stopsByIndex[this.walkTransfers.toStops[i]];
+                walkDistances.put(toStop, this.walkTransfers.distances[i]);
+                toStops.add(toStop);
+            }
+            return walkDistances;
         }
-        // there is no use to transfer to the last stop in a route, we can't go anywhere from there
-        if (isLastStopInRoute(toRouteStop)) {
-            return false;
+
+        private boolean isUsefulTransfer(int fromRouteStopIndex, int toRouteStopIndex) {
+            if (fromRouteStopIndex == toRouteStopIndex) {
+                return false;
+            }
+            RRouteStop fromRouteStop = this.routeStops[fromRouteStopIndex];
+            RRouteStop toRouteStop = this.routeStops[toRouteStopIndex];
+            RRoute fromRoute = this.routes[fromRouteStop.transitRouteIndex];
+            RRoute toRoute = this.routes[toRouteStop.transitRouteIndex];
+            // there is no use to transfer away from the first stop in a route
+            if (isFirstStopInRoute(fromRoute, fromRouteStopIndex)) {
+                return false;
+            }
+            // there is no use to transfer to the last stop in a route, we can't go anywhere from there
+            if (isLastStopInRoute(toRoute, toRouteStopIndex)) {
+                return false;
+            }
+            // if the first departure at fromRouteStop arrives after the last departure at toRouteStop,
+            // we'll never get any connection here
+            if (hasNoPossibleDeparture(fromRouteStop, toRouteStop)) {
+                return false;
+            }
+            // if the stop facilities are different, and the destination stop is part
+            // of the current route, it does not make sense to transfer here
+            if (toStopIsPartOfRouteButNotSame(fromRouteStop, toRouteStop)) {
+                return false;
+            }
+            // assuming vehicles serving the exact same stop sequence do not overtake each other,
+            // it does not make sense to transfer to another route that serves the exact same upcoming stops
+            if (cannotReachAdditionalStops(fromRoute, fromRouteStopIndex, toRoute, toRouteStopIndex)) {
+                return false;
+            }
+            if (this.optimization == RaptorStaticConfig.RaptorOptimization.OneToOneRouting) {
+                // If one could have transferred to the same route one stop before, it does not make sense
+                // to transfer here.
+                // This optimization may lead to unexpected results in the case of OneToAllRouting ("tree"),
+                // e.g. when starting at a single stop, users would expect that the stop facility
+                // in the opposite direction could be reached within a minute or so by walk. But the algorithm
+                // would find this if the transfers are missing.
+                if (couldHaveTransferredOneStopEarlierInOppositeDirection(fromRoute, fromRouteStopIndex, toRoute, toRouteStopIndex)) {
+                    return false;
+                }
+            }
+            // if we failed all other checks, it looks like this transfer is useful
+            return true;
         }
-        // if the first departure at fromRouteStop arrives after the last departure at toRouteStop,
-        // we'll never get any connection here
-        if (hasNoPossibleDeparture(fromRouteStop, toRouteStop)) {
-            return false;
+
+        private static boolean isFirstStopInRoute(RRoute route, int routeStopIndex) {
+            return routeStopIndex == route.indexFirstRouteStop;
         }
-        // if the stop facilities are different, and the destination stop is part
-        // of the current route, it does not make sense to transfer here
-        if (toStopIsPartOfRouteButNotSame(fromRouteStop, toRouteStop)) {
-            return false;
+
+        private static boolean isLastStopInRoute(RRoute route, int routeStopIndex) {
+            return routeStopIndex == route.indexFirstRouteStop + route.countRouteStops - 1;
         }
-        // assuming vehicles serving the exact same stop sequence do not overtake each other,
-        // it does not make sense to transfer to another route that serves the exact same upcoming stops
-        if (cannotReachAdditionalStops(fromRouteStop, toRouteStop)) {
-            return false;
+
+        private boolean hasNoPossibleDeparture(RRouteStop fromRouteStop, RRouteStop toRouteStop) {
+            double earliestDeparture = this.earliestDeparturePerRoute[fromRouteStop.transitRouteIndex];
+            double latestDeparture = this.latestDeparturePerRoute[toRouteStop.transitRouteIndex];
+            if (Double.isNaN(earliestDeparture) || Double.isNaN(latestDeparture)) {
+                return true;
+            }
+            double earliestArrival = earliestDeparture + fromRouteStop.arrivalOffset;
+            return earliestArrival > latestDeparture + toRouteStop.departureOffset;
         }
-        if (optimization == RaptorStaticConfig.RaptorOptimization.OneToOneRouting) {
-            // If one could have transferred to the same route one stop before, it does not make sense
-            // to transfer here.
-            // This optimization may lead to unexpected results in the case of OneToAllRouting ("tree"),
-            // e.g. when starting at a single stop, users would expect that the stop facility
-            // in the opposite direction could be reached within a minute or so by walk. But the algorithm
-            // would find this if the transfers are missing.
-            if (couldHaveTransferredOneStopEarlierInOppositeDirection(fromRouteStop, toRouteStop, maxBeelineWalkConnectionDistance)) {
+
+        private boolean toStopIsPartOfRouteButNotSame(RRouteStop fromRouteStop, RRouteStop toRouteStop) {
+            if (fromRouteStop.stopFacilityIndex == toRouteStop.stopFacilityIndex) {
                 return false;
             }
+            return Arrays.binarySearch(this.sortedStopFacilityIndicesPerRoute[fromRouteStop.transitRouteIndex], toRouteStop.stopFacilityIndex) >= 0;
         }
-        // if we failed all other checks, it looks like this transfer is useful
-        return true;
-    }
 
-    private static boolean isFirstStopInRoute(RRouteStop routeStop) {
-        TransitRouteStop firstRouteStop = routeStop.route.getStops().get(0);
-        return routeStop.routeStop == firstRouteStop;
-    }
+        private boolean cannotReachAdditionalStops(RRoute fromRoute, int fromRouteStopIndex, RRoute toRoute, int toRouteStopIndex) {
+            int fromRouteEnd = fromRoute.indexFirstRouteStop + fromRoute.countRouteStops;
+            int toRouteEnd = toRoute.indexFirstRouteStop + toRoute.countRouteStops;
+            // compare the stops following the route stops where the potential transfer happens
+            int fromIndex = fromRouteStopIndex + 1;
+            int toIndex = toRouteStopIndex + 1;
+            while (true) {
+                if (toIndex == toRouteEnd) {
+                    // there are no more stops in the toRoute
+                    return true;
+                }
+                if (fromIndex == fromRouteEnd) {
+                    // there are no more stops in the fromRoute, but there are in the toRoute
+                    return false;
+                }
+                if (this.routeStops[fromIndex].stopFacilityIndex != this.routeStops[toIndex].stopFacilityIndex) {
+                    // the toRoute goes to a different stop
+                    return false;
+                }
+                fromIndex++;
+                toIndex++;
+            }
+        }
 
-    private static boolean isLastStopInRoute(RRouteStop routeStop) {
-        List<TransitRouteStop> routeStops = routeStop.route.getStops();
-        TransitRouteStop lastRouteStop = routeStops.get(routeStops.size() - 1);
-        return routeStop.routeStop == lastRouteStop;
-    }
+        private boolean couldHaveTransferredOneStopEarlierInOppositeDirection(RRoute fromRoute, int fromRouteStopIndex, RRoute toRoute, int toRouteStopIndex) {
+            if (isFirstStopInRoute(fromRoute, fromRouteStopIndex) || isLastStopInRoute(toRoute, toRouteStopIndex)) {
+                return false;
+            }
+            RRouteStop previousRouteStop = this.routeStops[fromRouteStopIndex - 1];
+            RRouteStop nextRouteStop = this.routeStops[toRouteStopIndex + 1];
+            if (previousRouteStop.stopFacilityIndex == nextRouteStop.stopFacilityIndex) {
+                return true;
+            }
 
-    private static boolean hasNoPossibleDeparture(RRouteStop fromRouteStop, RRouteStop toRouteStop) {
-        Departure earliestDep = getEarliestDeparture(fromRouteStop.route);
-        Departure latestDep = getLatestDeparture(toRouteStop.route);
-        if (earliestDep == null || latestDep == null) {
-            return true;
+            double distance = CoordUtils.calcEuclideanDistance(previousRouteStop.routeStop.getStopFacility().getCoord(), nextRouteStop.routeStop.getStopFacility().getCoord());
+            return distance < this.maxBeelineWalkConnectionDistance;
         }
-        double earliestArrival = earliestDep.getDepartureTime() + fromRouteStop.arrivalOffset;
-        double latestDeparture = latestDep.getDepartureTime() + toRouteStop.departureOffset;
-        return earliestArrival > latestDeparture;
     }
 
     private static Departure getEarliestDeparture(TransitRoute route) {
@@ -368,122 +977,177 @@ public class SwissRailRaptorData {
         return earliest;
     }
 
-    private static Departure getLatestDeparture(TransitRoute route) {
-        Departure latest = null;
-        for (Departure dep : route.getDepartures().values()) {
-            if (latest == null || dep.getDepartureTime() > latest.getDepartureTime()) {
-                latest = dep;
-            }
-        }
-        return latest;
+    public Collection<TransitStopFacility> findNearbyStops(double x, double y, double distance) {
+        List<TransitStopFacility> stops = new ArrayList<>();
+        this.stopGrid.forEachInDisk(x, y, distance, stopIndex -> stops.add(this.stopGrid.stops[stopIndex]));
+        return stops;
     }
 
-    private static boolean toStopIsPartOfRouteButNotSame(RRouteStop fromRouteStop, RRouteStop toRouteStop) {
-        TransitStopFacility fromStopFacility = fromRouteStop.routeStop.getStopFacility();
-        TransitStopFacility toStopFacility = toRouteStop.routeStop.getStopFacility();
-        if (fromStopFacility == toStopFacility) {
-            return false;
-        }
-        for (TransitRouteStop routeStop : fromRouteStop.route.getStops()) {
-            fromStopFacility = routeStop.getStopFacility();
-            if (fromStopFacility == toStopFacility) {
-                return true;
+    public TransitStopFacility findNearestStop(double x, double y) {
+        int stopIndex = this.stopGrid.getClosest(x, y);
+        return stopIndex < 0 ? null : this.stopGrid.stops[stopIndex];
+    }
+
+    /**
+     * Finds the stops within <code>searchRadius</code> of the given coordinate. If less than <code>minStopCount</code> stops
+     * are found, the stops within <code>extensionRadius</code> of the distance to the nearest stop are returned instead.
+     *
+     * @return the indices of the found stops, in no particular order. The array must not be modified.
+     */
+    int[] findNearbyStopIndices(double x, double y, double searchRadius, double extensionRadius, int minStopCount) {
+        int[] stopIndices = this.stopGrid.getDisk(x, y, searchRadius);
+        if (stopIndices.length < minStopCount) {
+            int nearestStopIndex = this.stopGrid.getClosest(x, y);
+            if (nearestStopIndex >= 0) {
+                double nearestDistance = this.stopGrid.calcDistance(nearestStopIndex, x, y);
+                stopIndices = this.stopGrid.getDisk(x, y, nearestDistance + extensionRadius);
             }
         }
-        return false;
+        return stopIndices;
     }
 
-    private static boolean cannotReachAdditionalStops(RRouteStop fromRouteStop, RRouteStop toRouteStop) {
-        Iterator<TransitRouteStop> fromIter = fromRouteStop.route.getStops().iterator();
-        while (fromIter.hasNext()) {
-            TransitRouteStop routeStop = fromIter.next();
-            if (fromRouteStop.routeStop == routeStop) {
-                break;
-            }
+    /**
+     * Same as {@link #findNearbyStopIndices(double, double, double, double, int)}, but the stops found for
+     * {@link ActivityFacility}s are remembered, as the same facilities are usually the start or end of many trips.
+     * At most {@link #MAX_REMEMBERED_FACILITIES} facilities are remembered: once there are more, the least recently
+     * used ones are forgotten, so the memory stays bounded while the facilities that are used often stay remembered.
+     * Like in {@link IntermodalAccessEgressCache}, the facilities are distributed over several segments that are locked
+     * independently, so parallel route searches rarely wait for each other.
+     */
+    int[] findNearbyStopIndices(Facility facility, double searchRadius, double extensionRadius, int minStopCount) {
+        double x = facility.getCoord().getX();
+        double y = facility.getCoord().getY();
+        if (!(facility instanceof ActivityFacility)) {
+            return findNearbyStopIndices(x, y, searchRadius, extensionRadius, minStopCount);
         }
-        Iterator<TransitRouteStop> toIter = toRouteStop.route.getStops().iterator();
-        while (toIter.hasNext()) {
-            TransitRouteStop routeStop = toIter.next();
-            if (toRouteStop.routeStop == routeStop) {
-                break;
-            }
+        NearbyStopsSegment segment = getNearbyStopsSegment((ActivityFacility) facility);
+        NearbyStops nearbyStops;
+        synchronized (segment) {
+            nearbyStops = segment.get(facility);
         }
-        // both iterators now point to the route stops where the potential transfer happens
-        while (true) {
-            boolean fromRouteHasNext = fromIter.hasNext();
-            boolean toRouteHasNext = toIter.hasNext();
-            if (!toRouteHasNext) {
-                // there are no more stops in the toRoute
-                return true;
-            }
-            if (!fromRouteHasNext) {
-                // there are no more stops in the fromRoute, but there are in the toRoute
-                return false;
-            }
-            TransitRouteStop fromStop = fromIter.next();
-            TransitRouteStop toStop = toIter.next();
-            if (fromStop.getStopFacility() != toStop.getStopFacility()) {
-                // the toRoute goes to a different stop
-                return false;
+        if (nearbyStops == null || !nearbyStops.matches(x, y, searchRadius, extensionRadius, minStopCount)) {
+            int[] stopIndices = findNearbyStopIndices(x, y, searchRadius, extensionRadius, minStopCount);
+            nearbyStops = new NearbyStops(x, y, searchRadius, extensionRadius, minStopCount, stopIndices);
+            synchronized (segment) {
+                segment.put((ActivityFacility) facility, nearbyStops);
             }
         }
+        return nearbyStops.stopIndices;
     }
 
-    private static boolean couldHaveTransferredOneStopEarlierInOppositeDirection(RRouteStop fromRouteStop, RRouteStop toRouteStop, double maxBeelineWalkConnectionDistance) {
-        TransitRouteStop previousRouteStop = null;
-        for (TransitRouteStop routeStop : fromRouteStop.route.getStops()) {
-            if (fromRouteStop.routeStop == routeStop) {
-                break;
-            }
-            previousRouteStop = routeStop;
-        }
-        if (previousRouteStop == null) {
-            return false;
+    private NearbyStopsSegment getNearbyStopsSegment(ActivityFacility facility) {
+        int hash = facility.hashCode();
+        hash ^= (hash >>> 16);
+        return this.nearbyStopsPerFacility[(hash & 0x7fffffff) % this.nearbyStopsPerFacility.length];
+    }
+
+    private static NearbyStopsSegment[] createNearbyStopsSegments() {
+        NearbyStopsSegment[] segments = new NearbyStopsSegment[NEARBY_STOPS_SEGMENT_COUNT];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new NearbyStopsSegment((MAX_REMEMBERED_FACILITIES + segments.length - 1 - i) / segments.length);
         }
+        return segments;
+    }
 
-        Iterator<TransitRouteStop> toIter = toRouteStop.route.getStops().iterator();
-        while (toIter.hasNext()) {
-            TransitRouteStop routeStop = toIter.next();
-            if (toRouteStop.routeStop == routeStop) {
-                break;
-            }
+    /**
+     * The remembered stops of some facilities, in the order of their last use.
+     */
+    private static final class NearbyStopsSegment extends LinkedHashMap<ActivityFacility, NearbyStops> {
+        private final int maxSize;
+
+        NearbyStopsSegment(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
         }
-        boolean toRouteHasNext = toIter.hasNext();
-        if (!toRouteHasNext) {
-            return false;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ActivityFacility, NearbyStops> eldest) {
+            return size() > this.maxSize;
         }
+    }
 
-        TransitRouteStop toStop = toIter.next();
-        if (previousRouteStop.getStopFacility() == toStop.getStopFacility()) {
-            return true;
+    private static final class NearbyStops {
+        private final double x;
+        private final double y;
+        private final double searchRadius;
+        private final double extensionRadius;
+        private final int minStopCount;
+        final int[] stopIndices;
+
+        NearbyStops(double x, double y, double searchRadius, double extensionRadius, int minStopCount, int[] stopIndices) {
+            this.x = x;
+            this.y = y;
+            this.searchRadius = searchRadius;
+            this.extensionRadius = extensionRadius;
+            this.minStopCount = minStopCount;
+            this.stopIndices = stopIndices;
         }
 
-        double distance = CoordUtils.calcEuclideanDistance(previousRouteStop.getStopFacility().getCoord(), toStop.getStopFacility().getCoord());
-        return distance < maxBeelineWalkConnectionDistance;
+        boolean matches(double x, double y, double searchRadius, double extensionRadius, int minStopCount) {
+            return this.x == x && this.y == y && this.searchRadius == searchRadius
+                    && this.extensionRadius == extensionRadius && this.minStopCount == minStopCount;
+        }
     }
 
-    public Collection<TransitStopFacility> findNearbyStops(double x, double y, double distance) {
-        return this.stopsQT.getDisk(x, y, distance);
-    }
+    /**
+     * Only used while building the data structure, contains everything except the transfers.
+     */
+    private static final class PreparedRoutes {
+        final RRoute[] routes;
+        final RRouteStop[] routeStops;
+        final int[] departures;
+        final Map<TransitStopFacility, Integer> stopFacilityIndices;
+        final Map<TransitStopFacility, int[]> routeStopsPerStopFacility;
+        final QuadTree<TransitStopFacility> stopsQT;
 
-    public TransitStopFacility findNearestStop(double x, double y) {
-        return this.stopsQT.getClosest(x, y);
+        PreparedRoutes(RRoute[] routes, RRouteStop[] routeStops, int[] departures, Map<TransitStopFacility, Integer> stopFacilityIndices,
+                       Map<TransitStopFacility, int[]> routeStopsPerStopFacility, QuadTree<TransitStopFacility> stopsQT) {
+            this.routes = routes;
+            this.routeStops = routeStops;
+            this.departures = departures;
+            this.stopFacilityIndices = stopFacilityIndices;
+            this.routeStopsPerStopFacility = routeStopsPerStopFacility;
+            this.stopsQT = stopsQT;
+        }
     }
 
+    /**
+     * The departures of a route are stored in two parts: a regular sequence of departures with a fixed headway
+     * is stored frequency-based (<code>frequencyCount</code> departures, starting at <code>frequencyFirstDeparture</code>
+     * every <code>frequencyHeadway</code> seconds), all other departures are stored explicitly and sorted in
+     * {@link SwissRailRaptorData#departures}. Either part may be empty.
+     */
     static final class RRoute {
         final int indexFirstRouteStop;
         final int countRouteStops;
         final int indexFirstDeparture;
-        final int countDepartures;
+        final int countDepartures; // only the explicitly stored departures
+        final int frequencyFirstDeparture;
+        final int frequencyHeadway;
+        final int frequencyCount;
+        final TransitLine line;
+        final TransitRoute route;
+        final String mode;
 
-        RRoute(int indexFirstRouteStop, int countRouteStops, int indexFirstDeparture, int countDepartures) {
+        RRoute(int indexFirstRouteStop, int countRouteStops, int indexFirstDeparture, int countDepartures,
+               int frequencyFirstDeparture, int frequencyHeadway, int frequencyCount, TransitLine line, TransitRoute route, String mode) {
             this.indexFirstRouteStop = indexFirstRouteStop;
             this.countRouteStops = countRouteStops;
             this.indexFirstDeparture = indexFirstDeparture;
             this.countDepartures = countDepartures;
+            this.frequencyFirstDeparture = frequencyFirstDeparture;
+            this.frequencyHeadway = frequencyHeadway;
+            this.frequencyCount = frequencyCount;
+            this.line = line;
+            this.route = route;
+            this.mode = mode;
         }
     }
 
+    /**
+     * Only used while building the data structure, the final data is stored in the
+     * <code>routeStop*</code> arrays.
+     */
     static final class RRouteStop {
         final TransitRouteStop routeStop;
         final TransitLine line;
@@ -515,6 +1179,131 @@ public class SwissRailRaptorData {
         }
     }
 
+    /**
+     * The indices of the transfers leading to each route stop. The transfers to route stop i are
+     * <code>transferIndices[firstTransferIndices[i]] .. transferIndices[firstTransferIndices[i+1]-1]</code>,
+     * in the order of the transfer index. This class is immutable.
+     */
+    static final class RIncomingTransfers {
+        final int[] firstTransferIndices;
+        final int[] transferIndices;
+
+        RIncomingTransfers(SwissRailRaptorData data) {
+            int[] toRouteStops = data.transferToRouteStops;
+            this.firstTransferIndices = new int[data.countRouteStops + 1];
+            for (int toRouteStop : toRouteStops) {
+                this.firstTransferIndices[toRouteStop + 1]++;
+            }
+            for (int i = 1; i < this.firstTransferIndices.length; i++) {
+                this.firstTransferIndices[i] += this.firstTransferIndices[i - 1];
+            }
+            this.transferIndices = new int[toRouteStops.length];
+            int[] nextPositions = Arrays.copyOf(this.firstTransferIndices, data.countRouteStops);
+            for (int transferIndex = 0; transferIndex < toRouteStops.length; transferIndex++) {
+                this.transferIndices[nextPositions[toRouteStops[transferIndex]]++] = transferIndex;
+            }
+        }
+    }
+
+    /**
+     * The additional transfer times per time slice of the stop facilities configured with
+     * {@link RaptorStaticConfig#setAdditionalTransferTimes}, stored in one table shared by all stops.
+     * The slices of stop i are <code>additionalTransferTimes[firstSlices[i]] .. additionalTransferTimes[firstSlices[i+1]-1]</code>,
+     * so stops without additional transfer times only require one element in <code>firstSlices</code>.
+     * This class is immutable.
+     */
+    static final class RTransferTimeProfiles {
+        final double sliceDuration;
+        final int[] firstSlices;
+        final double[] additionalTransferTimes;
+        // by slice, the latest time an arrival in one of the earlier slices of the stop is ready to depart
+        final double[] earlierReadyTimes;
+        // by stop index, the latest time an arrival in any slice of the stop is ready to depart
+        final double[] profileReadyTimes;
+
+        private RTransferTimeProfiles(double sliceDuration, int[] firstSlices, double[] additionalTransferTimes) {
+            this.sliceDuration = sliceDuration;
+            this.firstSlices = firstSlices;
+            this.additionalTransferTimes = additionalTransferTimes;
+            this.earlierReadyTimes = new double[additionalTransferTimes.length];
+            this.profileReadyTimes = new double[firstSlices.length - 1];
+            for (int stopIndex = 0; stopIndex < this.profileReadyTimes.length; stopIndex++) {
+                double readyTime = Double.NEGATIVE_INFINITY;
+                for (int slice = firstSlices[stopIndex]; slice < firstSlices[stopIndex + 1]; slice++) {
+                    this.earlierReadyTimes[slice] = readyTime;
+                    double sliceEnd = (slice - firstSlices[stopIndex] + 1) * sliceDuration;
+                    readyTime = Math.max(readyTime, sliceEnd + additionalTransferTimes[slice]);
+                }
+                this.profileReadyTimes[stopIndex] = readyTime;
+            }
+        }
+
+        /**
+         * @return the profiles of the stops in the config, or <code>null</code> if none of them is served by a route.
+         */
+        static RTransferTimeProfiles create(RaptorStaticConfig config, Map<TransitStopFacility, Integer> stopFacilityIndices) {
+            Map<Id<TransitStopFacility>, double[]> profilesPerStop = config.getAdditionalTransferTimes();
+            if (profilesPerStop.isEmpty()) {
+                return null;
+            }
+            double[][] profiles = new double[stopFacilityIndices.size()][];
+            int sliceCount = 0;
+            for (Map.Entry<TransitStopFacility, Integer> e : stopFacilityIndices.entrySet()) {
+                double[] profile = profilesPerStop.get(e.getKey().getId());
+                if (profile != null) {
+                    profiles[e.getValue()] = profile;
+                    sliceCount += profile.length;
+                }
+            }
+            if (sliceCount == 0) {
+                return null;
+            }
+            int[] firstSlices = new int[profiles.length + 1];
+            double[] additionalTransferTimes = new double[sliceCount];
+            for (int stopIndex = 0; stopIndex < profiles.length; stopIndex++) {
+                int firstSlice = firstSlices[stopIndex];
+                double[] profile = profiles[stopIndex];
+                if (profile != null) {
+                    System.arraycopy(profile, 0, additionalTransferTimes, firstSlice, profile.length);
+                    firstSlice += profile.length;
+                }
+                firstSlices[stopIndex + 1] = firstSlice;
+            }
+            return new RTransferTimeProfiles(config.getTransferTimeSliceDuration(), firstSlices, additionalTransferTimes);
+        }
+
+        /**
+         * The additional transfer times are a step function of the arrival time, so an arrival just before the end of a
+         * slice with a long additional transfer time would be ready later than an arrival in the next slice. To keep the
+         * transfers FIFO, the additional transfer time is extended so that no arrival is ready before an earlier one.
+         */
+        double getAdditionalTransferTime(int stopIndex, double time) {
+            int firstSlice = this.firstSlices[stopIndex];
+            int sliceCount = this.firstSlices[stopIndex + 1] - firstSlice;
+            if (sliceCount == 0 || time < 0) {
+                return 0;
+            }
+            double slice = time / this.sliceDuration;
+            if (slice < sliceCount) {
+                int sliceIndex = firstSlice + (int) slice;
+                return Math.max(this.additionalTransferTimes[sliceIndex], this.earlierReadyTimes[sliceIndex] - time);
+            }
+            return Math.max(0, this.profileReadyTimes[stopIndex] - time);
+        }
+
+        double getMaxAdditionalTransferTime(int stopIndex) {
+            double max = 0;
+            for (int slice = this.firstSlices[stopIndex]; slice < this.firstSlices[stopIndex + 1]; slice++) {
+                max = Math.max(max, this.additionalTransferTimes[slice]);
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Only used while building the data structure, the final data is stored in the
+     * <code>transfer*</code> arrays.
+     */
     static final class RTransfer {
         final int fromRouteStop;
         final int toRouteStop;
@@ -529,24 +1318,55 @@ public class SwissRailRaptorData {
         }
     }
     
-    /*
-     * synchronized in order to avoid that multiple quad trees for the very same stop filter attribute/value combination are prepared at the same time 
-     */
-	public synchronized void prepareStopFilterQuadTreeIfNotExistent(String stopFilterAttribute, String stopFilterValue) {
-		if (!stopFilterAttribute2Value2StopsQT.containsKey(stopFilterAttribute)) {
-			stopFilterAttribute2Value2StopsQT.put(stopFilterAttribute, new HashMap<>());
-		}
-	    Set<TransitStopFacility> stops = routeStopsPerStopFacility.keySet();
+    private static Map<String, Map<String, QuadTree<TransitStopFacility>>> createStopFilterQuadTrees(Map<String, Set<String>> stopFilters,
+            Set<TransitStopFacility> stops, QuadTree<TransitStopFacility> stopsQT) {
+        Map<String, Map<String, QuadTree<TransitStopFacility>>> quadTrees = new HashMap<>();
+        for (Map.Entry<String, Set<String>> e : stopFilters.entrySet()) {
+            String stopFilterAttribute = e.getKey();
+            Map<String, QuadTree<TransitStopFacility>> value2StopsQT = new HashMap<>();
+            for (String stopFilterValue : e.getValue()) {
+                value2StopsQT.put(stopFilterValue, createStopFilterQuadTree(stopFilterAttribute, stopFilterValue, stops, stopsQT));
+            }
+            quadTrees.put(stopFilterAttribute, Collections.unmodifiableMap(value2StopsQT));
+        }
+        return Collections.unmodifiableMap(quadTrees);
+    }
+
+    private static QuadTree<TransitStopFacility> createStopFilterQuadTree(String stopFilterAttribute, String stopFilterValue,
+            Set<TransitStopFacility> stops, QuadTree<TransitStopFacility> stopsQT) {
         QuadTree<TransitStopFacility> stopsQTFiltered = new QuadTree<>(stopsQT.getMinEasting(), stopsQT.getMinNorthing(), stopsQT.getMaxEasting(), stopsQT.getMaxNorthing());
         for (TransitStopFacility stopFacility : stops) {
-			Object attr = stopFacility.getAttributes().getAttribute(stopFilterAttribute);
-			String attrValue = attr == null ? null : attr.toString();
-			if (stopFilterValue.equals(attrValue)) {
-	            double x = stopFacility.getCoord().getX();
-	            double y = stopFacility.getCoord().getY();
-	            stopsQTFiltered.put(x, y, stopFacility);
-			}
-        }
-        stopFilterAttribute2Value2StopsQT.get(stopFilterAttribute).put(stopFilterValue, stopsQTFiltered);
-	}
+            Object attr = stopFacility.getAttributes().getAttribute(stopFilterAttribute);
+            String attrValue = attr == null ? null : attr.toString();
+            if (stopFilterValue.equals(attrValue)) {
+                double x = stopFacility.getCoord().getX();
+                double y = stopFacility.getCoord().getY();
+                stopsQTFiltered.put(x, y, stopFacility);
+            }
+        }
+        return stopsQTFiltered;
+    }
+
+    /**
+     * Returns the stops having the given value in the given attribute. The quad trees of the stop filters of the static config
+     * are prepared together with the data, so looking them up does not require any locking. Quad trees of other stop
+     * filters, e.g. of intermodal access/egress parameter sets added after the data was prepared, are created on first use.
+     */
+    QuadTree<TransitStopFacility> getStopFilterQuadTree(String stopFilterAttribute, String stopFilterValue) {
+        Map<String, QuadTree<TransitStopFacility>> value2StopsQT = this.stopFilterAttribute2Value2StopsQT.get(stopFilterAttribute);
+        QuadTree<TransitStopFacility> stopsQT = value2StopsQT == null ? null : value2StopsQT.get(stopFilterValue);
+        if (stopsQT == null) {
+            stopsQT = this.additionalStopFilterQTs.computeIfAbsent(stopFilterAttribute, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(stopFilterValue, k -> createStopFilterQuadTree(stopFilterAttribute, stopFilterValue, this.routeStopsPerStopFacility.keySet(), this.stopsQT));
+        }
+        return stopsQT;
+    }
+
+    /**
+     * @deprecated the quad trees of the stop filters are prepared with the data, see {@link RaptorStaticConfig#addStopFilter(String, String)}.
+     */
+    @Deprecated
+    public void prepareStopFilterQuadTreeIfNotExistent(String stopFilterAttribute, String stopFilterValue) {
+        getStopFilterQuadTree(stopFilterAttribute, stopFilterValue);
+    }
 }
@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData.RRoute;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.MinimalTransferTimes;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes and reads prepared {@link SwissRailRaptorData} in a versioned binary format, so the
+ * (expensive) preparation of the data, especially the calculation of the transfers, only has
+ * to be done once for a given schedule, network and {@link RaptorStaticConfig}.
+ *
+ * Each snapshot is identified by a key calculated from the content of the schedule, the network links
+ * used by the transit routes and the static config. Only the primitive data is stored in the file,
+ * references to schedule objects (lines, routes, route stops, stop facilities) are stored as ids and
+ * resolved against the schedule when loading. When loading, the data is copied into the arrays of a new
+ * {@link SwissRailRaptorData}, so every JVM holds its own copy: a snapshot only saves the time to prepare the data.
+ *
+ * @author mrieser / SBB
+ */
+public final class SwissRailRaptorDataIO {
+
+    private static final Logger log = Logger.getLogger(SwissRailRaptorDataIO.class);
+
+    private static final int MAGIC = 0x53525244; // "SRRD"
+    private static final int VERSION = 2;
+
+    private static final String FILENAME_PREFIX = "swissRailRaptorData-";
+    private static final String FILENAME_SUFFIX = ".bin";
+
+    private SwissRailRaptorDataIO() {
+    }
+
+    /**
+     * Loads the data from a snapshot in the given directory if one exists for the schedule, network and config.
+     * Otherwise, the data is created and a snapshot is written to the directory for later re-use.
+     */
+    public static SwissRailRaptorData loadOrCreate(TransitSchedule schedule, RaptorStaticConfig staticConfig, Network network, String snapshotDirectory) {
+        String key = calcDataKey(schedule, network, staticConfig);
+        File file = new File(snapshotDirectory, FILENAME_PREFIX + key + FILENAME_SUFFIX);
+        if (file.exists()) {
+            try {
+                long startMillis = System.currentTimeMillis();
+                SwissRailRaptorData data = read(file, key, schedule, staticConfig);
+                if (data != null) {
+                    log.info("SwissRailRaptor data loaded from " + file.getAbsolutePath() + ". Took " + (System.currentTimeMillis() - startMillis) / 1000 + " seconds.");
+                    return data;
+                }
+                log.warn("SwissRailRaptor data in " + file.getAbsolutePath() + " is not compatible, data will be prepared again.");
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not read SwissRailRaptor data from " + file.getAbsolutePath() + ", data will be prepared again.", e);
+            }
+        }
+        SwissRailRaptorData data = SwissRailRaptorData.create(schedule, staticConfig, network);
+        try {
+            File directory = file.getParentFile();
+            if (directory != null && !directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create directory " + directory.getAbsolutePath());
+            }
+            write(data, key, file);
+            log.info("SwissRailRaptor data written to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            log.warn("Could not write SwissRailRaptor data to " + file.getAbsolutePath(), e);
+        }
+        return data;
+    }
+
+    /**
+     * Calculates a key that identifies the data created from the given schedule, network and config.
+     * The schedule is hashed in the same iteration order that is used by {@link SwissRailRaptorData#create},
+     * so two inputs with the same key will result in the same indices for routes, route stops and stop facilities.
+     */
+    public static String calcDataKey(TransitSchedule schedule, Network network, RaptorStaticConfig staticConfig) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DigestOutputStream(new NullOutputStream(), digest)))) {
+            out.writeInt(VERSION);
+
+            out.writeDouble(staticConfig.getBeelineWalkConnectionDistance());
+            out.writeDouble(staticConfig.getBeelineWalkSpeed());
+            out.writeDouble(staticConfig.getBeelineWalkDistanceFactor());
+            out.writeDouble(staticConfig.getMinimalTransferTime());
+            out.writeBoolean(staticConfig.isUseModeMappingForPassengers());
+            writeString(out, staticConfig.getOptimization().name());
+
+            for (TransitLine line : schedule.getTransitLines().values()) {
+                writeString(out, line.getId().toString());
+                for (TransitRoute route : line.getRoutes().values()) {
+                    writeString(out, route.getId().toString());
+                    writeString(out, route.getTransportMode());
+                    if (staticConfig.isUseModeMappingForPassengers()) {
+                        writeString(out, staticConfig.getPassengerMode(route.getTransportMode()));
+                    }
+                    for (TransitRouteStop routeStop : route.getStops()) {
+                        TransitStopFacility stop = routeStop.getStopFacility();
+                        writeString(out, stop.getId().toString());
+                        writeString(out, stop.getLinkId() == null ? null : stop.getLinkId().toString());
+                        out.writeDouble(stop.getCoord().getX());
+                        out.writeDouble(stop.getCoord().getY());
+                        out.writeDouble(routeStop.getArrivalOffset());
+                        out.writeDouble(routeStop.getDepartureOffset());
+                    }
+                    for (Departure departure : route.getDepartures().values()) {
+                        out.writeDouble(departure.getDepartureTime());
+                    }
+                    NetworkRoute networkRoute = route.getRoute();
+                    writeLink(out, networkRoute.getStartLinkId(), network);
+                    for (Id<Link> linkId : networkRoute.getLinkIds()) {
+                        writeLink(out, linkId, network);
+                    }
+                    writeLink(out, networkRoute.getEndLinkId(), network);
+                }
+            }
+
+            MinimalTransferTimes.MinimalTransferTimesIterator iter = schedule.getMinimalTransferTimes().iterator();
+            while (iter.hasNext()) {
+                iter.next();
+                writeString(out, iter.getFromStopId().toString());
+                writeString(out, iter.getToStopId().toString());
+                out.writeDouble(iter.getSeconds());
+            }
+
+            String walkMode = staticConfig.getTransferWalkNetworkMode();
+            writeString(out, walkMode);
+            if (walkMode != null) {
+                out.writeDouble(staticConfig.getMaxTransferWalkDistance());
+                List<Link> walkLinks = new ArrayList<>();
+                for (Link link : network.getLinks().values()) {
+                    if (link.getAllowedModes().contains(walkMode)) {
+                        walkLinks.add(link);
+                    }
+                }
+                walkLinks.sort((l1, l2) -> l1.getId().toString().compareTo(l2.getId().toString()));
+                for (Link link : walkLinks) {
+                    writeString(out, link.getId().toString());
+                    writeString(out, link.getFromNode().getId().toString());
+                    writeString(out, link.getToNode().getId().toString());
+                    out.writeDouble(link.getFromNode().getCoord().getX());
+                    out.writeDouble(link.getFromNode().getCoord().getY());
+                    out.writeDouble(link.getToNode().getCoord().getX());
+                    out.writeDouble(link.getToNode().getCoord().getY());
+                    out.writeDouble(link.getLength());
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void writeLink(DataOutputStream out, Id<Link> linkId, Network network) throws IOException {
+        writeString(out, linkId.toString());
+        Link link = network.getLinks().get(linkId);
+        out.writeDouble(link == null ? Double.NaN : link.getLength());
+    }
+
+    public static void write(SwissRailRaptorData data, String key, File file) throws IOException {
+        // write to a temporary file first and move it afterwards, so other processes never see a partially written file
+        File tmpFile = new File(file.getAbsolutePath() + "." + System.nanoTime() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeString(out, key);
+
+                out.writeInt(data.routes.length);
+                out.writeInt(data.departures.length);
+                out.writeInt(data.countRouteStops);
+                out.writeInt(data.transferToRouteStops.length);
+                out.writeInt(data.countStops);
+
+                for (RRoute route : data.routes) {
+                    writeString(out, route.line.getId().toString());
+                    writeString(out, route.route.getId().toString());
+                    writeString(out, route.mode);
+                    out.writeInt(route.indexFirstRouteStop);
+                    out.writeInt(route.countRouteStops);
+                    out.writeInt(route.indexFirstDeparture);
+                    out.writeInt(route.countDepartures);
+                    out.writeInt(route.frequencyFirstDeparture);
+                    out.writeInt(route.frequencyHeadway);
+                    out.writeInt(route.frequencyCount);
+                }
+
+                TransitStopFacility[] stops = new TransitStopFacility[data.countStops];
+                for (Map.Entry<TransitStopFacility, Integer> e : data.stopFacilityIndices.entrySet()) {
+                    stops[e.getValue()] = e.getKey();
+                }
+                for (TransitStopFacility stop : stops) {
+                    writeString(out, stop.getId().toString());
+                }
+
+                writeInts(out, data.departures);
+                writeInts(out, data.routeStopRouteIndices);
+                writeInts(out, data.routeStopStopFacilityIndices);
+                writeDoubles(out, data.routeStopArrivalOffsets);
+                writeDoubles(out, data.routeStopDepartureOffsets);
+                writeDoubles(out, data.routeStopDistancesAlongRoute);
+                writeInts(out, data.routeStopFirstTransferIndices);
+                writeInts(out, data.routeStopTransferCounts);
+                writeInts(out, data.transferFromRouteStops);
+                writeInts(out, data.transferToRouteStops);
+                writeDoubles(out, data.transferTimes);
+                writeDoubles(out, data.transferDistances);
+
+                QuadTree<TransitStopFacility> stopsQT = data.stopsQT;
+                out.writeDouble(stopsQT.getMinEasting());
+                out.writeDouble(stopsQT.getMinNorthing());
+                out.writeDouble(stopsQT.getMaxEasting());
+                out.writeDouble(stopsQT.getMaxNorthing());
+                out.writeInt(MAGIC);
+            }
+            try {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            // after a failure, do not leave the partially written file behind
+            if (tmpFile.exists() && !tmpFile.delete()) {
+                log.warn("Could not delete temporary file " + tmpFile.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * @return the data stored in the file, or <code>null</code> if the file was written with a different
+     * version of the format or for a different key.
+     */
+    public static SwissRailRaptorData read(File file, String expectedKey, TransitSchedule schedule, RaptorStaticConfig staticConfig) throws IOException {
+        try (MappedReader in = new MappedReader(file)) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a SwissRailRaptor data file: " + file.getAbsolutePath());
+            }
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            String key = in.readString();
+            if (!key.equals(expectedKey)) {
+                return null;
+            }
+
+            int countRoutes = in.readInt();
+            int countDepartures = in.readInt();
+            int countRouteStops = in.readInt();
+            int countTransfers = in.readInt();
+            int countStops = in.readInt();
+
+            RRoute[] routes = new RRoute[countRoutes];
+            for (int i = 0; i < countRoutes; i++) {
+                TransitLine line = schedule.getTransitLines().get(Id.create(in.readString(), TransitLine.class));
+                TransitRoute route = line.getRoutes().get(Id.create(in.readString(), TransitRoute.class));
+                String mode = in.readString();
+                int indexFirstRouteStop = in.readInt();
+                int routeStopCount = in.readInt();
+                int indexFirstDeparture = in.readInt();
+                int departureCount = in.readInt();
+                int frequencyFirstDeparture = in.readInt();
+                int frequencyHeadway = in.readInt();
+                int frequencyCount = in.readInt();
+                routes[i] = new RRoute(indexFirstRouteStop, routeStopCount, indexFirstDeparture, departureCount,
+                        frequencyFirstDeparture, frequencyHeadway, frequencyCount, line, route, mode);
+            }
+
+            TransitStopFacility[] stops = new TransitStopFacility[countStops];
+            Map<TransitStopFacility, Integer> stopFacilityIndices = new HashMap<>((int) (countStops * 1.5));
+            for (int i = 0; i < countStops; i++) {
+                TransitStopFacility stop = schedule.getFacilities().get(Id.create(in.readString(), TransitStopFacility.class));
+                stops[i] = stop;
+                stopFacilityIndices.put(stop, i);
+            }
+
+            int[] departures = in.readInts(countDepartures);
+            int[] routeStopRouteIndices = in.readInts(countRouteStops);
+            int[] routeStopStopFacilityIndices = in.readInts(countRouteStops);
+            double[] routeStopArrivalOffsets = in.readDoubles(countRouteStops);
+            double[] routeStopDepartureOffsets = in.readDoubles(countRouteStops);
+            double[] routeStopDistancesAlongRoute = in.readDoubles(countRouteStops);
+            int[] routeStopFirstTransferIndices = in.readInts(countRouteStops);
+            int[] routeStopTransferCounts = in.readInts(countRouteStops);
+            int[] transferFromRouteStops = in.readInts(countTransfers);
+            int[] transferToRouteStops = in.readInts(countTransfers);
+            double[] transferTimes = in.readDoubles(countTransfers);
+            double[] transferDistances = in.readDoubles(countTransfers);
+
+            double minX = in.readDouble();
+            double minY = in.readDouble();
+            double maxX = in.readDouble();
+            double maxY = in.readDouble();
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Unexpected end of SwissRailRaptor data in " + file.getAbsolutePath());
+            }
+
+            // resolve the schedule objects and rebuild the lookup structures
+            TransitRouteStop[] transitRouteStops = new TransitRouteStop[countRouteStops];
+            for (RRoute route : routes) {
+                int index = route.indexFirstRouteStop;
+                for (TransitRouteStop routeStop : route.route.getStops()) {
+                    transitRouteStops[index] = routeStop;
+                    index++;
+                }
+            }
+
+            int[] routeStopCountPerStop = new int[countStops];
+            for (int stopIndex : routeStopStopFacilityIndices) {
+                routeStopCountPerStop[stopIndex]++;
+            }
+            int[][] routeStopIndicesPerStop = new int[countStops][];
+            for (int i = 0; i < countStops; i++) {
+                routeStopIndicesPerStop[i] = new int[routeStopCountPerStop[i]];
+                routeStopCountPerStop[i] = 0;
+            }
+            for (int routeStopIndex = 0; routeStopIndex < countRouteStops; routeStopIndex++) {
+                int stopIndex = routeStopStopFacilityIndices[routeStopIndex];
+                routeStopIndicesPerStop[stopIndex][routeStopCountPerStop[stopIndex]++] = routeStopIndex;
+            }
+            Map<TransitStopFacility, int[]> routeStopsPerStopFacility = new HashMap<>((int) (countStops * 1.5));
+            QuadTree<TransitStopFacility> stopsQT = new QuadTree<>(minX, minY, maxX, maxY);
+            for (int i = 0; i < countStops; i++) {
+                TransitStopFacility stop = stops[i];
+                routeStopsPerStopFacility.put(stop, routeStopIndicesPerStop[i]);
+                stopsQT.put(stop.getCoord().getX(), stop.getCoord().getY(), stop);
+            }
+
+            return new SwissRailRaptorData(staticConfig, countStops, routes, departures,
+                    routeStopRouteIndices, routeStopStopFacilityIndices, routeStopArrivalOffsets, routeStopDepartureOffsets, routeStopDistancesAlongRoute,
+                    routeStopFirstTransferIndices, routeStopTransferCounts, transitRouteStops,
+                    transferFromRouteStops, transferToRouteStops, transferTimes, transferDistances,
+                    stopFacilityIndices, routeStopsPerStopFacility, stopsQT, SwissRailRaptorData.copyMinimalTransferTimes(schedule.getMinimalTransferTimes()));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    /**
+     * Reads the file through a sliding window of the file channel, so the large arrays can be copied in bulk
+     * and files larger than 2 GB can be read as well.
+     */
+    private static final class MappedReader implements Closeable {
+
+        private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer buffer;
+        private long bufferStart;
+
+        MappedReader(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.size = this.channel.size();
+            map(0);
+        }
+
+        private void map(long position) throws IOException {
+            long length = Math.min(WINDOW_SIZE, this.size - position);
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+            this.bufferStart = position;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (this.buffer.remaining() < bytes) {
+                long position = this.bufferStart + this.buffer.position();
+                if (position + bytes > this.size) {
+                    throw new EOFException();
+                }
+                map(position);
+            }
+        }
+
+        int readInt() throws IOException {
+            ensure(Integer.BYTES);
+            return this.buffer.getInt();
+        }
+
+        double readDouble() throws IOException {
+            ensure(Double.BYTES);
+            return this.buffer.getDouble();
+        }
+
+        String readString() throws IOException {
+            int length = readInt();
+            if (length < 0) {
+                return null;
+            }
+            ensure(length);
+            byte[] bytes = new byte[length];
+            this.buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        int[] readInts(int count) throws IOException {
+            int[] values = new int[count];
+            int offset = 0;
+            while (offset < count) {
+                ensure(Integer.BYTES);
+                int chunk = Math.min(count - offset, this.buffer.remaining() / Integer.BYTES);
+                this.buffer.asIntBuffer().get(values, offset, chunk);
+                this.buffer.position(this.buffer.position() + chunk * Integer.BYTES);
+                offset += chunk;
+            }
+            return values;
+        }
+
+        double[] readDoubles(int count) throws IOException {
+            double[] values = new double[count];
+            int offset = 0;
+            while (offset < count) {
+                ensure(Double.BYTES);
+                int chunk = Math.min(count - offset, this.buffer.remaining() / Double.BYTES);
+                this.buffer.asDoubleBuffer().get(values, offset, chunk);
+                this.buffer.position(this.buffer.position() + chunk * Double.BYTES);
+                offset += chunk;
+            }
+            return values;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
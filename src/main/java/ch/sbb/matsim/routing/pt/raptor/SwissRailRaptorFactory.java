@@ -4,10 +4,12 @@
 
 package ch.sbb.matsim.routing.pt.raptor;
 
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.population.Population;
 import org.matsim.core.api.experimental.events.EventsManager;
 import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.config.groups.PlansConfigGroup;
 import org.matsim.pt.router.TransitScheduleChangedEventHandler;
 import org.matsim.pt.transitSchedule.api.TransitSchedule;
@@ -22,7 +24,9 @@ import javax.inject.Singleton;
 @Singleton
 public class SwissRailRaptorFactory implements Provider<SwissRailRaptor> {
 
-    private SwissRailRaptorData data = null;
+    private volatile SwissRailRaptorData data = null;
+    private volatile SwissRailRaptorCorePool corePool = null; // shared by all created routers, belongs to data
+    private volatile boolean dataOutdated = false;
     private final TransitSchedule schedule;
     private final RaptorStaticConfig raptorConfig;
     private final RaptorParametersForPerson raptorParametersForPerson;
@@ -31,6 +35,7 @@ public class SwissRailRaptorFactory implements Provider<SwissRailRaptor> {
     private final Network network;
     private final PlansConfigGroup plansConfigGroup;
     private final Population population;
+    private final String dataSnapshotDirectory;
 
     @Inject
     public SwissRailRaptorFactory(final TransitSchedule schedule, final Config config, final Network network,
@@ -45,33 +50,54 @@ public class SwissRailRaptorFactory implements Provider<SwissRailRaptor> {
         this.stopFinderProvider = stopFinderProvider;
         this.plansConfigGroup = plansConfigGroup;
         this.population = population;
+        SwissRailRaptorConfigGroup srrConfig = ConfigUtils.addOrGetModule(config, SwissRailRaptorConfigGroup.class);
+        this.dataSnapshotDirectory = srrConfig.getDataSnapshotDirectory();
 
         if (events != null) {
-            events.addHandler((TransitScheduleChangedEventHandler) event -> this.data = null);
+            events.addHandler((TransitScheduleChangedEventHandler) event -> this.dataOutdated = true);
         }
     }
 
     @Override
     public SwissRailRaptor get() {
-        SwissRailRaptorData data = getData();
-        return new SwissRailRaptor(data, this.raptorParametersForPerson, this.routeSelector, this.stopFinderProvider.get(),
+        SwissRailRaptorCorePool corePool = getCorePool();
+        return new SwissRailRaptor(corePool, this.raptorParametersForPerson, this.routeSelector, this.stopFinderProvider.get(),
                 this.plansConfigGroup.getSubpopulationAttributeName() );
     }
 
-    private SwissRailRaptorData getData() {
-        if (this.data == null) {
-            this.data = prepareData();
+    private SwissRailRaptorCorePool getCorePool() {
+        SwissRailRaptorCorePool corePool = this.corePool;
+        if (corePool == null || this.dataOutdated) {
+            corePool = prepareCorePool();
         }
-        return this.data;
+        return corePool;
     }
 
-    synchronized private SwissRailRaptorData prepareData() {
-        if (this.data != null) {
+    synchronized private SwissRailRaptorCorePool prepareCorePool() {
+        if (this.corePool != null && !this.dataOutdated) {
             // due to multithreading / race conditions, this could still happen.
             // prevent doing the work twice.
+            return this.corePool;
+        }
+        this.corePool = new SwissRailRaptorCorePool(prepareData());
+        return this.corePool;
+    }
+
+    private SwissRailRaptorData prepareData() {
+        if (this.data != null) {
+            // the schedule has changed. Routers created earlier keep using the previous data,
+            // so the update must not modify it but create new data (copy-on-write).
+            // Reset the flag before updating, so changes during the update are not lost.
+            this.dataOutdated = false;
+            this.data = SwissRailRaptorData.update(this.data, this.schedule, this.network);
             return this.data;
         }
-        this.data = SwissRailRaptorData.create(this.schedule, this.raptorConfig, this.network);
+        this.dataOutdated = false;
+        if (this.dataSnapshotDirectory != null && !this.dataSnapshotDirectory.isEmpty()) {
+            this.data = SwissRailRaptorDataIO.loadOrCreate(this.schedule, this.raptorConfig, this.network, this.dataSnapshotDirectory);
+        } else {
+            this.data = SwissRailRaptorData.create(this.schedule, this.raptorConfig, this.network);
+        }
         return this.data;
     }
 
@@ -60,6 +60,11 @@ public class SwissRailRaptorModule extends AbstractModule {
             }
             
             bind(RaptorIntermodalAccessEgress.class).to(DefaultRaptorIntermodalAccessEgress.class);
+
+            if (srrConfig.getIntermodalAccessEgressCacheSize() > 0) {
+                // the cached legs must be removed when the travel times change
+                addControlerListenerBinding().to(IntermodalAccessEgressCache.class);
+            }
         }
 
 
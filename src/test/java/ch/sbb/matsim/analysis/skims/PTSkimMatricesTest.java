@@ -1,11 +1,38 @@
 package ch.sbb.matsim.analysis.skims;
 
 import ch.sbb.matsim.analysis.skims.PTSkimMatrices.ODConnection;
+import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
+import ch.sbb.matsim.routing.pt.raptor.RaptorStaticConfig;
+import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptor;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorCore.TravelInfo;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
 import org.junit.Assert;
 import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.population.routes.RouteUtils;
+import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.utils.misc.Time;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitLine;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
+import org.matsim.pt.transitSchedule.api.TransitRouteStop;
+import org.matsim.pt.transitSchedule.api.TransitSchedule;
+import org.matsim.pt.transitSchedule.api.TransitScheduleFactory;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.opengis.feature.simple.SimpleFeature;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -144,4 +171,99 @@ public class PTSkimMatricesTest {
         Assert.assertEquals(20.0/60.0, shares.get(c7), 1e-7);
         Assert.assertEquals(2.0/60.0, shares.get(c5), 1e-7);
     }
-}
\ No newline at end of file
+
+    /**
+     * The profiles used for the skims must result in the same values as calculating a tree for every
+     * departure time in the window, including the connections departing after the window.
+     */
+    @Test
+    public void testCalculateSkimMatrices_sameAsTrees() {
+        Config config = ConfigUtils.createConfig();
+        Scenario scenario = ScenarioUtils.createScenario(config);
+        Network network = scenario.getNetwork();
+        TransitSchedule schedule = scenario.getTransitSchedule();
+
+        // A-B is served within and after the time window, C-D only after it
+        TransitStopFacility stopA = createStop(network, schedule, "A", new Coord(0, 0));
+        TransitStopFacility stopB = createStop(network, schedule, "B", new Coord(5000, 0));
+        TransitStopFacility stopC = createStop(network, schedule, "C", new Coord(0, 10000));
+        TransitStopFacility stopD = createStop(network, schedule, "D", new Coord(5000, 10000));
+        createLine(network, schedule, "AB", stopA, stopB, "08:10:00", "08:40:00", "09:05:00");
+        createLine(network, schedule, "CD", stopC, stopD, "09:10:00");
+
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(config);
+        raptorConfig.setOptimization(RaptorStaticConfig.RaptorOptimization.OneToAllRouting);
+        SwissRailRaptorData data = SwissRailRaptorData.create(schedule, raptorConfig, network);
+        RaptorParameters parameters = RaptorUtils.createParameters(config);
+
+        Map<String, SimpleFeature> zones = new LinkedHashMap<>();
+        Map<String, Coord[]> coordsPerZone = new LinkedHashMap<>();
+        for (TransitStopFacility stop : new TransitStopFacility[] {stopA, stopB, stopC, stopD}) {
+            zones.put(stop.getId().toString(), null);
+            coordsPerZone.put(stop.getId().toString(), new Coord[] {stop.getCoord()});
+        }
+        double minDepartureTime = Time.parseTime("08:00:00");
+        double maxDepartureTime = Time.parseTime("09:00:00");
+
+        PTSkimMatrices.PtIndicators<String> pti = PTSkimMatrices.calculateSkimMatrices(data, zones, coordsPerZone, minDepartureTime, maxDepartureTime, parameters, 1, (line, route) -> true);
+
+        // calculate the values for A-B the way the skims did before the profiles, with a tree every 2 minutes
+        SwissRailRaptor raptor = new SwissRailRaptor(data, null, null, null);
+        List<ODConnection> connections = new ArrayList<>();
+        for (double time = minDepartureTime; time < maxDepartureTime; time += 120) {
+            TravelInfo info = raptor.calcTree(Collections.singletonList(stopA), time, parameters).get(stopB.getId());
+            if (info != null && !info.isWalkOnly()) {
+                connections.add(new ODConnection(info.ptDepartureTime, info.ptTravelTime, info.accessTime, 0, info.transferCount, info));
+            }
+        }
+        connections = PTSkimMatrices.RowWorker.sortAndFilterConnections(connections);
+        Assert.assertEquals("the connection departing after the window should be found.", 3, connections.size());
+
+        double adaptionTime = PTSkimMatrices.RowWorker.calcAverageAdaptionTime(connections, minDepartureTime, maxDepartureTime);
+        float travelTime = 0;
+        for (Map.Entry<ODConnection, Double> e : PTSkimMatrices.RowWorker.calcConnectionShares(connections, minDepartureTime, maxDepartureTime).entrySet()) {
+            travelTime += e.getValue() * (float) e.getKey().totalTravelTime();
+        }
+
+        Assert.assertEquals(1, pti.dataCountMatrix.get("A", "B"), 0.0);
+        Assert.assertEquals(adaptionTime, pti.adaptionTimeMatrix.get("A", "B"), 1e-3);
+        Assert.assertEquals(travelTime, pti.travelTimeMatrix.get("A", "B"), 1e-3);
+
+        Assert.assertEquals("a pair only served after the window should have data.", 1, pti.dataCountMatrix.get("C", "D"), 0.0);
+        Assert.assertEquals(600, pti.travelTimeMatrix.get("C", "D"), 1e-3);
+        Assert.assertEquals(0, pti.dataCountMatrix.get("B", "A"), 0.0);
+    }
+
+    private static TransitStopFacility createStop(Network network, TransitSchedule schedule, String id, Coord coord) {
+        Node node = network.getFactory().createNode(Id.create(id, Node.class), coord);
+        network.addNode(node);
+        TransitStopFacility stop = schedule.getFactory().createTransitStopFacility(Id.create(id, TransitStopFacility.class), coord, false);
+        schedule.addStopFacility(stop);
+        return stop;
+    }
+
+    /**
+     * Creates a line from <code>fromStop</code> to <code>toStop</code> with a travel time of 10 minutes.
+     */
+    private static void createLine(Network network, TransitSchedule schedule, String id, TransitStopFacility fromStop, TransitStopFacility toStop, String... departureTimes) {
+        Node fromNode = network.getNodes().get(Id.create(fromStop.getId(), Node.class));
+        Node toNode = network.getNodes().get(Id.create(toStop.getId(), Node.class));
+        Link link = network.getFactory().createLink(Id.create(id, Link.class), fromNode, toNode);
+        network.addLink(link);
+        fromStop.setLinkId(link.getId());
+        toStop.setLinkId(link.getId());
+
+        TransitScheduleFactory sb = schedule.getFactory();
+        TransitLine line = sb.createTransitLine(Id.create(id, TransitLine.class));
+        schedule.addTransitLine(line);
+        NetworkRoute netRoute = RouteUtils.createLinkNetworkRouteImpl(link.getId(), link.getId());
+        List<TransitRouteStop> stops = new ArrayList<>();
+        stops.add(sb.createTransitRouteStop(fromStop, 0, 0));
+        stops.add(sb.createTransitRouteStop(toStop, 600, 600));
+        TransitRoute route = sb.createTransitRoute(Id.create(id, TransitRoute.class), netRoute, stops, "train");
+        line.addRoute(route);
+        for (int i = 0; i < departureTimes.length; i++) {
+            route.addDeparture(sb.createDeparture(Id.create(id + "_" + i, Departure.class), Time.parseTime(departureTimes[i])));
+        }
+    }
+}
@@ -8,6 +8,7 @@ import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.IntermodalAccessEgressPar
 import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.ModeMappingForPassengersParameterSet;
 import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.RangeQuerySettingsParameterSet;
 import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.RouteSelectorParameterSet;
+import ch.sbb.matsim.config.SwissRailRaptorConfigGroup.RoutingLimitsParameterSet;
 import ch.sbb.matsim.routing.pt.raptor.RaptorStopFinder.Direction;
 
 import org.junit.Assert;
@@ -244,6 +245,42 @@ public class SwissRailRaptorConfigGroupTest {
         Assert.assertNull(config2.getModeMappingForPassengersParameterSet("ship"));
     }
 
+    @Test
+    public void testConfigIO_routingLimits() {
+        SwissRailRaptorConfigGroup config1 = new SwissRailRaptorConfigGroup();
+
+        { // prepare config1
+            RoutingLimitsParameterSet limits1 = new RoutingLimitsParameterSet();
+            limits1.setSubpopulations("");
+            limits1.setMaxTransfers(8);
+            config1.addRoutingLimits(limits1);
+
+            RoutingLimitsParameterSet limits2 = new RoutingLimitsParameterSet();
+            limits2.setSubpopulations("inflexible");
+            limits2.setMaxTransfersAfterFirstArrival(0);
+            limits2.setMaxTravelTime(3 * 3600);
+            config1.addRoutingLimits(limits2);
+        }
+
+        SwissRailRaptorConfigGroup config2 = writeRead(config1);
+
+        // do checks
+        RoutingLimitsParameterSet limits1 = config2.getRoutingLimits(null);
+        Assert.assertNotNull(limits1);
+        Assert.assertEquals(8, limits1.getMaxTransfers());
+        Assert.assertEquals(2, limits1.getMaxTransfersAfterFirstArrival());
+        Assert.assertEquals(Double.POSITIVE_INFINITY, limits1.getMaxTravelTime(), 0.0);
+
+        RoutingLimitsParameterSet limits2 = config2.getRoutingLimits("inflexible");
+        Assert.assertNotNull(limits2);
+        Assert.assertEquals("inflexible", limits2.getSubpopulations().iterator().next());
+        Assert.assertEquals(20, limits2.getMaxTransfers());
+        Assert.assertEquals(0, limits2.getMaxTransfersAfterFirstArrival());
+        Assert.assertEquals(3 * 3600, limits2.getMaxTravelTime(), 0.0);
+
+        Assert.assertSame(limits1, config2.getRoutingLimits("unknown"));
+    }
+
     private SwissRailRaptorConfigGroup writeRead(SwissRailRaptorConfigGroup config) {
         Config fullConfig1 = ConfigUtils.createConfig(config);
 
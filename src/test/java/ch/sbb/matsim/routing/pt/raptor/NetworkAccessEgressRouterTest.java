@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.NetworkFactory;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Leg;
+import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.population.routes.NetworkRoute;
+import org.matsim.core.router.costcalculators.FreespeedTravelTimeAndDisutility;
+import org.matsim.core.utils.misc.Time;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * @author mrieser / SBB
+ */
+public class NetworkAccessEgressRouterTest {
+
+    @Test
+    public void testAccess() {
+        Network network = createNetwork();
+        NetworkAccessEgressRouter router = createRouter(network);
+
+        Map<Id<Link>, Leg> legs = router.calcLegs(Id.create(1, Link.class), Arrays.asList(Id.create(2, Link.class), Id.create(4, Link.class), Id.create(9, Link.class)),
+                7 * 3600, RaptorStopFinder.Direction.ACCESS, null, 10000);
+        Assert.assertEquals("stop link 9 is not reachable by car.", 2, legs.size());
+
+        Leg leg2 = legs.get(Id.create(2, Link.class));
+        NetworkRoute route2 = (NetworkRoute) leg2.getRoute();
+        Assert.assertEquals(TransportMode.car, leg2.getMode());
+        Assert.assertEquals(7 * 3600, leg2.getDepartureTime(), 0.0);
+        Assert.assertEquals(0, leg2.getTravelTime(), 1e-7);
+        Assert.assertEquals(Id.create(1, Link.class), route2.getStartLinkId());
+        Assert.assertEquals(Id.create(2, Link.class), route2.getEndLinkId());
+        Assert.assertTrue(route2.getLinkIds().isEmpty());
+        Assert.assertEquals(1000, route2.getDistance(), 1e-7);
+
+        Leg leg4 = legs.get(Id.create(4, Link.class));
+        NetworkRoute route4 = (NetworkRoute) leg4.getRoute();
+        Assert.assertEquals(100, leg4.getTravelTime(), 1e-7);
+        Assert.assertEquals(Id.create(1, Link.class), route4.getStartLinkId());
+        Assert.assertEquals(Id.create(4, Link.class), route4.getEndLinkId());
+        Assert.assertEquals(Collections.singletonList(Id.create(3, Link.class)), route4.getLinkIds());
+        Assert.assertEquals(1000 + 1000 * Math.sqrt(2), route4.getDistance(), 1e-7);
+    }
+
+    @Test
+    public void testEgress() {
+        Network network = createNetwork();
+        NetworkAccessEgressRouter router = createRouter(network);
+
+        Map<Id<Link>, Leg> legs = router.calcLegs(Id.create(6, Link.class), Arrays.asList(Id.create(2, Link.class), Id.create(6, Link.class)),
+                7 * 3600, RaptorStopFinder.Direction.EGRESS, null, 10000);
+        Assert.assertEquals(2, legs.size());
+
+        Leg leg2 = legs.get(Id.create(2, Link.class));
+        NetworkRoute route2 = (NetworkRoute) leg2.getRoute();
+        Assert.assertTrue(Time.isUndefinedTime(leg2.getDepartureTime()));
+        Assert.assertEquals(100, leg2.getTravelTime(), 1e-7);
+        Assert.assertEquals(Id.create(2, Link.class), route2.getStartLinkId());
+        Assert.assertEquals(Id.create(6, Link.class), route2.getEndLinkId());
+        Assert.assertEquals(Collections.singletonList(Id.create(5, Link.class)), route2.getLinkIds());
+        Assert.assertEquals(2000, route2.getDistance(), 1e-7);
+
+        Leg leg6 = legs.get(Id.create(6, Link.class));
+        NetworkRoute route6 = (NetworkRoute) leg6.getRoute();
+        Assert.assertEquals(0, leg6.getTravelTime(), 1e-7);
+        Assert.assertEquals(Id.create(6, Link.class), route6.getStartLinkId());
+        Assert.assertEquals(Id.create(6, Link.class), route6.getEndLinkId());
+        Assert.assertEquals(0, route6.getDistance(), 1e-7);
+    }
+
+    @Test
+    public void testPtOnlyStopLink() {
+        Network network = createNetwork();
+        NetworkAccessEgressRouter router = createRouter(network);
+
+        // a stop link on the rail network, which can never be reached by car
+        NetworkFactory nf = network.getFactory();
+        Node railNode = nf.createNode(Id.create("rail", Node.class), new Coord(2000, 100));
+        network.addNode(railNode);
+        network.addLink(createLink(nf, 10, network.getNodes().get(Id.create(3, Node.class)), railNode, 100, TransportMode.pt));
+
+        Map<Id<Link>, Leg> legs = router.calcLegs(Id.create(1, Link.class), Arrays.asList(Id.create(10, Link.class), Id.create(2, Link.class)),
+                7 * 3600, RaptorStopFinder.Direction.ACCESS, null, 10000);
+        Assert.assertEquals(1, legs.size());
+        Assert.assertTrue(legs.containsKey(Id.create(2, Link.class)));
+        Assert.assertFalse(router.canRoute(Id.create(10, Link.class)));
+    }
+
+    @Test
+    public void testMaxDistance() {
+        Network network = createNetwork();
+        NetworkAccessEgressRouter router = createRouter(network);
+
+        // link 4 starts 1000m from the end of link 1, so it is out of reach
+        Map<Id<Link>, Leg> legs = router.calcLegs(Id.create(1, Link.class), Arrays.asList(Id.create(2, Link.class), Id.create(4, Link.class)),
+                7 * 3600, RaptorStopFinder.Direction.ACCESS, null, 500);
+        Assert.assertEquals(1, legs.size());
+        Assert.assertTrue(legs.containsKey(Id.create(2, Link.class)));
+
+        legs = router.calcLegs(Id.create(1, Link.class), Arrays.asList(Id.create(2, Link.class), Id.create(4, Link.class)),
+                7 * 3600, RaptorStopFinder.Direction.ACCESS, null, 1000);
+        Assert.assertEquals(2, legs.size());
+    }
+
+    @Test
+    public void testCanRoute() {
+        Network network = createNetwork();
+        NetworkAccessEgressRouter router = createRouter(network);
+
+        Assert.assertTrue(router.canRoute(Id.create(1, Link.class)));
+        Assert.assertFalse("link 9 does not allow car.", router.canRoute(Id.create(9, Link.class)));
+        Assert.assertFalse("link 99 does not exist.", router.canRoute(Id.create(99, Link.class)));
+        Assert.assertFalse(router.canRoute(null));
+    }
+
+    private static NetworkAccessEgressRouter createRouter(Network network) {
+        FreespeedTravelTimeAndDisutility travelTimeAndDisutility = new FreespeedTravelTimeAndDisutility(new PlanCalcScoreConfigGroup());
+        return new NetworkAccessEgressRouter(network, TransportMode.car, travelTimeAndDisutility, travelTimeAndDisutility);
+    }
+
+    /* Network:
+
+                (4)
+               /   \
+              3/7   4
+              /      \
+        (1)--1/6--(2)--2/5--(3)--9-- (5)
+
+        All links allow car with a freespeed of 10 m/s, except link 9 which only allows bike.
+     */
+    private static Network createNetwork() {
+        Network network = NetworkUtils.createNetwork();
+        NetworkFactory nf = network.getFactory();
+        Node node1 = nf.createNode(Id.create(1, Node.class), new Coord(0, 0));
+        Node node2 = nf.createNode(Id.create(2, Node.class), new Coord(1000, 0));
+        Node node3 = nf.createNode(Id.create(3, Node.class), new Coord(2000, 0));
+        Node node4 = nf.createNode(Id.create(4, Node.class), new Coord(1000, 1000));
+        Node node5 = nf.createNode(Id.create(5, Node.class), new Coord(3000, 0));
+        network.addNode(node1);
+        network.addNode(node2);
+        network.addNode(node3);
+        network.addNode(node4);
+        network.addNode(node5);
+
+        network.addLink(createLink(nf, 1, node1, node2, 1000, TransportMode.car));
+        network.addLink(createLink(nf, 2, node2, node3, 1000, TransportMode.car));
+        network.addLink(createLink(nf, 3, node2, node4, 1000, TransportMode.car));
+        network.addLink(createLink(nf, 4, node4, node3, 1000 * Math.sqrt(2), TransportMode.car));
+        network.addLink(createLink(nf, 5, node3, node2, 1000, TransportMode.car));
+        network.addLink(createLink(nf, 6, node2, node1, 1000, TransportMode.car));
+        network.addLink(createLink(nf, 7, node4, node2, 1000, TransportMode.car));
+        network.addLink(createLink(nf, 9, node5, node3, 1000, TransportMode.bike));
+        return network;
+    }
+
+    private static Link createLink(NetworkFactory nf, int id, Node fromNode, Node toNode, double length, String mode) {
+        Link link = nf.createLink(Id.create(id, Link.class), fromNode, toNode);
+        link.setLength(length);
+        link.setFreespeed(10);
+        link.setCapacity(2000);
+        link.setAllowedModes(Collections.singleton(mode));
+        return link;
+    }
+}
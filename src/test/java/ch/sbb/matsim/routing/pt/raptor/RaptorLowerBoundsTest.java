@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.BitSet;
+
+/**
+ * @author mrieser / SBB
+ */
+public class RaptorLowerBoundsTest {
+
+    @Test
+    public void testInit_transferPenalties() {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, RaptorUtils.createStaticConfig(f.config), f.network);
+        RaptorLowerBounds lowerBounds = new RaptorLowerBounds(data);
+
+        RaptorParameters params = RaptorUtils.createParameters(f.config);
+        params.setTransferPenaltyFixCostPerTransfer(1.0);
+        params.setTransferPenaltyPerTravelTimeHour(0.5);
+        Assert.assertTrue(init(lowerBounds, data, params));
+
+        params.setTransferPenaltyFixCostPerTransfer(-1.0);
+        Assert.assertFalse("a negative fix penalty makes transfers cheaper than in the relaxed network.", init(lowerBounds, data, params));
+
+        params.setTransferPenaltyMinimum(0.0);
+        Assert.assertTrue("the minimum prevents a negative penalty.", init(lowerBounds, data, params));
+
+        params.setTransferPenaltyMinimum(-2.0);
+        Assert.assertFalse("the minimum still allows a negative penalty.", init(lowerBounds, data, params));
+
+        params.setTransferPenaltyFixCostPerTransfer(1.0);
+        params.setTransferPenaltyPerTravelTimeHour(-0.5);
+        Assert.assertFalse("a penalty decreasing with the travel time can get negative.", init(lowerBounds, data, params));
+
+        params.setTransferPenaltyMinimum(0.0);
+        Assert.assertFalse("a penalty decreasing with the travel time reduces the costs of earlier transfers.", init(lowerBounds, data, params));
+    }
+
+    private static boolean init(RaptorLowerBounds lowerBounds, SwissRailRaptorData data, RaptorParameters params) {
+        return lowerBounds.init(params, new BitSet(), new double[data.countRouteStops]);
+    }
+}
@@ -13,22 +13,28 @@ import org.matsim.api.core.v01.network.NetworkFactory;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Leg;
 import org.matsim.api.core.v01.population.Person;
+import org.matsim.api.core.v01.population.PlanElement;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.config.groups.PlanCalcScoreConfigGroup;
 import org.matsim.core.population.routes.NetworkRoute;
 import org.matsim.core.population.routes.RouteUtils;
 import org.matsim.core.router.RoutingModule;
+import org.matsim.core.router.StageActivityTypes;
 import org.matsim.core.router.TeleportationRoutingModule;
 import org.matsim.core.scenario.ScenarioUtils;
 import org.matsim.core.utils.misc.Time;
 import org.matsim.facilities.Facility;
 import org.matsim.pt.transitSchedule.api.*;
 
+import javax.inject.Provider;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author rehmann / VSP
@@ -1961,6 +1967,233 @@ public class RaptorStopFinderTest {
         }
     }
 
+    /**
+     * Tests that the intermodal access and egress legs are re-used from the cache for later departures in the same time bin,
+     * but that each route gets its own copies of the legs with the correct departure times.
+     */
+    @Test
+    public void testDefaultStopFinder_IntermodalAccessEgressCache() {
+        StopFinderFixture f0 = new StopFinderFixture(600., 1., 1., 1.);
+        int[] routeCount = { 0 };
+        RoutingModule walkRoutingModule = new TeleportationRoutingModule(TransportMode.non_network_walk, f0.scenario, 1000., 1.0);
+        Map<String, RoutingModule> routingModules = new HashMap<>();
+        routingModules.put(TransportMode.walk,
+                new TeleportationRoutingModule(TransportMode.walk, f0.scenario, 1000., 1.0));
+        routingModules.put(TransportMode.non_network_walk, new RoutingModule() {
+            @Override
+            public List<? extends PlanElement> calcRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+                routeCount[0]++;
+                return walkRoutingModule.calcRoute(fromFacility, toFacility, departureTime, person);
+            }
+
+            @Override
+            public StageActivityTypes getStageActivityTypes() {
+                return walkRoutingModule.getStageActivityTypes();
+            }
+        });
+
+        f0.srrConfig.setUseIntermodalAccessEgress(true);
+        SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet walkAccess = new SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet();
+        walkAccess.setMode(TransportMode.non_network_walk);
+        walkAccess.setMaxRadius(600); // Includes stop B
+        walkAccess.setInitialSearchRadius(600);
+        walkAccess.setSearchExtensionRadius(0);
+        f0.srrConfig.addIntermodalAccessEgress(walkAccess);
+
+        SwissRailRaptorData data = SwissRailRaptorData.create(f0.scenario.getTransitSchedule(), RaptorUtils.createStaticConfig(f0.config), f0.scenario.getNetwork());
+        IntermodalAccessEgressCache cache = new IntermodalAccessEgressCache(1000, 3600);
+        DefaultRaptorStopFinder stopFinder = new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), routingModules, cache);
+        SwissRailRaptor raptor = new SwissRailRaptor(data, new DefaultRaptorParametersForPerson(f0.scenario.getConfig()),
+                new LeastCostRaptorRouteSelector(), stopFinder, null);
+
+        List<Leg> legs1 = raptor.calcRoute(fromFac, toFac, 7 * 3600, f0.dummyPerson);
+        int routeCountAfterFirstRequest = routeCount[0];
+        Assert.assertTrue(routeCountAfterFirstRequest > 0);
+        List<Leg> legs2 = raptor.calcRoute(fromFac, toFac, 7 * 3600 + 600, f0.dummyPerson);
+        Assert.assertEquals("access and egress legs should have been taken from the cache.", routeCountAfterFirstRequest, routeCount[0]);
+
+        Assert.assertEquals("wrong number of legs.", 3, legs1.size());
+        Assert.assertEquals("wrong number of legs.", legs1.size(), legs2.size());
+        for (int i = 0; i < legs1.size(); i++) {
+            Assert.assertNotSame(legs1.get(i), legs2.get(i));
+            Assert.assertEquals(legs1.get(i).getMode(), legs2.get(i).getMode());
+            Assert.assertEquals(legs1.get(i).getRoute().getStartLinkId(), legs2.get(i).getRoute().getStartLinkId());
+            Assert.assertEquals(legs1.get(i).getRoute().getEndLinkId(), legs2.get(i).getRoute().getEndLinkId());
+        }
+        Assert.assertEquals(7 * 3600, legs1.get(0).getDepartureTime(), 0.0);
+        Assert.assertEquals(7 * 3600 + 600, legs2.get(0).getDepartureTime(), 0.0);
+
+        // a new iteration invalidates the cache
+        cache.clear();
+        raptor.calcRoute(fromFac, toFac, 7 * 3600, f0.dummyPerson);
+        Assert.assertEquals(2 * routeCountAfterFirstRequest, routeCount[0]);
+    }
+
+    /**
+     * Tests that the cached intermodal access and egress legs are shared by persons with equal parameters,
+     * even if each person gets its own instance of the raptor parameters.
+     */
+    @Test
+    public void testDefaultStopFinder_IntermodalAccessEgressCache_samePersonParameters() {
+        StopFinderFixture f0 = new StopFinderFixture(600., 1., 1., 1.);
+        int[] routeCount = { 0 };
+        RoutingModule walkRoutingModule = new TeleportationRoutingModule(TransportMode.non_network_walk, f0.scenario, 1000., 1.0);
+        Map<String, RoutingModule> routingModules = new HashMap<>();
+        routingModules.put(TransportMode.non_network_walk, new RoutingModule() {
+            @Override
+            public List<? extends PlanElement> calcRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+                routeCount[0]++;
+                return walkRoutingModule.calcRoute(fromFacility, toFacility, departureTime, person);
+            }
+
+            @Override
+            public StageActivityTypes getStageActivityTypes() {
+                return walkRoutingModule.getStageActivityTypes();
+            }
+        });
+
+        f0.srrConfig.setUseIntermodalAccessEgress(true);
+        SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet walkAccess = new SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet();
+        walkAccess.setMode(TransportMode.non_network_walk);
+        walkAccess.setMaxRadius(600); // Includes stop B
+        walkAccess.setInitialSearchRadius(600);
+        walkAccess.setSearchExtensionRadius(0);
+        f0.srrConfig.addIntermodalAccessEgress(walkAccess);
+
+        SwissRailRaptorData data = SwissRailRaptorData.create(f0.scenario.getTransitSchedule(), RaptorUtils.createStaticConfig(f0.config), f0.scenario.getNetwork());
+        IntermodalAccessEgressCache cache = new IntermodalAccessEgressCache(1000, 3600);
+        DefaultRaptorStopFinder stopFinder = new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), routingModules, cache);
+        // like most person-specific implementations, create new parameters for every person
+        RaptorParametersForPerson parametersForPerson = person -> RaptorUtils.createParameters(f0.config);
+        Person person1 = f0.scenario.getPopulation().getFactory().createPerson(Id.create("p1", Person.class));
+        Person person2 = f0.scenario.getPopulation().getFactory().createPerson(Id.create("p2", Person.class));
+        Assert.assertNotSame(parametersForPerson.getRaptorParameters(person1), parametersForPerson.getRaptorParameters(person2));
+
+        List<InitialStop> stops1 = stopFinder.findStops(fromFac, person1, 7 * 3600, parametersForPerson.getRaptorParameters(person1), data, RaptorStopFinder.Direction.ACCESS);
+        int routeCountAfterFirstPerson = routeCount[0];
+        Assert.assertTrue(routeCountAfterFirstPerson > 0);
+        List<InitialStop> stops2 = stopFinder.findStops(fromFac, person2, 7 * 3600, parametersForPerson.getRaptorParameters(person2), data, RaptorStopFinder.Direction.ACCESS);
+        Assert.assertEquals("access legs should have been taken from the cache.", routeCountAfterFirstPerson, routeCount[0]);
+
+        Assert.assertEquals(stops1.size(), stops2.size());
+        for (int i = 0; i < stops1.size(); i++) {
+            Assert.assertEquals(stops1.get(i).stop, stops2.get(i).stop);
+            Assert.assertEquals(stops1.get(i).accessCost, stops2.get(i).accessCost, 0.0);
+        }
+
+        // different parameter values must not share the cached legs
+        RaptorParameters otherParameters = parametersForPerson.getRaptorParameters(person2);
+        otherParameters.setMarginalUtilityOfTravelTime_utl_s(TransportMode.non_network_walk, -0.01);
+        stopFinder.findStops(fromFac, person2, 7 * 3600, otherParameters, data, RaptorStopFinder.Direction.ACCESS);
+        Assert.assertEquals(2 * routeCountAfterFirstPerson, routeCount[0]);
+    }
+
+    /**
+     * Tests that routing the intermodal access and egress legs in parallel finds the same stops in the same order,
+     * and that no routing module is used by several threads at the same time.
+     */
+    @Test
+    public void testDefaultStopFinder_ParallelIntermodalAccessEgress() {
+        StopFinderFixture f0 = new StopFinderFixture(1., 1., 1., 1.);
+        AtomicBoolean sharedModule = new AtomicBoolean(false);
+        Map<String, Provider<RoutingModule>> routingModuleProviders = createExclusiveRoutingModuleProviders(f0, sharedModule);
+        addParallelWalkAccess(f0);
+
+        SwissRailRaptorData data = SwissRailRaptorData.create(f0.scenario.getTransitSchedule(), RaptorUtils.createStaticConfig(f0.config), f0.scenario.getNetwork());
+        DefaultRaptorStopFinder stopFinder = new DefaultRaptorStopFinder(null, f0.config, new DefaultRaptorIntermodalAccessEgress(), routingModuleProviders,
+                new IntermodalAccessEgressCache(0, 900), f0.scenario.getNetwork(), Collections.emptyMap(), Collections.emptyMap());
+        assertParallelStops(f0, stopFinder, data, sharedModule);
+    }
+
+    /**
+     * Tests that routing the intermodal access and egress legs in parallel finds the same stops in the same order,
+     * and that no routing module is used by several threads at the same time.
+     */
+    @Test
+    public void testRandomAccessEgressModeRaptorStopFinder_ParallelIntermodalAccessEgress() {
+        StopFinderFixture f0 = new StopFinderFixture(1., 1., 1., 1.);
+        AtomicBoolean sharedModule = new AtomicBoolean(false);
+        Map<String, Provider<RoutingModule>> routingModuleProviders = createExclusiveRoutingModuleProviders(f0, sharedModule);
+        addParallelWalkAccess(f0);
+
+        SwissRailRaptorData data = SwissRailRaptorData.create(f0.scenario.getTransitSchedule(), RaptorUtils.createStaticConfig(f0.config), f0.scenario.getNetwork());
+        RandomAccessEgressModeRaptorStopFinder stopFinder = new RandomAccessEgressModeRaptorStopFinder(null, f0.config, new DefaultRaptorIntermodalAccessEgress(), routingModuleProviders);
+        assertParallelStops(f0, stopFinder, data, sharedModule);
+    }
+
+    private static Map<String, Provider<RoutingModule>> createExclusiveRoutingModuleProviders(StopFinderFixture f0, AtomicBoolean sharedModule) {
+        Map<String, Provider<RoutingModule>> routingModuleProviders = new HashMap<>();
+        routingModuleProviders.put(TransportMode.non_network_walk,
+                () -> new ExclusiveRoutingModule(new TeleportationRoutingModule(TransportMode.non_network_walk, f0.scenario, 1000., 1.0), sharedModule));
+        return routingModuleProviders;
+    }
+
+    private static void addParallelWalkAccess(StopFinderFixture f0) {
+        f0.srrConfig.setUseIntermodalAccessEgress(true);
+        SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet walkAccess = new SwissRailRaptorConfigGroup.IntermodalAccessEgressParameterSet();
+        walkAccess.setMode(TransportMode.non_network_walk);
+        walkAccess.setMaxRadius(100000); // Includes all stops
+        walkAccess.setInitialSearchRadius(100000);
+        walkAccess.setSearchExtensionRadius(0);
+        f0.srrConfig.addIntermodalAccessEgress(walkAccess);
+    }
+
+    private void assertParallelStops(StopFinderFixture f0, RaptorStopFinder stopFinder, SwissRailRaptorData data, AtomicBoolean sharedModule) {
+        RaptorParameters parameters = RaptorUtils.createParameters(f0.config);
+
+        for (RaptorStopFinder.Direction direction : RaptorStopFinder.Direction.values()) {
+            f0.srrConfig.setUseParallelIntermodalAccessEgress(false);
+            List<InitialStop> expectedStops = stopFinder.findStops(fromFac, f0.dummyPerson, 7 * 3600, parameters, data, direction);
+            f0.srrConfig.setUseParallelIntermodalAccessEgress(true);
+            List<InitialStop> actualStops = stopFinder.findStops(fromFac, f0.dummyPerson, 7 * 3600, parameters, data, direction);
+
+            Assert.assertTrue(expectedStops.size() > 1);
+            Assert.assertEquals(expectedStops.size(), actualStops.size());
+            for (int i = 0; i < expectedStops.size(); i++) {
+                Assert.assertSame(expectedStops.get(i).stop, actualStops.get(i).stop);
+                Assert.assertEquals(expectedStops.get(i).accessCost, actualStops.get(i).accessCost, 0.0);
+                Assert.assertEquals(expectedStops.get(i).accessTime, actualStops.get(i).accessTime, 0.0);
+            }
+        }
+        Assert.assertFalse("a routing module was used by several threads at the same time.", sharedModule.get());
+    }
+
+    /**
+     * Records if it is used by several threads at the same time. Each call takes a moment, so parallel
+     * calls on a shared module very likely overlap.
+     */
+    private static class ExclusiveRoutingModule implements RoutingModule {
+
+        private final RoutingModule delegate;
+        private final AtomicBoolean sharedModule;
+        private final AtomicInteger activeCalls = new AtomicInteger(0);
+
+        ExclusiveRoutingModule(RoutingModule delegate, AtomicBoolean sharedModule) {
+            this.delegate = delegate;
+            this.sharedModule = sharedModule;
+        }
+
+        @Override
+        public List<? extends PlanElement> calcRoute(Facility fromFacility, Facility toFacility, double departureTime, Person person) {
+            if (this.activeCalls.incrementAndGet() > 1) {
+                this.sharedModule.set(true);
+            }
+            try {
+                Thread.sleep(20);
+                return this.delegate.calcRoute(fromFacility, toFacility, departureTime, person);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                this.activeCalls.decrementAndGet();
+            }
+        }
+
+        @Override
+        public StageActivityTypes getStageActivityTypes() {
+            return this.delegate.getStageActivityTypes();
+        }
+    }
+
     private static class StopFinderFixture {
 
         final SwissRailRaptorConfigGroup srrConfig;
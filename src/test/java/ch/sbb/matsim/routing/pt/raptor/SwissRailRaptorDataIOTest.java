@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) Schweizerische Bundesbahnen SBB, 2019.
+ */
+
+package ch.sbb.matsim.routing.pt.raptor;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.matsim.api.core.v01.Id;
+import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * @author mrieser / SBB
+ */
+public class SwissRailRaptorDataIOTest {
+
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
+    @Test
+    public void testWriteRead() throws IOException {
+        Fixture f = new Fixture();
+        f.init();
+
+        f.config.transitRouter().setMaxBeelineWalkConnectionDistance(100);
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+
+        String key = SwissRailRaptorDataIO.calcDataKey(f.schedule, f.network, raptorConfig);
+        File file = new File(this.utils.getOutputDirectory(), "raptorData.bin");
+        SwissRailRaptorDataIO.write(data, key, file);
+
+        SwissRailRaptorData data2 = SwissRailRaptorDataIO.read(file, key, f.schedule, raptorConfig);
+        Assert.assertNotNull(data2);
+
+        Assert.assertEquals(data.countStops, data2.countStops);
+        Assert.assertEquals(data.countRouteStops, data2.countRouteStops);
+        Assert.assertEquals(data.routes.length, data2.routes.length);
+        for (int i = 0; i < data.routes.length; i++) {
+            Assert.assertSame(data.routes[i].route, data2.routes[i].route);
+            Assert.assertSame(data.routes[i].line, data2.routes[i].line);
+            Assert.assertEquals(data.routes[i].mode, data2.routes[i].mode);
+            Assert.assertEquals(data.routes[i].indexFirstRouteStop, data2.routes[i].indexFirstRouteStop);
+            Assert.assertEquals(data.routes[i].countRouteStops, data2.routes[i].countRouteStops);
+            Assert.assertEquals(data.routes[i].indexFirstDeparture, data2.routes[i].indexFirstDeparture);
+            Assert.assertEquals(data.routes[i].countDepartures, data2.routes[i].countDepartures);
+            Assert.assertEquals(data.routes[i].frequencyFirstDeparture, data2.routes[i].frequencyFirstDeparture);
+            Assert.assertEquals(data.routes[i].frequencyHeadway, data2.routes[i].frequencyHeadway);
+            Assert.assertEquals(data.routes[i].frequencyCount, data2.routes[i].frequencyCount);
+        }
+        Assert.assertArrayEquals(data.departures, data2.departures);
+        Assert.assertArrayEquals(data.routeStopRouteIndices, data2.routeStopRouteIndices);
+        Assert.assertArrayEquals(data.routeStopStopFacilityIndices, data2.routeStopStopFacilityIndices);
+        Assert.assertArrayEquals(data.routeStopArrivalOffsets, data2.routeStopArrivalOffsets, 0.0);
+        Assert.assertArrayEquals(data.routeStopDepartureOffsets, data2.routeStopDepartureOffsets, 0.0);
+        Assert.assertArrayEquals(data.routeStopDistancesAlongRoute, data2.routeStopDistancesAlongRoute, 0.0);
+        Assert.assertArrayEquals(data.routeStopFirstTransferIndices, data2.routeStopFirstTransferIndices);
+        Assert.assertArrayEquals(data.routeStopTransferCounts, data2.routeStopTransferCounts);
+        Assert.assertArrayEquals(data.transitRouteStops, data2.transitRouteStops);
+        Assert.assertArrayEquals(data.transferFromRouteStops, data2.transferFromRouteStops);
+        Assert.assertArrayEquals(data.transferToRouteStops, data2.transferToRouteStops);
+        Assert.assertArrayEquals(data.transferTimes, data2.transferTimes, 0.0);
+        Assert.assertArrayEquals(data.transferDistances, data2.transferDistances, 0.0);
+        Assert.assertEquals(data.stopFacilityIndices, data2.stopFacilityIndices);
+        for (Map.Entry<TransitStopFacility, int[]> e : data.routeStopsPerStopFacility.entrySet()) {
+            Assert.assertArrayEquals(e.getValue(), data2.routeStopsPerStopFacility.get(e.getKey()));
+        }
+        Assert.assertEquals(data.stopsQT.size(), data2.stopsQT.size());
+    }
+
+    @Test
+    public void testKeyChangesWithSchedule() throws IOException {
+        Fixture f = new Fixture();
+        f.init();
+
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+        String key = SwissRailRaptorDataIO.calcDataKey(f.schedule, f.network, raptorConfig);
+        Assert.assertEquals(key, SwissRailRaptorDataIO.calcDataKey(f.schedule, f.network, raptorConfig));
+
+        File file = new File(this.utils.getOutputDirectory(), "raptorData.bin");
+        SwissRailRaptorDataIO.write(data, key, file);
+
+        f.schedule.getMinimalTransferTimes().set(Id.create(19, TransitStopFacility.class), Id.create(9, TransitStopFacility.class), 345);
+        String key2 = SwissRailRaptorDataIO.calcDataKey(f.schedule, f.network, raptorConfig);
+        Assert.assertNotEquals(key, key2);
+        Assert.assertNull(SwissRailRaptorDataIO.read(file, key2, f.schedule, raptorConfig));
+
+        raptorConfig.setBeelineWalkConnectionDistance(raptorConfig.getBeelineWalkConnectionDistance() + 10);
+        Assert.assertNotEquals(key2, SwissRailRaptorDataIO.calcDataKey(f.schedule, f.network, raptorConfig));
+    }
+
+    @Test
+    public void testWriteFailureRemovesTemporaryFile() throws IOException {
+        Fixture f = new Fixture();
+        f.init();
+
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+        String key = SwissRailRaptorDataIO.calcDataKey(f.schedule, f.network, raptorConfig);
+
+        // a non-empty directory with the name of the file cannot be replaced, so the write fails after the temporary file was written
+        File directory = new File(this.utils.getOutputDirectory());
+        File file = new File(directory, "raptorData.bin");
+        Assert.assertTrue(new File(file, "content").mkdirs());
+        try {
+            SwissRailRaptorDataIO.write(data, key, file);
+            Assert.fail("expected an IOException");
+        } catch (IOException expected) {
+        }
+
+        String[] tmpFiles = directory.list((dir, name) -> name.endsWith(".tmp"));
+        Assert.assertNotNull(tmpFiles);
+        Assert.assertEquals("the temporary file must be deleted.", 0, tmpFiles.length);
+    }
+}
@@ -5,15 +5,36 @@
 package ch.sbb.matsim.routing.pt.raptor;
 
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.TransportMode;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.utils.collections.QuadTree;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.facilities.ActivityFacilitiesFactory;
+import org.matsim.facilities.ActivityFacility;
+import org.matsim.pt.transitSchedule.api.Departure;
+import org.matsim.pt.transitSchedule.api.TransitRoute;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
+import org.matsim.testcases.MatsimTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * @author mrieser / SBB
  */
 public class SwissRailRaptorDataTest {
 
+    @Rule
+    public MatsimTestUtils utils = new MatsimTestUtils();
+
     @Test
     public void testTransfersFromSchedule() {
         Fixture f = new Fixture();
@@ -28,9 +49,9 @@ public class SwissRailRaptorDataTest {
         Id<TransitStopFacility> stopId9 = Id.create(9, TransitStopFacility.class);
         Id<TransitStopFacility> stopId18 = Id.create(18, TransitStopFacility.class);
         Id<TransitStopFacility> stopId19 = Id.create(19, TransitStopFacility.class);
-        for (SwissRailRaptorData.RTransfer t : data.transfers) {
-            TransitStopFacility fromStop = data.routeStops[t.fromRouteStop].routeStop.getStopFacility();
-            TransitStopFacility toStop = data.routeStops[t.toRouteStop].routeStop.getStopFacility();
+        for (int t = 0; t < data.transferToRouteStops.length; t++) {
+            TransitStopFacility fromStop = data.transitRouteStops[data.transferFromRouteStops[t]].getStopFacility();
+            TransitStopFacility toStop = data.transitRouteStops[data.transferToRouteStops[t]].getStopFacility();
             if (fromStop.getId().equals(stopId19) && toStop.getId().equals(stopId9)) {
                 Assert.fail("There should not be any transfer between stop facilities 19 and 9.");
             }
@@ -41,45 +62,325 @@ public class SwissRailRaptorDataTest {
         f.schedule.getMinimalTransferTimes().set(stopId19, stopId9, 345);
         SwissRailRaptorData data2 = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
         int foundTransferCount = 0;
-        for (SwissRailRaptorData.RTransfer t : data2.transfers) {
-            TransitStopFacility fromStop = data2.routeStops[t.fromRouteStop].routeStop.getStopFacility();
-            TransitStopFacility toStop = data2.routeStops[t.toRouteStop].routeStop.getStopFacility();
+        for (int t = 0; t < data2.transferToRouteStops.length; t++) {
+            TransitStopFacility fromStop = data2.transitRouteStops[data2.transferFromRouteStops[t]].getStopFacility();
+            TransitStopFacility toStop = data2.transitRouteStops[data2.transferToRouteStops[t]].getStopFacility();
             if (fromStop.getId().equals(stopId19) && toStop.getId().equals(stopId9)) {
                 foundTransferCount++;
             }
         }
         Assert.assertEquals("wrong number of transfers between stop facilities 19 and 9.", 1, foundTransferCount);
-        Assert.assertEquals("number of transfers should have incrased.", data.transfers.length + 1, data2.transfers.length);
+        Assert.assertEquals("number of transfers should have incrased.", data.transferToRouteStops.length + 1, data2.transferToRouteStops.length);
 
         // assign a high transfer time to a "default" transfer
         f.schedule.getMinimalTransferTimes().set(stopId5, stopId18, 456);
         SwissRailRaptorData data3 = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
         boolean foundCorrectTransfer = false;
-        for (SwissRailRaptorData.RTransfer t : data3.transfers) {
-            TransitStopFacility fromStop = data3.routeStops[t.fromRouteStop].routeStop.getStopFacility();
-            TransitStopFacility toStop = data3.routeStops[t.toRouteStop].routeStop.getStopFacility();
+        for (int t = 0; t < data3.transferToRouteStops.length; t++) {
+            TransitStopFacility fromStop = data3.transitRouteStops[data3.transferFromRouteStops[t]].getStopFacility();
+            TransitStopFacility toStop = data3.transitRouteStops[data3.transferToRouteStops[t]].getStopFacility();
             if (fromStop.getId().equals(stopId5) && toStop.getId().equals(stopId18)) {
-                Assert.assertEquals("transfer has wrong transfer time.", 456, t.transferTime, 0.0);
+                Assert.assertEquals("transfer has wrong transfer time.", 456, data3.transferTimes[t], 0.0);
                 foundCorrectTransfer = true;
             }
         }
         Assert.assertTrue("did not find overwritten transfer", foundCorrectTransfer);
-        Assert.assertEquals("number of transfers should have stayed the same.", data2.transfers.length, data3.transfers.length);
+        Assert.assertEquals("number of transfers should have stayed the same.", data2.transferToRouteStops.length, data3.transferToRouteStops.length);
 
         // assign a low transfer time to a "default" transfer
         f.schedule.getMinimalTransferTimes().set(stopId5, stopId18, 0.2);
         SwissRailRaptorData data4 = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
         foundCorrectTransfer = false;
-        for (SwissRailRaptorData.RTransfer t : data4.transfers) {
-            TransitStopFacility fromStop = data4.routeStops[t.fromRouteStop].routeStop.getStopFacility();
-            TransitStopFacility toStop = data4.routeStops[t.toRouteStop].routeStop.getStopFacility();
+        for (int t = 0; t < data4.transferToRouteStops.length; t++) {
+            TransitStopFacility fromStop = data4.transitRouteStops[data4.transferFromRouteStops[t]].getStopFacility();
+            TransitStopFacility toStop = data4.transitRouteStops[data4.transferToRouteStops[t]].getStopFacility();
             if (fromStop.getId().equals(stopId5) && toStop.getId().equals(stopId18)) {
-                Assert.assertEquals("transfer has wrong transfer time.", 0.2, t.transferTime, 0.0);
+                Assert.assertEquals("transfer has wrong transfer time.", 0.2, data4.transferTimes[t], 0.0);
                 foundCorrectTransfer = true;
             }
         }
         Assert.assertTrue("did not find overwritten transfer", foundCorrectTransfer);
-        Assert.assertEquals("number of transfers should have stayed the same.", data2.transfers.length, data4.transfers.length);
+        Assert.assertEquals("number of transfers should have stayed the same.", data2.transferToRouteStops.length, data4.transferToRouteStops.length);
+    }
+
+    @Test
+    public void testParallelTransferCalculation() {
+        Fixture f = new Fixture();
+        f.init();
+
+        f.config.transitRouter().setMaxBeelineWalkConnectionDistance(500);
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        raptorConfig.setNumberOfThreads(1);
+        SwissRailRaptorData data1 = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+        raptorConfig.setNumberOfThreads(4);
+        SwissRailRaptorData data4 = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+
+        Assert.assertTrue(data1.transferToRouteStops.length > 0);
+        Assert.assertArrayEquals(data1.routeStopFirstTransferIndices, data4.routeStopFirstTransferIndices);
+        Assert.assertArrayEquals(data1.routeStopTransferCounts, data4.routeStopTransferCounts);
+        Assert.assertArrayEquals(data1.transferFromRouteStops, data4.transferFromRouteStops);
+        Assert.assertArrayEquals(data1.transferToRouteStops, data4.transferToRouteStops);
+        Assert.assertArrayEquals(data1.transferTimes, data4.transferTimes, 0.0);
+        Assert.assertArrayEquals(data1.transferDistances, data4.transferDistances, 0.0);
+    }
+
+    @Test
+    public void testStopFilterQuadTrees() {
+        Fixture f = new Fixture();
+        f.init();
+
+        f.schedule.getFacilities().get(Id.create(5, TransitStopFacility.class)).getAttributes().putAttribute("type", "hub");
+        f.schedule.getFacilities().get(Id.create(9, TransitStopFacility.class)).getAttributes().putAttribute("type", "hub");
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        raptorConfig.addStopFilter("type", "hub");
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+
+        QuadTree<TransitStopFacility> hubsQT = data.getStopFilterQuadTree("type", "hub");
+        Assert.assertEquals(2, hubsQT.size());
+        Assert.assertSame("the prepared quad tree should be re-used.", hubsQT, data.getStopFilterQuadTree("type", "hub"));
+
+        // stop filters missing in the static config are still supported
+        QuadTree<TransitStopFacility> otherQT = data.getStopFilterQuadTree("type", "other");
+        Assert.assertEquals(0, otherQT.size());
+        Assert.assertSame("the additional quad tree should be re-used.", otherQT, data.getStopFilterQuadTree("type", "other"));
+    }
+
+    @Test
+    public void testFindNearbyStops() {
+        Fixture f = new Fixture();
+        f.init();
+
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+
+        double[][] coords = {{12000, 5000}, {16000, 7000}, {0, 0}, {50000, 5000}};
+        for (double[] coord : coords) {
+            for (double distance : new double[] {10, 1000, 5000, 20000}) {
+                Set<TransitStopFacility> expected = new HashSet<>(data.stopsQT.getDisk(coord[0], coord[1], distance));
+                Set<TransitStopFacility> actual = new HashSet<>();
+                for (int stopIndex : data.stopGrid.getDisk(coord[0], coord[1], distance)) {
+                    actual.add(data.stopGrid.stops[stopIndex]);
+                }
+                Assert.assertEquals(expected, actual);
+            }
+            TransitStopFacility expectedNearest = data.stopsQT.getClosest(coord[0], coord[1]);
+            TransitStopFacility actualNearest = data.findNearestStop(coord[0], coord[1]);
+            Assert.assertEquals(CoordUtils.calcEuclideanDistance(expectedNearest.getCoord(), new Coord(coord[0], coord[1])),
+                    CoordUtils.calcEuclideanDistance(actualNearest.getCoord(), new Coord(coord[0], coord[1])), 0.0);
+        }
+
+        // no stop within the search radius, so the stops near the nearest stop are returned
+        int[] stopIndices = data.findNearbyStopIndices(0, 5000, 100, 10, 1);
+        Set<Id<TransitStopFacility>> stopIds = new HashSet<>();
+        for (int stopIndex : stopIndices) {
+            stopIds.add(data.stopGrid.stops[stopIndex].getId());
+        }
+        Assert.assertEquals(2, stopIds.size());
+        Assert.assertTrue(stopIds.contains(Id.create(0, TransitStopFacility.class)));
+        Assert.assertTrue(stopIds.contains(Id.create(1, TransitStopFacility.class)));
+    }
+
+    @Test
+    public void testFindNearbyStops_rememberedFacilities() {
+        Fixture f = new Fixture();
+        f.init();
+
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+        ActivityFacilitiesFactory factory = f.scenario.getActivityFacilities().getFactory();
+
+        ActivityFacility hotFacility = factory.createActivityFacility(Id.create("hot", ActivityFacility.class), new Coord(12000, 5000));
+        ActivityFacility coldFacility = factory.createActivityFacility(Id.create("cold", ActivityFacility.class), new Coord(16000, 5000));
+        int[] hotStops = data.findNearbyStopIndices(hotFacility, 1000, 200, 1);
+        int[] coldStops = data.findNearbyStopIndices(coldFacility, 1000, 200, 1);
+        Assert.assertTrue(hotStops.length > 0);
+        Assert.assertSame("the stops of the facility should be remembered.", hotStops, data.findNearbyStopIndices(hotFacility, 1000, 200, 1));
+
+        // use more facilities than are remembered, while the hot facility keeps being used
+        for (int i = 0; i < 2 * SwissRailRaptorData.MAX_REMEMBERED_FACILITIES; i++) {
+            ActivityFacility facility = factory.createActivityFacility(Id.create(i, ActivityFacility.class), new Coord(i % 30000, 5000));
+            data.findNearbyStopIndices(facility, 1000, 200, 1);
+            if (i % 1000 == 0) {
+                Assert.assertSame("recently used facilities should stay remembered.", hotStops, data.findNearbyStopIndices(hotFacility, 1000, 200, 1));
+            }
+        }
+        Assert.assertSame("recently used facilities should stay remembered.", hotStops, data.findNearbyStopIndices(hotFacility, 1000, 200, 1));
+        Assert.assertNotSame("facilities not used for a long time should be forgotten.", coldStops, data.findNearbyStopIndices(coldFacility, 1000, 200, 1));
+    }
+
+    @Test
+    public void testUpdate() {
+        Fixture f = new Fixture();
+        f.init();
+
+        f.config.transitRouter().setMaxBeelineWalkConnectionDistance(500);
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+        int previousDepartureCount = data.departures.length;
+        int previousTransferCount = data.transferToRouteStops.length;
+
+        // add a departure between existing ones, one after the last departure and a new minimal transfer time
+        TransitRoute blueRoute = f.blueLine.getRoutes().values().iterator().next();
+        blueRoute.addDeparture(f.schedule.getFactory().createDeparture(Id.create("b>x1", Departure.class), 7.0*3600 + 30.0*60));
+        blueRoute.addDeparture(f.schedule.getFactory().createDeparture(Id.create("b>x2", Departure.class), 23.0*3600));
+        f.schedule.getMinimalTransferTimes().set(Id.create(19, TransitStopFacility.class), Id.create(9, TransitStopFacility.class), 345);
+
+        SwissRailRaptorData updatedData = SwissRailRaptorData.update(data, f.schedule, f.network);
+        SwissRailRaptorData expectedData = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+
+        Assert.assertArrayEquals(expectedData.departures, updatedData.departures);
+        Assert.assertArrayEquals(expectedData.routeStopTransferCounts, updatedData.routeStopTransferCounts);
+        Assert.assertEquals(expectedData.transferToRouteStops.length, updatedData.transferToRouteStops.length);
+        for (int routeStopIndex = 0; routeStopIndex < expectedData.countRouteStops; routeStopIndex++) {
+            Assert.assertEquals(getTransfers(expectedData, routeStopIndex), getTransfers(updatedData, routeStopIndex));
+        }
+
+        // the previous data must not be modified, it could still be in use
+        Assert.assertEquals(previousDepartureCount, data.departures.length);
+        Assert.assertEquals(previousTransferCount, data.transferToRouteStops.length);
+    }
+
+    @Test
+    public void testFrequencyBasedDepartures() {
+        Fixture f = new Fixture();
+        f.init();
+
+        // add an irregular departure before the regular ones, it must be stored explicitly
+        TransitRoute blueRoute = f.blueLine.getRoutes().values().iterator().next();
+        blueRoute.addDeparture(f.schedule.getFactory().createDeparture(Id.create("b>x1", Departure.class), 4.0*3600 + 1.0*60));
+
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+
+        int countFrequencyRoutes = 0;
+        for (SwissRailRaptorData.RRoute route : data.routes) {
+            List<Integer> expectedDepartures = new ArrayList<>();
+            for (Departure dep : route.route.getDepartures().values()) {
+                expectedDepartures.add((int) dep.getDepartureTime());
+            }
+            List<Integer> actualDepartures = new ArrayList<>();
+            for (int i = 0; i < SwissRailRaptorData.getDepartureCount(route); i++) {
+                actualDepartures.add(SwissRailRaptorData.getDepartureTime(route, data.departures, i));
+            }
+            Collections.sort(expectedDepartures);
+            Collections.sort(actualDepartures);
+            Assert.assertEquals(expectedDepartures, actualDepartures);
+            Assert.assertEquals(expectedDepartures.get(0).intValue(), SwissRailRaptorData.getFirstDepartureTime(route, data.departures));
+            Assert.assertEquals(expectedDepartures.get(expectedDepartures.size() - 1).intValue(), SwissRailRaptorData.getLastDepartureTime(route, data.departures));
+            if (route.frequencyCount > 0) {
+                countFrequencyRoutes++;
+            }
+            if (route.route == blueRoute) {
+                Assert.assertTrue(route.frequencyCount >= SwissRailRaptorData.MIN_FREQUENCY_DEPARTURES);
+                Assert.assertEquals(1, route.countDepartures);
+                Assert.assertEquals(4*3600 + 60, data.departures[route.indexFirstDeparture]);
+            }
+        }
+        Assert.assertTrue(countFrequencyRoutes > 0);
+    }
+
+    @Test
+    public void testTransfersOnWalkNetwork() {
+        Fixture f = new Fixture();
+        f.init();
+
+        // a walk path from D to K, which are too far apart for a beeline transfer
+        Node walkNodeD = f.network.getFactory().createNode(Id.create("walkD", Node.class), new Coord(16000, 5000));
+        Node walkNodeK = f.network.getFactory().createNode(Id.create("walkK", Node.class), new Coord(16000, 10000));
+        f.network.addNode(walkNodeD);
+        f.network.addNode(walkNodeK);
+        Link walkLink = f.network.getFactory().createLink(Id.create("walkDK", Link.class), walkNodeD, walkNodeK);
+        walkLink.setLength(6000);
+        walkLink.setAllowedModes(Collections.singleton(TransportMode.walk));
+        f.network.addLink(walkLink);
+
+        f.config.transitRouter().setMaxBeelineWalkConnectionDistance(100);
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        SwissRailRaptorData beelineData = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+
+        raptorConfig.setTransferWalkNetworkMode(TransportMode.walk);
+        raptorConfig.setMaxTransferWalkDistance(7000);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+
+        Id<TransitStopFacility> stopIdD = Id.create(6, TransitStopFacility.class);
+        Id<TransitStopFacility> stopIdK = Id.create(19, TransitStopFacility.class);
+        Assert.assertEquals(0, countTransfers(beelineData, stopIdD, stopIdK));
+        Assert.assertEquals(1, countTransfers(data, stopIdD, stopIdK));
+        for (int t = 0; t < data.transferToRouteStops.length; t++) {
+            TransitStopFacility fromStop = data.transitRouteStops[data.transferFromRouteStops[t]].getStopFacility();
+            TransitStopFacility toStop = data.transitRouteStops[data.transferToRouteStops[t]].getStopFacility();
+            if (fromStop.getId().equals(stopIdD) && toStop.getId().equals(stopIdK)) {
+                // the walk link plus the 2 meters from the stop to the walk node
+                Assert.assertEquals(6002, data.transferDistances[t], 1e-6);
+                double walkSpeed = raptorConfig.getBeelineWalkSpeed() * raptorConfig.getBeelineWalkDistanceFactor();
+                Assert.assertEquals(6002 / walkSpeed, data.transferTimes[t], 1e-6);
+            }
+        }
+
+        // the cached transfers must be the same
+        raptorConfig.setTransferWalkCacheDirectory(this.utils.getOutputDirectory());
+        SwissRailRaptorData data1 = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+        SwissRailRaptorData data2 = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+        Assert.assertArrayEquals(data.transferToRouteStops, data1.transferToRouteStops);
+        Assert.assertArrayEquals(data.transferDistances, data1.transferDistances, 0.0);
+        Assert.assertArrayEquals(data1.transferToRouteStops, data2.transferToRouteStops);
+        Assert.assertArrayEquals(data1.transferTimes, data2.transferTimes, 0.0);
+        Assert.assertArrayEquals(data1.transferDistances, data2.transferDistances, 0.0);
+    }
+
+    @Test
+    public void testUpdate_removedRouteOnWalkNetwork() {
+        Fixture f = new Fixture();
+        f.init();
+
+        // a walk path from D to K, which are too far apart for a beeline transfer
+        Node walkNodeD = f.network.getFactory().createNode(Id.create("walkD", Node.class), new Coord(16000, 5000));
+        Node walkNodeK = f.network.getFactory().createNode(Id.create("walkK", Node.class), new Coord(16000, 10000));
+        f.network.addNode(walkNodeD);
+        f.network.addNode(walkNodeK);
+        Link walkLink = f.network.getFactory().createLink(Id.create("walkDK", Link.class), walkNodeD, walkNodeK);
+        walkLink.setLength(6000);
+        walkLink.setAllowedModes(Collections.singleton(TransportMode.walk));
+        f.network.addLink(walkLink);
+
+        f.config.transitRouter().setMaxBeelineWalkConnectionDistance(100);
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(f.config);
+        raptorConfig.setTransferWalkNetworkMode(TransportMode.walk);
+        raptorConfig.setMaxTransferWalkDistance(7000);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+        Assert.assertEquals(1, countTransfers(data, Id.create(6, TransitStopFacility.class), Id.create(19, TransitStopFacility.class)));
+
+        // stop K is only served by the green line, so the transfer from D to K must be removed
+        f.schedule.removeTransitLine(f.greenLine);
+        SwissRailRaptorData updatedData = SwissRailRaptorData.update(data, f.schedule, f.network);
+        SwissRailRaptorData expectedData = SwissRailRaptorData.create(f.schedule, raptorConfig, f.network);
+
+        Assert.assertEquals(0, countTransfers(updatedData, Id.create(6, TransitStopFacility.class), Id.create(19, TransitStopFacility.class)));
+        Assert.assertArrayEquals(expectedData.routeStopTransferCounts, updatedData.routeStopTransferCounts);
+        for (int routeStopIndex = 0; routeStopIndex < expectedData.countRouteStops; routeStopIndex++) {
+            Assert.assertEquals(getTransfers(expectedData, routeStopIndex), getTransfers(updatedData, routeStopIndex));
+        }
+    }
+
+    private static int countTransfers(SwissRailRaptorData data, Id<TransitStopFacility> fromStopId, Id<TransitStopFacility> toStopId) {
+        int count = 0;
+        for (int t = 0; t < data.transferToRouteStops.length; t++) {
+            TransitStopFacility fromStop = data.transitRouteStops[data.transferFromRouteStops[t]].getStopFacility();
+            TransitStopFacility toStop = data.transitRouteStops[data.transferToRouteStops[t]].getStopFacility();
+            if (fromStop.getId().equals(fromStopId) && toStop.getId().equals(toStopId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Set<String> getTransfers(SwissRailRaptorData data, int routeStopIndex) {
+        Set<String> transfers = new HashSet<>();
+        int firstTransferIndex = data.routeStopFirstTransferIndices[routeStopIndex];
+        for (int t = firstTransferIndex; t < firstTransferIndex + data.routeStopTransferCounts[routeStopIndex]; t++) {
+            transfers.add(data.transferToRouteStops[t] + " " + data.transferTimes[t] + " " + data.transferDistances[t]);
+        }
+        return transfers;
     }
 
-}
\ No newline at end of file
+}
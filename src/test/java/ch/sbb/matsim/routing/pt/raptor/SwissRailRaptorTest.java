@@ -17,11 +17,13 @@ import org.matsim.api.core.v01.network.NetworkFactory;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Activity;
 import org.matsim.api.core.v01.population.Leg;
+import org.matsim.api.core.v01.population.Person;
 import org.matsim.api.core.v01.population.PlanElement;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.matsim.core.config.groups.PlanCalcScoreConfigGroup.ModeParams;
 import org.matsim.core.config.groups.PlansCalcRouteConfigGroup;
+import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.population.routes.NetworkRoute;
 import org.matsim.core.population.routes.RouteUtils;
 import org.matsim.core.router.DefaultRoutingModules;
@@ -33,6 +35,7 @@ import org.matsim.core.utils.geometry.CoordUtils;
 import org.matsim.core.utils.misc.Time;
 import org.matsim.facilities.ActivityFacilities;
 import org.matsim.facilities.ActivityFacility;
+import org.matsim.facilities.Facility;
 import org.matsim.pt.router.TransitRouter;
 import org.matsim.pt.routes.ExperimentalTransitRoute;
 import org.matsim.pt.transitSchedule.api.Departure;
@@ -48,6 +51,9 @@ import org.matsim.testcases.MatsimTestUtils;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -99,6 +105,152 @@ public class SwissRailRaptorTest {
         assertEquals(15434, Math.ceil(distance), MatsimTestCase.EPSILON);
     }
 
+    @Test
+    public void testConcurrentRouting() throws InterruptedException {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptor router = createTransitRouter(f.schedule, f.config, f.network);
+        Coord fromCoord = new Coord(3800, 5100);
+        Coord toCoord = new Coord(16100, 5050);
+        int queryCount = 200;
+
+        String[] expected = new String[queryCount];
+        for (int i = 0; i < queryCount; i++) {
+            expected[i] = summarizeLegs(router.calcRoute(new FakeFacility(fromCoord), new FakeFacility(toCoord), 5.0*3600 + i * 60, null));
+        }
+
+        // the same router instance is used by all threads
+        String[][] actual = new String[4][queryCount];
+        Thread[] threads = new Thread[actual.length];
+        for (int t = 0; t < threads.length; t++) {
+            String[] results = actual[t];
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < queryCount; i++) {
+                    results[i] = summarizeLegs(router.calcRoute(new FakeFacility(fromCoord), new FakeFacility(toCoord), 5.0*3600 + i * 60, null));
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (String[] results : actual) {
+            Assert.assertArrayEquals(expected, results);
+        }
+    }
+
+    @Test
+    public void testRouteBatch() {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptor router = createTransitRouter(f.schedule, f.config, f.network);
+        Coord[] coords = { new Coord(3800, 5100), new Coord(16100, 5050), new Coord(28100, 4950) };
+
+        List<SwissRailRaptor.RouteRequest> requests = new ArrayList<>();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 150; i++) {
+            Facility fromFacility = new FakeFacility(coords[i % coords.length]);
+            Facility toFacility = new FakeFacility(coords[(i / coords.length + 1 + i) % coords.length]);
+            double departureTime = 5.0*3600 + i * 97;
+            requests.add(new SwissRailRaptor.RouteRequest(fromFacility, toFacility, departureTime, null));
+            expected.add(summarizeLegs(router.calcRoute(fromFacility, toFacility, departureTime, null)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<List<Leg>> results = router.calcRouteBatch(requests, executor);
+            Assert.assertEquals(requests.size(), results.size());
+            for (int i = 0; i < results.size(); i++) {
+                Assert.assertEquals("request " + i, expected.get(i), summarizeLegs(results.get(i)));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tests that requests of different persons with parameters of the same values share their access and egress stops,
+     * even if every person gets its own parameters instance.
+     */
+    @Test
+    public void testRouteBatch_sameParameterValues() {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, RaptorUtils.createStaticConfig(f.config), f.network);
+        AtomicInteger stopSearchCount = new AtomicInteger(0);
+        DefaultRaptorStopFinder stopFinder = new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null) {
+            @Override
+            public List<InitialStop> findStops(Facility facility, Person person, double departureTime, RaptorParameters parameters, SwissRailRaptorData data, Direction type) {
+                stopSearchCount.incrementAndGet();
+                return super.findStops(facility, person, departureTime, parameters, data, type);
+            }
+        };
+        SwissRailRaptor router = new SwissRailRaptor(data, person -> RaptorUtils.createParameters(f.config), new LeastCostRaptorRouteSelector(), stopFinder);
+        Coord[] coords = { new Coord(3800, 5100), new Coord(16100, 5050), new Coord(28100, 4950) };
+
+        List<SwissRailRaptor.RouteRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            Person person = PopulationUtils.getFactory().createPerson(Id.create(i % 5, Person.class));
+            Facility fromFacility = new FakeFacility(coords[i % coords.length]);
+            Facility toFacility = new FakeFacility(coords[(i / coords.length + 1 + i) % coords.length]);
+            requests.add(new SwissRailRaptor.RouteRequest(fromFacility, toFacility, 5.0*3600 + i * 97, person));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            List<List<Leg>> results = router.calcRouteBatch(requests, executor);
+            Assert.assertEquals(requests.size(), results.size());
+        } finally {
+            executor.shutdown();
+        }
+        // the access and egress stops are searched once per coordinate
+        Assert.assertEquals(2 * coords.length, stopSearchCount.get());
+    }
+
+    @Test
+    public void testLowerBoundPruning() {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptor router = createTransitRouter(f.schedule, f.config, f.network);
+        Coord[] coords = { new Coord(3800, 5100), new Coord(16100, 5050), new Coord(28100, 4950), new Coord(12000, 5000), new Coord(24000, 5000) };
+
+        List<String> expected = new ArrayList<>();
+        for (Coord fromCoord : coords) {
+            for (Coord toCoord : coords) {
+                for (int i = 0; i < 10; i++) {
+                    expected.add(summarizeLegs(router.calcRoute(new FakeFacility(fromCoord), new FakeFacility(toCoord), 5.0*3600 + i * 431, null)));
+                }
+            }
+        }
+
+        ConfigUtils.addOrGetModule(f.config, SwissRailRaptorConfigGroup.class).setUseLowerBoundPruning(true);
+        SwissRailRaptor prunedRouter = createTransitRouter(f.schedule, f.config, f.network);
+        int index = 0;
+        for (Coord fromCoord : coords) {
+            for (Coord toCoord : coords) {
+                for (int i = 0; i < 10; i++) {
+                    String actual = summarizeLegs(prunedRouter.calcRoute(new FakeFacility(fromCoord), new FakeFacility(toCoord), 5.0*3600 + i * 431, null));
+                    Assert.assertEquals("request " + index, expected.get(index), actual);
+                    index++;
+                }
+            }
+        }
+    }
+
+    private static String summarizeLegs(List<Leg> legs) {
+        StringBuilder str = new StringBuilder();
+        for (Leg leg : legs) {
+            str.append(leg.getMode()).append(' ').append(leg.getDepartureTime()).append(' ').append(leg.getTravelTime());
+            if (leg.getRoute() instanceof ExperimentalTransitRoute) {
+                ExperimentalTransitRoute ptRoute = (ExperimentalTransitRoute) leg.getRoute();
+                str.append(' ').append(ptRoute.getLineId()).append(' ').append(ptRoute.getRouteId());
+                str.append(' ').append(ptRoute.getAccessStopId()).append(' ').append(ptRoute.getEgressStopId());
+            }
+            str.append("; ");
+        }
+        return str.toString();
+    }
+
     @Test
     public void testSingleLine_linkIds() {
         Fixture f = new Fixture();
@@ -413,6 +565,47 @@ public class SwissRailRaptorTest {
     }
 
 
+    @Test
+    public void testTransferTime_timeDependent() {
+        /* idea: same as in testTransferTime, travel from C to F with a line switch at G.
+         * The transfers starting at G take 3 minutes longer between 06:00 and 06:15,
+         * so the direct connection should be taken at 06:00, but not at 07:00.
+         */
+        Fixture f = new Fixture();
+        f.init();
+        f.config.planCalcScore().setUtilityOfLineSwitch(0);
+        f.config.transitRouter().setAdditionalTransferTime(0);
+        RaptorStaticConfig staticConfig = RaptorUtils.createStaticConfig(f.config);
+        double[] additionalTransferTimes = new double[25];
+        additionalTransferTimes[24] = 3*60 + 1; // 06:00 - 06:15 with the default slices of 15 minutes
+        staticConfig.setAdditionalTransferTimes(Id.create("12", TransitStopFacility.class), additionalTransferTimes);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.schedule, staticConfig, f.network);
+        DefaultRaptorStopFinder stopFinder = new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null);
+        TransitRouter router = new SwissRailRaptor(data, new DefaultRaptorParametersForPerson(f.config), new LeastCostRaptorRouteSelector(), stopFinder);
+
+        List<Leg> legs = router.calcRoute(new FakeFacility(new Coord(11900, 5100)), new FakeFacility(new Coord(24100, 4950)), 6.0*3600 - 5.0*60, null);
+        assertEquals("wrong number of legs",3, legs.size());
+        assertEquals(f.blueLine.getId(), ((ExperimentalTransitRoute) legs.get(1).getRoute()).getLineId());
+
+        legs = router.calcRoute(new FakeFacility(new Coord(11900, 5100)), new FakeFacility(new Coord(24100, 4950)), 7.0*3600 - 5.0*60, null);
+        assertEquals("wrong number of legs",5, legs.size());
+        assertEquals(f.redLine.getId(), ((ExperimentalTransitRoute) legs.get(1).getRoute()).getLineId());
+        assertEquals(f.blueLine.getId(), ((ExperimentalTransitRoute) legs.get(3).getRoute()).getLineId());
+
+        // at the end of the slice, a later arrival must not be ready to depart earlier than an earlier arrival
+        int stopIndex = data.stopFacilityIndices.get(f.schedule.getFacilities().get(Id.create("12", TransitStopFacility.class)));
+        assertEquals(181, data.transferTimeProfiles.getAdditionalTransferTime(stopIndex, 6.25*3600 - 1), 0.0);
+        assertEquals(181, data.transferTimeProfiles.getAdditionalTransferTime(stopIndex, 6.25*3600), 0.0);
+        assertEquals(61, data.transferTimeProfiles.getAdditionalTransferTime(stopIndex, 6.25*3600 + 120), 0.0);
+        assertEquals(0, data.transferTimeProfiles.getAdditionalTransferTime(stopIndex, 6.25*3600 + 181), 0.0);
+        double previousReadyTime = Double.NEGATIVE_INFINITY;
+        for (double time = 5.75*3600; time < 6.75*3600; time += 0.5) {
+            double readyTime = time + data.transferTimeProfiles.getAdditionalTransferTime(stopIndex, time);
+            assertTrue("transfers are not FIFO at " + Time.writeTime(time), readyTime >= previousReadyTime);
+            previousReadyTime = readyTime;
+        }
+    }
+
     @Test
     public void testAfterMidnight() {
         // in contrast to the default PT router, SwissRailRaptor will not automatically
@@ -698,6 +891,87 @@ public class SwissRailRaptorTest {
         assertRaptorRoute(routes.get(5), "06:40:12", "07:11:56", 1, 7.3466666);
     }
 
+    @Test
+    public void testRangeQuery_routingLimits() {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptorConfigGroup srrConfig = ConfigUtils.addOrGetModule(f.config, SwissRailRaptorConfigGroup.class);
+        SwissRailRaptorConfigGroup.RoutingLimitsParameterSet limits = new SwissRailRaptorConfigGroup.RoutingLimitsParameterSet();
+        srrConfig.addRoutingLimits(limits);
+
+        Coord fromCoord = new Coord(3800, 5100);
+        Coord toCoord = new Coord(28100, 4950);
+        double depTime = 5.0 * 3600 + 50 * 60;
+
+        limits.setMaxTransfers(0);
+        SwissRailRaptor raptor = createTransitRouter(f.schedule, f.config, f.network);
+        List<RaptorRoute> routes = raptor.calcRoutes(new FakeFacility(fromCoord), new FakeFacility(toCoord), depTime - 600, depTime, depTime + 3600, null);
+        Assert.assertEquals(4, routes.size());
+        assertRaptorRoute(routes.get(0), "05:40:12", "06:30:56", 0, 10.1466666);
+        assertRaptorRoute(routes.get(3), "06:40:12", "07:30:56", 0, 10.1466666);
+
+        limits.setMaxTransfers(20);
+        limits.setMaxTravelTime(40 * 60);
+        raptor = createTransitRouter(f.schedule, f.config, f.network);
+        routes = raptor.calcRoutes(new FakeFacility(fromCoord), new FakeFacility(toCoord), depTime - 600, depTime, depTime + 3600, null);
+        Assert.assertEquals(2, routes.size());
+        assertRaptorRoute(routes.get(0), "05:40:12", "06:11:56", 1, 7.3466666);
+        assertRaptorRoute(routes.get(1), "06:40:12", "07:11:56", 1, 7.3466666);
+    }
+
+    @Test
+    public void testParetoRoutes() {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptor raptor = createTransitRouter(f.schedule, f.config, f.network);
+
+        Coord fromCoord = new Coord(3800, 5100);
+        Coord toCoord = new Coord(28100, 4950);
+        double depTime = 5.0 * 3600 + 40 * 60;
+        List<RaptorRoute> routes = raptor.calcParetoRoutes(new FakeFacility(fromCoord), new FakeFacility(toCoord), depTime, null);
+
+        // the express line arrives earlier, the blue line has no transfer, everything else is dominated by one of them
+        Assert.assertEquals(2, routes.size());
+        assertRaptorRoute(routes.get(0), "05:40:00", "06:11:56", 1, 7.3866666);
+        assertRaptorRoute(routes.get(1), "05:40:00", "06:30:56", 0, 10.1866666);
+    }
+
+    @Test
+    public void testRouteArriveBy() {
+        Fixture f = new Fixture();
+        f.init();
+        SwissRailRaptor raptor = createTransitRouter(f.schedule, f.config, f.network);
+
+        Facility fromFacility = new FakeFacility(new Coord(3800, 5100));
+        Facility toFacility = new FakeFacility(new Coord(28100, 4950));
+        double arrTime = 7.0 * 3600 + 15 * 60;
+        List<Leg> legs = raptor.calcRouteArriveBy(fromFacility, toFacility, arrTime, null);
+
+        Assert.assertNotNull(legs);
+        boolean hasPtLeg = false;
+        for (Leg leg : legs) {
+            hasPtLeg |= leg.getMode().equals(TransportMode.pt);
+        }
+        Assert.assertTrue("expected a pt leg", hasPtLeg);
+        double depTime = legs.get(0).getDepartureTime();
+        Leg lastLeg = legs.get(legs.size() - 1);
+        double actualArrTime = lastLeg.getDepartureTime() + lastLeg.getTravelTime();
+        Assert.assertTrue("arrives too late", actualArrTime <= arrTime);
+        // the blue line departing at 06:46 with a transfer to the express line at C
+        Assert.assertEquals("wrong departure time", Time.parseTime("06:40:12"), depTime, 0.99);
+        Assert.assertEquals("wrong arrival time", Time.parseTime("07:11:56"), actualArrTime, 0.99);
+
+        // departing at the same time, the forward search must not arrive later than the backward search
+        List<Leg> forwardLegs = raptor.calcRoute(fromFacility, toFacility, depTime, null);
+        Leg lastForwardLeg = forwardLegs.get(forwardLegs.size() - 1);
+        Assert.assertTrue(lastForwardLeg.getDepartureTime() + lastForwardLeg.getTravelTime() <= arrTime);
+
+        // the backward search returns the latest departure, departing a minute later misses the connection
+        forwardLegs = raptor.calcRoute(fromFacility, toFacility, depTime + 60, null);
+        lastForwardLeg = forwardLegs.get(forwardLegs.size() - 1);
+        Assert.assertTrue("a later departure still arrives in time", lastForwardLeg.getDepartureTime() + lastForwardLeg.getTravelTime() > arrTime);
+    }
+
     private void assertRaptorRoute(RaptorRoute route, String depTime, String arrTime, int expectedTransfers, double expectedCost) {
         Assert.assertEquals("wrong number of transfers", expectedTransfers, route.getNumberOfTransfers());
         Assert.assertEquals("wrong departure time", Time.parseTime(depTime), route.getDepartureTime(), 0.99);
@@ -13,8 +13,11 @@ import org.matsim.core.utils.misc.Time;
 import org.matsim.pt.transitSchedule.api.TransitStopFacility;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Tests for the tree-calculating functionality of SwissRailRaptor
@@ -401,6 +404,134 @@ public class SwissRailRaptorTreeTest {
         Assert.assertNull(stage5.line); // egress_walk
     }
 
+    @Test
+    public void testParallelRounds() {
+        Fixture f = new Fixture();
+        f.init();
+
+        RaptorStaticConfig config = RaptorUtils.createStaticConfig(f.config);
+        config.setOptimization(RaptorStaticConfig.RaptorOptimization.OneToAllRouting);
+        config.setMinItemsPerParallelTask(1); // the rounds of the small fixture would otherwise never be split
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.scenario.getTransitSchedule(), config, f.scenario.getNetwork());
+        DefaultRaptorStopFinder stopFinder = new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null);
+        SwissRailRaptor raptor = new SwissRailRaptor(data, new DefaultRaptorParametersForPerson(f.scenario.getConfig()),
+                new LeastCostRaptorRouteSelector(), stopFinder, null );
+
+        RaptorParameters raptorParams = RaptorUtils.createParameters(f.config);
+
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            for (TransitStopFacility fromStop : f.schedule.getFacilities().values()) {
+                for (double depTime = 5*3600; depTime < 10*3600; depTime += 17*60) {
+                    Map<Id<TransitStopFacility>, TravelInfo> expected = raptor.calcTree(fromStop, depTime, raptorParams);
+                    Map<Id<TransitStopFacility>, TravelInfo> actual = raptor.calcTree(Collections.singletonList(fromStop), depTime, raptorParams, executor, 3);
+                    Assert.assertEquals(expected.keySet(), actual.keySet());
+                    for (Map.Entry<Id<TransitStopFacility>, TravelInfo> e : expected.entrySet()) {
+                        TravelInfo info = e.getValue();
+                        TravelInfo parallelInfo = actual.get(e.getKey());
+                        Assert.assertEquals(info.departureStop, parallelInfo.departureStop);
+                        Assert.assertEquals(info.transferCount, parallelInfo.transferCount);
+                        Assert.assertEquals(info.ptDepartureTime, parallelInfo.ptDepartureTime, 0.0);
+                        Assert.assertEquals(info.ptArrivalTime, parallelInfo.ptArrivalTime, 0.0);
+                        Assert.assertEquals(info.travelCost, parallelInfo.travelCost, 0.0);
+                        Assert.assertEquals(info.waitingTime, parallelInfo.waitingTime, 0.0);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testProfileTree() {
+        Fixture f = new Fixture();
+        f.init();
+
+        RaptorStaticConfig config = RaptorUtils.createStaticConfig(f.config);
+        config.setOptimization(RaptorStaticConfig.RaptorOptimization.OneToAllRouting);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.scenario.getTransitSchedule(), config, f.scenario.getNetwork());
+        DefaultRaptorStopFinder stopFinder = new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null);
+        SwissRailRaptor raptor = new SwissRailRaptor(data, new DefaultRaptorParametersForPerson(f.scenario.getConfig()),
+                new LeastCostRaptorRouteSelector(), stopFinder, null );
+
+        RaptorParameters raptorParams = RaptorUtils.createParameters(f.config);
+
+        TransitStopFacility fromStop = f.schedule.getFacilities().get(Id.create(23, TransitStopFacility.class));
+        double earliestDepTime = 7*3600 + 30*60;
+        double latestDepTime = 8*3600 + 30*60;
+        Map<Id<TransitStopFacility>, List<TravelInfo>> profiles = raptor.calcProfileTree(Collections.singletonList(fromStop), earliestDepTime, latestDepTime, raptorParams);
+
+        for (List<TravelInfo> profile : profiles.values()) {
+            Assert.assertFalse(profile.isEmpty());
+            double prevDepTime = Double.NEGATIVE_INFINITY;
+            for (TravelInfo info : profile) {
+                Assert.assertFalse(info.isWalkOnly());
+                double depTime = info.ptDepartureTime - info.waitingTime; // the departure time at the start stop
+                Assert.assertTrue("connections must be ordered by departure time", depTime >= prevDepTime);
+                Assert.assertTrue(depTime >= earliestDepTime && depTime <= latestDepTime);
+                prevDepTime = depTime;
+            }
+        }
+        Assert.assertNull("the start stop is reached by walking, as in a tree", profiles.get(fromStop.getId()));
+
+        // the connection found by the tree for 07:40 must be part of the profile
+        List<TravelInfo> profile = profiles.get(Id.create(18, TransitStopFacility.class));
+        Assert.assertNotNull(profile);
+        boolean found = false;
+        for (TravelInfo info : profile) {
+            if (Math.floor(info.ptDepartureTime) == Time.parseTime("07:41:00")) {
+                Assert.assertEquals(0, info.transferCount);
+                Assert.assertEquals(Time.parseTime("07:50:00"), Math.floor(info.ptArrivalTime), 0.0);
+                found = true;
+            }
+        }
+        Assert.assertTrue("connection departing at 07:41 not found", found);
+    }
+
+    @Test
+    public void testTravelInfoTree() {
+        Fixture f = new Fixture();
+        f.init();
+
+        RaptorStaticConfig config = RaptorUtils.createStaticConfig(f.config);
+        config.setOptimization(RaptorStaticConfig.RaptorOptimization.OneToAllRouting);
+        SwissRailRaptorData data = SwissRailRaptorData.create(f.scenario.getTransitSchedule(), config, f.scenario.getNetwork());
+        DefaultRaptorStopFinder stopFinder = new DefaultRaptorStopFinder(null, new DefaultRaptorIntermodalAccessEgress(), null);
+        SwissRailRaptor raptor = new SwissRailRaptor(data, new DefaultRaptorParametersForPerson(f.scenario.getConfig()),
+                new LeastCostRaptorRouteSelector(), stopFinder, null );
+
+        RaptorParameters raptorParams = RaptorUtils.createParameters(f.config);
+
+        TransitStopFacility fromStop = f.schedule.getFacilities().get(Id.create(23, TransitStopFacility.class));
+        double depTime = 7*3600 + 40*60;
+        Map<Id<TransitStopFacility>, TravelInfo> map = raptor.calcTree(Collections.singletonList(fromStop), depTime, raptorParams);
+        SwissRailRaptorCore.TravelInfoTree tree = raptor.calcTravelInfoTree(Collections.singletonList(fromStop), depTime, raptorParams);
+
+        int reachedStops = 0;
+        for (TransitStopFacility stop : f.schedule.getFacilities().values()) {
+            int stopIndex = tree.getStopIndex(stop);
+            TravelInfo info = map.get(stop.getId());
+            if (stopIndex < 0 || tree.getEntryCount(stopIndex) == 0) {
+                Assert.assertNull("Stop " + stop.getId() + " is missing in the tree.", info);
+                continue;
+            }
+            Assert.assertNotNull("Stop " + stop.getId() + " is not reachable.", info);
+            Assert.assertEquals(1, tree.getEntryCount(stopIndex));
+            int entry = tree.getFirstEntry(stopIndex);
+            Assert.assertEquals(info.departureStop, tree.getDepartureStop(entry).getId());
+            Assert.assertEquals(info.transferCount, tree.getTransferCount(entry));
+            Assert.assertEquals(info.ptDepartureTime, tree.getPtDepartureTime(entry), 1e-7);
+            Assert.assertEquals(info.ptArrivalTime, tree.getPtArrivalTime(entry), 1e-7);
+            Assert.assertEquals(info.travelCost, tree.getTravelCost(entry), 1e-7);
+            Assert.assertEquals(info.waitingTime, tree.getWaitingTime(entry), 1e-7);
+            Assert.assertEquals(info.isWalkOnly(), tree.isWalkOnly(entry));
+            Assert.assertEquals(info.getRaptorRoute().getParts().size(), tree.getRaptorRoute(entry).getParts().size());
+            reachedStops++;
+        }
+        Assert.assertEquals(map.size(), reachedStops);
+    }
+
     private void assertTravelInfo(Map<Id<TransitStopFacility>, TravelInfo> map, int stopId, String expectedDepartureStop, int expectedTransfers, String expectedDepartureTime, String expectedArrivalTime) {
         TravelInfo info = map.get(Id.create(stopId, TransitStopFacility.class));
         Assert.assertNotNull("Stop " + stopId + " is not reachable.", info);